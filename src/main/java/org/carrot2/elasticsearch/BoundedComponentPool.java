@@ -0,0 +1,320 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.carrot2.util.Pair;
+import org.carrot2.util.pool.IActivationListener;
+import org.carrot2.util.pool.IDisposalListener;
+import org.carrot2.util.pool.IInstantiationListener;
+import org.carrot2.util.pool.IParameterizedPool;
+import org.carrot2.util.pool.IPassivationListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+/**
+ * A component pool with a minimum and maximum number of instances per component
+ * (class and identifier). Borrowers wait (up to the wait timeout) when the maximum
+ * number of instances is in use. The minimum number of instances is created by
+ * {@link #ensureMinimum(Class, Object)}; instances idle for longer than the idle
+ * timeout are released by {@link #evictIdle()}, down to the minimum.
+ */
+final class BoundedComponentPool<T, P> implements IParameterizedPool<T, P> {
+    /**
+     * Pool bounds of a single component.
+     */
+    static final class Limits {
+        final int min;
+        final int max;
+        final long idleTimeoutMillis;
+        final long waitTimeoutMillis;
+
+        /**
+         * @param idleTimeoutMillis Idle timeout or <code>-1</code> to keep idle instances
+         * forever.
+         * @param waitTimeoutMillis Maximum time to wait for an instance when the maximum
+         * number of instances is in use or <code>-1</code> to wait indefinitely.
+         */
+        Limits(int min, int max, long idleTimeoutMillis, long waitTimeoutMillis) {
+            if (min < 0 || max < 1 || min > max) {
+                throw new IllegalArgumentException(
+                        "Invalid component pool bounds (min: " + min + ", max: " + max + ").");
+            }
+            this.min = min;
+            this.max = max;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.waitTimeoutMillis = waitTimeoutMillis;
+        }
+    }
+
+    /**
+     * Supplies pool bounds of a component, given its identifier.
+     */
+    interface LimitsProvider<P> {
+        Limits limits(P parameter);
+    }
+
+    private static final class Idle<T> {
+        final T instance;
+        final long since;
+
+        Idle(T instance, long since) {
+            this.instance = instance;
+            this.since = since;
+        }
+    }
+
+    private static final class Slot<T, P> {
+        final P parameter;
+        final Limits limits;
+        final ArrayDeque<Idle<T>> idle = new ArrayDeque<>();
+        int instances;
+
+        Slot(P parameter, Limits limits) {
+            this.parameter = parameter;
+            this.limits = limits;
+        }
+    }
+
+    private final LimitsProvider<P> limitsProvider;
+    private final Map<Pair<Class<?>, P>, Slot<T, P>> slots = new ConcurrentHashMap<>();
+
+    private IInstantiationListener<T, P> instantiationListener;
+    private IActivationListener<T, P> activationListener;
+    private IPassivationListener<T, P> passivationListener;
+    private IDisposalListener<T, P> disposalListener;
+    private volatile boolean disposed;
+
+    BoundedComponentPool(LimitsProvider<P> limitsProvider) {
+        this.limitsProvider = limitsProvider;
+    }
+
+    @Override
+    public void init(IInstantiationListener<T, P> instantiationListener,
+                     IActivationListener<T, P> activationListener,
+                     IPassivationListener<T, P> passivationListener,
+                     IDisposalListener<T, P> disposalListener) {
+        this.instantiationListener = instantiationListener;
+        this.activationListener = activationListener;
+        this.passivationListener = passivationListener;
+        this.disposalListener = disposalListener;
+    }
+
+    @Override
+    public <I extends T> I borrowObject(Class<I> clazz, P parameter)
+            throws InstantiationException, IllegalAccessException {
+        if (disposed) {
+            throw new IllegalStateException("Component pool disposed.");
+        }
+
+        final Slot<T, P> slot = slot(clazz, parameter);
+        T instance = null;
+        synchronized (slot) {
+            final long waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(slot.limits.waitTimeoutMillis);
+            final long start = System.nanoTime();
+            while (slot.idle.isEmpty() && slot.instances >= slot.limits.max) {
+                try {
+                    if (slot.limits.waitTimeoutMillis < 0) {
+                        slot.wait();
+                    } else {
+                        final long remaining = waitTimeoutNanos - (System.nanoTime() - start);
+                        if (remaining <= 0) {
+                            throw new EsRejectedExecutionException("Timed out after "
+                                    + slot.limits.waitTimeoutMillis + "ms waiting for a pooled instance of "
+                                    + "component [" + parameter + "], all " + slot.limits.max + " are in use.");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(slot, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a pooled component: " + parameter);
+                }
+            }
+
+            if (!slot.idle.isEmpty()) {
+                // Most recently used first, so that surplus instances stay idle and expire.
+                instance = slot.idle.pollLast().instance;
+            } else {
+                slot.instances++;
+            }
+        }
+
+        if (instance == null) {
+            instance = create(slot, clazz, parameter);
+        }
+
+        boolean activated = false;
+        try {
+            if (activationListener != null) {
+                activationListener.activate(instance, parameter);
+            }
+            activated = true;
+        } finally {
+            if (!activated) {
+                // Don't hand out (or keep) an instance in an unknown state, free its slot.
+                release(slot);
+                dispose(parameter, instance);
+            }
+        }
+        return clazz.cast(instance);
+    }
+
+    /**
+     * Create idle instances of a component until its minimum number of instances
+     * is reached.
+     *
+     * @return Returns the number of created instances.
+     */
+    int ensureMinimum(Class<? extends T> clazz, P parameter)
+            throws InstantiationException, IllegalAccessException {
+        final Slot<T, P> slot = slot(clazz, parameter);
+        int created = 0;
+        while (!disposed) {
+            synchronized (slot) {
+                if (slot.instances >= slot.limits.min) {
+                    break;
+                }
+                slot.instances++;
+            }
+
+            T instance = create(slot, clazz, parameter);
+            synchronized (slot) {
+                slot.idle.addLast(new Idle<>(instance, System.currentTimeMillis()));
+                slot.notify();
+            }
+            created++;
+        }
+        return created;
+    }
+
+    /**
+     * Create a new instance in a slot already counted in {@link Slot#instances}.
+     */
+    private T create(Slot<T, P> slot, Class<? extends T> clazz, P parameter)
+            throws InstantiationException, IllegalAccessException {
+        boolean created = false;
+        try {
+            T instance = clazz.newInstance();
+            if (instantiationListener != null) {
+                instantiationListener.objectInstantiated(instance, parameter);
+            }
+            created = true;
+            return instance;
+        } finally {
+            if (!created) {
+                release(slot);
+            }
+        }
+    }
+
+    private static void release(Slot<?, ?> slot) {
+        synchronized (slot) {
+            slot.instances--;
+            slot.notify();
+        }
+    }
+
+    @Override
+    public void returnObject(T object, P parameter) {
+        if (object == null) {
+            return;
+        }
+
+        if (passivationListener != null) {
+            passivationListener.passivate(object, parameter);
+        }
+
+        final Slot<T, P> slot = slots.get(new Pair<Class<?>, P>(object.getClass(), parameter));
+        if (slot == null) {
+            throw new IllegalStateException("Returning an object that was not borrowed: " + parameter);
+        }
+
+        if (disposed) {
+            dispose(slot.parameter, object);
+            return;
+        }
+
+        synchronized (slot) {
+            slot.idle.addLast(new Idle<>(object, System.currentTimeMillis()));
+            slot.notify();
+        }
+    }
+
+    /**
+     * Release instances idle for longer than their component's idle timeout, keeping
+     * at least the minimum number of instances.
+     *
+     * @return Returns the number of released instances.
+     */
+    int evictIdle() {
+        final long now = System.currentTimeMillis();
+        int released = 0;
+        for (Slot<T, P> slot : slots.values()) {
+            if (slot.limits.idleTimeoutMillis < 0) {
+                continue;
+            }
+
+            final List<T> expired = new ArrayList<>();
+            synchronized (slot) {
+                while (!slot.idle.isEmpty() &&
+                       slot.instances > slot.limits.min &&
+                       now - slot.idle.peekFirst().since >= slot.limits.idleTimeoutMillis) {
+                    expired.add(slot.idle.pollFirst().instance);
+                    slot.instances--;
+                }
+                if (!expired.isEmpty()) {
+                    slot.notifyAll();
+                }
+            }
+
+            for (T instance : expired) {
+                dispose(slot.parameter, instance);
+            }
+            released += expired.size();
+        }
+        return released;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        for (Slot<T, P> slot : slots.values()) {
+            final List<T> idle = new ArrayList<>();
+            synchronized (slot) {
+                for (Idle<T> entry : slot.idle) {
+                    idle.add(entry.instance);
+                }
+                slot.instances -= slot.idle.size();
+                slot.idle.clear();
+                slot.notifyAll();
+            }
+
+            for (T instance : idle) {
+                dispose(slot.parameter, instance);
+            }
+        }
+    }
+
+    private Slot<T, P> slot(Class<?> clazz, P parameter) {
+        final Pair<Class<?>, P> key = new Pair<Class<?>, P>(clazz, parameter);
+        Slot<T, P> slot = slots.get(key);
+        if (slot == null) {
+            synchronized (slots) {
+                slot = slots.get(key);
+                if (slot == null) {
+                    slots.put(key, slot = new Slot<>(parameter, limitsProvider.limits(parameter)));
+                }
+            }
+        }
+        return slot;
+    }
+
+    private void dispose(P parameter, T instance) {
+        if (disposalListener != null) {
+            disposalListener.dispose(instance, parameter);
+        }
+    }
+}
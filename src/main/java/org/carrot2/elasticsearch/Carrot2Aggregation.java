@@ -0,0 +1,780 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.PriorityQueue;
+import org.carrot2.core.Document;
+import org.carrot2.core.LanguageCode;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.HasContext;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.InternalMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.lookup.FieldLookup;
+import org.elasticsearch.search.lookup.LeafSearchLookup;
+
+/**
+ * A <code>carrot2</code> metrics aggregation: clusters the top documents of each bucket.
+ *
+ * <p>Each shard collects the best scoring documents of each bucket and extracts the text
+ * of their mapped fields (<code>_source.*</code>, <code>fields.*</code> and <code>kwic.*</code>
+ * field mappings are supported). Documents of all shards are clustered when aggregations are
+ * reduced, on the node handling the search request (or a dedicated clustering node, see
+ * {@link ClusteringRouter}). The reduce phase reaches the node's router through the
+ * search request's context, set by {@link Carrot2ReduceFilter}. Clustering runs in the
+ * {@link ClusteringPool} selected for the search request, like clustering requests do.</p>
+ */
+public final class Carrot2Aggregation {
+    /**
+     * Aggregation type name.
+     */
+    public static final String NAME = "carrot2";
+
+    /**
+     * Default number of top documents clustered per bucket.
+     */
+    public static final int DEFAULT_SIZE = 100;
+
+    /**
+     * Default maximum time the reduce phase waits for a clustering node.
+     */
+    public static final TimeValue DEFAULT_TIMEOUT = TimeValue.timeValueMinutes(1);
+
+    private Carrot2Aggregation() {}
+
+    /**
+     * Makes the node's {@link ClusteringRouter} available to the reduce phase of
+     * aggregations (results are deserialized, not constructed by the injector) by
+     * putting this filter in the context of search requests handled by this node,
+     * along with the {@link ClusteringPool#HEADER} header and the searched indices. The
+     * clustering pool is only selected when a <code>carrot2</code> aggregation is reduced,
+     * other searches are not affected.
+     */
+    public static class Carrot2ReduceFilter extends ActionFilter.Simple {
+        static final String CONTEXT_KEY = Carrot2ReduceFilter.class.getName();
+        static final String HEADER_CONTEXT_KEY = CONTEXT_KEY + ".header";
+        static final String INDICES_CONTEXT_KEY = CONTEXT_KEY + ".indices";
+        static final String POOL_CONTEXT_KEY = CONTEXT_KEY + ".pool";
+
+        private final ClusteringRouter router;
+        private final ClusterService clusterService;
+        private final IndexNameExpressionResolver indexNameExpressionResolver;
+        private final TimeValue timeout;
+
+        @Inject
+        public Carrot2ReduceFilter(Settings settings,
+                                   ClusteringRouter router,
+                                   ClusterService clusterService,
+                                   IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings);
+            this.router = router;
+            this.clusterService = clusterService;
+            this.indexNameExpressionResolver = indexNameExpressionResolver;
+            this.timeout = settings.getAsTime(ClusteringPlugin.AGGREGATION_TIMEOUT_PROPERTY_NAME, DEFAULT_TIMEOUT);
+        }
+
+        @Override
+        public int order() {
+            return 0;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected boolean apply(String action, ActionRequest request, ActionListener listener) {
+            if (request instanceof SearchRequest || request instanceof SearchScrollRequest) {
+                request.putInContext(CONTEXT_KEY, this);
+                Object header = request.getHeader(ClusteringPool.HEADER);
+                if (header != null) {
+                    request.putInContext(HEADER_CONTEXT_KEY, header.toString());
+                }
+                if (request instanceof SearchRequest) {
+                    request.putInContext(INDICES_CONTEXT_KEY, request);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Select the clustering pool the way {@link ClusteringAction} does: by the
+         * {@link ClusteringPool#HEADER} header or the searched indices (scroll requests
+         * only by the header). The pool is selected once per search request, on the
+         * first reduced aggregation.
+         *
+         * @throws IllegalArgumentException If the header names an undefined pool.
+         */
+        String selectPool(HasContext context) {
+            String pool = context.getFromContext(POOL_CONTEXT_KEY);
+            if (pool == null) {
+                String [] concreteIndices = null;
+                IndicesRequest indicesRequest = context.getFromContext(INDICES_CONTEXT_KEY);
+                if (indicesRequest != null) {
+                    try {
+                        concreteIndices = indexNameExpressionResolver.concreteIndices(clusterService.state(), indicesRequest);
+                    } catch (ElasticsearchException e) {
+                        // Resolved by the search itself, use the default pool.
+                    }
+                }
+                pool = ClusteringPool.select(router.getPools(),
+                        context.<String> getFromContext(HEADER_CONTEXT_KEY), concreteIndices).getName();
+                context.putInContext(POOL_CONTEXT_KEY, pool);
+            }
+            return pool;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected boolean apply(String action, ActionResponse response, ActionListener listener) {
+            return true;
+        }
+
+        /**
+         * Cluster documents of a bucket, taking a permit of the clustering pool. Clustering
+         * runs on the calling thread on a clustering node; otherwise the call waits for a
+         * clustering node, at most for {@link ClusteringPlugin#AGGREGATION_TIMEOUT_PROPERTY_NAME}.
+         */
+        DocumentGroup [] cluster(String pool, ClusteringSpec spec, String algorithm, List<Document> documents) {
+            final ClusteringPool clusteringPool = router.getPools().get(pool);
+            clusteringPool.acquire();
+            final long tsStart = System.nanoTime();
+            boolean success = false;
+            try {
+                PlainActionFuture<DocumentGroup[]> future = PlainActionFuture.newFuture();
+                router.cluster(pool, algorithm, spec.queryHint, spec.attributes, documents, future);
+                DocumentGroup [] groups = future.actionGet(timeout);
+                success = true;
+                return groups;
+            } finally {
+                clusteringPool.release(tsStart, success);
+            }
+        }
+    }
+
+    /**
+     * Clustering parameters of an aggregation, passed from the parser to the shards
+     * and on to the reduce phase.
+     */
+    static final class ClusteringSpec implements Streamable {
+        String queryHint = "";
+        String algorithm;
+        Map<String, Object> attributes;
+        List<FieldMappingSpec> fieldMapping = new ArrayList<>();
+        int size = DEFAULT_SIZE;
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            queryHint = in.readString();
+            algorithm = in.readOptionalString();
+            if (in.readBoolean()) {
+                attributes = in.readMap();
+            }
+            int count = in.readVInt();
+            while (count-- > 0) {
+                FieldMappingSpec spec = new FieldMappingSpec();
+                spec.readFrom(in);
+                fieldMapping.add(spec);
+            }
+            size = in.readVInt();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(queryHint);
+            out.writeOptionalString(algorithm);
+            out.writeBoolean(attributes != null);
+            if (attributes != null) {
+                out.writeMap(attributes);
+            }
+            out.writeVInt(fieldMapping.size());
+            for (FieldMappingSpec spec : fieldMapping) {
+                spec.writeTo(out);
+            }
+            out.writeVInt(size);
+        }
+    }
+
+    /**
+     * Builder of a <code>carrot2</code> aggregation for the Java API.
+     */
+    public static class Carrot2AggregationBuilder extends MetricsAggregationBuilder<Carrot2AggregationBuilder> {
+        private String queryHint;
+        private String algorithm;
+        private Map<String, Object> attributes;
+        private Map<String, List<String>> fieldMapping = new LinkedHashMap<>();
+        private Integer size;
+
+        public Carrot2AggregationBuilder(String name) {
+            super(name, NAME);
+        }
+
+        /**
+         * @see ClusteringAction.ClusteringActionRequest#setQueryHint(String)
+         */
+        public Carrot2AggregationBuilder setQueryHint(String queryHint) {
+            this.queryHint = queryHint;
+            return this;
+        }
+
+        /**
+         * @see ClusteringAction.ClusteringActionRequest#setAlgorithm(String)
+         */
+        public Carrot2AggregationBuilder setAlgorithm(String algorithm) {
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * @see ClusteringAction.ClusteringActionRequest#setAttributes(Map)
+         */
+        public Carrot2AggregationBuilder setAttributes(Map<String, Object> attributes) {
+            this.attributes = attributes;
+            return this;
+        }
+
+        /**
+         * Map a field (a field specification with a source prefix, for example
+         * <code>_source.title</code>) to a logical field.
+         *
+         * @see ClusteringAction.ClusteringActionRequest#addFieldMappingSpec(String, LogicalField)
+         */
+        public Carrot2AggregationBuilder addFieldMappingSpec(String fieldSpec, LogicalField logicalField) {
+            String key = logicalField.name().toLowerCase(Locale.ROOT);
+            if (!fieldMapping.containsKey(key)) {
+                fieldMapping.put(key, new ArrayList<String>());
+            }
+            fieldMapping.get(key).add(fieldSpec);
+            return this;
+        }
+
+        /**
+         * Sets the number of top documents clustered per bucket.
+         */
+        public Carrot2AggregationBuilder setSize(int size) {
+            this.size = size;
+            return this;
+        }
+
+        @Override
+        protected void internalXContent(XContentBuilder builder, Params params) throws IOException {
+            if (queryHint != null) {
+                builder.field(Carrot2Parser.QUERY_HINT, queryHint);
+            }
+            if (algorithm != null) {
+                builder.field(Carrot2Parser.ALGORITHM, algorithm);
+            }
+            if (attributes != null) {
+                builder.field(Carrot2Parser.ATTRIBUTES, attributes);
+            }
+            if (size != null) {
+                builder.field(Carrot2Parser.SIZE, size);
+            }
+            builder.field(Carrot2Parser.FIELD_MAPPING, fieldMapping);
+        }
+    }
+
+    /**
+     * Parser of a <code>carrot2</code> aggregation. The aggregation accepts the same
+     * <code>query_hint</code>, <code>field_mapping</code>, <code>algorithm</code> and
+     * <code>attributes</code> as the clustering request, and <code>size</code>.
+     */
+    public static class Carrot2Parser implements Aggregator.Parser {
+        static final String QUERY_HINT = "query_hint";
+        static final String FIELD_MAPPING = "field_mapping";
+        static final String ALGORITHM = "algorithm";
+        static final String ATTRIBUTES = "attributes";
+        static final String SIZE = "size";
+
+        @Override
+        public String type() {
+            return NAME;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+            final ClusteringSpec spec = new ClusteringSpec();
+            Map<String, Object> asMap = parser.map();
+            for (Map.Entry<String, Object> e : asMap.entrySet()) {
+                switch (e.getKey()) {
+                    case QUERY_HINT:
+                        spec.queryHint = String.valueOf(e.getValue());
+                        break;
+                    case ALGORITHM:
+                        spec.algorithm = String.valueOf(e.getValue());
+                        break;
+                    case ATTRIBUTES:
+                        spec.attributes = (Map<String, Object>) e.getValue();
+                        break;
+                    case SIZE:
+                        spec.size = Integer.parseInt(String.valueOf(e.getValue()));
+                        break;
+                    case FIELD_MAPPING:
+                        parseFieldMapping(aggregationName, (Map<String, Object>) e.getValue(), spec, parser, context);
+                        break;
+                    default:
+                        throw new SearchParseException(context, "Unknown key for a " + NAME +
+                                " aggregation [" + aggregationName + "]: [" + e.getKey() + "].", parser.getTokenLocation());
+                }
+            }
+
+            if (spec.fieldMapping.isEmpty()) {
+                throw new SearchParseException(context, "At least one field should be mapped to a logical document field in [" +
+                        aggregationName + "].", parser.getTokenLocation());
+            }
+            if (spec.size <= 0) {
+                throw new SearchParseException(context, "Size must be positive in [" + aggregationName + "].", parser.getTokenLocation());
+            }
+
+            return new Carrot2AggregatorFactory(aggregationName, spec);
+        }
+
+        private static void parseFieldMapping(String aggregationName, Map<String, Object> fieldMapping, ClusteringSpec spec,
+                                              XContentParser parser, SearchContext context) {
+            for (Map.Entry<String, Object> e : fieldMapping.entrySet()) {
+                LogicalField logicalField = LogicalField.valueOfCaseInsensitive(e.getKey());
+                if (logicalField == null) {
+                    throw new SearchParseException(context, "Unknown logical field: " + e.getKey(), parser.getTokenLocation());
+                }
+
+                List<?> fieldSpecs = e.getValue() instanceof List
+                        ? (List<?>) e.getValue()
+                        : Collections.singletonList(e.getValue());
+                for (Object fieldSpec : fieldSpecs) {
+                    FieldSource.ParsedFieldSource pfs = FieldSource.parseSpec(String.valueOf(fieldSpec));
+                    if (pfs == null) {
+                        throw new SearchParseException(context, "Field mapping specification must contain a " +
+                                " valid source prefix for the field source: " + fieldSpec, parser.getTokenLocation());
+                    }
+                    switch (pfs.source) {
+                        case SOURCE:
+                        case FIELD:
+                        case KWIC:
+                            spec.fieldMapping.add(new FieldMappingSpec(pfs.fieldName, logicalField, pfs.source));
+                            break;
+                        default:
+                            throw new SearchParseException(context, "Field source not supported in " + NAME +
+                                    " aggregation [" + aggregationName + "]: " + fieldSpec, parser.getTokenLocation());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Factory of {@link Carrot2Aggregator}s.
+     */
+    static class Carrot2AggregatorFactory extends AggregatorFactory {
+        private final ClusteringSpec spec;
+
+        Carrot2AggregatorFactory(String name, ClusteringSpec spec) {
+            super(name, InternalCarrot2.TYPE.name());
+            this.spec = spec;
+        }
+
+        @Override
+        protected Aggregator createInternal(AggregationContext aggregationContext, Aggregator parent,
+                boolean collectsFromSingleBucket, List<PipelineAggregator> pipelineAggregators,
+                Map<String, Object> metaData) throws IOException {
+            return new Carrot2Aggregator(name, spec, aggregationContext, parent, pipelineAggregators, metaData);
+        }
+
+        @Override
+        public AggregatorFactory subFactories(AggregatorFactories subFactories) {
+            throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + type + "] cannot accept sub-aggregations");
+        }
+    }
+
+    /**
+     * A queue of the best scoring documents (global document ids).
+     */
+    private static final class TopDocsQueue extends PriorityQueue<ScoreDoc> {
+        TopDocsQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+            if (a.score == b.score) {
+                return a.doc > b.doc;
+            }
+            return a.score < b.score;
+        }
+    }
+
+    /**
+     * Collects the top documents of each bucket and extracts their text.
+     */
+    static class Carrot2Aggregator extends MetricsAggregator {
+        private final ClusteringSpec spec;
+        private final KeywordInContext kwic;
+        private final Map<Long, TopDocsQueue> queues = new HashMap<>();
+
+        Carrot2Aggregator(String name, ClusteringSpec spec, AggregationContext context, Aggregator parent,
+                          List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+            super(name, context, parent, pipelineAggregators, metaData);
+            this.spec = spec;
+            this.kwic = new KeywordInContext(spec.queryHint);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return true;
+        }
+
+        @Override
+        protected LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+            final int docBase = ctx.docBase;
+            return new LeafBucketCollectorBase(sub, null) {
+                private Scorer scorer;
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                    super.setScorer(scorer);
+                    this.scorer = scorer;
+                }
+
+                @Override
+                public void collect(int doc, long bucket) throws IOException {
+                    TopDocsQueue queue = queues.get(bucket);
+                    if (queue == null) {
+                        queues.put(bucket, queue = new TopDocsQueue(spec.size));
+                    }
+                    queue.insertWithOverflow(new ScoreDoc(docBase + doc, scorer == null ? 0 : scorer.score()));
+                }
+            };
+        }
+
+        @Override
+        public InternalAggregation buildAggregation(long bucket) throws IOException {
+            TopDocsQueue queue = queues.get(bucket);
+            if (queue == null || queue.size() == 0) {
+                return buildEmptyAggregation();
+            }
+
+            ScoreDoc [] topDocs = new ScoreDoc [queue.size()];
+            for (int i = topDocs.length; --i >= 0;) {
+                topDocs[i] = queue.pop();
+            }
+
+            final String index = context.searchContext().indexShard().shardId().getIndex();
+            final List<LeafReaderContext> leaves = context.searchContext().searcher().getIndexReader().leaves();
+            final Map<Integer, LeafSearchLookup> lookups = new HashMap<>();
+            final LogicalDocument logicalDocument = new LogicalDocument();
+            final List<Document> documents = new ArrayList<>(topDocs.length);
+            final float [] scores = new float [topDocs.length];
+            for (int i = 0; i < topDocs.length; i++) {
+                final int leafIndex = ReaderUtil.subIndex(topDocs[i].doc, leaves);
+                final LeafReaderContext leaf = leaves.get(leafIndex);
+                LeafSearchLookup lookup = lookups.get(leafIndex);
+                if (lookup == null) {
+                    lookups.put(leafIndex, lookup = context.searchContext().lookup().getLeafSearchLookup(leaf));
+                }
+                lookup.setDocument(topDocs[i].doc - leaf.docBase);
+
+                logicalDocument.reset();
+                for (FieldMappingSpec fieldSpec : spec.fieldMapping) {
+                    Object appendContent = null;
+                    switch (fieldSpec.source) {
+                        case FIELD:
+                            try {
+                                appendContent = ((FieldLookup) lookup.fields().get(fieldSpec.field)).getValue();
+                            } catch (IllegalArgumentException e) {
+                                // Not mapped.
+                            }
+                            break;
+
+                        case SOURCE:
+                        case KWIC:
+                            Object value = lookup.source().extractValue(fieldSpec.field);
+                            if (fieldSpec.source == FieldSource.KWIC) {
+                                appendContent = kwic.extract(value);
+                            } else if (value instanceof List) {
+                                appendContent = LogicalDocument.join((List<?>) value);
+                            } else {
+                                appendContent = value;
+                            }
+                            break;
+
+                        default:
+                            throw org.carrot2.elasticsearch.Preconditions.unreachable();
+                    }
+                    logicalDocument.append(fieldSpec.logicalField, appendContent);
+                }
+
+                // Buckets may span indices: reference documents by index, type and id.
+                Uid uid = Uid.createUid((String) ((FieldLookup) lookup.fields().get(UidFieldMapper.NAME)).getValue());
+                LanguageCode langCode = logicalDocument.isEmpty(LogicalField.LANGUAGE)
+                        ? null
+                        : LanguageCode.forISOCode(logicalDocument.get(LogicalField.LANGUAGE));
+                documents.add(new Document(
+                        logicalDocument.get(LogicalField.TITLE),
+                        logicalDocument.get(LogicalField.CONTENT),
+                        logicalDocument.get(LogicalField.URL),
+                        langCode,
+                        index + "/" + uid.type() + "/" + uid.id()));
+                scores[i] = topDocs[i].score;
+            }
+
+            return new InternalCarrot2(name, spec, documents, scores, pipelineAggregators(), metaData());
+        }
+
+        @Override
+        public InternalAggregation buildEmptyAggregation() {
+            return new InternalCarrot2(name, spec, Collections.<Document> emptyList(), new float [0],
+                    pipelineAggregators(), metaData());
+        }
+    }
+
+    /**
+     * Result of a <code>carrot2</code> aggregation: top documents of a shard before
+     * the reduce phase, clusters after it.
+     */
+    public static class InternalCarrot2 extends InternalMetricsAggregation {
+        public static final Type TYPE = new Type(NAME);
+
+        static final AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+            @Override
+            public InternalCarrot2 readResult(StreamInput in) throws IOException {
+                InternalCarrot2 result = new InternalCarrot2();
+                result.readFrom(in);
+                return result;
+            }
+        };
+
+        /**
+         * Register the stream of this aggregation's results.
+         */
+        static void registerStreams() {
+            AggregationStreams.registerStream(STREAM, TYPE.stream());
+        }
+
+        static final class Fields {
+            static final XContentBuilderString CLUSTERS = new XContentBuilderString("clusters");
+            static final XContentBuilderString INFO = new XContentBuilderString("info");
+        }
+
+        private ClusteringSpec spec;
+        private List<Document> documents;
+        private float [] scores;
+        private DocumentGroup [] groups;
+        private Map<String, String> info;
+
+        InternalCarrot2() {
+        }
+
+        InternalCarrot2(String name, ClusteringSpec spec, List<Document> documents, float [] scores,
+                        List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+            super(name, pipelineAggregators, metaData);
+            this.spec = spec;
+            this.documents = documents;
+            this.scores = scores;
+        }
+
+        private InternalCarrot2(String name, ClusteringSpec spec, DocumentGroup [] groups, Map<String, String> info,
+                                List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+            super(name, pipelineAggregators, metaData);
+            this.spec = spec;
+            this.groups = groups;
+            this.info = info;
+        }
+
+        @Override
+        public Type type() {
+            return TYPE;
+        }
+
+        /**
+         * @return Returns clusters of the top documents of this bucket (after the reduce phase).
+         */
+        public DocumentGroup [] getDocumentGroups() {
+            return groups;
+        }
+
+        /**
+         * @return Returns clustering information (algorithm, number of documents).
+         */
+        public Map<String, String> getInfo() {
+            return info;
+        }
+
+        @Override
+        public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+            // Top documents of all shards.
+            final List<Document> all = new ArrayList<>();
+            final Map<Document, Float> allScores = new HashMap<>();
+            for (InternalAggregation aggregation : aggregations) {
+                InternalCarrot2 partial = (InternalCarrot2) aggregation;
+                for (int i = 0; i < partial.documents.size(); i++) {
+                    all.add(partial.documents.get(i));
+                    allScores.put(partial.documents.get(i), partial.scores[i]);
+                }
+            }
+            Collections.sort(all, new Comparator<Document>() {
+                @Override
+                public int compare(Document a, Document b) {
+                    return Float.compare(allScores.get(b), allScores.get(a));
+                }
+            });
+            final List<Document> top = all.size() > spec.size ? new ArrayList<>(all.subList(0, spec.size)) : all;
+
+            final Carrot2ReduceFilter filter = reduceContext.getFromContext(Carrot2ReduceFilter.CONTEXT_KEY);
+            if (filter == null) {
+                throw new ElasticsearchException("Clustering is not available on this node.");
+            }
+            final String pool = filter.selectPool(reduceContext);
+
+            final List<String> algorithms = filter.router.getAlgorithms();
+            String algorithm = spec.algorithm;
+            if (algorithm == null) {
+                algorithm = algorithms.get(0);
+            } else if (!algorithms.contains(algorithm)) {
+                throw new IllegalArgumentException("No such algorithm: " + algorithm);
+            }
+
+            DocumentGroup [] groups = new DocumentGroup [0];
+            if (!top.isEmpty()) {
+                groups = filter.cluster(pool, spec, algorithm, top);
+            }
+
+            Map<String, String> info = new LinkedHashMap<>();
+            info.put(ClusteringAction.ClusteringActionResponse.Fields.Info.ALGORITHM, algorithm);
+            info.put(ClusteringAction.ClusteringActionResponse.Fields.Info.DOCUMENTS, Integer.toString(top.size()));
+            if (!ClusteringPool.DEFAULT.equals(pool)) {
+                info.put(ClusteringAction.ClusteringActionResponse.Fields.Info.POOL, pool);
+            }
+            return new InternalCarrot2(getName(), spec, groups, info, pipelineAggregators(), getMetaData());
+        }
+
+        @Override
+        public Object getProperty(List<String> path) {
+            if (path.isEmpty()) {
+                return this;
+            } else if (path.size() == 1 && "clusters".equals(path.get(0))) {
+                return groups;
+            } else {
+                throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+            }
+        }
+
+        @Override
+        public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+            builder.startArray(Fields.CLUSTERS);
+            if (groups != null) {
+                for (DocumentGroup group : groups) {
+                    group.toXContent(builder, params);
+                }
+            }
+            builder.endArray();
+            if (info != null) {
+                builder.field(Fields.INFO, info);
+            }
+            return builder;
+        }
+
+        @Override
+        protected void doWriteTo(StreamOutput out) throws IOException {
+            spec.writeTo(out);
+
+            out.writeBoolean(groups != null);
+            if (groups != null) {
+                out.writeVInt(groups.length);
+                for (DocumentGroup group : groups) {
+                    group.writeTo(out);
+                }
+                out.writeVInt(info.size());
+                for (Map.Entry<String, String> e : info.entrySet()) {
+                    out.writeString(e.getKey());
+                    out.writeString(e.getValue());
+                }
+            } else {
+                out.writeVInt(documents.size());
+                for (int i = 0; i < documents.size(); i++) {
+                    Document document = documents.get(i);
+                    out.writeOptionalString(document.getTitle());
+                    out.writeOptionalString(document.getSummary());
+                    out.writeOptionalString(document.getContentUrl());
+                    out.writeOptionalString(document.getLanguage() == null ? null : document.getLanguage().name());
+                    out.writeString(document.getStringId());
+                    out.writeFloat(scores[i]);
+                }
+            }
+        }
+
+        @Override
+        protected void doReadFrom(StreamInput in) throws IOException {
+            spec = new ClusteringSpec();
+            spec.readFrom(in);
+
+            if (in.readBoolean()) {
+                groups = new DocumentGroup [in.readVInt()];
+                for (int i = 0; i < groups.length; i++) {
+                    groups[i] = new DocumentGroup();
+                    groups[i].readFrom(in);
+                }
+                int entries = in.readVInt();
+                info = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    info.put(in.readString(), in.readString());
+                }
+            } else {
+                int count = in.readVInt();
+                documents = new ArrayList<>(count);
+                scores = new float [count];
+                for (int i = 0; i < count; i++) {
+                    String title = in.readOptionalString();
+                    String summary = in.readOptionalString();
+                    String url = in.readOptionalString();
+                    String language = in.readOptionalString();
+                    String id = in.readString();
+                    documents.add(new Document(title, summary, url,
+                            language == null ? null : LanguageCode.valueOf(language), id));
+                    scores[i] = in.readFloat();
+                }
+            }
+        }
+    }
+}
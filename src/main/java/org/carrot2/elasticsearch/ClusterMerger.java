@@ -0,0 +1,307 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Merges {@link DocumentGroup} trees computed independently over disjoint subsets
+ * of documents (for example, hits of different shards) into a single tree.
+ *
+ * <p>Groups are merged if their labels consist of (mostly) the same words
+ * (case and punctuation ignored) or if they share a phrase. Document references
+ * and phrases of merged groups are combined, subgroups are merged recursively.
+ * "Other topics" groups are combined into a single group placed last. Group
+ * identifiers are renumbered in the merged tree.</p>
+ */
+final class ClusterMerger {
+    /**
+     * Minimum overlap of label words (Jaccard coefficient) for two groups to be merged.
+     */
+    static final double LABEL_OVERLAP_THRESHOLD = 0.5;
+
+    private ClusterMerger() {}
+
+    /**
+     * A group under construction.
+     */
+    private static final class MergedGroup {
+        final String label;
+        final Set<String> labelWords;
+        final Set<String> normalizedPhrases = new LinkedHashSet<>();
+        final Set<String> phrases = new LinkedHashSet<>();
+        final Set<String> documents = new LinkedHashSet<>();
+        final List<DocumentGroup[]> subgroups = new ArrayList<>();
+        double score;
+        String language;
+
+        MergedGroup(DocumentGroup group) {
+            this.label = group.getLabel();
+            this.labelWords = words(group.getLabel());
+            this.language = group.getLanguage();
+            add(group);
+        }
+
+        void add(DocumentGroup group) {
+            if (language != null && !language.equals(group.getLanguage())) {
+                language = null;
+            }
+            for (String phrase : group.getPhrases()) {
+                phrases.add(phrase);
+                normalizedPhrases.add(normalize(phrase));
+            }
+            Collections.addAll(documents, group.getDocumentReferences());
+            if (group.getSubgroups().length > 0) {
+                subgroups.add(group.getSubgroups());
+            }
+            score = Math.max(score, group.getScore());
+        }
+
+        boolean matches(DocumentGroup group) {
+            // Groups of different languages are never merged.
+            return Objects.equals(language, group.getLanguage()) &&
+                   similar(labelWords, normalizedPhrases, group);
+        }
+
+        DocumentGroup toDocumentGroup() {
+            DocumentGroup group = new DocumentGroup();
+            group.setLabel(label);
+            group.setScore(score);
+            group.setPhrases(phrases.toArray(new String [phrases.size()]));
+            group.setDocumentReferences(documents.toArray(new String [documents.size()]));
+            group.setSubgroups(mergeGroups(subgroups));
+            group.setLanguage(language);
+            return group;
+        }
+    }
+
+    /**
+     * Merge cluster trees and renumber group identifiers.
+     */
+    static DocumentGroup [] merge(List<DocumentGroup[]> partials) {
+        DocumentGroup [] merged = mergeGroups(partials);
+        renumber(merged, 0);
+        return merged;
+    }
+
+    /**
+     * Keep at most <code>maxGroups</code> top-level groups of a merged tree. Merging
+     * partial results of small inputs yields many small groups specific to one partial
+     * result; a cap (for partitioned clustering: the number of groups of the largest
+     * partial result) keeps these out of the response.
+     *
+     * <p>The first <code>maxGroups</code> groups are kept, so <code>merged</code> should
+     * be ordered as returned by {@link #merge} (largest groups first). Subgroups of kept
+     * groups are not limited. Documents of the dropped groups and their subgroups, not
+     * referenced by any kept group or its subgroups, are moved to the "other topics"
+     * group, created if necessary and placed last.</p>
+     *
+     * @return Returns <code>merged</code> if no group is dropped, otherwise a new array
+     * with renumbered identifiers.
+     */
+    static DocumentGroup [] limit(DocumentGroup [] merged, int maxGroups) {
+        List<DocumentGroup> kept = new ArrayList<>();
+        List<DocumentGroup> dropped = new ArrayList<>();
+        DocumentGroup otherTopics = null;
+        for (DocumentGroup group : merged) {
+            if (group.isOtherTopics()) {
+                otherTopics = group;
+            } else {
+                (kept.size() < maxGroups ? kept : dropped).add(group);
+            }
+        }
+        if (dropped.isEmpty()) {
+            return merged;
+        }
+
+        Set<String> clustered = new LinkedHashSet<>();
+        for (DocumentGroup group : kept) {
+            addReferences(group, clustered);
+        }
+        Set<String> unclustered = new LinkedHashSet<>();
+        if (otherTopics != null) {
+            Collections.addAll(unclustered, otherTopics.getDocumentReferences());
+        }
+        for (DocumentGroup group : dropped) {
+            addReferences(group, unclustered);
+        }
+        unclustered.removeAll(clustered);
+
+        if (!unclustered.isEmpty()) {
+            if (otherTopics == null) {
+                otherTopics = new DocumentGroup();
+                otherTopics.setLabel("Other Topics");
+                otherTopics.setPhrases(new String [] {"Other Topics"});
+                otherTopics.setOtherTopics(true);
+            }
+            otherTopics.setDocumentReferences(unclustered.toArray(new String [unclustered.size()]));
+            kept.add(otherTopics);
+        }
+
+        DocumentGroup [] limited = kept.toArray(new DocumentGroup [kept.size()]);
+        renumber(limited, 0);
+        return limited;
+    }
+
+    /**
+     * Add document references of the group and its subgroups.
+     */
+    private static void addReferences(DocumentGroup group, Set<String> references) {
+        Collections.addAll(references, group.getDocumentReferences());
+        for (DocumentGroup subgroup : group.getSubgroups()) {
+            addReferences(subgroup, references);
+        }
+    }
+
+    /**
+     * Keep labels of previously computed groups: each group of <code>current</code> similar
+     * to a group of <code>previous</code> (as defined for merging) takes over that group's
+     * label. Each previous label is reused at most once. Only top-level groups are considered.
+     */
+    static void stabilizeLabels(DocumentGroup [] previous, DocumentGroup [] current) {
+        List<DocumentGroup> candidates = new ArrayList<>();
+        for (DocumentGroup group : previous) {
+            if (!group.isOtherTopics()) {
+                candidates.add(group);
+            }
+        }
+
+        for (DocumentGroup group : current) {
+            if (group.isOtherTopics()) {
+                continue;
+            }
+            for (Iterator<DocumentGroup> i = candidates.iterator(); i.hasNext();) {
+                DocumentGroup candidate = i.next();
+                Set<String> normalizedPhrases = new LinkedHashSet<>();
+                for (String phrase : candidate.getPhrases()) {
+                    normalizedPhrases.add(normalize(phrase));
+                }
+                if (similar(words(candidate.getLabel()), normalizedPhrases, group)) {
+                    group.setLabel(candidate.getLabel());
+                    i.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean similar(Set<String> labelWords, Set<String> normalizedPhrases, DocumentGroup group) {
+        if (jaccard(labelWords, words(group.getLabel())) >= LABEL_OVERLAP_THRESHOLD) {
+            return true;
+        }
+        for (String phrase : group.getPhrases()) {
+            if (normalizedPhrases.contains(normalize(phrase))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DocumentGroup [] mergeGroups(List<DocumentGroup[]> partials) {
+        List<DocumentGroup> groups = new ArrayList<>();
+        for (DocumentGroup [] partial : partials) {
+            Collections.addAll(groups, partial);
+        }
+
+        // Larger groups first, so that their labels represent merged groups.
+        Collections.sort(groups, new Comparator<DocumentGroup>() {
+            @Override
+            public int compare(DocumentGroup a, DocumentGroup b) {
+                return Integer.compare(b.getDocumentReferences().length, a.getDocumentReferences().length);
+            }
+        });
+
+        List<MergedGroup> merged = new ArrayList<>();
+        MergedGroup otherTopics = null;
+        nextGroup:
+        for (DocumentGroup group : groups) {
+            if (group.isOtherTopics()) {
+                if (otherTopics == null) {
+                    otherTopics = new MergedGroup(group);
+                } else {
+                    otherTopics.add(group);
+                }
+                continue;
+            }
+
+            for (MergedGroup candidate : merged) {
+                if (candidate.matches(group)) {
+                    candidate.add(group);
+                    continue nextGroup;
+                }
+            }
+            merged.add(new MergedGroup(group));
+        }
+
+        Collections.sort(merged, new Comparator<MergedGroup>() {
+            @Override
+            public int compare(MergedGroup a, MergedGroup b) {
+                return Integer.compare(b.documents.size(), a.documents.size());
+            }
+        });
+
+        List<DocumentGroup> result = new ArrayList<>(merged.size() + 1);
+        for (MergedGroup group : merged) {
+            result.add(group.toDocumentGroup());
+        }
+        if (otherTopics != null) {
+            DocumentGroup group = otherTopics.toDocumentGroup();
+            group.setOtherTopics(true);
+            result.add(group);
+        }
+        return result.toArray(new DocumentGroup [result.size()]);
+    }
+
+    /**
+     * Assign consecutive identifiers to groups (depth-first), starting at <code>nextId</code>.
+     */
+    static int renumber(DocumentGroup [] groups, int nextId) {
+        for (DocumentGroup group : groups) {
+            group.setId(nextId++);
+            nextId = renumber(group.getSubgroups(), nextId);
+        }
+        return nextId;
+    }
+
+    private static String normalize(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : words(text)) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(word);
+        }
+        return sb.toString();
+    }
+
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        if (text != null) {
+            for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int common = 0;
+        for (String word : a) {
+            if (b.contains(word)) {
+                common++;
+            }
+        }
+        return (double) common / (a.size() + b.size() - common);
+    }
+}
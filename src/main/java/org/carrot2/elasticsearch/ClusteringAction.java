@@ -5,57 +5,88 @@ import static org.elasticsearch.action.ValidateActions.*;
 import static org.elasticsearch.rest.RestRequest.Method.*;
 
 import java.io.IOException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import org.carrot2.core.Cluster;
-import org.carrot2.core.Controller;
+import org.apache.lucene.index.Fields;
 import org.carrot2.core.Document;
 import org.carrot2.core.LanguageCode;
-import org.carrot2.core.ProcessingException;
-import org.carrot2.core.ProcessingResult;
-import org.carrot2.core.attribute.CommonAttributesDescriptor;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionListenerResponseHandler;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.TransportSearchAction;
+import org.elasticsearch.action.search.TransportSearchScrollAction;
+import org.elasticsearch.action.search.TransportClearScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.termvectors.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvectors.MultiTermVectorsRequest;
+import org.elasticsearch.action.termvectors.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvectors.TermVectorsRequest;
+import org.elasticsearch.action.termvectors.TransportMultiTermVectorsAction;
 import org.elasticsearch.action.support.TransportAction;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
@@ -64,6 +95,7 @@ import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.action.search.RestSearchAction;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.InternalAggregation;
@@ -112,9 +144,32 @@ public class ClusteringAction
         private SearchRequest searchRequest;
         private String queryHint;
         private List<FieldMappingSpec> fieldMapping = new ArrayList<>();
-        private String algorithm;
+        private List<String> algorithms = new ArrayList<>();
         private int maxHits = Integer.MAX_VALUE;
         private Map<String, Object> attributes;
+        private boolean shardSideExtraction = true;
+        private boolean rewriteSearchRequest;
+        private int sampleSize;
+        private SampleStrategy sampleStrategy = SampleStrategy.STRATIFIED;
+        private int scrollBatchSize;
+        private int scrollMaxDocuments = DEFAULT_SCROLL_MAX_DOCUMENTS;
+        private int scrollMaxChars = DEFAULT_SCROLL_MAX_CHARS;
+        private boolean distributed;
+        private boolean parallelLanguages;
+        private boolean parallelFetch;
+        private int partitions;
+        private boolean continuation;
+        private String continuationToken;
+
+        /**
+         * Default maximum number of documents clustered in scroll mode.
+         */
+        public static final int DEFAULT_SCROLL_MAX_DOCUMENTS = 100000;
+
+        /**
+         * Default maximum number of characters (of all documents' text) clustered in scroll mode.
+         */
+        public static final int DEFAULT_SCROLL_MAX_CHARS = 50 * 1024 * 1024;
 
         /**
          * Set the {@link SearchRequest} to use for fetching documents to be clustered.
@@ -161,15 +216,38 @@ public class ClusteringAction
          * algorithm will be used (depending on what's available).
          */
         public ClusteringActionRequest setAlgorithm(String algorithm) {
-            this.algorithm = algorithm;
+            this.algorithms = algorithm == null
+                    ? new ArrayList<String>()
+                    : new ArrayList<>(Collections.singletonList(algorithm));
             return this;
         }
         
         /**
          * @see #setAlgorithm
+         * @return Returns the (first) requested algorithm or <code>null</code>.
          */
         public String getAlgorithm() {
-            return algorithm;
+            return algorithms.isEmpty() ? null : algorithms.get(0);
+        }
+
+        /**
+         * Sets identifiers of several clustering algorithms to run on the same documents: the
+         * search and document preparation run once, algorithms run concurrently on the
+         * clustering thread pool (see {@link ClusteringPlugin#CLUSTERING_THREADS_PROPERTY_NAME}).
+         * The response contains clusters of each algorithm (see
+         * {@link ClusteringActionResponse#getDocumentGroupsByAlgorithm()}); its main clusters
+         * are those of the first algorithm. Attributes are passed to all algorithms.
+         */
+        public ClusteringActionRequest setAlgorithms(List<String> algorithms) {
+            this.algorithms = new ArrayList<>(checkNotNull(algorithms));
+            return this;
+        }
+
+        /**
+         * @see #setAlgorithms
+         */
+        public List<String> getAlgorithms() {
+            return algorithms;
         }
 
         /**
@@ -244,6 +322,308 @@ public class ClusteringAction
             return attributes;
         }
 
+        /**
+         * If set to <code>true</code> (the default), logical fields of each hit are assembled
+         * on the shard (by {@link ClusteringFetchSubPhase}) and only compact strings are returned
+         * to the node running clustering. Fields and highlights fetched only for clustering
+         * (see {@link #setRewriteSearchRequest(boolean)}) are not returned with hits. Requests
+         * with {@link FieldSource#TERMVECTORS} mappings are always assembled on the node
+         * running clustering (term vectors not stored in the index are generated there).
+         * Requires the plugin on all data nodes.
+         */
+        public ClusteringActionRequest setShardSideExtraction(boolean shardSideExtraction) {
+            this.shardSideExtraction = shardSideExtraction;
+            return this;
+        }
+
+        /**
+         * @see #setShardSideExtraction(boolean)
+         */
+        public boolean getShardSideExtraction() {
+            return shardSideExtraction;
+        }
+
+        /**
+         * @return Returns <code>true</code> if logical fields are assembled on shards (see
+         * {@link #setShardSideExtraction(boolean)}).
+         */
+        boolean extractOnShards() {
+            if (!shardSideExtraction) {
+                return false;
+            }
+            for (FieldMappingSpec spec : fieldMapping) {
+                if (spec.source == FieldSource.TERMVECTORS) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * If set to <code>true</code>, the delegate search request is rewritten to fetch only
+         * what the field mapping needs: <code>_source</code> is filtered to mapped source
+         * fields, <code>fields</code> are restricted to mapped fields and highlighting to
+         * mapped highlighted fields (with default highlighter settings for fields not
+         * configured in the request). The rewrite always happens if {@link #getMaxHits()}
+         * is zero (hits are not returned anyway).
+         */
+        public ClusteringActionRequest setRewriteSearchRequest(boolean rewriteSearchRequest) {
+            this.rewriteSearchRequest = rewriteSearchRequest;
+            return this;
+        }
+
+        /**
+         * @see #setRewriteSearchRequest(boolean)
+         */
+        public boolean getRewriteSearchRequest() {
+            return rewriteSearchRequest;
+        }
+
+        /**
+         * Cluster a sample of at most <code>sampleSize</code> hits, chosen with the given
+         * strategy, instead of all the hits returned by the search request. The response still
+         * contains hits according to {@link #setMaxHits(int)}. Zero (the default) disables sampling.
+         */
+        public ClusteringActionRequest setSample(int sampleSize, SampleStrategy sampleStrategy) {
+            this.sampleSize = sampleSize;
+            this.sampleStrategy = checkNotNull(sampleStrategy);
+            return this;
+        }
+
+        /**
+         * @see #setSample(int, SampleStrategy)
+         */
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        /**
+         * @see #setSample(int, SampleStrategy)
+         */
+        public SampleStrategy getSampleStrategy() {
+            return sampleStrategy;
+        }
+
+        /**
+         * Sets {@link #setSample(int, SampleStrategy)} from strings. A <code>null</code>
+         * strategy means the default strategy; the size is required.
+         */
+        public void setSample(String sampleSize, String sampleStrategy) {
+            if (sampleSize == null || sampleSize.trim().isEmpty()) {
+                throw new ElasticsearchParseException("Sample size is required.");
+            }
+            int size;
+            try {
+                size = Integer.parseInt(sampleSize.trim());
+            } catch (NumberFormatException e) {
+                throw new ElasticsearchParseException("Sample size must be an integer: [{}]", e, sampleSize);
+            }
+
+            SampleStrategy strategy = this.sampleStrategy;
+            if (sampleStrategy != null) {
+                strategy = SampleStrategy.valueOfCaseInsensitive(sampleStrategy);
+                if (strategy == null) {
+                    throw new IllegalArgumentException("Unknown sample strategy: " + sampleStrategy);
+                }
+            }
+            setSample(size, strategy);
+        }
+
+        /**
+         * Enables the distributed mode: instead of clustering all hits on the node handling
+         * the request, each data node clusters the top hits of its local shards (the search
+         * request is executed once per node and index, restricted to the node's shards) and
+         * returns only clusters with document references. The node handling the request merges
+         * the partial clusters (see {@link ClusterMerger}) and fetches hits for the response
+         * with a separate search, only if {@link #setMaxHits(int)} is set (otherwise the
+         * response has no hits). The search request's <code>preference</code> is overridden.
+         */
+        public ClusteringActionRequest setDistributed(boolean distributed) {
+            this.distributed = distributed;
+            return this;
+        }
+
+        /**
+         * @see #setDistributed(boolean)
+         */
+        public boolean getDistributed() {
+            return distributed;
+        }
+
+        /**
+         * Enables language-partitioned clustering: documents are grouped by their language
+         * (see {@link LogicalField#LANGUAGE}) and each language group is clustered separately,
+         * concurrently on the clustering thread pool (see
+         * {@link ClusteringPlugin#CLUSTERING_THREADS_PROPERTY_NAME}). Top-level clusters of all
+         * languages are returned together, each with its <code>language</code>.
+         */
+        public ClusteringActionRequest setParallelLanguages(boolean parallelLanguages) {
+            this.parallelLanguages = parallelLanguages;
+            return this;
+        }
+
+        /**
+         * @see #setParallelLanguages(boolean)
+         */
+        public boolean getParallelLanguages() {
+            return parallelLanguages;
+        }
+
+        /**
+         * Enables partitioned clustering of large inputs: documents are split into (up to)
+         * the given number of partitions, each clustered separately and concurrently on the
+         * clustering thread pool (see {@link ClusteringPlugin#CLUSTERING_THREADS_PROPERTY_NAME}),
+         * and the partial clusters are merged (see {@link ClusterMerger}): groups with
+         * similar labels or common phrases are combined (see
+         * {@link ClusteringRouter#clusterPartitioned}). Each
+         * partition gets at least {@link ClusteringRouter#MIN_PARTITION_DOCUMENTS} documents,
+         * so small inputs are clustered as a whole. <code>0</code> (the default) or
+         * <code>1</code> disable partitioning.
+         */
+        public ClusteringActionRequest setPartitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * @see #setPartitions(int)
+         */
+        public int getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * Enables parallel per-shard fetching for large clustering inputs: instead of a single
+         * search, one search per shard number is executed concurrently (using
+         * <code>_shards:</code> preference), each fetching the top <code>from + size</code> hits
+         * of its shard. Documents of each shard's hits are prepared for clustering as soon as
+         * its response arrives, overlapping fetch latency with text extraction. The plugin merges
+         * the hits by score (sampling, if requested, applies to the merged hits), so the search
+         * request must not sort hits. Failed shard searches are reported as shard failures of the
+         * response. Aggregations and suggestions of the search request are not returned in this mode.
+         */
+        public ClusteringActionRequest setParallelFetch(boolean parallelFetch) {
+            this.parallelFetch = parallelFetch;
+            return this;
+        }
+
+        /**
+         * @see #setParallelFetch(boolean)
+         */
+        public boolean getParallelFetch() {
+            return parallelFetch;
+        }
+
+        /**
+         * Enables the continuation mode for paging through results ("load more"): documents
+         * prepared for clustering and the resulting clusters are retained on the node handling
+         * the request (see {@link ClusteringContinuations}) and a token referencing this
+         * state is returned in the response's info section. A later request with this token
+         * (see {@link #setContinuationToken(String)}) and a search request for the following
+         * page of hits (<code>from</code> or <code>search_after</code>) only fetches and
+         * prepares the new hits, appends them to the retained documents and clusters all
+         * of them. Labels of clusters similar to previously returned clusters are preserved.
+         */
+        public ClusteringActionRequest setContinuation(boolean continuation) {
+            this.continuation = continuation;
+            return this;
+        }
+
+        /**
+         * @see #setContinuation(boolean)
+         */
+        public boolean getContinuation() {
+            return continuation || continuationToken != null;
+        }
+
+        /**
+         * Continue clustering with the state referenced by a token returned in a previous
+         * response. Implies {@link #setContinuation(boolean)}.
+         */
+        public ClusteringActionRequest setContinuationToken(String continuationToken) {
+            this.continuationToken = continuationToken;
+            return this;
+        }
+
+        /**
+         * @see #setContinuationToken(String)
+         */
+        public String getContinuationToken() {
+            return continuationToken;
+        }
+
+        /**
+         * Sets {@link #setContinuation(boolean)} or {@link #setContinuationToken(String)} from
+         * a string: <code>true</code> or <code>false</code> or a token.
+         */
+        public void setContinuation(String value) {
+            if ("true".equals(value) || "false".equals(value)) {
+                setContinuation(Boolean.parseBoolean(value));
+            } else {
+                setContinuationToken(value);
+            }
+        }
+
+        /**
+         * Enables the scroll mode: instead of clustering a single page of hits, the clustering
+         * action scrolls through all hits of the search request in batches of
+         * <code>batchSize</code> hits (the search request's <code>size</code> is ignored). Each
+         * batch is converted to clustering input as soon as it arrives (while the next batch
+         * is being fetched) and its hits are released. Scrolling stops when
+         * <code>maxDocuments</code> documents or <code>maxChars</code> characters of text have
+         * been collected. Only the first batch of hits is returned in the response.
+         * Zero batch size (the default) disables the scroll mode.
+         */
+        public ClusteringActionRequest setScroll(int batchSize, int maxDocuments, int maxChars) {
+            assert batchSize >= 0;
+            this.scrollBatchSize = batchSize;
+            this.scrollMaxDocuments = maxDocuments;
+            this.scrollMaxChars = maxChars;
+            return this;
+        }
+
+        /**
+         * Sets {@link #setScroll(int, int, int)} from strings. <code>null</code> limits
+         * mean default values; the batch size is required.
+         */
+        public void setScroll(String batchSize, String maxDocuments, String maxChars) {
+            if (batchSize == null || batchSize.trim().isEmpty()) {
+                throw new ElasticsearchParseException("Scroll batch size is required.");
+            }
+            setScroll(parseScrollOption("batch size", batchSize),
+                      maxDocuments == null ? DEFAULT_SCROLL_MAX_DOCUMENTS : parseScrollOption("max documents", maxDocuments),
+                      maxChars == null ? DEFAULT_SCROLL_MAX_CHARS : parseScrollOption("max chars", maxChars));
+        }
+
+        private static int parseScrollOption(String name, String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ElasticsearchParseException("Scroll {} must be an integer: [{}]", e, name, value);
+            }
+        }
+
+        /**
+         * @see #setScroll(int, int, int)
+         */
+        public int getScrollBatchSize() {
+            return scrollBatchSize;
+        }
+
+        /**
+         * @see #setScroll(int, int, int)
+         */
+        public int getScrollMaxDocuments() {
+            return scrollMaxDocuments;
+        }
+
+        /**
+         * @see #setScroll(int, int, int)
+         */
+        public int getScrollMaxChars() {
+            return scrollMaxChars;
+        }
+
         /**
          * Parses some {@link org.elasticsearch.common.xcontent.XContent} and fills in the request. 
          */
@@ -269,9 +649,15 @@ public class ClusteringAction
                     parseFieldSpecs(fieldMapping);
                 }
 
-                String algorithm = (String) asMap.get("algorithm");
-                if (algorithm != null) {
-                    setAlgorithm(algorithm);
+                Object algorithm = asMap.get("algorithm");
+                if (algorithm instanceof List) {
+                    List<String> algorithms = new ArrayList<>();
+                    for (Object id : (List<?>) algorithm) {
+                        algorithms.add(String.valueOf(id));
+                    }
+                    setAlgorithms(algorithms);
+                } else if (algorithm != null) {
+                    setAlgorithm(algorithm.toString());
                 }
                 
                 Map<String,Object> attributes = (Map<String,Object>) asMap.get("attributes"); 
@@ -296,6 +682,59 @@ public class ClusteringAction
                 if (maxHits != null) {
                     setMaxHits(maxHits.toString());
                 }
+
+                Map<String,Object> sample = (Map<String,Object>) asMap.get("sample");
+                if (sample != null) {
+                    Object sampleSize = sample.get("size");
+                    Object sampleStrategy = sample.get("strategy");
+                    setSample(sampleSize == null ? null : sampleSize.toString(),
+                              sampleStrategy == null ? null : sampleStrategy.toString());
+                }
+
+                Map<String,Object> scroll = (Map<String,Object>) asMap.get("scroll");
+                if (scroll != null) {
+                    Object batchSize = scroll.get("batch_size");
+                    Object maxDocuments = scroll.get("max_documents");
+                    Object maxChars = scroll.get("max_chars");
+                    setScroll(batchSize == null ? null : batchSize.toString(),
+                              maxDocuments == null ? null : maxDocuments.toString(),
+                              maxChars == null ? null : maxChars.toString());
+                }
+
+                Object distributed = asMap.get("distributed");
+                if (distributed != null) {
+                    setDistributed(Boolean.parseBoolean(distributed.toString()));
+                }
+
+                Object parallelLanguages = asMap.get("parallel_languages");
+                if (parallelLanguages != null) {
+                    setParallelLanguages(Boolean.parseBoolean(parallelLanguages.toString()));
+                }
+
+                Object parallelFetch = asMap.get("parallel_fetch");
+                if (parallelFetch != null) {
+                    setParallelFetch(Boolean.parseBoolean(parallelFetch.toString()));
+                }
+
+                Object partitions = asMap.get("partitions");
+                if (partitions != null) {
+                    setPartitions(Integer.parseInt(partitions.toString()));
+                }
+
+                Object continuation = asMap.get("continuation");
+                if (continuation != null) {
+                    setContinuation(continuation.toString());
+                }
+
+                Object rewriteSearchRequest = asMap.get("rewrite_search_request");
+                if (rewriteSearchRequest != null) {
+                    setRewriteSearchRequest(Boolean.parseBoolean(rewriteSearchRequest.toString()));
+                }
+
+                Object shardSideExtraction = asMap.get("shard_side_extraction");
+                if (shardSideExtraction != null) {
+                    setShardSideExtraction(Boolean.parseBoolean(shardSideExtraction.toString()));
+                }
             } catch (Exception e) {
                 String sSource = "_na_";
                 try {
@@ -303,7 +742,7 @@ public class ClusteringAction
                 } catch (Throwable e1) {
                     // ignore
                 }
-                throw new ElasticsearchException("Failed to parse source [" + sSource + "]", e);
+                throw new ElasticsearchParseException("Failed to parse source [{}]", e, sSource);
             }            
         }
 
@@ -348,6 +787,45 @@ public class ClusteringAction
             return this;
         }
 
+        /**
+         * Map a hit's term vector (analyzed terms with positions) to a logical section
+         * of a document to be clustered. The field's terms are fetched after the search
+         * and joined in position order, so the field's text isn't reparsed from the
+         * source document. Works best if term vectors with positions are stored in the
+         * index for the field.
+         */
+        public ClusteringActionRequest addTermVectorFieldMapping(String fieldName, LogicalField logicalField) {
+            fieldMapping.add(new FieldMappingSpec(fieldName, logicalField, FieldSource.TERMVECTORS));
+            return this;
+        }
+
+        /**
+         * Map keyword-in-context fragments of a hit's source field (windows of text around
+         * occurrences of query hint terms) to a logical section of a document to be clustered.
+         * This "focuses" the clustering engine on the context of the query, like
+         * {@link #addHighlightedFieldMapping(String, LogicalField)}, but at a fraction of the
+         * cost of running the highlighter. Hits without query hint terms in the field
+         * contribute no text.
+         *
+         * @see KeywordInContext
+         */
+        public ClusteringActionRequest addKwicFieldMapping(String sourceFieldName, LogicalField logicalField) {
+            fieldMapping.add(new FieldMappingSpec(sourceFieldName, logicalField, FieldSource.KWIC));
+            return this;
+        }
+
+        /**
+         * Map a hit's doc values (field data) to a logical section of a document to be
+         * clustered. The field is added to the search request's <code>fielddata_fields</code>
+         * automatically, so no stored fields or <code>_source</code> need to be loaded. Best
+         * suited for short, keyword-like (not analyzed) fields such as
+         * {@link LogicalField#URL} or {@link LogicalField#LANGUAGE}.
+         */
+        public ClusteringActionRequest addDocValuesFieldMapping(String fieldName, LogicalField logicalField) {
+            fieldMapping.add(new FieldMappingSpec(fieldName, logicalField, FieldSource.DOCVALUES));
+            return this;
+        }
+
         /**
          * Add a (valid!) field mapping specification to a logical field.
          * @see FieldSource
@@ -368,6 +846,18 @@ public class ClusteringAction
                         addSourceFieldMapping(pfs.fieldName, logicalField);
                         break;
 
+                    case TERMVECTORS:
+                        addTermVectorFieldMapping(pfs.fieldName, logicalField);
+                        break;
+
+                    case KWIC:
+                        addKwicFieldMapping(pfs.fieldName, logicalField);
+                        break;
+
+                    case DOCVALUES:
+                        addDocValuesFieldMapping(pfs.fieldName, logicalField);
+                        break;
+
                     default:
                         throw new RuntimeException();
                 }
@@ -401,6 +891,62 @@ public class ClusteringAction
                 validationException = addValidationError("At least one field should be mapped to a logical document field.", validationException);
             }
 
+            if (sampleSize < 0) {
+                validationException = addValidationError("Sample size must not be negative.", validationException);
+            }
+
+            if (scrollBatchSize < 0 || scrollMaxDocuments <= 0 || scrollMaxChars <= 0) {
+                validationException = addValidationError("Scroll batch size must not be negative, limits must be positive.", validationException);
+            }
+
+            if (scrollBatchSize > 0) {
+                if (sampleSize > 0) {
+                    validationException = addValidationError("Sampling is not supported in scroll mode.", validationException);
+                }
+                for (FieldMappingSpec spec : fieldMapping) {
+                    if (spec.source == FieldSource.TERMVECTORS) {
+                        validationException = addValidationError("termvectors.* field mapping is not supported in scroll mode.", validationException);
+                        break;
+                    }
+                }
+            }
+
+            if (getContinuation() && (scrollBatchSize > 0 || distributed || sampleSize > 0)) {
+                validationException = addValidationError("Continuation is not supported with scroll, distributed mode or sampling.", validationException);
+            }
+
+            if (algorithms.size() > 1) {
+                if (new HashSet<>(algorithms).size() != algorithms.size()) {
+                    validationException = addValidationError("Algorithms must not be repeated.", validationException);
+                }
+                if (distributed || getContinuation()) {
+                    validationException = addValidationError("Multiple algorithms are not supported with distributed mode or continuation.", validationException);
+                }
+            }
+
+            if (partitions < 0) {
+                validationException = addValidationError("Number of partitions must not be negative.", validationException);
+            }
+
+            if (partitions > 1 && parallelLanguages) {
+                validationException = addValidationError("Partitioned clustering is not supported with parallel languages.", validationException);
+            }
+
+            if (parallelFetch) {
+                if (scrollBatchSize > 0 || distributed || getContinuation()) {
+                    validationException = addValidationError("Parallel fetch is not supported with scroll, distributed mode or continuation.", validationException);
+                }
+                if (searchRequest != null && SearchRequestRewriter.isSorted(searchRequest)) {
+                    validationException = addValidationError("Parallel fetch merges hits by score, sort is not supported.", validationException);
+                }
+                for (FieldMappingSpec spec : fieldMapping) {
+                    if (spec.source == FieldSource.TERMVECTORS) {
+                        validationException = addValidationError("termvectors.* field mapping is not supported with parallel fetch.", validationException);
+                        break;
+                    }
+                }
+            }
+
             ActionRequestValidationException ex = searchRequest.validate();
             if (ex != null) {
                 if (validationException == null) {
@@ -417,7 +963,16 @@ public class ClusteringAction
             assert searchRequest != null;
             this.searchRequest.writeTo(out);
             out.writeOptionalString(queryHint);
-            out.writeOptionalString(algorithm);
+            final boolean extended = out.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION);
+            if (extended) {
+                out.writeStringArray(algorithms.toArray(new String [algorithms.size()]));
+            } else {
+                if (algorithms.size() > 1) {
+                    throw new IllegalArgumentException("Multiple algorithms are not supported by nodes before version "
+                            + ClusteringPlugin.WIRE_FORMAT_VERSION + ": " + out.getVersion());
+                }
+                out.writeOptionalString(getAlgorithm());
+            }
             out.writeInt(maxHits);
 
             out.writeVInt(fieldMapping.size());
@@ -430,6 +985,24 @@ public class ClusteringAction
             if (hasAttributes) {
                 out.writeMap(attributes);
             }
+
+            // Options of earlier versions end here; these nodes use the defaults.
+            if (!extended) {
+                return;
+            }
+            out.writeBoolean(shardSideExtraction);
+            out.writeBoolean(rewriteSearchRequest);
+            out.writeVInt(sampleSize);
+            out.writeVInt(sampleStrategy.ordinal());
+            out.writeVInt(scrollBatchSize);
+            out.writeVInt(scrollMaxDocuments);
+            out.writeVInt(scrollMaxChars);
+            out.writeBoolean(distributed);
+            out.writeBoolean(continuation);
+            out.writeOptionalString(continuationToken);
+            out.writeBoolean(parallelLanguages);
+            out.writeBoolean(parallelFetch);
+            out.writeVInt(partitions);
         }
 
         @Override
@@ -439,7 +1012,12 @@ public class ClusteringAction
             
             this.searchRequest = searchRequest;
             this.queryHint = in.readOptionalString();
-            this.algorithm = in.readOptionalString();
+            final boolean extended = in.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION);
+            if (extended) {
+                this.algorithms = new ArrayList<>(Arrays.asList(in.readStringArray()));
+            } else {
+                setAlgorithm(in.readOptionalString());
+            }
             this.maxHits = in.readInt();
             
             int count = in.readVInt();
@@ -453,6 +1031,38 @@ public class ClusteringAction
             if (hasAttributes) {
                 attributes = in.readMap();
             }
+
+            if (!extended) {
+                return;
+            }
+            shardSideExtraction = in.readBoolean();
+            rewriteSearchRequest = in.readBoolean();
+            sampleSize = in.readVInt();
+            sampleStrategy = SampleStrategy.fromOrdinal(in.readVInt());
+            scrollBatchSize = in.readVInt();
+            scrollMaxDocuments = in.readVInt();
+            scrollMaxChars = in.readVInt();
+            distributed = in.readBoolean();
+            continuation = in.readBoolean();
+            continuationToken = in.readOptionalString();
+            parallelLanguages = in.readBoolean();
+            parallelFetch = in.readBoolean();
+            partitions = in.readVInt();
+        }
+
+        /**
+         * @return Returns a deep copy of this request.
+         */
+        ClusteringActionRequest copy() {
+            try {
+                BytesStreamOutput out = new BytesStreamOutput();
+                writeTo(out);
+                ClusteringActionRequest copy = new ClusteringActionRequest();
+                copy.readFrom(out.bytes().streamInput());
+                return copy;
+            } catch (IOException e) {
+                throw new ElasticsearchException("Could not copy clustering request.", e);
+            }
         }
     }    
 
@@ -490,6 +1100,11 @@ public class ClusteringAction
             super.request.setAlgorithm(algorithm);
             return this;
         }
+
+        public ClusteringActionRequestBuilder setAlgorithms(String... algorithms) {
+            super.request.setAlgorithms(Arrays.asList(algorithms));
+            return this;
+        }
     
         public ClusteringActionRequestBuilder setSource(BytesReference content) {
             super.request.source(content);
@@ -518,31 +1133,96 @@ public class ClusteringAction
             return this;
         }
 
-        public ClusteringActionRequestBuilder addAttributes(Map<String,Object> attributes) {
-            if (super.request.getAttributes() == null) {
-                super.request.setAttributes(new HashMap<String, Object>());
-            }
-            super.request.getAttributes().putAll(attributes);
+        public ClusteringActionRequestBuilder setShardSideExtraction(boolean shardSideExtraction) {
+            super.request.setShardSideExtraction(shardSideExtraction);
             return this;
         }
-    
-        public ClusteringActionRequestBuilder addAttribute(String key, Object value) {
-            HashMap<String, Object> tmp = new HashMap<String, Object>();
-            tmp.put(key, value);
-            return addAttributes(tmp);
+
+        public ClusteringActionRequestBuilder setRewriteSearchRequest(boolean rewriteSearchRequest) {
+            super.request.setRewriteSearchRequest(rewriteSearchRequest);
+            return this;
         }
 
-        public ClusteringActionRequestBuilder setAttributes(Map<String,Object> attributes) {
-            super.request.setAttributes(attributes);
+        public ClusteringActionRequestBuilder setDistributed(boolean distributed) {
+            super.request.setDistributed(distributed);
             return this;
         }
-    
-        public ClusteringActionRequestBuilder addFieldMapping(String fieldName, LogicalField logicalField) {
-            super.request.addFieldMapping(fieldName, logicalField);
+
+        public ClusteringActionRequestBuilder setParallelLanguages(boolean parallelLanguages) {
+            super.request.setParallelLanguages(parallelLanguages);
             return this;
         }
-    
-        public ClusteringActionRequestBuilder addSourceFieldMapping(String fieldName, LogicalField logicalField) {
+
+        public ClusteringActionRequestBuilder setParallelFetch(boolean parallelFetch) {
+            super.request.setParallelFetch(parallelFetch);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setPartitions(int partitions) {
+            super.request.setPartitions(partitions);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setContinuation(boolean continuation) {
+            super.request.setContinuation(continuation);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setContinuation(String value) {
+            super.request.setContinuation(value);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setContinuationToken(String continuationToken) {
+            super.request.setContinuationToken(continuationToken);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setScroll(int batchSize, int maxDocuments, int maxChars) {
+            super.request.setScroll(batchSize, maxDocuments, maxChars);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setScroll(String batchSize, String maxDocuments, String maxChars) {
+            super.request.setScroll(batchSize, maxDocuments, maxChars);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setSample(int sampleSize, SampleStrategy sampleStrategy) {
+            super.request.setSample(sampleSize, sampleStrategy);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder setSample(String sampleSize, String sampleStrategy) {
+            super.request.setSample(sampleSize, sampleStrategy);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder addAttributes(Map<String,Object> attributes) {
+            if (super.request.getAttributes() == null) {
+                super.request.setAttributes(new HashMap<String, Object>());
+            }
+            super.request.getAttributes().putAll(attributes);
+            return this;
+        }
+    
+        public ClusteringActionRequestBuilder addAttribute(String key, Object value) {
+            HashMap<String, Object> tmp = new HashMap<String, Object>();
+            tmp.put(key, value);
+            return addAttributes(tmp);
+        }
+
+        public ClusteringActionRequestBuilder setAttributes(Map<String,Object> attributes) {
+            super.request.setAttributes(attributes);
+            return this;
+        }
+    
+        public ClusteringActionRequestBuilder addFieldMapping(String fieldName, LogicalField logicalField) {
+            super.request.addFieldMapping(fieldName, logicalField);
+            return this;
+        }
+    
+        public ClusteringActionRequestBuilder addSourceFieldMapping(String fieldName, LogicalField logicalField) {
             super.request.addSourceFieldMapping(fieldName, logicalField);
             return this;
         }
@@ -552,6 +1232,21 @@ public class ClusteringAction
             return this;
         }
     
+        public ClusteringActionRequestBuilder addTermVectorFieldMapping(String fieldName, LogicalField logicalField) {
+            super.request.addTermVectorFieldMapping(fieldName, logicalField);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder addKwicFieldMapping(String fieldName, LogicalField logicalField) {
+            super.request.addKwicFieldMapping(fieldName, logicalField);
+            return this;
+        }
+
+        public ClusteringActionRequestBuilder addDocValuesFieldMapping(String fieldName, LogicalField logicalField) {
+            super.request.addDocValuesFieldMapping(fieldName, logicalField);
+            return this;
+        }
+
         public ClusteringActionRequestBuilder addFieldMappingSpec(String fieldSpec, LogicalField logicalField) {
             super.request.addFieldMappingSpec(fieldSpec, logicalField);
             return this;
@@ -568,6 +1263,7 @@ public class ClusteringAction
         static final class Fields {
             static final XContentBuilderString SEARCH_RESPONSE = new XContentBuilderString("search_response");
             static final XContentBuilderString CLUSTERS = new XContentBuilderString("clusters");
+            static final XContentBuilderString CLUSTERS_BY_ALGORITHM = new XContentBuilderString("clusters_by_algorithm");
             static final XContentBuilderString INFO = new XContentBuilderString("info");
 
             // from SearchResponse
@@ -589,16 +1285,32 @@ public class ClusteringAction
              */
             static final class Info {
                 public static final String ALGORITHM = "algorithm";
+                public static final String ALGORITHMS = "algorithms";
                 public static final String SEARCH_MILLIS = "search-millis";
                 public static final String CLUSTERING_MILLIS = "clustering-millis";
                 public static final String TOTAL_MILLIS = "total-millis";
                 public static final String INCLUDE_HITS = "include-hits";
                 public static final String MAX_HITS = "max-hits";
+                public static final String SAMPLE_SIZE = "sample-size";
+                public static final String SAMPLE_STRATEGY = "sample-strategy";
+                public static final String SCROLL_BATCHES = "scroll-batches";
+                public static final String SCROLL_DOCUMENTS = "scroll-documents";
+                public static final String SCROLL_TRUNCATED = "scroll-truncated";
+                public static final String DISTRIBUTED_NODES = "distributed-nodes";
+                public static final String CONTINUATION_TOKEN = "continuation-token";
+                public static final String CONTINUATION_DOCUMENTS = "continuation-documents";
+                public static final String CONTINUATION_NEW_DOCUMENTS = "continuation-new-documents";
+                public static final String VIEW_AGE_MILLIS = "view-age-millis";
+                public static final String DOCUMENTS = "documents";
+                public static final String PARALLEL_FETCH_SHARDS = "parallel-fetch-shards";
+                public static final String POOL = "pool";
+                public static final String PARTITIONS = "partitions";
             }
         }
 
         private SearchResponse searchResponse;
         private DocumentGroup [] topGroups;
+        private Map<String,DocumentGroup[]> groupsByAlgorithm = Collections.emptyMap();
         private Map<String,String> info;
 
         ClusteringActionResponse() {
@@ -608,8 +1320,17 @@ public class ClusteringAction
                 SearchResponse searchResponse, 
                 DocumentGroup[] topGroups,
                 Map<String,String> info) {
+            this(searchResponse, topGroups, Collections.<String,DocumentGroup[]> emptyMap(), info);
+        }
+
+        public ClusteringActionResponse(
+                SearchResponse searchResponse, 
+                DocumentGroup[] topGroups,
+                Map<String,DocumentGroup[]> groupsByAlgorithm,
+                Map<String,String> info) {
             this.searchResponse = checkNotNull(searchResponse);
             this.topGroups = checkNotNull(topGroups);
+            this.groupsByAlgorithm = Collections.unmodifiableMap(checkNotNull(groupsByAlgorithm));
             this.info = Collections.unmodifiableMap(checkNotNull(info));
         }
 
@@ -620,6 +1341,15 @@ public class ClusteringAction
         public DocumentGroup[] getDocumentGroups() {
             return topGroups;
         }
+
+        /**
+         * @return Returns clusters of each algorithm, in the order of algorithms in the request,
+         * if several algorithms were requested (see
+         * {@link ClusteringActionRequest#setAlgorithms(List)}), otherwise an empty map.
+         */
+        public Map<String, DocumentGroup[]> getDocumentGroupsByAlgorithm() {
+            return groupsByAlgorithm;
+        }
         
         public Map<String, String> getInfo() {
             return info;
@@ -639,6 +1369,19 @@ public class ClusteringAction
                 }
             }
             builder.endArray();
+
+            if (!groupsByAlgorithm.isEmpty()) {
+                builder.startObject(Fields.CLUSTERS_BY_ALGORITHM);
+                for (Map.Entry<String,DocumentGroup[]> e : groupsByAlgorithm.entrySet()) {
+                    builder.startArray(e.getKey());
+                    for (DocumentGroup group : e.getValue()) {
+                        group.toXContent(builder, params);
+                    }
+                    builder.endArray();
+                }
+                builder.endObject();
+            }
+
             builder.field(Fields.INFO, info);
             return builder;
         }
@@ -659,6 +1402,17 @@ public class ClusteringAction
                     group.writeTo(out);
                 }
             }
+
+            if (out.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION)) {
+                out.writeVInt(groupsByAlgorithm.size());
+                for (Map.Entry<String,DocumentGroup[]> e : groupsByAlgorithm.entrySet()) {
+                    out.writeString(e.getKey());
+                    out.writeVInt(e.getValue().length);
+                    for (DocumentGroup group : e.getValue()) {
+                        group.writeTo(out);
+                    }
+                }
+            }
             
             out.writeVInt(info == null ? 0 : info.size());
             if (info != null) {
@@ -686,6 +1440,20 @@ public class ClusteringAction
                 group.readFrom(in);
                 topGroups[i] = group;
             }
+
+            groupsByAlgorithm = new LinkedHashMap<>();
+            if (in.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION)) {
+                int algorithms = in.readVInt();
+                for (int i = 0; i < algorithms; i++) {
+                    String algorithmId = in.readString();
+                    DocumentGroup [] groups = new DocumentGroup [in.readVInt()];
+                    for (int j = 0; j < groups.length; j++) {
+                        groups[j] = new DocumentGroup();
+                        groups[j].readFrom(in);
+                    }
+                    groupsByAlgorithm.put(algorithmId, groups);
+                }
+            }
             
             int entries = in.readVInt();
             info = new LinkedHashMap<>();
@@ -710,20 +1478,40 @@ public class ClusteringAction
         private final Set<String> langCodeWarnings = new CopyOnWriteArraySet<>();
 
         private final TransportSearchAction searchAction;
+        private final TransportSearchScrollAction searchScrollAction;
+        private final TransportClearScrollAction clearScrollAction;
+        private final TransportMultiTermVectorsAction termVectorsAction;
         private final ControllerSingleton controllerSingleton;
+        private final ClusteringRouter clusteringRouter;
+        private final ClusteringContinuations continuations;
+        private final ClusterService clusterService;
+        private final TransportService transportService;
     
         @Inject
         public TransportClusteringAction(Settings settings, 
                 ThreadPool threadPool,
                 TransportService transportService,
                 TransportSearchAction searchAction,
+                TransportSearchScrollAction searchScrollAction,
+                TransportClearScrollAction clearScrollAction,
+                TransportMultiTermVectorsAction termVectorsAction,
                 ControllerSingleton controllerSingleton,
+                ClusteringRouter clusteringRouter,
+                ClusteringContinuations continuations,
+                ClusterService clusterService,
                 ActionFilters actionFilters,
                 IndexNameExpressionResolver indexNameExpressionResolver) {
             super(settings, ClusteringAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
 
             this.searchAction = searchAction;
+            this.searchScrollAction = searchScrollAction;
+            this.clearScrollAction = clearScrollAction;
+            this.termVectorsAction = termVectorsAction;
             this.controllerSingleton = controllerSingleton;
+            this.clusteringRouter = clusteringRouter;
+            this.continuations = continuations;
+            this.clusterService = clusterService;
+            this.transportService = transportService;
             transportService.registerRequestHandler(
                     ClusteringAction.NAME,
                     ClusteringActionRequest.class,
@@ -735,80 +1523,1057 @@ public class ClusteringAction
         protected void doExecute(final ClusteringActionRequest clusteringRequest,
                                  final ActionListener<ClusteringActionResponse> listener) {
             final long tsSearchStart = System.nanoTime();
-            searchAction.execute(clusteringRequest.getSearchRequest(), new ActionListener<SearchResponse>() {
+            final String continuationToken = clusteringRequest.getContinuationToken();
+            if (continuationToken != null && !continuations.isLocal(continuationToken)) {
+                forwardContinuation(clusteringRequest, continuationToken, listener);
+                return;
+            }
+
+            if (clusteringRequest.getDistributed()) {
+                executeDistributed(clusteringRequest, tsSearchStart, listener);
+                return;
+            }
+
+            if (clusteringRequest.getScrollBatchSize() > 0) {
+                searchAction.execute(SearchRequestRewriter.rewrite(clusteringRequest),
+                        new ScrollingSearch(clusteringRequest, tsSearchStart, listener));
+                return;
+            }
+
+            if (clusteringRequest.getParallelFetch()) {
+                new ParallelShardSearch(clusteringRequest, tsSearchStart, listener).start();
+                return;
+            }
+
+            searchAction.execute(SearchRequestRewriter.rewrite(clusteringRequest), new ActionListener<SearchResponse>() {
                 @Override
                 public void onFailure(Throwable e) {
                     listener.onFailure(e);
                 }
     
                 @Override
-                public void onResponse(SearchResponse response) {
-                    final long tsSearchEnd = System.nanoTime();
-    
-                    List<String> algorithmComponentIds = controllerSingleton.getAlgorithms();
-                    String algorithmId = clusteringRequest.getAlgorithm();
-                    if (algorithmId == null) {
-                        algorithmId = algorithmComponentIds.get(0);                    
+                public void onResponse(final SearchResponse response) {
+                    clusterSearchResponse(clusteringRequest, response, tsSearchStart, listener);
+                }
+            });
+        }
+
+        /**
+         * Send a continuation request to the node holding the continuation state.
+         */
+        private void forwardContinuation(ClusteringActionRequest clusteringRequest,
+                                         String continuationToken,
+                                         final ActionListener<ClusteringActionResponse> listener) {
+            DiscoveryNode node = clusterService.state().nodes().get(ClusteringContinuations.nodeId(continuationToken));
+            if (node == null) {
+                listener.onFailure(new ElasticsearchException(
+                        "Node holding the continuation state is not available: " + continuationToken));
+                return;
+            }
+
+            transportService.sendRequest(node, ClusteringAction.NAME, clusteringRequest,
+                    new ActionListenerResponseHandler<ClusteringActionResponse>(listener) {
+                        @Override
+                        public ClusteringActionResponse newInstance() {
+                            return new ClusteringActionResponse();
+                        }
+                    });
+        }
+
+        /**
+         * Cluster the response to the (rewritten) search request of a clustering request.
+         * Not applicable to the scroll and distributed modes, which run their own searches.
+         */
+        void clusterSearchResponse(final ClusteringActionRequest clusteringRequest,
+                                   final SearchResponse response,
+                                   final long tsSearchStart,
+                                   final ActionListener<ClusteringActionResponse> listener) {
+            final int [] selectedHits = selectHits(clusteringRequest, response);
+            if (!hasFieldSource(clusteringRequest, FieldSource.TERMVECTORS)) {
+                cluster(clusteringRequest, response, selectedHits, null, tsSearchStart, System.nanoTime(), listener);
+                return;
+            }
+
+            fetchTermVectors(clusteringRequest, response, selectedHits, new ActionListener<List<Map<String,String>>>() {
+                @Override
+                public void onResponse(List<Map<String,String>> termVectors) {
+                    cluster(clusteringRequest, response, selectedHits, termVectors, tsSearchStart, System.nanoTime(), listener);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+        }
+
+        /**
+         * Cluster the hits of a search response and respond to the listener.
+         */
+        private void cluster(final ClusteringActionRequest clusteringRequest,
+                             SearchResponse response,
+                             final int [] selectedHits,
+                             final List<Map<String,String>> termVectors,
+                             final long tsSearchStart,
+                             final long tsSearchEnd,
+                             final ActionListener<ClusteringActionResponse> listener) {
+            final Map<String,String> extraInfo = new LinkedHashMap<>();
+            if (clusteringRequest.getSampleSize() > 0) {
+                extraInfo.put(ClusteringActionResponse.Fields.Info.SAMPLE_SIZE, Integer.toString(selectedHits.length));
+                extraInfo.put(ClusteringActionResponse.Fields.Info.SAMPLE_STRATEGY, clusteringRequest.getSampleStrategy().name().toLowerCase(Locale.ROOT));
+            }
+
+            List<Document> documents = prepareDocumentsForClustering(clusteringRequest, response, selectedHits, termVectors);
+            cluster(clusteringRequest, response, documents, extraInfo, tsSearchStart, tsSearchEnd, listener);
+        }
+
+        /**
+         * Cluster documents prepared from a search response and respond to the listener.
+         */
+        private void cluster(final ClusteringActionRequest clusteringRequest,
+                             final SearchResponse response,
+                             final List<Document> documents,
+                             final Map<String,String> extraInfo,
+                             final long tsSearchStart,
+                             final long tsSearchEnd,
+                             final ActionListener<ClusteringActionResponse> listener) {
+            List<String> algorithmComponentIds = controllerSingleton.getAlgorithms();
+            final List<String> algorithmIds = new ArrayList<>(clusteringRequest.getAlgorithms());
+            if (algorithmIds.isEmpty()) {
+                algorithmIds.add(algorithmComponentIds.get(0));
+            } else {
+                for (String algorithmId : algorithmIds) {
+                    if (!algorithmComponentIds.contains(algorithmId)) {
+                        listener.onFailure(new IllegalArgumentException("No such algorithm: " + algorithmId));
+                        return;
+                    }
+                }
+            }
+
+            final String pool;
+            try {
+                Object poolHeader = clusteringRequest.getHeader(ClusteringPool.HEADER);
+                pool = ClusteringPool.select(controllerSingleton.getPools(),
+                        poolHeader == null ? null : poolHeader.toString(),
+                        indexNameExpressionResolver.concreteIndices(clusterService.state(), clusteringRequest.getSearchRequest()))
+                    .getName();
+            } catch (Exception e) {
+                listener.onFailure(e);
+                return;
+            }
+
+            final String token = clusteringRequest.getContinuationToken();
+            if (token == null) {
+                cluster(clusteringRequest, response, documents, extraInfo, algorithmIds, pool, tsSearchStart, tsSearchEnd, listener);
+                return;
+            }
+
+            // Requests continuing the same state are serialized so that no appended documents are lost.
+            continuations.acquire(token, new Runnable() {
+                @Override
+                public void run() {
+                    final AtomicBoolean released = new AtomicBoolean();
+                    final ActionListener<ClusteringActionResponse> releasingListener = new ActionListener<ClusteringActionResponse>() {
+                        @Override
+                        public void onResponse(ClusteringActionResponse clusteringResponse) {
+                            try {
+                                listener.onResponse(clusteringResponse);
+                            } finally {
+                                release();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            try {
+                                listener.onFailure(e);
+                            } finally {
+                                release();
+                            }
+                        }
+
+                        private void release() {
+                            if (released.compareAndSet(false, true)) {
+                                continuations.release(token);
+                            }
+                        }
+                    };
+
+                    try {
+                        cluster(clusteringRequest, response, documents, extraInfo, algorithmIds, pool, tsSearchStart, tsSearchEnd, releasingListener);
+                    } catch (Throwable t) {
+                        releasingListener.onFailure(t);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cluster documents with the selected algorithms in a pool, appending them to the
+         * retained ones in continuation mode.
+         */
+        private void cluster(final ClusteringActionRequest clusteringRequest,
+                             final SearchResponse response,
+                             final List<Document> documents,
+                             final Map<String,String> extraInfo,
+                             final List<String> algorithmIds,
+                             final String pool,
+                             final long tsSearchStart,
+                             final long tsSearchEnd,
+                             final ActionListener<ClusteringActionResponse> listener) {
+            // Append new documents to the retained ones in continuation mode.
+            final String continuationToken;
+            final ClusteringContinuations.State previousState;
+            final List<Document> clusteredDocuments;
+            if (clusteringRequest.getContinuation()) {
+                if (clusteringRequest.getContinuationToken() == null) {
+                    continuationToken = continuations.newToken();
+                    previousState = null;
+                    clusteredDocuments = continuations.accumulate(null, documents);
+                } else {
+                    continuationToken = clusteringRequest.getContinuationToken();
+                    previousState = continuations.get(continuationToken);
+                    if (previousState == null) {
+                        listener.onFailure(new ElasticsearchException(
+                                "Unknown or expired continuation token: " + continuationToken));
+                        return;
+                    }
+                    clusteredDocuments = continuations.accumulate(previousState, documents);
+                }
+            } else {
+                continuationToken = null;
+                previousState = null;
+                clusteredDocuments = documents;
+            }
+
+            // One permit of the pool per request, however many clustering runs (algorithms,
+            // languages, partitions) it takes.
+            final ClusteringPool clusteringPool = controllerSingleton.getPools().get(pool);
+            try {
+                clusteringPool.acquire();
+            } catch (EsRejectedExecutionException e) {
+                listener.onFailure(e);
+                return;
+            }
+
+            /*
+             * We're not a threaded listener so we're running on the search thread. This
+             * is good -- we don't want to serve more clustering requests than we can handle
+             * anyway (unless documents are sent to a dedicated clustering node).
+             */
+            final long tsClusteringStart = System.nanoTime();
+            final ActionListener<Map<String,DocumentGroup[]>> clusteringListener = new ActionListener<Map<String,DocumentGroup[]>>() {
+                @Override
+                public void onResponse(Map<String,DocumentGroup[]> groupsByAlgorithm) {
+                    final long tsClusteringEnd = System.nanoTime();
+                    clusteringPool.release(tsClusteringStart, true);
+                    final DocumentGroup [] groups = groupsByAlgorithm.get(algorithmIds.get(0));
+
+                    if (continuationToken != null) {
+                        if (previousState != null) {
+                            ClusterMerger.stabilizeLabels(previousState.groups, groups);
+                        }
+                        continuations.put(continuationToken, clusteredDocuments, groups);
+                    }
+
+                    final Map<String,String> info = new LinkedHashMap<>();
+                    info.put(ClusteringActionResponse.Fields.Info.ALGORITHM, algorithmIds.get(0));
+                    if (algorithmIds.size() > 1) {
+                        info.put(ClusteringActionResponse.Fields.Info.ALGORITHMS, Strings.collectionToCommaDelimitedString(algorithmIds));
+                    }
+                    info.put(ClusteringActionResponse.Fields.Info.SEARCH_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsSearchEnd - tsSearchStart)));
+                    info.put(ClusteringActionResponse.Fields.Info.CLUSTERING_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsClusteringEnd - tsClusteringStart)));
+                    info.put(ClusteringActionResponse.Fields.Info.TOTAL_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsClusteringEnd - tsSearchStart)));
+                    info.put(ClusteringActionResponse.Fields.Info.INCLUDE_HITS, Boolean.toString(clusteringRequest.getIncludeHits()));
+                    info.put(ClusteringActionResponse.Fields.Info.MAX_HITS, clusteringRequest.getMaxHits() == Integer.MAX_VALUE ? "" : Integer.toString(clusteringRequest.getMaxHits()));
+                    info.putAll(extraInfo);
+                    if (!ClusteringPool.DEFAULT.equals(pool)) {
+                        info.put(ClusteringActionResponse.Fields.Info.POOL, pool);
+                    }
+                    if (clusteringRequest.getPartitions() > 1) {
+                        info.put(ClusteringActionResponse.Fields.Info.PARTITIONS, Integer.toString(
+                                ClusteringRouter.partitionCount(clusteringRequest.getPartitions(), clusteredDocuments.size())));
+                    }
+                    if (continuationToken != null) {
+                        int previousDocuments = previousState == null ? 0 : previousState.documents.size();
+                        info.put(ClusteringActionResponse.Fields.Info.CONTINUATION_TOKEN, continuationToken);
+                        info.put(ClusteringActionResponse.Fields.Info.CONTINUATION_DOCUMENTS, Integer.toString(clusteredDocuments.size()));
+                        info.put(ClusteringActionResponse.Fields.Info.CONTINUATION_NEW_DOCUMENTS, Integer.toString(clusteredDocuments.size() - previousDocuments));
+                    }
+
+                    // Trim search response's hits if we need to.
+                    SearchResponse searchResponse = response;
+                    if (clusteringRequest.getMaxHits() != Integer.MAX_VALUE) {
+                        searchResponse = filterMaxHits(searchResponse, clusteringRequest.getMaxHits());
+                    }
+
+                    listener.onResponse(new ClusteringActionResponse(searchResponse, groups,
+                            algorithmIds.size() > 1 ? groupsByAlgorithm : Collections.<String,DocumentGroup[]> emptyMap(),
+                            info));
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    clusteringPool.release(tsClusteringStart, false);
+                    listener.onFailure(e);
+                }
+            };
+
+            clusterAll(clusteringRequest, pool, algorithmIds, clusteredDocuments, clusteringListener);
+        }
+
+        /**
+         * Cluster the same documents with each algorithm, concurrently on the clustering
+         * executor if there is more than one. Documents are only prepared once, but each
+         * algorithm preprocesses (tokenizes) them with its own pipeline: Carrot2 does not
+         * expose its preprocessing context for sharing between algorithms.
+         */
+        private void clusterAll(final ClusteringActionRequest clusteringRequest,
+                                final String pool,
+                                final List<String> algorithmIds,
+                                final List<Document> documents,
+                                final ActionListener<Map<String,DocumentGroup[]>> listener) {
+            final AtomicReferenceArray<DocumentGroup[]> results = new AtomicReferenceArray<>(algorithmIds.size());
+            final CountDown countDown = new CountDown(algorithmIds.size());
+
+            List<Runnable> tasks = new ArrayList<>(algorithmIds.size());
+            for (int i = 0; i < algorithmIds.size(); i++) {
+                final int index = i;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        cluster(clusteringRequest, pool, algorithmIds.get(index), documents, new ActionListener<DocumentGroup[]>() {
+                            @Override
+                            public void onResponse(DocumentGroup[] groups) {
+                                results.set(index, groups);
+                                if (countDown.countDown()) {
+                                    Map<String,DocumentGroup[]> groupsByAlgorithm = new LinkedHashMap<>();
+                                    for (int j = 0; j < algorithmIds.size(); j++) {
+                                        groupsByAlgorithm.put(algorithmIds.get(j), results.get(j));
+                                    }
+                                    listener.onResponse(groupsByAlgorithm);
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(Throwable e) {
+                                if (countDown.fastForward()) {
+                                    listener.onFailure(e);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            if (tasks.size() == 1) {
+                tasks.get(0).run();
+                return;
+            }
+
+            try {
+                ParallelTasks.invokeAll(controllerSingleton.getClusteringExecutor(), tasks);
+            } catch (Exception e) {
+                if (countDown.fastForward()) {
+                    listener.onFailure(e);
+                }
+            }
+        }
+
+        /**
+         * Cluster documents with a single algorithm, in the mode selected by the request.
+         */
+        private void cluster(ClusteringActionRequest clusteringRequest,
+                             String pool,
+                             String algorithmId,
+                             List<Document> documents,
+                             ActionListener<DocumentGroup[]> listener) {
+            if (clusteringRequest.getParallelLanguages()) {
+                clusteringRouter.clusterByLanguage(pool, algorithmId, clusteringRequest.getQueryHint(), clusteringRequest.getAttributes(), documents, listener);
+            } else if (clusteringRequest.getPartitions() > 1) {
+                clusteringRouter.clusterPartitioned(pool, algorithmId, clusteringRequest.getQueryHint(), clusteringRequest.getAttributes(), documents, clusteringRequest.getPartitions(), listener);
+            } else {
+                clusteringRouter.cluster(pool, algorithmId, clusteringRequest.getQueryHint(), clusteringRequest.getAttributes(), documents, listener);
+            }
+        }
+
+        /**
+         * Cluster the top hits of each data node's shards on that node and merge partial
+         * results (see {@link ClusteringActionRequest#setDistributed(boolean)}). Hits for the
+         * response are fetched with a separate search, concurrently.
+         */
+        private void executeDistributed(final ClusteringActionRequest clusteringRequest,
+                                        final long tsSearchStart,
+                                        final ActionListener<ClusteringActionResponse> listener) {
+            final ClusterState state = clusterService.state();
+            final Map<String, List<ShardId>> shardsByNode = groupShardsByNode(state,
+                    indexNameExpressionResolver.concreteIndices(state, clusteringRequest.getSearchRequest()));
+
+            // One request per node and index: shards of each index are searched separately.
+            final List<Map.Entry<String, SearchRequest>> nodeSearches = new ArrayList<>();
+            for (Map.Entry<String, List<ShardId>> e : shardsByNode.entrySet()) {
+                final Map<String, List<Integer>> shardsByIndex = new TreeMap<>();
+                for (ShardId shardId : e.getValue()) {
+                    if (!shardsByIndex.containsKey(shardId.getIndex())) {
+                        shardsByIndex.put(shardId.getIndex(), new ArrayList<Integer>());
+                    }
+                    shardsByIndex.get(shardId.getIndex()).add(shardId.id());
+                }
+                for (Map.Entry<String, List<Integer>> shards : shardsByIndex.entrySet()) {
+                    nodeSearches.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(),
+                            forShards(state, clusteringRequest.getSearchRequest(), shards.getKey(), shards.getValue(), e.getKey())));
+                }
+            }
+
+            final List<ClusteringActionResponse> partials =
+                    Collections.synchronizedList(new ArrayList<ClusteringActionResponse>());
+            final AtomicReference<SearchResponse> hits = new AtomicReference<>();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final CountDown countDown = new CountDown(nodeSearches.size() + 1);
+            final Runnable onCompletion = new Runnable() {
+                @Override
+                public void run() {
+                    if (failure.get() != null) {
+                        listener.onFailure(failure.get());
                     } else {
-                        if (!algorithmComponentIds.contains(algorithmId)) {
-                            listener.onFailure(new IllegalArgumentException("No such algorithm: " + algorithmId));
+                        listener.onResponse(mergePartials(clusteringRequest, hits.get(), partials, shardsByNode.size(), tsSearchStart));
+                    }
+                }
+            };
+
+            for (Map.Entry<String, SearchRequest> e : nodeSearches) {
+                ClusteringActionRequest nodeRequest = clusteringRequest.copy();
+                nodeRequest.setDistributed(false);
+                nodeRequest.setMaxHits(0);
+                nodeRequest.setSearchRequest(e.getValue());
+
+                DiscoveryNode node = state.nodes().get(e.getKey());
+                transportService.sendRequest(node, ClusteringAction.NAME, nodeRequest,
+                        new ActionListenerResponseHandler<ClusteringActionResponse>(new ActionListener<ClusteringActionResponse>() {
+                            @Override
+                            public void onResponse(ClusteringActionResponse response) {
+                                partials.add(response);
+                                if (countDown.countDown()) {
+                                    onCompletion.run();
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(Throwable t) {
+                                failure.compareAndSet(null, t);
+                                if (countDown.countDown()) {
+                                    onCompletion.run();
+                                }
+                            }
+                        }) {
+                            @Override
+                            public ClusteringActionResponse newInstance() {
+                                return new ClusteringActionResponse();
+                            }
+                        });
+            }
+
+            // Hits are returned only if max hits is set, the search for them would
+            // repeat all the work of data nodes otherwise.
+            final SearchRequest searchRequest = SearchRequestRewriter.limitSize(clusteringRequest.getSearchRequest(),
+                    clusteringRequest.getMaxHits() == Integer.MAX_VALUE ? 0 : clusteringRequest.getMaxHits());
+            searchAction.execute(searchRequest, new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    hits.set(response);
+                    if (countDown.countDown()) {
+                        onCompletion.run();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failure.compareAndSet(null, t);
+                    if (countDown.countDown()) {
+                        onCompletion.run();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Merge clusters computed on data nodes into a single response.
+         */
+        private ClusteringActionResponse mergePartials(ClusteringActionRequest clusteringRequest,
+                                                       SearchResponse response,
+                                                       List<ClusteringActionResponse> partials,
+                                                       int nodes,
+                                                       long tsSearchStart) {
+            String algorithmId = clusteringRequest.getAlgorithm();
+            if (algorithmId == null) {
+                algorithmId = controllerSingleton.getAlgorithms().get(0);
+            }
+
+            long searchMillis = 0;
+            long clusteringMillis = 0;
+            List<DocumentGroup[]> groups = new ArrayList<>(partials.size());
+            for (ClusteringActionResponse partial : partials) {
+                groups.add(partial.getDocumentGroups());
+                searchMillis = Math.max(searchMillis,
+                        Long.parseLong(partial.getInfo().get(ClusteringActionResponse.Fields.Info.SEARCH_MILLIS)));
+                clusteringMillis = Math.max(clusteringMillis,
+                        Long.parseLong(partial.getInfo().get(ClusteringActionResponse.Fields.Info.CLUSTERING_MILLIS)));
+            }
+
+            final long tsMergeStart = System.nanoTime();
+            final DocumentGroup [] merged = ClusterMerger.merge(groups);
+            final long tsMergeEnd = System.nanoTime();
+            clusteringMillis += TimeUnit.NANOSECONDS.toMillis(tsMergeEnd - tsMergeStart);
+
+            final Map<String,String> info = new LinkedHashMap<>();
+            info.put(ClusteringActionResponse.Fields.Info.ALGORITHM, algorithmId);
+            info.put(ClusteringActionResponse.Fields.Info.SEARCH_MILLIS, Long.toString(searchMillis));
+            info.put(ClusteringActionResponse.Fields.Info.CLUSTERING_MILLIS, Long.toString(clusteringMillis));
+            info.put(ClusteringActionResponse.Fields.Info.TOTAL_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsMergeEnd - tsSearchStart)));
+            info.put(ClusteringActionResponse.Fields.Info.INCLUDE_HITS, Boolean.toString(clusteringRequest.getIncludeHits()));
+            info.put(ClusteringActionResponse.Fields.Info.MAX_HITS, clusteringRequest.getMaxHits() == Integer.MAX_VALUE ? "" : Integer.toString(clusteringRequest.getMaxHits()));
+            info.put(ClusteringActionResponse.Fields.Info.DISTRIBUTED_NODES, Integer.toString(nodes));
+
+            if (clusteringRequest.getMaxHits() != Integer.MAX_VALUE) {
+                response = filterMaxHits(response, clusteringRequest.getMaxHits());
+            }
+
+            return new ClusteringActionResponse(response, merged, info);
+        }
+
+        /**
+         * Assign each shard (of all the given indices) to a node holding an active copy of it,
+         * spreading shards evenly over nodes. Shards without active copies are not assigned
+         * (they wouldn't be searched anyway).
+         */
+        static Map<String, List<ShardId>> groupShardsByNode(ClusterState state, String [] indices) {
+            final Map<ShardId, List<String>> candidates = new TreeMap<>();
+            for (String index : indices) {
+                IndexRoutingTable indexRoutingTable = state.routingTable().index(index);
+                if (indexRoutingTable == null) {
+                    continue;
+                }
+                for (IndexShardRoutingTable shardRoutingTable : indexRoutingTable) {
+                    List<String> nodeIds = new ArrayList<>();
+                    for (ShardRouting shardRouting : shardRoutingTable.activeShards()) {
+                        nodeIds.add(shardRouting.currentNodeId());
+                    }
+                    if (!nodeIds.isEmpty()) {
+                        candidates.put(shardRoutingTable.shardId(), nodeIds);
+                    }
+                }
+            }
+
+            final Map<String, List<ShardId>> shardsByNode = new LinkedHashMap<>();
+            for (Map.Entry<ShardId, List<String>> e : candidates.entrySet()) {
+                String leastLoaded = null;
+                for (String nodeId : e.getValue()) {
+                    if (leastLoaded == null || assigned(shardsByNode, nodeId) < assigned(shardsByNode, leastLoaded)) {
+                        leastLoaded = nodeId;
+                    }
+                }
+
+                if (!shardsByNode.containsKey(leastLoaded)) {
+                    shardsByNode.put(leastLoaded, new ArrayList<ShardId>());
+                }
+                shardsByNode.get(leastLoaded).add(e.getKey());
+            }
+            return shardsByNode;
+        }
+
+        private static int assigned(Map<String, List<ShardId>> shardsByNode, String nodeId) {
+            List<ShardId> shards = shardsByNode.get(nodeId);
+            return shards == null ? 0 : shards.size();
+        }
+
+        /**
+         * @return Returns a copy of the search request restricted to the given shards of one
+         * index, preferably searched on the given node. Filters of aliases through which the
+         * index is searched are applied to the query (the copy names the index directly).
+         */
+        private SearchRequest forShards(ClusterState state, SearchRequest original,
+                                        String index, List<Integer> shards, String nodeId) {
+            final List<Map<String, Object>> aliasFilters = new ArrayList<>();
+            final String [] aliases = indexNameExpressionResolver.filteringAliases(state, index, original.indices());
+            if (aliases != null) {
+                IndexMetaData indexMetaData = state.metaData().index(index);
+                for (String alias : aliases) {
+                    AliasMetaData aliasMetaData = indexMetaData.getAliases().get(alias);
+                    if (aliasMetaData != null && aliasMetaData.filter() != null) {
+                        aliasFilters.add(XContentHelper.convertToMap(new BytesArray(aliasMetaData.filter().uncompressed()), true).v2());
+                    }
+                }
+            }
+            return SearchRequestRewriter.forShards(original, index, shards, nodeId, aliasFilters);
+        }
+
+        /**
+         * Scrolls through all hits of the search request (see
+         * {@link ClusteringActionRequest#setScroll(int, int, int)}) and clusters them. The next
+         * batch is requested before the current one is converted to clustering input, so
+         * fetching and text extraction overlap. Batches are processed in order, by one thread
+         * at a time (a batch arriving while another one is prepared is queued). Once the
+         * character limit is reached the scroll is cleared (abandoning the batch in flight).
+         * Only the first batch of hits (trimmed to max hits) is retained for the response,
+         * other batches are released as soon as their documents are prepared.
+         */
+        private final class ScrollingSearch implements ActionListener<SearchResponse> {
+            private final ClusteringActionRequest request;
+            private final long tsSearchStart;
+            private final ActionListener<ClusteringActionResponse> listener;
+
+            private final ArrayDeque<SearchResponse> pending = new ArrayDeque<>();
+            private boolean processing;
+            private boolean done;
+
+            /* Accessed by the thread processing batches only. */
+            private final List<Document> documents = new ArrayList<>();
+            private SearchResponse firstResponse;
+            private long chars;
+            private int batches;
+            private boolean truncated;
+
+            private volatile String scrollId;
+
+            ScrollingSearch(ClusteringActionRequest request,
+                            long tsSearchStart,
+                            ActionListener<ClusteringActionResponse> listener) {
+                this.request = request;
+                this.tsSearchStart = tsSearchStart;
+                this.listener = listener;
+            }
+
+            @Override
+            public void onResponse(SearchResponse response) {
+                synchronized (this) {
+                    if (done) {
+                        return;
+                    }
+                    pending.add(response);
+                    if (processing) {
+                        return;
+                    }
+                    processing = true;
+                }
+
+                while (true) {
+                    final SearchResponse batch;
+                    synchronized (this) {
+                        batch = pending.poll();
+                        if (batch == null || done) {
+                            processing = false;
                             return;
                         }
                     }
-                    final String _algorithmId = algorithmId;
-
-                    /*
-                     * We're not a threaded listener so we're running on the search thread. This
-                     * is good -- we don't want to serve more clustering requests than we can handle
-                     * anyway. 
-                     */
-                    final Controller controller = controllerSingleton.getController();
-    
-                    final Map<String, Object> processingAttrs = new HashMap<>();
-                    Map<String, Object> requestAttrs = clusteringRequest.getAttributes();
-                    if (requestAttrs != null) {
-                        processingAttrs.putAll(requestAttrs);
+
+                    if (process(batch)) {
+                        finish();
+                        return;
                     }
+                }
+            }
 
-                    try {
-                        CommonAttributesDescriptor.attributeBuilder(processingAttrs)
-                            .documents(prepareDocumentsForClustering(clusteringRequest, response))
-                            .query(clusteringRequest.getQueryHint());
-        
-                        final long tsClusteringStart = System.nanoTime();
-                        final ProcessingResult result = AccessController.doPrivileged(new PrivilegedAction<ProcessingResult>() {
-                          @Override
-                          public ProcessingResult run() {
-                            return controller.process(processingAttrs, _algorithmId);
-                          }
-                        });
-                        final DocumentGroup[] groups = adapt(result.getClusters());
-                        final long tsClusteringEnd = System.nanoTime();
-
-                        final Map<String,String> info = new LinkedHashMap<>();
-                        info.put(ClusteringActionResponse.Fields.Info.ALGORITHM, algorithmId);
-                        info.put(ClusteringActionResponse.Fields.Info.SEARCH_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsSearchEnd - tsSearchStart)));
-                        info.put(ClusteringActionResponse.Fields.Info.CLUSTERING_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsClusteringEnd - tsClusteringStart)));
-                        info.put(ClusteringActionResponse.Fields.Info.TOTAL_MILLIS, Long.toString(TimeUnit.NANOSECONDS.toMillis(tsClusteringEnd - tsSearchStart)));
-                        info.put(ClusteringActionResponse.Fields.Info.INCLUDE_HITS, Boolean.toString(clusteringRequest.getIncludeHits()));
-                        info.put(ClusteringActionResponse.Fields.Info.MAX_HITS, clusteringRequest.getMaxHits() == Integer.MAX_VALUE ? "" : Integer.toString(clusteringRequest.getMaxHits()));
-
-                        // Trim search response's hits if we need to.
-                        if (clusteringRequest.getMaxHits() != Integer.MAX_VALUE) {
-                            response = filterMaxHits(response, clusteringRequest.getMaxHits());
+            /**
+             * Prepare a batch of hits, requesting the next batch first if there may be more.
+             *
+             * @return Returns <code>true</code> if this was the last batch to be clustered.
+             */
+            private boolean process(SearchResponse response) {
+                batches++;
+                scrollId = response.getScrollId();
+
+                final int hitCount = response.getHits().hits().length;
+                final int remaining = request.getScrollMaxDocuments() - documents.size();
+                final boolean more = hitCount > 0 && hitCount < remaining;
+                if (more) {
+                    // Fetch the next batch while this one is being prepared.
+                    searchScrollAction.execute(
+                            new SearchScrollRequest(scrollId).scroll(SearchRequestRewriter.SCROLL_KEEP_ALIVE),
+                            this);
+                }
+
+                collect(response, Math.min(hitCount, remaining));
+
+                if (firstResponse == null) {
+                    firstResponse = response;
+                    if (request.getMaxHits() != Integer.MAX_VALUE) {
+                        firstResponse = filterMaxHits(response, request.getMaxHits());
+                    }
+                }
+
+                if (more && !truncated) {
+                    return false;
+                }
+
+                synchronized (this) {
+                    if (done) {
+                        // Failed in the meantime.
+                        return false;
+                    }
+                    done = true;
+                    pending.clear();
+                    return true;
+                }
+            }
+
+            private void finish() {
+                clearScroll();
+
+                final Map<String,String> extraInfo = new LinkedHashMap<>();
+                extraInfo.put(ClusteringActionResponse.Fields.Info.SCROLL_BATCHES, Integer.toString(batches));
+                extraInfo.put(ClusteringActionResponse.Fields.Info.SCROLL_DOCUMENTS, Integer.toString(documents.size()));
+                extraInfo.put(ClusteringActionResponse.Fields.Info.SCROLL_TRUNCATED,
+                        Boolean.toString(truncated || documents.size() < firstResponse.getHits().getTotalHits()));
+                cluster(request, firstResponse, documents, extraInfo, tsSearchStart, System.nanoTime(), listener);
+            }
+
+            /**
+             * Prepare documents for the first <code>count</code> hits of a batch, up to the
+             * character limit.
+             */
+            private void collect(SearchResponse response, int count) {
+                int [] selectedHits = new int [count];
+                for (int i = 0; i < count; i++) {
+                    selectedHits[i] = i;
+                }
+
+                for (Document document : prepareDocumentsForClustering(request, response, selectedHits, null)) {
+                    long length = length(document.getTitle()) + length(document.getSummary());
+                    if (chars + length > request.getScrollMaxChars()) {
+                        truncated = true;
+                        break;
+                    }
+                    chars += length;
+                    documents.add(document);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                synchronized (this) {
+                    if (done) {
+                        return;
+                    }
+                    done = true;
+                    pending.clear();
+                }
+
+                clearScroll();
+                listener.onFailure(e);
+            }
+
+            private void clearScroll() {
+                if (scrollId == null) {
+                    return;
+                }
+
+                ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+                clearScrollRequest.addScrollId(scrollId);
+                clearScrollAction.execute(clearScrollRequest, new ActionListener<ClearScrollResponse>() {
+                    @Override
+                    public void onResponse(ClearScrollResponse response) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.debug("Could not clear scroll: {}", e, scrollId);
+                    }
+                });
+            }
+
+            private long length(String text) {
+                return text == null ? 0 : text.length();
+            }
+        }
+
+        /**
+         * Searches each shard number separately and concurrently (see
+         * {@link ClusteringActionRequest#setParallelFetch(boolean)}), prepares documents of
+         * each shard's hits as soon as they arrive and clusters the top hits of all shards.
+         */
+        private final class ParallelShardSearch {
+            private final ClusteringActionRequest request;
+            private final long tsSearchStart;
+            private final ActionListener<ClusteringActionResponse> listener;
+
+            private final int from;
+            private final int size;
+            private final List<Map.Entry<ShardId, String>> shards = new ArrayList<>();
+            private AtomicReferenceArray<SearchResponse> responses;
+            private AtomicReferenceArray<List<Document>> documents;
+            private AtomicReferenceArray<ShardSearchFailure> failures;
+            private CountDown countDown;
+
+            ParallelShardSearch(ClusteringActionRequest request,
+                                long tsSearchStart,
+                                ActionListener<ClusteringActionResponse> listener) {
+                this.request = request;
+                this.tsSearchStart = tsSearchStart;
+                this.listener = listener;
+                this.from = SearchRequestRewriter.requestedFrom(request.getSearchRequest());
+                this.size = SearchRequestRewriter.requestedSize(request.getSearchRequest());
+            }
+
+            void start() {
+                final ClusterState state = clusterService.state();
+                final Map<String, List<ShardId>> shardsByNode = groupShardsByNode(state,
+                        indexNameExpressionResolver.concreteIndices(state, request.getSearchRequest()));
+                for (Map.Entry<String, List<ShardId>> e : shardsByNode.entrySet()) {
+                    for (ShardId shard : e.getValue()) {
+                        shards.add(new AbstractMap.SimpleImmutableEntry<>(shard, e.getKey()));
+                    }
+                }
+
+                if (shards.isEmpty()) {
+                    // Nothing to split (no active shards), let the search report it.
+                    searchAction.execute(SearchRequestRewriter.rewrite(request), new ActionListener<SearchResponse>() {
+                        @Override
+                        public void onResponse(SearchResponse response) {
+                            clusterSearchResponse(request, response, tsSearchStart, listener);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            listener.onFailure(e);
                         }
+                    });
+                    return;
+                }
+
+                responses = new AtomicReferenceArray<>(shards.size());
+                documents = new AtomicReferenceArray<>(shards.size());
+                failures = new AtomicReferenceArray<>(shards.size());
+                countDown = new CountDown(shards.size());
+
+                final SearchRequest topHits = SearchRequestRewriter.topHits(SearchRequestRewriter.rewrite(request), from + size);
+                for (int i = 0; i < shards.size(); i++) {
+                    final int index = i;
+                    final Map.Entry<ShardId, String> shard = shards.get(i);
+                    searchAction.execute(
+                            forShards(state, topHits, shard.getKey().getIndex(),
+                                    Collections.singletonList(shard.getKey().id()), shard.getValue()),
+                            new ActionListener<SearchResponse>() {
+                                @Override
+                                public void onResponse(SearchResponse response) {
+                                    final List<Document> prepared;
+                                    try {
+                                        int [] allHits = new int [response.getHits().hits().length];
+                                        for (int j = 0; j < allHits.length; j++) {
+                                            allHits[j] = j;
+                                        }
+                                        prepared = prepareDocumentsForClustering(request, response, allHits, null);
+                                    } catch (Exception e) {
+                                        onFailure(e);
+                                        return;
+                                    }
+
+                                    responses.set(index, response);
+                                    documents.set(index, prepared);
+                                    if (countDown.countDown()) {
+                                        merge();
+                                    }
+                                }
+
+                                @Override
+                                public void onFailure(Throwable e) {
+                                    // Report the shard as failed, cluster hits of the others.
+                                    failures.set(index, new ShardSearchFailure(e, new SearchShardTarget(
+                                            shard.getValue(), shard.getKey().getIndex(), shard.getKey().id())));
+                                    if (countDown.countDown()) {
+                                        merge();
+                                    }
+                                }
+                            });
+                }
+            }
 
-                        listener.onResponse(new ClusteringActionResponse(response, groups, info));
-                    } catch (ProcessingException e) {
-                        // Log a full stack trace with all nested exceptions but only return 
-                        // ElasticSearchException exception with a simple String (otherwise 
-                        // clients cannot deserialize exception classes).
-                        String message = "Search results clustering error: " + e.getMessage();
-                        listener.onFailure(new ElasticsearchException(message));
+            /**
+             * Merge hits of all shards by score and cluster the top ones.
+             */
+            private void merge() {
+                final long tsSearchEnd = System.nanoTime();
+
+                final List<ShardSearchFailure> failed = new ArrayList<>();
+                for (int i = 0; i < shards.size(); i++) {
+                    if (failures.get(i) != null) {
+                        failed.add(failures.get(i));
+                    }
+                }
+                if (failed.size() == shards.size()) {
+                    listener.onFailure(new SearchPhaseExecutionException("query", "all shards failed",
+                            failed.toArray(new ShardSearchFailure [failed.size()])));
+                    return;
+                }
+
+                final List<InternalSearchHit> hits = new ArrayList<>();
+                final Map<SearchHit, Document> documentOf = new IdentityHashMap<>();
+                final List<ShardSearchFailure> shardFailures = new ArrayList<>(failed);
+                long totalHits = 0;
+                float maxScore = Float.NEGATIVE_INFINITY;
+                int totalShards = failed.size();
+                int successfulShards = 0;
+                boolean timedOut = false;
+                for (int i = 0; i < shards.size(); i++) {
+                    SearchResponse response = responses.get(i);
+                    if (response == null) {
+                        continue;
+                    }
+                    SearchHit [] shardHits = response.getHits().hits();
+                    for (int j = 0; j < shardHits.length; j++) {
+                        hits.add((InternalSearchHit) shardHits[j]);
+                        documentOf.put(shardHits[j], documents.get(i).get(j));
+                    }
+                    totalHits += response.getHits().getTotalHits();
+                    if (!Float.isNaN(response.getHits().getMaxScore())) {
+                        maxScore = Math.max(maxScore, response.getHits().getMaxScore());
+                    }
+                    totalShards += response.getTotalShards();
+                    successfulShards += response.getSuccessfulShards();
+                    timedOut |= response.isTimedOut();
+                    Collections.addAll(shardFailures, response.getShardFailures());
+                }
+
+                // Stable sort: shards in order for equal scores.
+                Collections.sort(hits, new Comparator<InternalSearchHit>() {
+                    @Override
+                    public int compare(InternalSearchHit a, InternalSearchHit b) {
+                        return Float.compare(b.getScore(), a.getScore());
+                    }
+                });
+                final List<InternalSearchHit> top = hits.subList(Math.min(from, hits.size()), Math.min(from + size, hits.size()));
+                final InternalSearchHit [] topHits = top.toArray(new InternalSearchHit [top.size()]);
+
+                final SearchResponse response = new SearchResponse(
+                        new InternalSearchResponse(
+                                new InternalSearchHits(topHits, totalHits,
+                                        maxScore == Float.NEGATIVE_INFINITY ? Float.NaN : maxScore),
+                                null, null, null, timedOut, null),
+                        null,
+                        totalShards,
+                        successfulShards,
+                        TimeUnit.NANOSECONDS.toMillis(tsSearchEnd - tsSearchStart),
+                        shardFailures.toArray(new ShardSearchFailure [shardFailures.size()]));
+
+                final int [] selectedHits = selectHits(request, response);
+                final List<Document> selected = new ArrayList<>(selectedHits.length);
+                for (int hitIndex : selectedHits) {
+                    selected.add(documentOf.get(topHits[hitIndex]));
+                }
 
-                        logger.warn("Could not process clustering request.", e);
+                final Map<String,String> extraInfo = new LinkedHashMap<>();
+                extraInfo.put(ClusteringActionResponse.Fields.Info.PARALLEL_FETCH_SHARDS, Integer.toString(shards.size()));
+                if (request.getSampleSize() > 0) {
+                    extraInfo.put(ClusteringActionResponse.Fields.Info.SAMPLE_SIZE, Integer.toString(selectedHits.length));
+                    extraInfo.put(ClusteringActionResponse.Fields.Info.SAMPLE_STRATEGY, request.getSampleStrategy().name().toLowerCase(Locale.ROOT));
+                }
+                cluster(request, response, selected, extraInfo, tsSearchStart, tsSearchEnd, listener);
+            }
+        }
+
+        /**
+         * Select the indices of hits to be clustered (a sample of all hits, if requested).
+         */
+        static int [] selectHits(ClusteringActionRequest request, SearchResponse response) {
+            SearchHit [] hits = response.getHits().hits();
+            float [] scores = new float [hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                scores[i] = hits[i].getScore();
+            }
+
+            int sampleSize = request.getSampleSize() > 0 ? request.getSampleSize() : hits.length;
+            return request.getSampleStrategy().sample(scores, sampleSize);
+        }
+
+        /* */
+        static boolean hasFieldSource(ClusteringActionRequest request, FieldSource source) {
+            for (FieldMappingSpec spec : request.getFieldMapping()) {
+                if (spec.source == source) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fetch term vectors (with positions) of all {@link FieldSource#TERMVECTORS} fields
+         * for each selected hit. The listener receives a list aligned with the response's hits,
+         * each element mapping field names to the field's text rebuilt from its term vector
+         * (<code>null</code> for hits which were not selected).
+         */
+        private void fetchTermVectors(ClusteringActionRequest request,
+                                      SearchResponse response,
+                                      final int [] selectedHits,
+                                      final ActionListener<List<Map<String,String>>> listener) {
+            final Set<String> fieldNames = new LinkedHashSet<>();
+            for (FieldMappingSpec spec : request.getFieldMapping()) {
+                if (spec.source == FieldSource.TERMVECTORS) {
+                    fieldNames.add(spec.field);
+                }
+            }
+
+            final SearchHit [] hits = response.getHits().hits();
+            final List<Map<String,String>> termVectors = 
+                new ArrayList<>(Collections.<Map<String,String>> nCopies(hits.length, null));
+            if (selectedHits.length == 0) {
+                listener.onResponse(termVectors);
+                return;
+            }
+
+            MultiTermVectorsRequest mtvRequest = new MultiTermVectorsRequest();
+            for (int hitIndex : selectedHits) {
+                SearchHit hit = hits[hitIndex];
+                TermVectorsRequest tvRequest = new TermVectorsRequest(hit.getIndex(), hit.getType(), hit.getId())
+                    .selectedFields(fieldNames.toArray(new String [fieldNames.size()]))
+                    .positions(true)
+                    .offsets(false)
+                    .payloads(false)
+                    .termStatistics(false)
+                    .fieldStatistics(false);
+                SearchHitField routing = hit.field("_routing");
+                if (routing != null && routing.getValue() != null) {
+                    tvRequest.routing(routing.getValue().toString());
+                }
+                mtvRequest.add(tvRequest);
+            }
+
+            termVectorsAction.execute(mtvRequest, new ActionListener<MultiTermVectorsResponse>() {
+                @Override
+                public void onResponse(MultiTermVectorsResponse mtvResponse) {
+                    MultiTermVectorsItemResponse [] items = mtvResponse.getResponses();
+                    boolean failureWarningEmitted = false;
+                    try {
+                        for (int i = 0; i < items.length; i++) {
+                            MultiTermVectorsItemResponse item = items[i];
+                            Map<String,String> fieldText = new HashMap<>();
+                            if (item.isFailed()) {
+                                if (!failureWarningEmitted) {
+                                    failureWarningEmitted = true;
+                                    logger.warn("Could not fetch term vectors for: {}, reason: {}",
+                                            item.getId(), item.getFailure().getCause());
+                                }
+                            } else {
+                                Fields fields = item.getResponse().getFields();
+                                if (fields != null) {
+                                    for (String fieldName : fieldNames) {
+                                        String text = TermVectorText.rebuild(fields.terms(fieldName));
+                                        if (text != null) {
+                                            fieldText.put(fieldName, text);
+                                        }
+                                    }
+                                }
+                            }
+                            termVectors.set(selectedHits[i], fieldText);
+                        }
+                    } catch (IOException e) {
+                        onFailure(e);
                         return;
                     }
+                    listener.onResponse(termVectors);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
                 }
             });
         }
@@ -856,61 +2621,38 @@ public class ClusteringAction
             return t;
         }
 
-        /* */
-        protected DocumentGroup[] adapt(List<Cluster> clusters) {
-            DocumentGroup [] groups = new DocumentGroup [clusters.size()];
-            for (int i = 0; i < groups.length; i++) {
-                groups[i] = adapt(clusters.get(i));
-            }
-            return groups;
-        }
-    
-        /* */
-        private DocumentGroup adapt(Cluster cluster) {
-            DocumentGroup group = new DocumentGroup();
-            group.setId(cluster.getId());
-            List<String> phrases = cluster.getPhrases();
-            group.setPhrases(phrases.toArray(new String[phrases.size()]));
-            group.setLabel(cluster.getLabel());
-            group.setScore(cluster.getScore());
-            group.setOtherTopics(cluster.isOtherTopics());
-    
-            List<Document> documents = cluster.getDocuments();
-            String[] documentReferences = new String[documents.size()];
-            for (int i = 0; i < documentReferences.length; i++) {
-                documentReferences[i] = documents.get(i).getStringId();
-            }
-            group.setDocumentReferences(documentReferences);
-    
-            List<Cluster> subclusters = cluster.getSubclusters();
-            subclusters = (subclusters == null ? Collections.<Cluster> emptyList() : subclusters);
-            group.setSubgroups(adapt(subclusters));
-    
-            return group;
-        }
     
         /**
          * Map {@link SearchHit} fields to logical fields of Carrot2 {@link Document}.
          */
         private List<Document> prepareDocumentsForClustering(
                 final ClusteringActionRequest request,
-                SearchResponse response) {
+                SearchResponse response,
+                int [] selectedHits,
+                List<Map<String,String>> termVectors) {
             SearchHit [] hits = response.getHits().hits();
-            List<Document> documents = new ArrayList<>(hits.length);
+            List<Document> documents = new ArrayList<>(selectedHits.length);
             List<FieldMappingSpec> fieldMapping = request.getFieldMapping();
-            StringBuilder title = new StringBuilder();
-            StringBuilder content = new StringBuilder();
-            StringBuilder url = new StringBuilder();
-            StringBuilder language = new StringBuilder();
+            LogicalDocument logicalDocument = new LogicalDocument();
+            KeywordInContext kwic = new KeywordInContext(request.getQueryHint());
             boolean emptySourceWarningEmitted = false;
+
+            if (request.extractOnShards()) {
+                for (int hitIndex : selectedHits) {
+                    documents.add(createDocument(shardSideFields(hits[hitIndex], logicalDocument), hits[hitIndex]));
+                }
+                for (SearchHit hit : hits) {
+                    stripShardSideFields(hit);
+                }
+                return documents;
+            }
     
-            for (SearchHit hit : hits) {
+            for (int hitIndex : selectedHits) {
+                final SearchHit hit = hits[hitIndex];
+
                 // Prepare logical fields for each hit.
-                title.setLength(0);
-                content.setLength(0);
-                url.setLength(0);
-                language.setLength(0);
-                
+                logicalDocument.reset();
+
                 Map<String, SearchHitField> fields = hit.getFields();
                 Map<String, HighlightField> highlightFields = hit.getHighlightFields();
     
@@ -921,6 +2663,7 @@ public class ClusteringAction
 outer:
                     switch (spec.source) {
                         case FIELD:
+                        case DOCVALUES:
                             SearchHitField searchHitField = fields.get(spec.field);
                             if (searchHitField != null) {
                                 appendContent = searchHitField.getValue();
@@ -930,11 +2673,12 @@ outer:
                         case HIGHLIGHT:
                             HighlightField highlightField = highlightFields.get(spec.field);
                             if (highlightField != null) {
-                                appendContent = join(Arrays.asList(highlightField.fragments()));
+                                appendContent = LogicalDocument.join(Arrays.asList(highlightField.fragments()));
                             }
                             break;
     
                         case SOURCE:
+                        case KWIC:
                             if (sourceAsMap == null) {
                                 if (hit.isSourceEmpty()) {
                                     if (!emptySourceWarningEmitted) {
@@ -969,83 +2713,86 @@ outer:
                                     }
                                 }
 
-                                if (value instanceof List) {
-                                    appendContent = join((List<?>) value);
+                                if (spec.source == FieldSource.KWIC) {
+                                    appendContent = kwic.extract(value);
+                                } else if (value instanceof List) {
+                                    appendContent = LogicalDocument.join((List<?>) value);
                                 } else {
                                     appendContent = value;
                                 }
                             }
                             break;
+
+                        case TERMVECTORS:
+                            if (termVectors != null) {
+                                appendContent = termVectors.get(hitIndex).get(spec.field);
+                            }
+                            break;
     
                         default:
                             throw org.carrot2.elasticsearch.Preconditions.unreachable();
                     }
     
                     // Determine the target field.
-                    if (appendContent != null) {
-                        StringBuilder target;
-                        switch (spec.logicalField) {
-                            case URL:
-                                url.setLength(0); // Clear previous (single mapping allowed).
-                                target = url;
-                                break;
-                            case LANGUAGE:
-                                language.setLength(0); // Clear previous (single mapping allowed);
-                                target = language;
-                                break;
-                            case TITLE:
-                                target = title;
-                                break;
-                            case CONTENT:
-                                target = content;
-                                break;
-                            default:
-                                throw org.carrot2.elasticsearch.Preconditions.unreachable();
-                        }
-    
-                        // Separate multiple fields with a single dot (prevent accidental phrase gluing).
-                        if (appendContent != null) {
-                            if (target.length() > 0) {
-                                target.append(" . ");
-                            }
-                            target.append(appendContent);
-                        }
-                    }
-                }
-    
-                LanguageCode langCode = null;
-                if (language.length() > 0) {
-                    String langCodeString = language.toString();
-                    langCode = LanguageCode.forISOCode(langCodeString);
-                    if (langCode == null && langCodeWarnings.add(langCodeString)) {
-                        logger.warn("Language mapping not a supported ISO639-1 code: {}", langCodeString);
-                    }
+                    logicalDocument.append(spec.logicalField, appendContent);
                 }
     
-                Document doc = new Document(
-                        title.toString(),
-                        content.toString(),
-                        url.toString(),
-                        langCode,
-                        hit.id());
-    
-                documents.add(doc);
+                documents.add(createDocument(logicalDocument, hit));
             }
     
             return documents;
         }
 
-        static String join(List<?> list) {
-          StringBuilder sb = new StringBuilder();
-          for (Object t : list) {
-            if (sb.length() > 0) { 
-              sb.append(" . ");
+        /* */
+        private Document createDocument(LogicalDocument logicalDocument, SearchHit hit) {
+            LanguageCode langCode = null;
+            if (!logicalDocument.isEmpty(LogicalField.LANGUAGE)) {
+                String langCodeString = logicalDocument.get(LogicalField.LANGUAGE);
+                langCode = LanguageCode.forISOCode(langCodeString);
+                if (langCode == null && langCodeWarnings.add(langCodeString)) {
+                    logger.warn("Language mapping not a supported ISO639-1 code: {}", langCodeString);
+                }
             }
-            sb.append(t != null ? t.toString() : "");
-          }
-          return sb.toString();
+
+            return new Document(
+                    logicalDocument.get(LogicalField.TITLE),
+                    logicalDocument.get(LogicalField.CONTENT),
+                    logicalDocument.get(LogicalField.URL),
+                    langCode,
+                    hit.id());
         }
-    
+
+        /**
+         * Collect logical fields assembled on the shard (see {@link ClusteringFetchSubPhase}).
+         */
+        private static LogicalDocument shardSideFields(SearchHit hit, LogicalDocument logicalDocument) {
+            logicalDocument.reset();
+            for (LogicalField logicalField : LogicalField.values()) {
+                SearchHitField assembled = hit.field(ClusteringFetchSubPhase.hitFieldName(logicalField));
+                if (assembled != null) {
+                    logicalDocument.append(logicalField, assembled.getValue());
+                }
+            }
+            return logicalDocument;
+        }
+
+        /**
+         * Remove logical fields assembled on the shard from the hit's fields; they
+         * are of no use to the caller once clustering input has been prepared.
+         */
+        private static void stripShardSideFields(SearchHit hit) {
+            Map<String, SearchHitField> fields = ((InternalSearchHit) hit).fieldsOrNull();
+            if (fields == null) {
+                return;
+            }
+
+            Map<String, SearchHitField> stripped = new HashMap<>(fields);
+            for (LogicalField logicalField : LogicalField.values()) {
+                stripped.remove(ClusteringFetchSubPhase.hitFieldName(logicalField));
+            }
+            ((InternalSearchHit) hit).fields(stripped);
+        }
+
         private final class TransportHandler extends TransportRequestHandler<ClusteringActionRequest> {
           @Override
           public void messageReceived(final ClusteringActionRequest request, final TransportChannel channel) throws Exception {
@@ -1096,6 +2843,9 @@ outer:
             controller.registerHandler(GET, "/" + NAME,                 this);
             controller.registerHandler(GET, "/{index}/" + NAME,         this);
             controller.registerHandler(GET, "/{index}/{type}/" + NAME,  this);            
+
+            // Pass the pool selection header on to the action request.
+            controller.registerRelevantHeaders(ClusteringPool.HEADER);
         }
         
         @Override
@@ -1191,7 +2941,7 @@ outer:
             
             // Algorithm.
             if (request.hasParam("algorithm")) {
-                actionBuilder.setAlgorithm(request.param("algorithm"));
+                actionBuilder.setAlgorithms(request.paramAsStringArray("algorithm", Strings.EMPTY_ARRAY));
             }
 
             // include_hits
@@ -1204,6 +2954,54 @@ outer:
                 actionBuilder.setMaxHits(request.param("max_hits"));
             }
 
+            // sample_size, sample_strategy
+            if (request.hasParam("sample_size")) {
+                actionBuilder.setSample(request.param("sample_size"), request.param("sample_strategy"));
+            }
+
+            // scroll_batch_size, scroll_max_documents, scroll_max_chars
+            if (request.hasParam("scroll_batch_size")) {
+                actionBuilder.setScroll(
+                        request.param("scroll_batch_size"),
+                        request.param("scroll_max_documents"),
+                        request.param("scroll_max_chars"));
+            }
+
+            // distributed
+            if (request.hasParam("distributed")) {
+                actionBuilder.setDistributed(request.paramAsBoolean("distributed", false));
+            }
+
+            // parallel_languages
+            if (request.hasParam("parallel_languages")) {
+                actionBuilder.setParallelLanguages(request.paramAsBoolean("parallel_languages", false));
+            }
+
+            // partitions
+            if (request.hasParam("partitions")) {
+                actionBuilder.setPartitions(request.paramAsInt("partitions", 0));
+            }
+
+            // parallel_fetch
+            if (request.hasParam("parallel_fetch")) {
+                actionBuilder.setParallelFetch(request.paramAsBoolean("parallel_fetch", false));
+            }
+
+            // continuation
+            if (request.hasParam("continuation")) {
+                actionBuilder.setContinuation(request.param("continuation"));
+            }
+
+            // rewrite_search_request
+            if (request.hasParam("rewrite_search_request")) {
+                actionBuilder.setRewriteSearchRequest(request.paramAsBoolean("rewrite_search_request", false));
+            }
+
+            // shard_side_extraction
+            if (request.hasParam("shard_side_extraction")) {
+                actionBuilder.setShardSideExtraction(request.paramAsBoolean("shard_side_extraction", true));
+            }
+
             // Field mappers.
             for (Map.Entry<LogicalField,String> e : GET_REQUEST_FIELDMAPPERS.entrySet()) {
                 if (request.hasParam(e.getValue())) {
@@ -0,0 +1,204 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.carrot2.core.Document;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Node-local clustering state retained between requests of a "load more" sequence
+ * (see {@link ClusteringAction.ClusteringActionRequest#setContinuation(boolean)}).
+ *
+ * <p>A state holds documents prepared for clustering so far and the clusters
+ * computed from them. Subsequent requests only fetch and prepare new hits, which are
+ * appended to the state, up to {@link ClusteringPlugin#CONTINUATION_MAX_DOCUMENTS_PROPERTY_NAME}
+ * documents. States expire if not used for {@link ClusteringPlugin#CONTINUATION_TTL_PROPERTY_NAME}
+ * or if documents of all states exceed {@link ClusteringPlugin#CONTINUATION_MAX_TOTAL_DOCUMENTS_PROPERTY_NAME}.
+ * Requests continuing the same state are processed one at a time (see {@link #acquire}).</p>
+ *
+ * <p>Tokens are prefixed with the identifier of the node holding the state so that
+ * requests can be forwarded to that node.</p>
+ */
+public class ClusteringContinuations extends AbstractComponent {
+    /**
+     * Default time after which unused states are discarded.
+     */
+    public static final TimeValue DEFAULT_TTL = TimeValue.timeValueMinutes(5);
+
+    /**
+     * Default maximum number of documents of all states retained on a node.
+     */
+    public static final int DEFAULT_MAX_TOTAL_DOCUMENTS = 100000;
+
+    /**
+     * Default maximum number of documents of a single state.
+     */
+    public static final int DEFAULT_MAX_DOCUMENTS = 5000;
+
+    private static final char TOKEN_SEPARATOR = '.';
+
+    /**
+     * Retained clustering state. Immutable, updates replace the whole state.
+     */
+    static final class State {
+        final List<Document> documents;
+        final Set<String> documentIds;
+        final DocumentGroup [] groups;
+
+        State(List<Document> documents, Set<String> documentIds, DocumentGroup [] groups) {
+            this.documents = Collections.unmodifiableList(documents);
+            this.documentIds = Collections.unmodifiableSet(documentIds);
+            this.groups = groups;
+        }
+
+        /**
+         * @return Returns documents of this state followed by new documents (not
+         * already in this state), at most <code>maxDocuments</code> in total.
+         */
+        List<Document> append(List<Document> newDocuments, int maxDocuments) {
+            List<Document> all = new ArrayList<>(Math.min(maxDocuments, documents.size() + newDocuments.size()));
+            all.addAll(documents);
+            Set<String> ids = new HashSet<>(documentIds);
+            for (Document document : newDocuments) {
+                if (all.size() >= maxDocuments) {
+                    break;
+                }
+                if (ids.add(document.getStringId())) {
+                    all.add(document);
+                }
+            }
+            return all;
+        }
+    }
+
+    private final ClusterService clusterService;
+    private final Cache<String, State> states;
+    private final int maxDocuments;
+
+    /*
+     * Tokens of states being updated, with requests waiting for them. Guarded by itself.
+     */
+    private final Map<String, ArrayDeque<Runnable>> updating = new HashMap<>();
+
+    @Inject
+    public ClusteringContinuations(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.clusterService = clusterService;
+
+        TimeValue ttl = settings.getAsTime(ClusteringPlugin.CONTINUATION_TTL_PROPERTY_NAME, DEFAULT_TTL);
+        long maxTotalDocuments = settings.getAsLong(ClusteringPlugin.CONTINUATION_MAX_TOTAL_DOCUMENTS_PROPERTY_NAME, (long) DEFAULT_MAX_TOTAL_DOCUMENTS);
+        this.maxDocuments = settings.getAsInt(ClusteringPlugin.CONTINUATION_MAX_DOCUMENTS_PROPERTY_NAME, DEFAULT_MAX_DOCUMENTS);
+        this.states = CacheBuilder.newBuilder()
+                .expireAfterAccess(ttl.millis(), TimeUnit.MILLISECONDS)
+                .maximumWeight(maxTotalDocuments)
+                .weigher(new Weigher<String, State>() {
+                    @Override
+                    public int weigh(String token, State state) {
+                        // Empty states take space too.
+                        return state.documents.size() + 1;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return Returns a new token for a state held on this node.
+     */
+    String newToken() {
+        return clusterService.localNode().id() + TOKEN_SEPARATOR + Strings.randomBase64UUID();
+    }
+
+    /**
+     * @return Returns the identifier of the node holding the state for a token.
+     */
+    static String nodeId(String token) {
+        int index = token.lastIndexOf(TOKEN_SEPARATOR);
+        return index < 0 ? null : token.substring(0, index);
+    }
+
+    /**
+     * @return Returns <code>true</code> if the state for a token is (or would be) held on this node.
+     */
+    boolean isLocal(String token) {
+        return clusterService.localNode().id().equals(nodeId(token));
+    }
+
+    /**
+     * @return Returns the state for a token or <code>null</code> if it expired or never existed.
+     */
+    State get(String token) {
+        return states.getIfPresent(token);
+    }
+
+    /**
+     * @return Returns documents of the previous state (if any) followed by new documents,
+     * within the limit of documents of a state.
+     */
+    List<Document> accumulate(State previous, List<Document> newDocuments) {
+        if (previous == null) {
+            return newDocuments.size() > maxDocuments ? newDocuments.subList(0, maxDocuments) : newDocuments;
+        }
+        return previous.append(newDocuments, maxDocuments);
+    }
+
+    /**
+     * Run a task updating the state of a token once no other task holds the token.
+     * Tasks of the same token run one at a time, in the order of acquisition; each
+     * task must call {@link #release(String)} when done (possibly on another thread).
+     * A waiting task runs on the thread releasing the token.
+     */
+    void acquire(String token, Runnable task) {
+        synchronized (updating) {
+            ArrayDeque<Runnable> waiting = updating.get(token);
+            if (waiting != null) {
+                waiting.add(task);
+                return;
+            }
+            updating.put(token, new ArrayDeque<Runnable>());
+        }
+        task.run();
+    }
+
+    /**
+     * Release a token acquired with {@link #acquire(String, Runnable)}, running the
+     * next waiting task (if any).
+     */
+    void release(String token) {
+        final Runnable next;
+        synchronized (updating) {
+            ArrayDeque<Runnable> waiting = updating.get(token);
+            next = waiting == null ? null : waiting.poll();
+            if (next == null) {
+                updating.remove(token);
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    void put(String token, List<Document> documents, DocumentGroup [] groups) {
+        Set<String> ids = new HashSet<>();
+        for (Document document : documents) {
+            ids.add(document.getStringId());
+        }
+        states.put(token, new State(documents, ids, groups));
+    }
+}
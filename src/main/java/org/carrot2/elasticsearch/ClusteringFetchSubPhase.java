@@ -0,0 +1,262 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.index.Fields;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchParseElement;
+import org.elasticsearch.search.fetch.FetchPhaseExecutionException;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.FetchSubPhaseContext;
+import org.elasticsearch.search.highlight.HighlightField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.lookup.SourceLookup;
+
+/**
+ * A {@link FetchSubPhase} which assembles {@link LogicalField}s of each hit on the
+ * shard, according to the {@link FieldMappingSpec}s passed in the search source
+ * extension named {@link #NAME}. The assembled text is returned as hit fields
+ * (see {@link #hitFieldName(LogicalField)}).
+ *
+ * <p>The extension is added to the delegate search request by {@link ClusteringAction}
+ * automatically if shard-side extraction is requested.</p>
+ */
+public class ClusteringFetchSubPhase implements FetchSubPhase {
+    /**
+     * Search source extension key.
+     */
+    public static final String NAME = "carrot2";
+
+    /**
+     * Prefix of hit fields with assembled logical fields.
+     */
+    static final String HIT_FIELD_PREFIX = "_carrot2.";
+
+    private static final String FIELD_MAPPING = "field_mapping";
+    private static final String QUERY_HINT = "query_hint";
+    private static final String STRIP_FIELDS = "strip_fields";
+    private static final String STRIP_HIGHLIGHTS = "strip_highlights";
+
+    static final ContextFactory<ClusteringFetchContext> CONTEXT_FACTORY = new ContextFactory<ClusteringFetchContext>() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public ClusteringFetchContext newContextInstance() {
+            return new ClusteringFetchContext();
+        }
+    };
+
+    /**
+     * Per-request state of the sub-phase.
+     */
+    static class ClusteringFetchContext extends FetchSubPhaseContext {
+        final List<FieldMappingSpec> fieldMapping = new ArrayList<>();
+        final List<String> stripFields = new ArrayList<>();
+        final List<String> stripHighlights = new ArrayList<>();
+        KeywordInContext kwic = new KeywordInContext(null);
+    }
+
+    /**
+     * @return Returns the name of a hit field holding assembled logical field's text.
+     */
+    static String hitFieldName(LogicalField logicalField) {
+        return HIT_FIELD_PREFIX + logicalField.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return Returns the source of the search extension for the given field mapping
+     * (and query hint, for {@link FieldSource#KWIC} mappings). Hit fields and highlight
+     * fields in <code>stripFields</code> and <code>stripHighlights</code> are only fetched
+     * for the extraction and are removed from hits once logical fields are assembled.
+     */
+    static Map<String, Object> extensionSource(List<FieldMappingSpec> fieldMapping, String queryHint,
+                                               Collection<String> stripFields, Collection<String> stripHighlights) {
+        Map<String, List<String>> specs = new LinkedHashMap<>();
+        for (FieldMappingSpec spec : fieldMapping) {
+            String key = spec.logicalField.name().toLowerCase(Locale.ROOT);
+            if (!specs.containsKey(key)) {
+                specs.put(key, new ArrayList<String>());
+            }
+            specs.get(key).add(spec.source.getFieldSpecPrefix() + spec.field);
+        }
+
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put(FIELD_MAPPING, specs);
+        if (queryHint != null) {
+            source.put(QUERY_HINT, queryHint);
+        }
+        if (!stripFields.isEmpty()) {
+            source.put(STRIP_FIELDS, new ArrayList<>(stripFields));
+        }
+        if (!stripHighlights.isEmpty()) {
+            source.put(STRIP_HIGHLIGHTS, new ArrayList<>(stripHighlights));
+        }
+        return source;
+    }
+
+    @Override
+    public Map<String, ? extends SearchParseElement> parseElements() {
+        return Collections.singletonMap(NAME, new SearchParseElement() {
+            @Override
+            public void parse(XContentParser parser, SearchContext context) throws Exception {
+                ClusteringFetchContext fetchContext = context.getFetchSubPhaseContext(CONTEXT_FACTORY);
+                Map<String, Object> extension = parser.map();
+                Object fieldMapping = extension.get(FIELD_MAPPING);
+                if (!(fieldMapping instanceof Map)) {
+                    throw new ElasticsearchParseException("Expected a [" + FIELD_MAPPING + "] object in [" + NAME + "].");
+                }
+
+                for (Map.Entry<?,?> e : ((Map<?,?>) fieldMapping).entrySet()) {
+                    LogicalField logicalField = LogicalField.valueOfCaseInsensitive(e.getKey().toString());
+                    if (logicalField == null) {
+                        throw new ElasticsearchParseException("Unknown logical field: " + e.getKey());
+                    }
+                    for (Object fieldSpec : (List<?>) e.getValue()) {
+                        FieldSource.ParsedFieldSource pfs = FieldSource.parseSpec(fieldSpec.toString());
+                        if (pfs == null) {
+                            throw new ElasticsearchParseException("Field mapping specification must contain a " +
+                                    " valid source prefix for the field source: " + fieldSpec);
+                        }
+                        fetchContext.fieldMapping.add(new FieldMappingSpec(pfs.fieldName, logicalField, pfs.source));
+                    }
+                }
+
+                Object queryHint = extension.get(QUERY_HINT);
+                if (queryHint != null) {
+                    fetchContext.kwic = new KeywordInContext(queryHint.toString());
+                }
+
+                addAll(fetchContext.stripFields, extension.get(STRIP_FIELDS));
+                addAll(fetchContext.stripHighlights, extension.get(STRIP_HIGHLIGHTS));
+            }
+        });
+    }
+
+    @Override
+    public boolean hitExecutionNeeded(SearchContext context) {
+        return !context.getFetchSubPhaseContext(CONTEXT_FACTORY).fieldMapping.isEmpty();
+    }
+
+    @Override
+    public void hitExecute(SearchContext context, HitContext hitContext) {
+        final ClusteringFetchContext fetchContext = context.getFetchSubPhaseContext(CONTEXT_FACTORY);
+        final List<FieldMappingSpec> fieldMapping = fetchContext.fieldMapping;
+        final InternalSearchHit hit = hitContext.hit();
+
+        LogicalDocument logicalDocument = (LogicalDocument) hitContext.cache().get(NAME);
+        if (logicalDocument == null) {
+            logicalDocument = new LogicalDocument();
+            hitContext.cache().put(NAME, logicalDocument);
+        }
+        logicalDocument.reset();
+
+        try {
+            Fields termVectors = null;
+            for (FieldMappingSpec spec : fieldMapping) {
+                Object appendContent = null;
+                switch (spec.source) {
+                    case FIELD:
+                    case DOCVALUES:
+                        SearchHitField searchHitField = hit.fields().get(spec.field);
+                        if (searchHitField != null) {
+                            appendContent = searchHitField.getValue();
+                        }
+                        break;
+
+                    case HIGHLIGHT:
+                        HighlightField highlightField = hit.highlightFields().get(spec.field);
+                        if (highlightField != null) {
+                            appendContent = LogicalDocument.join(Arrays.asList(highlightField.fragments()));
+                        }
+                        break;
+
+                    case SOURCE:
+                    case KWIC:
+                        SourceLookup sourceLookup = context.lookup().source();
+                        sourceLookup.setSegmentAndDocument(hitContext.readerContext(), hitContext.docId());
+                        Object value = sourceLookup.extractValue(spec.field);
+                        if (spec.source == FieldSource.KWIC) {
+                            appendContent = fetchContext.kwic.extract(value);
+                        } else if (value instanceof List) {
+                            appendContent = LogicalDocument.join((List<?>) value);
+                        } else {
+                            appendContent = value;
+                        }
+                        break;
+
+                    case TERMVECTORS:
+                        if (termVectors == null) {
+                            termVectors = hitContext.reader().getTermVectors(hitContext.docId());
+                        }
+                        if (termVectors != null) {
+                            appendContent = TermVectorText.rebuild(termVectors.terms(spec.field));
+                        }
+                        break;
+
+                    default:
+                        throw org.carrot2.elasticsearch.Preconditions.unreachable();
+                }
+
+                logicalDocument.append(spec.logicalField, appendContent);
+            }
+        } catch (IOException e) {
+            throw new FetchPhaseExecutionException(context, "Could not assemble clustering fields for: " + hit.getId(), e);
+        }
+
+        // Fields fetched only for the extraction are not sent back with the hit.
+        if (hit.fieldsOrNull() != null) {
+            for (String field : fetchContext.stripFields) {
+                hit.fields().remove(field);
+            }
+        }
+        if (hit.internalHighlightFields() != null && !fetchContext.stripHighlights.isEmpty()) {
+            Map<String, HighlightField> highlightFields = new HashMap<>(hit.highlightFields());
+            highlightFields.keySet().removeAll(fetchContext.stripHighlights);
+            hit.highlightFields(highlightFields);
+        }
+
+        if (hit.fieldsOrNull() == null) {
+            hit.fields(new HashMap<String, SearchHitField>(LogicalField.values().length));
+        }
+        for (LogicalField logicalField : LogicalField.values()) {
+            if (!logicalDocument.isEmpty(logicalField)) {
+                String name = hitFieldName(logicalField);
+                hit.fields().put(name,
+                        new InternalSearchHitField(name, Collections.<Object> singletonList(logicalDocument.get(logicalField))));
+            }
+        }
+    }
+
+    private static void addAll(List<String> target, Object values) {
+        if (values instanceof List) {
+            for (Object value : (List<?>) values) {
+                target.add(value.toString());
+            }
+        }
+    }
+
+    @Override
+    public boolean hitsExecutionNeeded(SearchContext context) {
+        return false;
+    }
+
+    @Override
+    public void hitsExecute(SearchContext context, InternalSearchHit[] hits) {
+    }
+}
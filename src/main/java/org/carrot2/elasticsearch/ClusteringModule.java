@@ -7,5 +7,8 @@ public class ClusteringModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(ControllerSingleton.class).asEagerSingleton();
+        bind(ClusteringRouter.class).asEagerSingleton();
+        bind(ClusteringContinuations.class).asEagerSingleton();
+        bind(ClusteringViewService.class).asEagerSingleton();
     }
 }
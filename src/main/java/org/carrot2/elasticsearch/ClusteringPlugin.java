@@ -6,6 +6,7 @@ import java.util.Collections;
 
 import org.carrot2.elasticsearch.ClusteringAction.RestClusteringAction;
 import org.carrot2.elasticsearch.ClusteringAction.TransportClusteringAction;
+import org.elasticsearch.Version;
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
@@ -14,16 +15,132 @@ import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.search.SearchModule;
 
 /** */
 public class ClusteringPlugin extends Plugin {
+    /**
+     * Version of nodes (and clients) exchanging clustering request options and results
+     * added to existing requests and responses in this plugin release. Earlier versions
+     * run earlier releases of the plugin, they are sent (and send) the previous format.
+     */
+    static final Version WIRE_FORMAT_VERSION = Version.V_2_4_1;
+
     /**
      * Master on/off switch property for the plugin (general settings).
      */
     public static final String DEFAULT_ENABLED_PROPERTY_NAME = "carrot2.enabled";
 
+    /**
+     * Name of a node attribute marking dedicated clustering nodes (general settings).
+     * If set (for example to <code>carrot2</code>), only nodes with this attribute
+     * set to <code>true</code> (<code>node.carrot2: true</code>) start clustering
+     * controllers; other nodes send documents to be clustered to these nodes. If not
+     * set, all nodes run clustering.
+     */
+    public static final String NODE_ATTRIBUTE_PROPERTY_NAME = "carrot2.node_attribute";
+
+    /**
+     * Number of threads of the clustering executor, used to cluster multiple
+     * result sets concurrently (general settings). Defaults to the number of
+     * processors.
+     */
+    public static final String CLUSTERING_THREADS_PROPERTY_NAME = "carrot2.clustering_threads";
+
+    /**
+     * Name of the node's thread pool running clustering tasks concurrently, defined on
+     * clustering nodes only (sized by {@link #CLUSTERING_THREADS_PROPERTY_NAME}; can be
+     * overridden with <code>threadpool.carrot2_clustering.*</code> settings).
+     */
+    public static final String CLUSTERING_THREAD_POOL_NAME = "carrot2_clustering";
+
+    /**
+     * Number of threads of the factorization executor, shared by the plugin's
+     * multi-threaded matrix factorizations (see {@link ParallelNonnegativeMatrixFactorizationFactory}
+     * and {@link ParallelPartialSingularValueDecompositionFactory}) and by
+     * {@link ParallelBisectingKMeansClusteringAlgorithm}; a single factorization
+     * uses at most this many threads (general settings). The executor is only created on
+     * clustering nodes. Defaults to the number of processors, <code>1</code> runs
+     * factorizations on the requesting thread only.
+     */
+    public static final String FACTORIZATION_THREADS_PROPERTY_NAME = "carrot2.factorization_threads";
+
+    /**
+     * Time after which unused continuation states are discarded (general settings).
+     * Defaults to 5 minutes.
+     */
+    public static final String CONTINUATION_TTL_PROPERTY_NAME = "carrot2.continuation.ttl";
+
+    /**
+     * Maximum number of documents of all continuation states retained on a node
+     * (general settings); least recently used states are discarded first. Defaults
+     * to 100000.
+     */
+    public static final String CONTINUATION_MAX_TOTAL_DOCUMENTS_PROPERTY_NAME = "carrot2.continuation.max_total_documents";
+
+    /**
+     * Maximum number of documents accumulated in a single continuation state
+     * (general settings); new documents beyond this limit are not clustered.
+     * Defaults to 5000.
+     */
+    public static final String CONTINUATION_MAX_DOCUMENTS_PROPERTY_NAME = "carrot2.continuation.max_documents";
+
+    /**
+     * Interval of checking saved clustering views for staleness (general settings).
+     * Defaults to 5 seconds.
+     */
+    public static final String VIEWS_CHECK_INTERVAL_PROPERTY_NAME = "carrot2.views.check_interval";
+
+    /**
+     * Time after which saved clustering views not requested on a node are no longer
+     * refreshed and discarded (general settings). Defaults to 30 minutes.
+     */
+    public static final String VIEWS_IDLE_TIMEOUT_PROPERTY_NAME = "carrot2.views.idle_timeout";
+
+    /**
+     * Maximum time the reduce phase of a <code>carrot2</code> aggregation waits for
+     * a clustering node (general settings). Defaults to 1 minute.
+     */
+    public static final String AGGREGATION_TIMEOUT_PROPERTY_NAME = "carrot2.aggregation.timeout";
+
+    /**
+     * Number of warm-up runs of each algorithm when the clustering controller starts
+     * (general settings). Defaults to 0 (no warm-up); the warm-up delays node startup.
+     */
+    public static final String WARMUP_ITERATIONS_PROPERTY_NAME = "carrot2.warmup.iterations";
+
+    /**
+     * Number of concurrent warm-up runs of each algorithm, i.e. the number of pooled
+     * instances of each algorithm created at startup (general settings). Defaults to 1.
+     */
+    public static final String WARMUP_INSTANCES_PROPERTY_NAME = "carrot2.warmup.instances";
+
+    /**
+     * Algorithms warmed up when the clustering controller starts, if the warm-up is enabled
+     * (general settings). Defaults to all available algorithms. This setting only selects
+     * warm-up runs: pooled algorithm instances (and their lexical resources) are created on
+     * first use (or at startup, up to {@link #COMPONENT_POOL_MIN_PROPERTY_NAME}), so algorithms
+     * not warmed up are initialized by their first request.
+     */
+    public static final String WARMUP_ALGORITHMS_PROPERTY_NAME = "carrot2.warmup.algorithms";
+
+    /**
+     * If <code>true</code>, the clustering controller is reloaded when files in the plugin's
+     * configuration directory or the lexical resources directory change (general settings).
+     * Defaults to <code>false</code>.
+     */
+    public static final String RELOAD_WATCH_PROPERTY_NAME = "carrot2.reload.watch";
+
+    /**
+     * Prefix of named clustering pool definitions (general settings):
+     * <code>carrot2.pools.&lt;name&gt;.indices</code>, <code>.max_concurrent</code> and
+     * <code>.config.*</code>. See {@link ClusteringPool}.
+     */
+    public static final String POOLS_PROPERTY_NAME = "carrot2.pools";
+
     /**
      * Plugin name.
      */
@@ -51,14 +168,58 @@ public class ClusteringPlugin extends Plugin {
      */
     public static final String DEFAULT_COMPONENT_SIZE_PROPERTY_NAME = "controller.pool-size";
 
+    /**
+     * A property key with the minimum number
+     * of pooled instances of each algorithm, created at startup and kept even when idle.
+     * Can be set for a single algorithm as <code>controller.pool.&lt;algorithm&gt;.min</code>.
+     * By default zero.
+     */
+    public static final String COMPONENT_POOL_MIN_PROPERTY_NAME = "controller.pool.min";
+
+    /**
+     * A property key with the maximum number
+     * of pooled instances of each component; requests wait for an instance when all are
+     * in use (see {@link #COMPONENT_POOL_WAIT_TIMEOUT_PROPERTY_NAME}). Can be set for a single algorithm as <code>controller.pool.&lt;algorithm&gt;.max</code>.
+     * Unbounded by default.
+     */
+    public static final String COMPONENT_POOL_MAX_PROPERTY_NAME = "controller.pool.max";
+
+    /**
+     * A property key with the time after which
+     * idle pooled instances above the minimum are released. Can be set for a single algorithm
+     * as <code>controller.pool.&lt;algorithm&gt;.idle-timeout</code>. By default idle instances
+     * are never released.
+     */
+    public static final String COMPONENT_POOL_IDLE_TIMEOUT_PROPERTY_NAME = "controller.pool.idle-timeout";
+
+    /**
+     * A property key with the maximum time
+     * a request waits for a pooled instance when the maximum number of instances is in use;
+     * the request is rejected afterwards. Can be set for a single algorithm as
+     * <code>controller.pool.&lt;algorithm&gt;.wait-timeout</code>. By default 30 seconds.
+     */
+    public static final String COMPONENT_POOL_WAIT_TIMEOUT_PROPERTY_NAME = "controller.pool.wait-timeout";
+
+    /**
+     * Queue size of the clustering thread pool.
+     */
+    private static final int CLUSTERING_QUEUE_SIZE = 1000;
+
+    private final Settings settings;
     private final boolean transportClient;
     private final boolean pluginEnabled;
     private final ESLogger logger;
 
     public ClusteringPlugin(Settings settings) {
+        this.settings = settings;
         this.pluginEnabled = settings.getAsBoolean(DEFAULT_ENABLED_PROPERTY_NAME, true);
         this.logger = Loggers.getLogger("plugin.carrot2", settings);
         this.transportClient = TransportClient.CLIENT_TYPE.equals(settings.get(Client.CLIENT_TYPE_SETTING));
+
+        if (pluginEnabled) {
+            // Aggregation results are read by transport clients too.
+            Carrot2Aggregation.InternalCarrot2.registerStreams();
+        }
     }
 
     @Override
@@ -71,6 +232,31 @@ public class ClusteringPlugin extends Plugin {
         return "Provides search results clustering via the Carrot2 framework";
     }
 
+    @Override
+    public Settings additionalSettings() {
+        if (!pluginEnabled || transportClient || !isClusteringNode(settings)) {
+            return Settings.EMPTY;
+        }
+
+        // Node settings take precedence over these.
+        final String prefix = "threadpool." + CLUSTERING_THREAD_POOL_NAME + ".";
+        return Settings.builder()
+                .put(prefix + "type", "fixed")
+                .put(prefix + "size", settings.getAsInt(CLUSTERING_THREADS_PROPERTY_NAME,
+                        EsExecutors.boundedNumberOfProcessors(settings)))
+                .put(prefix + "queue_size", CLUSTERING_QUEUE_SIZE)
+                .build();
+    }
+
+    /**
+     * @return Returns <code>true</code> if a node with the given settings runs clustering
+     * algorithms (see {@link #NODE_ATTRIBUTE_PROPERTY_NAME}).
+     */
+    static boolean isClusteringNode(Settings settings) {
+        String nodeAttribute = settings.get(NODE_ATTRIBUTE_PROPERTY_NAME);
+        return nodeAttribute == null || settings.getAsBoolean("node." + nodeAttribute, false);
+    }
+
     /* Invoked on component assembly. */
     public void onModule(ActionModule actionModule) {
         if (pluginEnabled) {
@@ -80,6 +266,21 @@ public class ClusteringPlugin extends Plugin {
             actionModule.registerAction(
                     ListAlgorithmsAction.INSTANCE, 
                     ListAlgorithmsAction.TransportListAlgorithmsAction.class);
+            actionModule.registerAction(
+                    MultiClusteringAction.INSTANCE, 
+                    MultiClusteringAction.TransportMultiClusteringAction.class);
+            actionModule.registerAction(
+                    ClusteringViewAction.INSTANCE, 
+                    ClusteringViewAction.TransportClusteringViewAction.class);
+            actionModule.registerAction(
+                    ReloadAction.INSTANCE, 
+                    ReloadAction.TransportReloadAction.class);
+            actionModule.registerAction(
+                    PoolStatsAction.INSTANCE, 
+                    PoolStatsAction.TransportPoolStatsAction.class);
+            if (!transportClient) {
+                actionModule.registerFilter(Carrot2Aggregation.Carrot2ReduceFilter.class);
+            }
         }
     }
 
@@ -88,9 +289,21 @@ public class ClusteringPlugin extends Plugin {
         if (pluginEnabled) {
             restModule.addRestAction(RestClusteringAction.class);
             restModule.addRestAction(ListAlgorithmsAction.RestListAlgorithmsAction.class);
+            restModule.addRestAction(MultiClusteringAction.RestMultiClusteringAction.class);
+            restModule.addRestAction(ClusteringViewAction.RestClusteringViewAction.class);
+            restModule.addRestAction(ReloadAction.RestReloadAction.class);
+            restModule.addRestAction(PoolStatsAction.RestPoolStatsAction.class);
         }
     }
     
+    /* Invoked on component assembly. */
+    public void onModule(SearchModule searchModule) {
+        if (pluginEnabled) {
+            searchModule.registerFetchSubPhase(ClusteringFetchSubPhase.class);
+            searchModule.registerAggregatorParser(Carrot2Aggregation.Carrot2Parser.class);
+        }
+    }
+
     @Override
     public Collection<Module> nodeModules() {
         if (pluginEnabled && !transportClient) {
@@ -105,7 +318,9 @@ public class ClusteringPlugin extends Plugin {
     public Collection<Class<? extends LifecycleComponent>> nodeServices() {
         if (pluginEnabled) {
             if (!transportClient) {
-                return Arrays.<Class<? extends LifecycleComponent>> asList(ControllerSingleton.class);
+                return Arrays.<Class<? extends LifecycleComponent>> asList(
+                        ControllerSingleton.class,
+                        ClusteringViewService.class);
             }
         } else {
             logger.info("Plugin disabled.", name());
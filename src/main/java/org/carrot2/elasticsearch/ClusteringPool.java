@@ -0,0 +1,229 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+/**
+ * A named, isolated clustering pool: a separate controller (with its own component
+ * pool bounds and attribute defaults) and a limit of concurrent clustering runs.
+ * Pools are defined in the node's settings (see {@link ClusteringPlugin#POOLS_PROPERTY_NAME});
+ * requests are assigned to a pool by the {@link #HEADER} header or by the indices
+ * they search, the {@link #DEFAULT} pool serves all other requests.
+ */
+final class ClusteringPool {
+    /**
+     * The pool serving requests not assigned to any other pool.
+     */
+    static final String DEFAULT = "default";
+
+    /**
+     * Request header selecting the pool explicitly.
+     */
+    static final String HEADER = "X-Carrot2-Pool";
+
+    private final String name;
+    private final String [] indices;
+    private final int maxConcurrent;
+    private final Settings config;
+    private final Semaphore permits;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeNanos = new AtomicLong();
+
+    private ClusteringPool(String name, String [] indices, int maxConcurrent, Settings config) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException(
+                    "Clustering pool [" + name + "]: max_concurrent must be positive: " + maxConcurrent);
+        }
+
+        this.name = name;
+        this.indices = indices;
+        this.maxConcurrent = maxConcurrent;
+        this.config = config;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return Returns settings overriding the plugin's configuration file for this
+     * pool's controller (component pool bounds, attribute defaults).
+     */
+    Settings getConfig() {
+        return config;
+    }
+
+    /**
+     * Start a clustering run in this pool.
+     *
+     * @throws EsRejectedExecutionException If the pool's limit of concurrent runs is reached.
+     */
+    void acquire() {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new EsRejectedExecutionException("Clustering pool [" + name + "] is at its limit of "
+                    + maxConcurrent + " concurrent requests.");
+        }
+    }
+
+    /**
+     * Complete a clustering run started with {@link #acquire()}.
+     */
+    void release(long tsStart, boolean success) {
+        timeNanos.addAndGet(System.nanoTime() - tsStart);
+        (success ? completed : failed).incrementAndGet();
+        permits.release();
+    }
+
+    Stats stats() {
+        return new Stats(
+                maxConcurrent == Integer.MAX_VALUE ? -1 : maxConcurrent,
+                maxConcurrent - permits.availablePermits(),
+                completed.get(),
+                failed.get(),
+                rejected.get(),
+                TimeUnit.NANOSECONDS.toMillis(timeNanos.get()));
+    }
+
+    /**
+     * Parse pool definitions: <code>carrot2.pools.&lt;name&gt;.indices</code> (index name
+     * patterns), <code>carrot2.pools.&lt;name&gt;.max_concurrent</code> and
+     * <code>carrot2.pools.&lt;name&gt;.config.*</code> (overrides of the plugin's
+     * configuration file). The {@link #DEFAULT} pool is always defined.
+     */
+    static Map<String, ClusteringPool> parse(Settings settings) {
+        Map<String, Settings> groups = settings.getGroups(ClusteringPlugin.POOLS_PROPERTY_NAME);
+
+        Map<String, ClusteringPool> pools = new LinkedHashMap<>();
+        pools.put(DEFAULT, parse(DEFAULT, groups.containsKey(DEFAULT) ? groups.get(DEFAULT) : Settings.EMPTY));
+        for (Map.Entry<String, Settings> e : groups.entrySet()) {
+            if (!DEFAULT.equals(e.getKey())) {
+                pools.put(e.getKey(), parse(e.getKey(), e.getValue()));
+            }
+        }
+        return Collections.unmodifiableMap(pools);
+    }
+
+    private static ClusteringPool parse(String name, Settings pool) {
+        return new ClusteringPool(name,
+                pool.getAsArray("indices", new String [0]),
+                pool.getAsInt("max_concurrent", Integer.MAX_VALUE),
+                pool.getByPrefix("config."));
+    }
+
+    /**
+     * @return Returns the pool selected by the header (if not <code>null</code>), otherwise
+     * the first pool whose index patterns match all the given (concrete) indices or the
+     * {@link #DEFAULT} pool.
+     */
+    static ClusteringPool select(Map<String, ClusteringPool> pools, String header, String [] concreteIndices) {
+        if (header != null) {
+            ClusteringPool pool = pools.get(header);
+            if (pool == null) {
+                throw new IllegalArgumentException("No such clustering pool: " + header);
+            }
+            return pool;
+        }
+
+        if (concreteIndices != null && concreteIndices.length > 0) {
+            for (ClusteringPool pool : pools.values()) {
+                if (pool.indices.length > 0 && matchesAll(pool.indices, concreteIndices)) {
+                    return pool;
+                }
+            }
+        }
+        return pools.get(DEFAULT);
+    }
+
+    private static boolean matchesAll(String [] patterns, String [] indices) {
+        for (String index : indices) {
+            if (!Regex.simpleMatch(patterns, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A snapshot of a pool's counters.
+     */
+    static final class Stats implements Streamable, ToXContent {
+        static final class Fields {
+            static final XContentBuilderString MAX_CONCURRENT = new XContentBuilderString("max_concurrent");
+            static final XContentBuilderString ACTIVE = new XContentBuilderString("active");
+            static final XContentBuilderString COMPLETED = new XContentBuilderString("completed");
+            static final XContentBuilderString FAILED = new XContentBuilderString("failed");
+            static final XContentBuilderString REJECTED = new XContentBuilderString("rejected");
+            static final XContentBuilderString TIME_IN_MILLIS = new XContentBuilderString("time_in_millis");
+        }
+
+        int maxConcurrent;
+        int active;
+        long completed;
+        long failed;
+        long rejected;
+        long timeMillis;
+
+        Stats() {
+        }
+
+        Stats(int maxConcurrent, int active, long completed, long failed, long rejected, long timeMillis) {
+            this.maxConcurrent = maxConcurrent;
+            this.active = active;
+            this.completed = completed;
+            this.failed = failed;
+            this.rejected = rejected;
+            this.timeMillis = timeMillis;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(Fields.MAX_CONCURRENT, maxConcurrent);
+            builder.field(Fields.ACTIVE, active);
+            builder.field(Fields.COMPLETED, completed);
+            builder.field(Fields.FAILED, failed);
+            builder.field(Fields.REJECTED, rejected);
+            builder.field(Fields.TIME_IN_MILLIS, timeMillis);
+            return builder;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            maxConcurrent = in.readInt();
+            active = in.readVInt();
+            completed = in.readVLong();
+            failed = in.readVLong();
+            rejected = in.readVLong();
+            timeMillis = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeInt(maxConcurrent);
+            out.writeVInt(active);
+            out.writeVLong(completed);
+            out.writeVLong(failed);
+            out.writeVLong(rejected);
+            out.writeVLong(timeMillis);
+        }
+    }
+}
@@ -0,0 +1,643 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Controller;
+import org.carrot2.core.Document;
+import org.carrot2.core.LanguageCode;
+import org.carrot2.core.ProcessingException;
+import org.carrot2.core.ProcessingResult;
+import org.carrot2.core.attribute.CommonAttributesDescriptor;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionListenerResponseHandler;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Booleans;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Clusters prepared documents, either locally or on a dedicated clustering node.
+ *
+ * <p>If {@link ClusteringPlugin#NODE_ATTRIBUTE_PROPERTY_NAME} is set, only nodes with
+ * this attribute set to <code>true</code> (for example <code>node.carrot2: true</code>)
+ * run clustering algorithms. Other nodes send prepared documents over the transport
+ * layer to the eligible node with the fewest clustering requests in flight (as seen
+ * from the sending node). Clustering nodes run these requests on the
+ * {@link ClusteringPlugin#CLUSTERING_THREAD_POOL_NAME} executor, each takes a permit
+ * of its clustering pool there.</p>
+ */
+public class ClusteringRouter extends AbstractComponent {
+    /**
+     * Internal transport action for clustering prepared documents.
+     */
+    static final String DOCUMENTS_ACTION_NAME = ClusteringAction.NAME + "/documents";
+
+    /**
+     * Minimum number of documents in a partition of partitioned clustering (fewer
+     * documents don't make meaningful clusters).
+     */
+    static final int MIN_PARTITION_DOCUMENTS = 50;
+
+    private final ClusterService clusterService;
+    private final TransportService transportService;
+    private final ControllerSingleton controllerSingleton;
+    private final String nodeAttribute;
+
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    @Inject
+    public ClusteringRouter(Settings settings,
+                            ClusterService clusterService,
+                            TransportService transportService,
+                            ControllerSingleton controllerSingleton) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.transportService = transportService;
+        this.controllerSingleton = controllerSingleton;
+        this.nodeAttribute = settings.get(ClusteringPlugin.NODE_ATTRIBUTE_PROPERTY_NAME);
+
+        transportService.registerRequestHandler(
+                DOCUMENTS_ACTION_NAME,
+                DocumentsRequest.class,
+                ClusteringPlugin.CLUSTERING_THREAD_POOL_NAME,
+                new DocumentsRequestHandler());
+    }
+
+    /**
+     * @return Returns identifiers of available algorithms.
+     */
+    List<String> getAlgorithms() {
+        return controllerSingleton.getAlgorithms();
+    }
+
+    /**
+     * @return Returns clustering pools defined on this node.
+     */
+    Map<String, ClusteringPool> getPools() {
+        return controllerSingleton.getPools();
+    }
+
+    /**
+     * Cluster documents with the given algorithm in the given clustering pool (see
+     * {@link ClusteringPool}), on this node if it is a clustering node, otherwise on
+     * the least loaded clustering node.
+     */
+    void cluster(String pool,
+                 String algorithmId,
+                 String queryHint,
+                 Map<String, Object> attributes,
+                 List<Document> documents,
+                 final ActionListener<DocumentGroup[]> listener) {
+        if (controllerSingleton.isClusteringNode()) {
+            clusterLocally(pool, algorithmId, queryHint, attributes, documents, listener);
+            return;
+        }
+
+        final DiscoveryNode node = leastLoadedClusteringNode();
+        if (node == null) {
+            listener.onFailure(new ElasticsearchException(
+                    "No clustering nodes available (nodes with attribute: " + nodeAttribute + ")."));
+            return;
+        }
+
+        final AtomicInteger counter = counter(node.getId());
+        counter.incrementAndGet();
+        transportService.sendRequest(node, DOCUMENTS_ACTION_NAME,
+                new DocumentsRequest(pool, algorithmId, queryHint, attributes, documents),
+                new ActionListenerResponseHandler<DocumentsResponse>(new ActionListener<DocumentsResponse>() {
+                    @Override
+                    public void onResponse(DocumentsResponse response) {
+                        counter.decrementAndGet();
+                        listener.onResponse(response.groups);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        counter.decrementAndGet();
+                        listener.onFailure(e);
+                    }
+                }) {
+                    @Override
+                    public DocumentsResponse newInstance() {
+                        return new DocumentsResponse();
+                    }
+                });
+    }
+
+    /**
+     * Cluster documents of each language separately and concurrently (see
+     * {@link ClusteringAction.ClusteringActionRequest#setParallelLanguages(boolean)}).
+     * Language groups are clustered like {@link #cluster} does, on the clustering
+     * executor (concurrent runs use separate pooled algorithm instances). Top-level
+     * groups of the result carry their language; "other topics" groups are moved
+     * to the end and identifiers are renumbered.
+     */
+    void clusterByLanguage(final String pool,
+                           final String algorithmId,
+                           final String queryHint,
+                           final Map<String, Object> attributes,
+                           List<Document> documents,
+                           final ActionListener<DocumentGroup[]> listener) {
+        final Map<LanguageCode, List<Document>> byLanguage = new LinkedHashMap<>();
+        for (Document document : documents) {
+            LanguageCode language = document.getLanguage();
+            List<Document> languageDocuments = byLanguage.get(language);
+            if (languageDocuments == null) {
+                byLanguage.put(language, languageDocuments = new ArrayList<>());
+            }
+            languageDocuments.add(document);
+        }
+
+        final List<LanguageCode> languages = new ArrayList<>(byLanguage.keySet());
+        if (languages.size() <= 1) {
+            // Nothing to partition, keep the algorithm's order of groups.
+            final String language = languages.isEmpty() || languages.get(0) == null ? null : languages.get(0).getIsoCode();
+            cluster(pool, algorithmId, queryHint, attributes, documents, new ActionListener<DocumentGroup[]>() {
+                @Override
+                public void onResponse(DocumentGroup[] groups) {
+                    for (DocumentGroup group : groups) {
+                        group.setLanguage(language);
+                    }
+                    listener.onResponse(groups);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+            return;
+        }
+
+        final List<List<Document>> inputs = new ArrayList<>(languages.size());
+        for (LanguageCode language : languages) {
+            inputs.add(byLanguage.get(language));
+        }
+        clusterConcurrently(pool, algorithmId, queryHint, attributes, inputs, new ActionListener<AtomicReferenceArray<DocumentGroup[]>>() {
+            @Override
+            public void onResponse(AtomicReferenceArray<DocumentGroup[]> results) {
+                listener.onResponse(mergeLanguages(languages, results));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Split documents into partitions and cluster them concurrently (see
+     * {@link ClusteringAction.ClusteringActionRequest#setPartitions(int)}). Documents are
+     * dealt to partitions round-robin, so each partition gets a similar share of top and
+     * bottom hits. Partial results are merged with {@link ClusterMerger} (groups with
+     * similar labels or common phrases are combined) and limited with
+     * {@link ClusterMerger#limit} to as many top-level groups as the largest partial
+     * result has.
+     */
+    void clusterPartitioned(final String pool,
+                            final String algorithmId,
+                            final String queryHint,
+                            final Map<String, Object> attributes,
+                            List<Document> documents,
+                            int partitions,
+                            final ActionListener<DocumentGroup[]> listener) {
+        final int count = partitionCount(partitions, documents.size());
+        if (count <= 1) {
+            cluster(pool, algorithmId, queryHint, attributes, documents, listener);
+            return;
+        }
+
+        final List<List<Document>> inputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            inputs.add(new ArrayList<Document>(documents.size() / count + 1));
+        }
+        for (int i = 0; i < documents.size(); i++) {
+            inputs.get(i % count).add(documents.get(i));
+        }
+
+        clusterConcurrently(pool, algorithmId, queryHint, attributes, inputs, new ActionListener<AtomicReferenceArray<DocumentGroup[]>>() {
+            @Override
+            public void onResponse(AtomicReferenceArray<DocumentGroup[]> results) {
+                List<DocumentGroup[]> partials = new ArrayList<>(results.length());
+                int maxGroups = 0;
+                for (int i = 0; i < results.length(); i++) {
+                    DocumentGroup [] partial = results.get(i);
+                    partials.add(partial);
+
+                    int groups = 0;
+                    for (DocumentGroup group : partial) {
+                        if (!group.isOtherTopics()) {
+                            groups++;
+                        }
+                    }
+                    maxGroups = Math.max(maxGroups, groups);
+                }
+                listener.onResponse(ClusterMerger.limit(ClusterMerger.merge(partials), maxGroups));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * @return Returns the number of partitions actually used for the requested number of
+     * partitions: each partition gets at least {@link #MIN_PARTITION_DOCUMENTS} documents.
+     */
+    static int partitionCount(int partitions, int documents) {
+        return Math.max(1, Math.min(partitions, documents / MIN_PARTITION_DOCUMENTS));
+    }
+
+    /**
+     * Cluster each list of documents like {@link #cluster} does, concurrently on the
+     * clustering executor (concurrent runs use separate pooled algorithm instances).
+     * The listener gets results in the order of inputs.
+     */
+    private void clusterConcurrently(final String pool,
+                                     final String algorithmId,
+                                     final String queryHint,
+                                     final Map<String, Object> attributes,
+                                     final List<List<Document>> inputs,
+                                     final ActionListener<AtomicReferenceArray<DocumentGroup[]>> listener) {
+        final AtomicReferenceArray<DocumentGroup[]> results = new AtomicReferenceArray<>(inputs.size());
+        final CountDown countDown = new CountDown(inputs.size());
+
+        List<Runnable> tasks = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            final int index = i;
+            final List<Document> input = inputs.get(i);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    cluster(pool, algorithmId, queryHint, attributes, input, new ActionListener<DocumentGroup[]>() {
+                        @Override
+                        public void onResponse(DocumentGroup[] groups) {
+                            results.set(index, groups);
+                            if (countDown.countDown()) {
+                                listener.onResponse(results);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            if (countDown.fastForward()) {
+                                listener.onFailure(e);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        try {
+            ParallelTasks.invokeAll(controllerSingleton.getClusteringExecutor(), tasks);
+        } catch (Exception e) {
+            if (countDown.fastForward()) {
+                listener.onFailure(e);
+            }
+        }
+    }
+
+    private static DocumentGroup [] mergeLanguages(List<LanguageCode> languages,
+                                                   AtomicReferenceArray<DocumentGroup[]> results) {
+        List<DocumentGroup> merged = new ArrayList<>();
+        List<DocumentGroup> otherTopics = new ArrayList<>();
+        for (int i = 0; i < languages.size(); i++) {
+            String language = languages.get(i) == null ? null : languages.get(i).getIsoCode();
+            for (DocumentGroup group : results.get(i)) {
+                group.setLanguage(language);
+                (group.isOtherTopics() ? otherTopics : merged).add(group);
+            }
+        }
+
+        // Largest groups first, regardless of language (scores are not comparable).
+        Collections.sort(merged, new Comparator<DocumentGroup>() {
+            @Override
+            public int compare(DocumentGroup a, DocumentGroup b) {
+                return Integer.compare(b.getDocumentReferences().length, a.getDocumentReferences().length);
+            }
+        });
+        merged.addAll(otherTopics);
+
+        DocumentGroup [] groups = merged.toArray(new DocumentGroup [merged.size()]);
+        ClusterMerger.renumber(groups, 0);
+        return groups;
+    }
+
+    /**
+     * Cluster documents on this node with the clustering pool's controller. The pool's
+     * limit of concurrent requests is enforced by callers, once per request (a request
+     * may need several clustering runs) and once per {@link DocumentsRequest} received
+     * from other nodes.
+     */
+    void clusterLocally(String poolName,
+                        final String algorithmId,
+                        String queryHint,
+                        Map<String, Object> attributes,
+                        List<Document> documents,
+                        ActionListener<DocumentGroup[]> listener) {
+        final ClusteringPool pool = controllerSingleton.getPools().get(
+                poolName == null ? ClusteringPool.DEFAULT : poolName);
+        if (pool == null) {
+            listener.onFailure(new IllegalArgumentException("No such clustering pool: " + poolName));
+            return;
+        }
+
+        final ControllerSingleton.ControllerRef ref = controllerSingleton.acquire();
+        if (ref == null || ref.getController(pool.getName()) == null) {
+            if (ref != null) {
+                ref.decRef();
+            }
+            listener.onFailure(new ElasticsearchException("Clustering controller not available on this node."));
+            return;
+        }
+        final Controller controller = ref.getController(pool.getName());
+
+        final Map<String, Object> processingAttrs = new HashMap<>();
+        if (attributes != null) {
+            processingAttrs.putAll(attributes);
+        }
+        processingAttrs.put(ParallelMatrices.ATTRIBUTE_KEY, controllerSingleton.getMatrices());
+
+        final DocumentGroup [] groups;
+        try {
+            CommonAttributesDescriptor.attributeBuilder(processingAttrs)
+                .documents(documents)
+                .query(queryHint);
+
+            final ProcessingResult result = AccessController.doPrivileged(new PrivilegedAction<ProcessingResult>() {
+              @Override
+              public ProcessingResult run() {
+                return controller.process(processingAttrs, algorithmId);
+              }
+            });
+            groups = adapt(result.getClusters());
+        } catch (ProcessingException e) {
+            // Log a full stack trace with all nested exceptions but only return
+            // ElasticSearchException exception with a simple String (otherwise
+            // clients cannot deserialize exception classes).
+            String message = "Search results clustering error: " + e.getMessage();
+            listener.onFailure(new ElasticsearchException(message));
+
+            logger.warn("Could not process clustering request.", e);
+            return;
+        } finally {
+            ref.decRef();
+        }
+
+        listener.onResponse(groups);
+    }
+
+    private DiscoveryNode leastLoadedClusteringNode() {
+        List<DiscoveryNode> eligible = new ArrayList<>();
+        for (DiscoveryNode node : clusterService.state().nodes()) {
+            if (Booleans.parseBoolean(node.attributes().get(nodeAttribute), false)) {
+                eligible.add(node);
+            }
+        }
+
+        if (eligible.isEmpty()) {
+            return null;
+        }
+
+        // Start at a rotating offset so that ties are spread evenly.
+        final int offset = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % eligible.size();
+        DiscoveryNode best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < eligible.size(); i++) {
+            DiscoveryNode node = eligible.get((offset + i) % eligible.size());
+            int load = counter(node.getId()).get();
+            if (load < bestLoad) {
+                best = node;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private AtomicInteger counter(String nodeId) {
+        AtomicInteger counter = inFlight.get(nodeId);
+        if (counter == null) {
+            AtomicInteger existing = inFlight.putIfAbsent(nodeId, counter = new AtomicInteger());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /* */
+    static DocumentGroup[] adapt(List<Cluster> clusters) {
+        DocumentGroup [] groups = new DocumentGroup [clusters.size()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = adapt(clusters.get(i));
+        }
+        return groups;
+    }
+
+    /* */
+    private static DocumentGroup adapt(Cluster cluster) {
+        DocumentGroup group = new DocumentGroup();
+        group.setId(cluster.getId());
+        List<String> phrases = cluster.getPhrases();
+        group.setPhrases(phrases.toArray(new String[phrases.size()]));
+        group.setLabel(cluster.getLabel());
+        group.setScore(cluster.getScore());
+        group.setOtherTopics(cluster.isOtherTopics());
+
+        List<Document> documents = cluster.getDocuments();
+        String[] documentReferences = new String[documents.size()];
+        for (int i = 0; i < documentReferences.length; i++) {
+            documentReferences[i] = documents.get(i).getStringId();
+        }
+        group.setDocumentReferences(documentReferences);
+
+        List<Cluster> subclusters = cluster.getSubclusters();
+        subclusters = (subclusters == null ? Collections.<Cluster> emptyList() : subclusters);
+        group.setSubgroups(adapt(subclusters));
+
+        return group;
+    }
+
+    /**
+     * Prepared documents to be clustered on a clustering node.
+     */
+    public static class DocumentsRequest extends TransportRequest {
+        private String pool;
+        private String algorithmId;
+        private String queryHint;
+        private Map<String, Object> attributes;
+        private List<Document> documents;
+
+        DocumentsRequest() {}
+
+        DocumentsRequest(String pool, String algorithmId, String queryHint, Map<String, Object> attributes, List<Document> documents) {
+            this.pool = pool;
+            this.algorithmId = algorithmId;
+            this.queryHint = queryHint;
+            this.attributes = attributes;
+            this.documents = documents;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            pool = in.readOptionalString();
+            algorithmId = in.readString();
+            queryHint = in.readOptionalString();
+            if (in.readBoolean()) {
+                attributes = in.readMap();
+            }
+
+            int count = in.readVInt();
+            documents = new ArrayList<>(count);
+            while (count-- > 0) {
+                String title = in.readOptionalString();
+                String summary = in.readOptionalString();
+                String url = in.readOptionalString();
+                String language = in.readOptionalString();
+                String id = in.readString();
+                documents.add(new Document(title, summary, url,
+                        language == null ? null : LanguageCode.valueOf(language), id));
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeOptionalString(pool);
+            out.writeString(algorithmId);
+            out.writeOptionalString(queryHint);
+            out.writeBoolean(attributes != null);
+            if (attributes != null) {
+                out.writeMap(attributes);
+            }
+
+            out.writeVInt(documents.size());
+            for (Document document : documents) {
+                out.writeOptionalString(document.getTitle());
+                out.writeOptionalString(document.getSummary());
+                out.writeOptionalString(document.getContentUrl());
+                out.writeOptionalString(document.getLanguage() == null ? null : document.getLanguage().name());
+                out.writeString(document.getStringId());
+            }
+        }
+    }
+
+    /**
+     * Clusters computed on a clustering node.
+     */
+    public static class DocumentsResponse extends TransportResponse {
+        private DocumentGroup [] groups;
+
+        DocumentsResponse() {}
+
+        DocumentsResponse(DocumentGroup [] groups) {
+            this.groups = groups;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            groups = new DocumentGroup [in.readVInt()];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = new DocumentGroup();
+                groups[i].readFrom(in);
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(groups.length);
+            for (DocumentGroup group : groups) {
+                group.writeTo(out);
+            }
+        }
+    }
+
+    private final class DocumentsRequestHandler extends TransportRequestHandler<DocumentsRequest> {
+        @Override
+        public void messageReceived(final DocumentsRequest request, final TransportChannel channel) throws Exception {
+            // The sending node only limits its own requests, documents it sends take
+            // a permit of the pool on this node too.
+            final ClusteringPool pool = getPools().get(request.pool == null ? ClusteringPool.DEFAULT : request.pool);
+            if (pool == null) {
+                sendFailure(channel, new IllegalArgumentException("No such clustering pool: " + request.pool));
+                return;
+            }
+
+            try {
+                pool.acquire();
+            } catch (EsRejectedExecutionException e) {
+                sendFailure(channel, e);
+                return;
+            }
+
+            final long tsStart = System.nanoTime();
+            try {
+                clusterLocally(pool.getName(), request.algorithmId, request.queryHint, request.attributes, request.documents,
+                    new ActionListener<DocumentGroup[]>() {
+                        @Override
+                        public void onResponse(DocumentGroup[] groups) {
+                            pool.release(tsStart, true);
+                            try {
+                                channel.sendResponse(new DocumentsResponse(groups));
+                            } catch (Exception e) {
+                                sendFailure(channel, e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            pool.release(tsStart, false);
+                            sendFailure(channel, e);
+                        }
+                    });
+            } catch (Exception e) {
+                // Not clustered, the listener was not called.
+                pool.release(tsStart, false);
+                throw e;
+            }
+        }
+
+        private void sendFailure(TransportChannel channel, Throwable e) {
+            try {
+                channel.sendResponse(e);
+            } catch (Exception e1) {
+                logger.warn("Failed to send error response for action ["
+                        + DOCUMENTS_ACTION_NAME + "]", e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package org.carrot2.elasticsearch;
+
+import static org.carrot2.elasticsearch.LoggerUtils.*;
+import static org.elasticsearch.action.ValidateActions.*;
+import static org.elasticsearch.rest.RestRequest.Method.*;
+
+import java.io.IOException;
+
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.TransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Return the latest result of a saved clustering view (see {@link ClusteringViewService}).
+ */
+public class ClusteringViewAction
+    extends Action<ClusteringViewAction.ClusteringViewActionRequest,
+                   ClusteringActionResponse,
+                   ClusteringViewAction.ClusteringViewActionRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "clustering/view/get";
+
+    /* Reusable singleton. */
+    public static final ClusteringViewAction INSTANCE = new ClusteringViewAction();
+
+    private ClusteringViewAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ClusteringActionResponse newResponse() {
+        return new ClusteringActionResponse();
+    }
+
+    @Override
+    public ClusteringViewActionRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ClusteringViewActionRequestBuilder(client);
+    }
+
+    /**
+     * An {@link ActionRequest} for {@link ClusteringViewAction}.
+     */
+    public static class ClusteringViewActionRequest extends ActionRequest<ClusteringViewActionRequest> {
+        private String name;
+
+        public ClusteringViewActionRequest setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (name == null || name.isEmpty()) {
+                validationException = addValidationError("View name is required.", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(name);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            name = in.readString();
+        }
+    }
+
+    /**
+     * An {@link ActionRequestBuilder} for {@link ClusteringViewAction}.
+     */
+    public static class ClusteringViewActionRequestBuilder
+        extends ActionRequestBuilder<ClusteringViewActionRequest,
+                                     ClusteringActionResponse,
+                                     ClusteringViewActionRequestBuilder> {
+        public ClusteringViewActionRequestBuilder(ElasticsearchClient client) {
+            super(client, ClusteringViewAction.INSTANCE, new ClusteringViewActionRequest());
+        }
+
+        public ClusteringViewActionRequestBuilder setName(String name) {
+            super.request.setName(name);
+            return this;
+        }
+    }
+
+    /**
+     * A {@link TransportAction} for {@link ClusteringViewAction}.
+     */
+    public static class TransportClusteringViewAction
+        extends TransportAction<ClusteringViewActionRequest,
+                                ClusteringActionResponse> {
+        private final ClusteringViewService viewService;
+
+        @Inject
+        public TransportClusteringViewAction(Settings settings,
+                ThreadPool threadPool,
+                TransportService transportService,
+                ClusteringViewService viewService,
+                ActionFilters actionFilters,
+                IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings, ClusteringViewAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
+            this.viewService = viewService;
+            transportService.registerRequestHandler(
+                    ClusteringViewAction.NAME,
+                    ClusteringViewActionRequest.class,
+                    ThreadPool.Names.SAME,
+                    new TransportHandler());
+        }
+
+        @Override
+        protected void doExecute(ClusteringViewActionRequest request,
+                                 ActionListener<ClusteringActionResponse> listener) {
+            viewService.get(request.getName(), listener);
+        }
+
+        private final class TransportHandler extends TransportRequestHandler<ClusteringViewActionRequest> {
+            @Override
+            public void messageReceived(final ClusteringViewActionRequest request,
+                                        final TransportChannel channel) throws Exception {
+                execute(request, new ActionListener<ClusteringActionResponse>() {
+                    @Override
+                    public void onResponse(ClusteringActionResponse response) {
+                        try {
+                            channel.sendResponse(response);
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        try {
+                            channel.sendResponse(e);
+                        } catch (Exception e1) {
+                            logger.warn("Failed to send error response for action ["
+                                    + NAME + "] and request [" + request + "]", e1);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * An {@link BaseRestHandler} for {@link ClusteringViewAction}. Also stores
+     * (<code>PUT</code>) and deletes (<code>DELETE</code>) view definitions in
+     * {@link ClusteringViewService#INDEX_NAME}.
+     */
+    public static class RestClusteringViewAction extends BaseRestHandler {
+        /**
+         * Action name suffix.
+         */
+        public static String NAME = "_clustering/view";
+
+        private final ClusteringViewService viewService;
+
+        @Inject
+        public RestClusteringViewAction(
+                Settings settings,
+                Client client,
+                RestController controller,
+                ClusteringViewService viewService) {
+            super(settings, controller, client);
+            this.viewService = viewService;
+
+            controller.registerHandler(GET,    "/" + NAME + "/{name}", this);
+            controller.registerHandler(PUT,    "/" + NAME + "/{name}", this);
+            controller.registerHandler(POST,   "/" + NAME + "/{name}", this);
+            controller.registerHandler(DELETE, "/" + NAME + "/{name}", this);
+        }
+
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel, Client client) {
+            final String name = request.param("name");
+            switch (request.method()) {
+                case GET:
+                    getView(name, request, channel, client);
+                    break;
+
+                case PUT:
+                case POST:
+                    putView(name, request, channel, client);
+                    break;
+
+                case DELETE:
+                    deleteView(name, request, channel, client);
+                    break;
+
+                default:
+                    throw org.carrot2.elasticsearch.Preconditions.unreachable();
+            }
+        }
+
+        private void getView(String name, final RestRequest request, final RestChannel channel, Client client) {
+            client.execute(ClusteringViewAction.INSTANCE, new ClusteringViewActionRequest().setName(name),
+                new ActionListener<ClusteringActionResponse>() {
+                @Override
+                public void onResponse(ClusteringActionResponse response) {
+                    try {
+                        XContentBuilder builder = channel.newBuilder();
+                        builder.startObject();
+                        response.toXContent(builder, request);
+                        builder.endObject();
+                        channel.sendResponse(
+                                new BytesRestResponse(
+                                        response.getSearchResponse().status(),
+                                        builder));
+                    } catch (Exception e) {
+                        logger.debug("Failed to emit response.", e);
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    emitErrorResponse(channel, request, logger, e);
+                }
+            });
+        }
+
+        private void putView(final String name, final RestRequest request, final RestChannel channel, final Client client) {
+            if (!request.hasContent()) {
+                emitErrorResponse(channel, request, logger,
+                        new IllegalArgumentException("Request body was expected for a " + request.method() + " request."));
+                return;
+            }
+
+            final BytesReference content = request.content();
+            try {
+                ClusteringViewService.parseDefinition(content);
+            } catch (Exception e) {
+                emitErrorResponse(channel, request, logger, e);
+                return;
+            }
+
+            final ActionListener<IndexResponse> indexListener = new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse response) {
+                    // Compute the view now rather than on the first request.
+                    viewService.register(name);
+                    try {
+                        XContentBuilder builder = channel.newBuilder();
+                        builder.startObject();
+                        builder.field("acknowledged", true);
+                        builder.field("created", response.isCreated());
+                        builder.endObject();
+                        channel.sendResponse(new BytesRestResponse(
+                                response.isCreated() ? RestStatus.CREATED : RestStatus.OK, builder));
+                    } catch (Exception e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    emitErrorResponse(channel, request, logger, e);
+                }
+            };
+
+            // Create the index explicitly: definitions are not indexed (only stored).
+            client.admin().indices().prepareCreate(ClusteringViewService.INDEX_NAME)
+                .setSettings(ClusteringViewService.indexSettings())
+                .addMapping(ClusteringViewService.TYPE_NAME, ClusteringViewService.indexMapping())
+                .execute(new ActionListener<CreateIndexResponse>() {
+                    @Override
+                    public void onResponse(CreateIndexResponse response) {
+                        index();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                            index();
+                        } else {
+                            indexListener.onFailure(e);
+                        }
+                    }
+
+                    private void index() {
+                        client.prepareIndex(ClusteringViewService.INDEX_NAME, ClusteringViewService.TYPE_NAME, name)
+                            .setSource(content)
+                            .setRefresh(true)
+                            .execute(indexListener);
+                    }
+                });
+        }
+
+        private void deleteView(final String name, final RestRequest request, final RestChannel channel, Client client) {
+            client.prepareDelete(ClusteringViewService.INDEX_NAME, ClusteringViewService.TYPE_NAME, name)
+                .setRefresh(true)
+                .execute(new ActionListener<DeleteResponse>() {
+                    @Override
+                    public void onResponse(DeleteResponse response) {
+                        viewService.remove(name);
+                        try {
+                            XContentBuilder builder = channel.newBuilder();
+                            builder.startObject();
+                            builder.field("found", response.isFound());
+                            builder.endObject();
+                            channel.sendResponse(new BytesRestResponse(
+                                    response.isFound() ? RestStatus.OK : RestStatus.NOT_FOUND, builder));
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        emitErrorResponse(channel, request, logger, e);
+                    }
+                });
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.carrot2.elasticsearch.ClusteringAction.TransportClusteringAction;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.TransportGetAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Serves saved clustering views: named clustering requests stored in
+ * {@link #INDEX_NAME}, recomputed in the background.
+ *
+ * <p>A view is computed when it is registered (on the node storing the definition, see
+ * {@link #register(String)}) or first requested on a node, and kept fresh afterwards: views
+ * older than their <code>refresh_interval</code> are recomputed by a periodic task (see
+ * {@link ClusteringPlugin#VIEWS_CHECK_INTERVAL_PROPERTY_NAME}), with their definition reloaded
+ * from the index (so changed or deleted definitions take effect on the next refresh on other
+ * nodes). Views not requested on a node for {@link ClusteringPlugin#VIEWS_IDLE_TIMEOUT_PROPERTY_NAME}
+ * are discarded instead of refreshed. Requests are always served from the latest computed result,
+ * so the cost of clustering does not depend on the number of requests.</p>
+ */
+public class ClusteringViewService extends AbstractLifecycleComponent<ClusteringViewService> {
+    /**
+     * The index holding view definitions.
+     */
+    public static final String INDEX_NAME = ".carrot2-views";
+
+    /**
+     * The type of view definitions.
+     */
+    public static final String TYPE_NAME = "view";
+
+    /**
+     * Default interval between recomputations of a view.
+     */
+    public static final TimeValue DEFAULT_REFRESH_INTERVAL = TimeValue.timeValueMinutes(1);
+
+    /**
+     * Default interval of checking views for staleness.
+     */
+    public static final TimeValue DEFAULT_CHECK_INTERVAL = TimeValue.timeValueSeconds(5);
+
+    /**
+     * Default time after which views not requested are discarded.
+     */
+    public static final TimeValue DEFAULT_IDLE_TIMEOUT = TimeValue.timeValueMinutes(30);
+
+    /**
+     * A parsed view definition.
+     */
+    static final class Definition {
+        final ClusteringActionRequest request;
+        final TimeValue refreshInterval;
+
+        Definition(ClusteringActionRequest request, TimeValue refreshInterval) {
+            this.request = request;
+            this.refreshInterval = refreshInterval;
+        }
+    }
+
+    /**
+     * A view computed on this node.
+     */
+    private static final class View {
+        final String name;
+        Definition definition;
+        ClusteringActionResponse result;
+        long computedAt;
+        volatile long requestedAt;
+        boolean computing;
+        List<ActionListener<ClusteringActionResponse>> waiting = new ArrayList<>();
+
+        View(String name) {
+            this.name = name;
+            this.requestedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final ThreadPool threadPool;
+    private final TransportGetAction getAction;
+    private final TransportClusteringAction clusteringAction;
+    private final TimeValue checkInterval;
+    private final TimeValue idleTimeout;
+
+    private final ConcurrentMap<String, View> views = new ConcurrentHashMap<>();
+    private volatile ThreadPool.Cancellable refreshTask;
+
+    @Inject
+    public ClusteringViewService(Settings settings,
+                                 ThreadPool threadPool,
+                                 TransportGetAction getAction,
+                                 TransportClusteringAction clusteringAction) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.getAction = getAction;
+        this.clusteringAction = clusteringAction;
+        this.checkInterval = settings.getAsTime(ClusteringPlugin.VIEWS_CHECK_INTERVAL_PROPERTY_NAME, DEFAULT_CHECK_INTERVAL);
+        this.idleTimeout = settings.getAsTime(ClusteringPlugin.VIEWS_IDLE_TIMEOUT_PROPERTY_NAME, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        refreshTask = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshStale();
+            }
+        }, checkInterval, ThreadPool.Names.GENERIC);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+        views.clear();
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        // Noop.
+    }
+
+    /**
+     * Respond with the latest result of a view, computing it first if it hasn't been
+     * computed on this node yet.
+     */
+    void get(String name, ActionListener<ClusteringActionResponse> listener) {
+        View view = views.get(name);
+        if (view == null) {
+            View existing = views.putIfAbsent(name, view = new View(name));
+            if (existing != null) {
+                view = existing;
+            }
+        }
+        view.requestedAt = System.currentTimeMillis();
+
+        final boolean compute;
+        final ClusteringActionResponse result;
+        final long computedAt;
+        synchronized (view) {
+            result = view.result;
+            computedAt = view.computedAt;
+            compute = (result == null && !view.computing);
+            if (result == null) {
+                view.waiting.add(listener);
+                view.computing = true;
+            }
+        }
+
+        if (result != null) {
+            listener.onResponse(withAge(result, computedAt));
+        } else if (compute) {
+            compute(view);
+        }
+    }
+
+    /**
+     * Compute a view whose definition has just been stored, replacing any result
+     * computed from a previous definition.
+     */
+    void register(String name) {
+        View view = new View(name);
+        view.computing = true;
+        views.put(name, view);
+        compute(view);
+    }
+
+    /**
+     * Stop serving and refreshing a view whose definition has been deleted.
+     */
+    void remove(String name) {
+        views.remove(name);
+    }
+
+    private void refreshStale() {
+        final long now = System.currentTimeMillis();
+        for (View view : views.values()) {
+            if (now - view.requestedAt >= idleTimeout.millis()) {
+                // Not requested recently: stop refreshing, the next request computes it again.
+                views.remove(view.name, view);
+                continue;
+            }
+
+            synchronized (view) {
+                if (view.computing ||
+                    view.definition == null ||
+                    now - view.computedAt < view.definition.refreshInterval.millis()) {
+                    continue;
+                }
+                view.computing = true;
+            }
+            compute(view);
+        }
+    }
+
+    /**
+     * Reload the view's definition and recompute it.
+     */
+    private void compute(final View view) {
+        GetRequest getRequest = new GetRequest(INDEX_NAME, TYPE_NAME, view.name);
+        getRequest.preference("_local");
+        getAction.execute(getRequest, new ActionListener<GetResponse>() {
+            @Override
+            public void onResponse(GetResponse response) {
+                if (!response.isExists()) {
+                    // Deleted (possibly on another node): stop serving and refreshing it.
+                    views.remove(view.name, view);
+                    onFailure(new ElasticsearchException("No such clustering view: " + view.name));
+                    return;
+                }
+
+                final Definition definition;
+                try {
+                    definition = parseDefinition(response.getSourceAsBytesRef());
+                } catch (Exception e) {
+                    onFailure(e);
+                    return;
+                }
+
+                clusteringAction.execute(definition.request, new ActionListener<ClusteringActionResponse>() {
+                    @Override
+                    public void onResponse(ClusteringActionResponse result) {
+                        final List<ActionListener<ClusteringActionResponse>> waiting;
+                        final long computedAt = System.currentTimeMillis();
+                        synchronized (view) {
+                            view.definition = definition;
+                            view.result = result;
+                            view.computedAt = computedAt;
+                            view.computing = false;
+                            waiting = view.waiting;
+                            view.waiting = new ArrayList<>();
+                        }
+
+                        for (ActionListener<ClusteringActionResponse> listener : waiting) {
+                            listener.onResponse(withAge(result, computedAt));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        failed(view, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                if (e instanceof IndexNotFoundException) {
+                    views.remove(view.name, view);
+                    e = new ElasticsearchException("No such clustering view: " + view.name);
+                }
+                failed(view, e);
+            }
+        });
+    }
+
+    private void failed(View view, Throwable e) {
+        final List<ActionListener<ClusteringActionResponse>> waiting;
+        synchronized (view) {
+            view.computing = false;
+            waiting = view.waiting;
+            view.waiting = new ArrayList<>();
+            if (view.result == null) {
+                // Never computed: forget the view, the next request retries.
+                views.remove(view.name, view);
+                if (waiting.isEmpty()) {
+                    logger.warn("Could not compute clustering view [{}].", e, view.name);
+                }
+            } else {
+                // Keep serving the previous result, retry on the next check.
+                logger.warn("Could not refresh clustering view [{}], serving previous result.", e, view.name);
+            }
+        }
+
+        for (ActionListener<ClusteringActionResponse> listener : waiting) {
+            listener.onFailure(e);
+        }
+    }
+
+    private static ClusteringActionResponse withAge(ClusteringActionResponse result, long computedAt) {
+        Map<String,String> info = new LinkedHashMap<>(result.getInfo());
+        info.put(ClusteringActionResponse.Fields.Info.VIEW_AGE_MILLIS,
+                Long.toString(Math.max(0, System.currentTimeMillis() - computedAt)));
+        return new ClusteringActionResponse(result.getSearchResponse(), result.getDocumentGroups(),
+                result.getDocumentGroupsByAlgorithm(), info);
+    }
+
+    /**
+     * Parse a view definition: <code>index</code> and <code>type</code> (optional, a string or
+     * a list of strings), <code>refresh_interval</code> (optional) and <code>request</code>, a
+     * clustering request as accepted by the <code>_search_with_clusters</code> endpoint.
+     */
+    @SuppressWarnings("unchecked")
+    static Definition parseDefinition(BytesReference source) {
+        try {
+            Map<String, Object> asMap = XContentHelper.convertToMap(source, false).v2();
+
+            Object request = asMap.get("request");
+            if (!(request instanceof Map)) {
+                throw new IllegalArgumentException("View definition must contain a clustering request.");
+            }
+
+            SearchRequest searchRequest = new SearchRequest();
+            searchRequest.indices(XContentMapValues.nodeStringArrayValue(
+                    asMap.containsKey("index") ? asMap.get("index") : Collections.emptyList()));
+            searchRequest.types(XContentMapValues.nodeStringArrayValue(
+                    asMap.containsKey("type") ? asMap.get("type") : Collections.emptyList()));
+
+            ClusteringActionRequest clusteringRequest = new ClusteringActionRequest();
+            clusteringRequest.setSearchRequest(searchRequest);
+            clusteringRequest.source(XContentFactory.jsonBuilder().map((Map<String, Object>) request).bytes());
+            if (clusteringRequest.getContinuation()) {
+                throw new IllegalArgumentException("Continuation is not supported in views.");
+            }
+
+            TimeValue refreshInterval = DEFAULT_REFRESH_INTERVAL;
+            if (asMap.containsKey("refresh_interval")) {
+                refreshInterval = TimeValue.parseTimeValue(
+                        String.valueOf(asMap.get("refresh_interval")), null, "refresh_interval");
+                if (refreshInterval.millis() <= 0) {
+                    throw new IllegalArgumentException("View refresh interval must be positive.");
+                }
+            }
+
+            ActionRequestValidationException validationException = clusteringRequest.validate();
+            if (validationException != null) {
+                throw validationException;
+            }
+
+            return new Definition(clusteringRequest, refreshInterval);
+        } catch (ElasticsearchException | IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ElasticsearchException("Could not parse clustering view definition.", e);
+        }
+    }
+
+    /**
+     * @return Returns the index settings and mapping used when creating {@link #INDEX_NAME}.
+     * Definitions are not indexed (only stored in <code>_source</code>).
+     */
+    static String indexMapping() {
+        return "{\"" + TYPE_NAME + "\": {\"dynamic\": false, \"properties\": {}}}";
+    }
+
+    static Settings indexSettings() {
+        return Settings.builder()
+                .put("index.number_of_shards", 1)
+                .put("index.auto_expand_replicas", "0-all")
+                .build();
+    }
+}
@@ -2,6 +2,7 @@ package org.carrot2.elasticsearch;
 
 import static org.carrot2.elasticsearch.ClusteringPlugin.*;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.AccessController;
@@ -9,13 +10,22 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.carrot2.core.Controller;
 import org.carrot2.core.ControllerFactory;
+import org.carrot2.core.IProcessingComponent;
+import org.carrot2.core.PoolingProcessingComponentManager;
+import org.carrot2.core.ProcessingComponentConfiguration;
 import org.carrot2.core.ProcessingComponentDescriptor;
 import org.carrot2.core.ProcessingComponentSuite;
 import org.carrot2.text.linguistic.DefaultLexicalDataFactoryDescriptor;
@@ -32,8 +42,16 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.node.Node;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.watcher.WatcherHandle;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
@@ -44,21 +62,138 @@ import com.google.common.collect.Maps;
  * the {@link Node}'s lifecycle.
  */
 public class ControllerSingleton extends AbstractLifecycleComponent<ControllerSingleton> {
+    /**
+     * Queue size of the factorization executor (tasks rejected when it is full run
+     * on the requesting thread).
+     */
+    private static final int FACTORIZATION_QUEUE_SIZE = 1000;
+
+    /**
+     * Default number of warm-up runs of each algorithm (no warm-up).
+     */
+    private static final int DEFAULT_WARMUP_ITERATIONS = 0;
+
+    /**
+     * Interval of releasing idle pooled component instances.
+     */
+    private static final TimeValue EVICTION_INTERVAL = TimeValue.timeValueSeconds(5);
+
+    /**
+     * Default of {@link ClusteringPlugin#COMPONENT_POOL_WAIT_TIMEOUT_PROPERTY_NAME}.
+     */
+    static final TimeValue DEFAULT_COMPONENT_POOL_WAIT_TIMEOUT = TimeValue.timeValueSeconds(30);
+
+    /**
+     * Controllers of all clustering pools and the algorithms they run. Controllers are
+     * closed when the last reference is released (see {@link ControllerSingleton#acquire()}).
+     */
+    public static final class ControllerRef extends AbstractRefCounted {
+        private final Map<String, Controller> controllers;
+        private final List<String> algorithms;
+        private final List<ThreadPool.Cancellable> evictionTasks;
+        private final Path resourcesPath;
+
+        ControllerRef(Map<String, Controller> controllers, List<String> algorithms,
+                      List<ThreadPool.Cancellable> evictionTasks, Path resourcesPath) {
+            super("carrot2-controller");
+            this.controllers = controllers;
+            this.algorithms = algorithms;
+            this.evictionTasks = evictionTasks;
+            this.resourcesPath = resourcesPath;
+        }
+
+        /**
+         * @return Returns the controller of the default pool or <code>null</code> if this
+         * node does not run clustering.
+         */
+        public Controller getController() {
+            return getController(ClusteringPool.DEFAULT);
+        }
+
+        /**
+         * @return Returns the controller of the given clustering pool or <code>null</code>
+         * if this node does not run clustering.
+         */
+        public Controller getController(String pool) {
+            return controllers.get(pool);
+        }
+
+        public List<String> getAlgorithms() {
+            return algorithms;
+        }
+
+        @Override
+        protected void closeInternal() {
+            for (ThreadPool.Cancellable evictionTask : evictionTasks) {
+                evictionTask.cancel();
+            }
+            closeControllers(controllers);
+        }
+    }
+
     private final Environment environment;
-    private Controller controller;
-    private List<String> algorithms;
+    private final ThreadPool threadPool;
+    private final ResourceWatcherService resourceWatcherService;
+    private final boolean clusteringNode;
+    private final Map<String, ClusteringPool> pools;
+    private volatile ControllerRef current;
+    private Executor clusteringExecutor;
+    private ExecutorService factorizationExecutor;
+    private volatile ParallelMatrices matrices = ParallelMatrices.SEQUENTIAL;
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    private final List<WatcherHandle<FileWatcher>> watcherHandles = new CopyOnWriteArrayList<>();
     private ESLogger logger;
 
     @Inject
-    public ControllerSingleton(Settings settings, Environment environment) {
+    public ControllerSingleton(Settings settings,
+                               Environment environment,
+                               ThreadPool threadPool,
+                               ResourceWatcherService resourceWatcherService) {
         super(settings);
         this.environment = environment;
+        this.threadPool = threadPool;
+        this.resourceWatcherService = resourceWatcherService;
         this.logger = Loggers.getLogger("plugin.carrot2", settings);
+
+        this.clusteringNode = ClusteringPlugin.isClusteringNode(settings);
+        this.pools = ClusteringPool.parse(settings);
     }
 
-    @SuppressForbidden(reason = "C2 integration (File API)")
     @Override
     protected void doStart() throws ElasticsearchException {
+        if (clusteringNode) {
+            clusteringExecutor = threadPool.executor(CLUSTERING_THREAD_POOL_NAME);
+
+            int factorizationThreads = settings.getAsInt(FACTORIZATION_THREADS_PROPERTY_NAME,
+                    EsExecutors.boundedNumberOfProcessors(settings));
+            if (factorizationThreads > 1) {
+                // The requesting thread takes part in factorizations too.
+                factorizationExecutor = EsExecutors.newFixed(
+                        "carrot2_factorization",
+                        factorizationThreads - 1,
+                        FACTORIZATION_QUEUE_SIZE,
+                        EsExecutors.daemonThreadFactory(settings, "carrot2_factorization"));
+                matrices = new ParallelMatrices(factorizationExecutor, factorizationThreads);
+            }
+        }
+
+        current = load();
+
+        if (settings.getAsBoolean(RELOAD_WATCH_PROPERTY_NAME, false)) {
+            watchConfiguration(current.resourcesPath);
+        }
+    }
+
+    /**
+     * Build controllers of all clustering pools (and the list of available algorithms)
+     * from the current configuration files and warm them up.
+     */
+    @SuppressForbidden(reason = "C2 integration (File API)")
+    private ControllerRef load() throws ElasticsearchException {
+        final List<String> algorithms;
+        final Path resourcesPath;
+        final Map<String, Controller> controllers = new LinkedHashMap<>();
+        final List<ThreadPool.Cancellable> evictionTasks = new ArrayList<>();
         try {
             Settings.Builder builder = Settings.builder();
             Path pluginConfigPath = environment.configFile().resolve(ClusteringPlugin.PLUGIN_NAME);
@@ -122,11 +257,11 @@ public class ControllerSingleton extends AbstractLifecycleComponent<ControllerSi
               }
             });
 
-            algorithms = Lists.newArrayList();
+            List<String> available = Lists.newArrayList();
             for (ProcessingComponentDescriptor descriptor : suite.getAlgorithms()) {
-                algorithms.add(descriptor.getId());
+                available.add(descriptor.getId());
             }
-            algorithms = Collections.unmodifiableList(algorithms);
+            algorithms = Collections.unmodifiableList(available);
 
             if (!algorithms.isEmpty()) {
                 logger.info("Available clustering components: {}", Joiner.on(", ").join(algorithms));
@@ -135,7 +270,7 @@ public class ControllerSingleton extends AbstractLifecycleComponent<ControllerSi
                 logger.info("Unavailable clustering components: {}", Joiner.on(", ").join(failed));
             }
 
-            final Path resourcesPath = pluginConfigPath.resolve(c2Settings.get(DEFAULT_RESOURCES_PROPERTY_NAME, "."))
+            resourcesPath = pluginConfigPath.resolve(c2Settings.get(DEFAULT_RESOURCES_PROPERTY_NAME, "."))
                 .toAbsolutePath()
                 .normalize();
 
@@ -145,36 +280,293 @@ public class ControllerSingleton extends AbstractLifecycleComponent<ControllerSi
                     new DirLocator(resourcesPath.toFile()),
                     new ClassLoaderLocator(ControllerSingleton.class.getClassLoader()));
 
-            // Change the default resource lookup to include the configured location.
-            Map<String, Object> c2SettingsAsMap = Maps.newHashMap();
-            DefaultLexicalDataFactoryDescriptor.attributeBuilder(c2SettingsAsMap)
-                .resourceLookup(resourceLookup);
-            c2SettingsAsMap.putAll(c2Settings.getAsMap());
+            if (clusteringNode) {
+                // Set up the license for Lingo3G, if it's available.
+                Path lingo3gLicense = scanForLingo3GLicense(environment, pluginConfigPath);
+                FileResource license = null;
+                if (lingo3gLicense != null && Files.isReadable(lingo3gLicense)) {
+                  license = new FileResource(lingo3gLicense.toFile());
+                } else if (algorithms.contains("lingo3g")) {
+                  logger.warn("Lingo3G is on classpath, but no licenses have been found. Check out the documentation.");
+                }
 
-            // Set up the license for Lingo3G, if it's available.
-            Path lingo3gLicense = scanForLingo3GLicense(environment, pluginConfigPath);
-            if (lingo3gLicense != null && Files.isReadable(lingo3gLicense)) {
-              c2SettingsAsMap.put("license", new FileResource(lingo3gLicense.toFile()));
-            } else if (algorithms.contains("lingo3g")) {
-              logger.warn("Lingo3G is on classpath, but no licenses have been found. Check out the documentation.");
-            }
+                final int warmUpIterations = settings.getAsInt(WARMUP_ITERATIONS_PROPERTY_NAME, DEFAULT_WARMUP_ITERATIONS);
+                final List<String> warmedUp = warmUpIterations > 0
+                        ? warmUpAlgorithms(settings, algorithms, logger)
+                        : Collections.<String> emptyList();
+                if (warmUpIterations > 0 && warmedUp.size() < algorithms.size()) {
+                    List<String> lazy = Lists.newArrayList(algorithms);
+                    lazy.removeAll(warmedUp);
+                    logger.info("Clustering components not warmed up (initialized on first use): {}", Joiner.on(", ").join(lazy));
+                }
+
+                for (ClusteringPool pool : pools.values()) {
+                    // Pool settings override the configuration file.
+                    Settings poolSettings = Settings.builder()
+                        .put(c2Settings)
+                        .put(pool.getConfig())
+                        .build();
+
+                    // Change the default resource lookup to include the configured location.
+                    Map<String, Object> c2SettingsAsMap = Maps.newHashMap();
+                    DefaultLexicalDataFactoryDescriptor.attributeBuilder(c2SettingsAsMap)
+                        .resourceLookup(resourceLookup);
+                    c2SettingsAsMap.putAll(poolSettings.getAsMap());
+                    if (license != null) {
+                        c2SettingsAsMap.put("license", license);
+                    }
 
-            // Create component pool.
-            Integer poolSize = c2Settings.getAsInt(DEFAULT_COMPONENT_SIZE_PROPERTY_NAME, 0);
-            if (poolSize > 0) {
-                controller = ControllerFactory.createPooling(poolSize);
+                    List<BoundedComponentPool<IProcessingComponent, String>> componentPools = Lists.newArrayList();
+                    Controller controller = createController(poolSettings, algorithms, evictionTasks, componentPools);
+                    controllers.put(pool.getName(), controller);
+                    controller.init(c2SettingsAsMap, suite.getComponentConfigurations());
+
+                    // Component instances can only be created once the controller is initialized.
+                    for (BoundedComponentPool<IProcessingComponent, String> componentPool : componentPools) {
+                        for (ProcessingComponentConfiguration component : suite.getComponentConfigurations()) {
+                            if (algorithms.contains(component.componentId)) {
+                                componentPool.ensureMinimum(component.componentClass, component.componentId);
+                            }
+                        }
+                    }
+
+                    // Warm up before the node starts serving requests. Pooled component instances
+                    // (and lexical resources, stemmers) are only created when an algorithm first runs,
+                    // so algorithms not warmed up here are initialized on first use.
+                    if (!warmedUp.isEmpty()) {
+                        if (pools.size() > 1) {
+                            logger.info("Warming up clustering pool: {}", pool.getName());
+                        }
+                        ControllerWarmUp.warmUp(controller, warmedUp, warmUpIterations,
+                                Math.max(1, settings.getAsInt(WARMUP_INSTANCES_PROPERTY_NAME, 1)),
+                                EsExecutors.daemonThreadFactory(settings, "carrot2_warmup"), logger);
+                    }
+                }
             } else {
-                controller = ControllerFactory.createPooling();
+                logger.info("Not a clustering node (no node.{} attribute), clustering controller not started.",
+                        settings.get(NODE_ATTRIBUTE_PROPERTY_NAME));
             }
-            controller.init(c2SettingsAsMap, suite.getComponentConfigurations());
         } catch (Exception e) {
+            cancelAll(evictionTasks);
+            closeControllers(controllers);
             throw new ElasticsearchException(
                     "Could not start Carrot2 controller.", e);
         }
 
         if (algorithms == null || algorithms.isEmpty()) {
+            cancelAll(evictionTasks);
+            closeControllers(controllers);
             throw new ElasticsearchException("No registered/ available clustering algorithms? Check the logs, it's odd.");
         }
+
+        return new ControllerRef(controllers, algorithms, evictionTasks, resourcesPath);
+    }
+
+    /**
+     * Create a (not initialized) controller with a component pool configured by
+     * <code>controller.pool-size</code> or <code>controller.pool.*</code>. A bounded
+     * component pool, if created, is added to <code>componentPools</code>.
+     */
+    private Controller createController(Settings c2Settings,
+                                        List<String> algorithms,
+                                        List<ThreadPool.Cancellable> evictionTasks,
+                                        List<BoundedComponentPool<IProcessingComponent, String>> componentPools) {
+        Integer poolSize = c2Settings.getAsInt(DEFAULT_COMPONENT_SIZE_PROPERTY_NAME, 0);
+        if (poolSize > 0) {
+            return ControllerFactory.createPooling(poolSize);
+        }
+
+        if (hasPoolBounds(c2Settings, algorithms)) {
+            BoundedComponentPool.LimitsProvider<String> limits = poolLimits(c2Settings);
+            for (String algorithm : algorithms) {
+                // Fail early on invalid bounds.
+                limits.limits(algorithm);
+            }
+            BoundedComponentPool<IProcessingComponent, String> pool = new BoundedComponentPool<>(limits);
+            evictionTasks.add(scheduleEviction(pool));
+            componentPools.add(pool);
+            return new Controller(new PoolingProcessingComponentManager(pool));
+        }
+
+        return ControllerFactory.createPooling();
+    }
+
+    private static void cancelAll(List<ThreadPool.Cancellable> tasks) {
+        for (ThreadPool.Cancellable task : tasks) {
+            task.cancel();
+        }
+    }
+
+    private static boolean hasPoolBounds(Settings c2Settings, List<String> algorithms) {
+        if (c2Settings.get(COMPONENT_POOL_MIN_PROPERTY_NAME) != null ||
+            c2Settings.get(COMPONENT_POOL_MAX_PROPERTY_NAME) != null ||
+            c2Settings.get(COMPONENT_POOL_IDLE_TIMEOUT_PROPERTY_NAME) != null ||
+            c2Settings.get(COMPONENT_POOL_WAIT_TIMEOUT_PROPERTY_NAME) != null) {
+            return true;
+        }
+        for (String algorithm : algorithms) {
+            if (!c2Settings.getByPrefix("controller.pool." + algorithm + ".").getAsMap().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Returns pool bounds of components: <code>controller.pool.&lt;id&gt;.*</code>
+     * settings if present, <code>controller.pool.*</code> otherwise.
+     */
+    private static BoundedComponentPool.LimitsProvider<String> poolLimits(final Settings c2Settings) {
+        final int min = c2Settings.getAsInt(COMPONENT_POOL_MIN_PROPERTY_NAME, 0);
+        final int max = c2Settings.getAsInt(COMPONENT_POOL_MAX_PROPERTY_NAME, Integer.MAX_VALUE);
+        final TimeValue idleTimeout = c2Settings.getAsTime(COMPONENT_POOL_IDLE_TIMEOUT_PROPERTY_NAME, null);
+        final TimeValue waitTimeout = c2Settings.getAsTime(COMPONENT_POOL_WAIT_TIMEOUT_PROPERTY_NAME,
+                DEFAULT_COMPONENT_POOL_WAIT_TIMEOUT);
+
+        return new BoundedComponentPool.LimitsProvider<String>() {
+            @Override
+            public BoundedComponentPool.Limits limits(String componentId) {
+                Settings component = c2Settings.getByPrefix("controller.pool." + componentId + ".");
+                TimeValue componentIdleTimeout = component.getAsTime("idle-timeout", idleTimeout);
+                return new BoundedComponentPool.Limits(
+                        component.getAsInt("min", min),
+                        component.getAsInt("max", max),
+                        componentIdleTimeout == null ? -1 : componentIdleTimeout.millis(),
+                        component.getAsTime("wait-timeout", waitTimeout).millis());
+            }
+        };
+    }
+
+    /**
+     * Periodically release idle pooled instances (above the pool's minimum).
+     */
+    private ThreadPool.Cancellable scheduleEviction(final BoundedComponentPool<?, ?> pool) {
+        return threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                int released = pool.evictIdle();
+                if (released > 0) {
+                    logger.debug("Released {} idle pooled clustering component(s).", released);
+                }
+            }
+        }, EVICTION_INTERVAL, ThreadPool.Names.GENERIC);
+    }
+
+    /**
+     * @return Returns the algorithms to warm up (see
+     * {@link ClusteringPlugin#WARMUP_ALGORITHMS_PROPERTY_NAME}), all available ones by default.
+     */
+    static List<String> warmUpAlgorithms(Settings settings, List<String> available, ESLogger logger) {
+        String [] configured = settings.getAsArray(WARMUP_ALGORITHMS_PROPERTY_NAME, null);
+        if (configured == null) {
+            return available;
+        }
+
+        List<String> warmedUp = Lists.newArrayList();
+        for (String algorithm : configured) {
+            if (available.contains(algorithm)) {
+                warmedUp.add(algorithm);
+            } else {
+                logger.warn("Algorithm listed in {} is not available: {}", WARMUP_ALGORITHMS_PROPERTY_NAME, algorithm);
+            }
+        }
+        return warmedUp;
+    }
+
+    /**
+     * Build a new controller from the current configuration files (algorithm suite,
+     * attributes, lexical resources), warm it up and swap it in for new requests.
+     * Requests in progress complete with the previous controller, which is closed
+     * once they are done. If the new controller cannot be built, the previous one
+     * stays in use.
+     *
+     * @return Returns the list of algorithms available after the reload.
+     */
+    public synchronized List<String> reload() throws ElasticsearchException {
+        if (current == null) {
+            throw new ElasticsearchException("Clustering controller is not started.");
+        }
+
+        final long tsStart = System.nanoTime();
+        final ControllerRef reloaded = load();
+        final ControllerRef previous = current;
+        current = reloaded;
+        previous.decRef();
+
+        logger.info("Clustering controller reloaded in {} ms.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tsStart));
+        return reloaded.algorithms;
+    }
+
+    /**
+     * Reload the controller in the background when files in the plugin's configuration
+     * directory or the lexical resources directory change.
+     */
+    private void watchConfiguration(Path resourcesPath) {
+        final FileChangesListener onChange = new FileChangesListener() {
+            @Override
+            public void onFileCreated(Path file) {
+                scheduleReload(file);
+            }
+
+            @Override
+            public void onFileDeleted(Path file) {
+                scheduleReload(file);
+            }
+
+            @Override
+            public void onFileChanged(Path file) {
+                scheduleReload(file);
+            }
+        };
+
+        Path pluginConfigPath = environment.configFile().resolve(ClusteringPlugin.PLUGIN_NAME).toAbsolutePath().normalize();
+        List<Path> watched = Lists.newArrayList(pluginConfigPath);
+        if (resourcesPath != null && !resourcesPath.startsWith(pluginConfigPath)) {
+            watched.add(resourcesPath);
+        }
+
+        for (Path path : watched) {
+            try {
+                FileWatcher watcher = new FileWatcher(path);
+                watcher.addListener(onChange);
+                watcherHandles.add(resourceWatcherService.add(watcher, ResourceWatcherService.Frequency.HIGH));
+                logger.info("Watching for configuration changes: {}", path);
+            } catch (IOException e) {
+                logger.warn("Could not watch for configuration changes: {}", e, path);
+            }
+        }
+    }
+
+    private void scheduleReload(Path changed) {
+        logger.info("Configuration file changed: {}", changed);
+        if (!reloadPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        threadPool.generic().execute(new Runnable() {
+            @Override
+            public void run() {
+                reloadPending.set(false);
+                try {
+                    reload();
+                } catch (Exception e) {
+                    logger.warn("Could not reload clustering controller, keeping the previous one.", e);
+                }
+            }
+        });
+    }
+
+    private static void closeControllers(final Map<String, Controller> controllers) {
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            @Override
+            public Object run() {
+                for (Controller controller : controllers.values()) {
+                    controller.close();
+                }
+                return null;
+            }
+        });
     }
 
     /**
@@ -217,30 +609,92 @@ public class ControllerSingleton extends AbstractLifecycleComponent<ControllerSi
         return false;
     }
 
-    public Controller getController() {
-        return controller;
+    /**
+     * @return Returns the current controller with a reference acquired (the caller must
+     * {@link ControllerRef#decRef()} it when done) or <code>null</code> if the controller
+     * is not running. The controller may be swapped for a new one by {@link #reload()},
+     * the returned one stays open until released.
+     */
+    public ControllerRef acquire() {
+        while (true) {
+            final ControllerRef ref = current;
+            if (ref == null) {
+                return null;
+            }
+            if (ref.tryIncRef()) {
+                return ref;
+            }
+            // Swapped and closed concurrently, retry with the new one.
+        }
+    }
+
+    /**
+     * @return Returns <code>true</code> if this node runs clustering algorithms (see
+     * {@link ClusteringPlugin#NODE_ATTRIBUTE_PROPERTY_NAME}).
+     */
+    public boolean isClusteringNode() {
+        return clusteringNode;
     }
     
+    /**
+     * @return Returns the executor for running clustering tasks concurrently (the
+     * {@link ClusteringPlugin#CLUSTERING_THREAD_POOL_NAME} thread pool) or <code>null</code>
+     * if this is not a clustering node. Tasks may be rejected if the executor's queue is full.
+     *
+     * @see ParallelTasks#invokeAll(java.util.concurrent.Executor, List)
+     */
+    public Executor getClusteringExecutor() {
+        return clusteringExecutor;
+    }
+
+    /**
+     * @return Returns matrix kernels running on this node's factorization executor
+     * (sequential if this is not a clustering node or it has a single factorization thread).
+     */
+    ParallelMatrices getMatrices() {
+        return matrices;
+    }
+
+    /**
+     * @return Returns clustering pools defined on this node (see {@link ClusteringPool}),
+     * including the default one.
+     */
+    Map<String, ClusteringPool> getPools() {
+        return pools;
+    }
+
     /**
      * Return a list of available algorithm component identifiers.
      */
     public List<String> getAlgorithms() {
-        return algorithms;
+        final ControllerRef ref = current;
+        return ref == null ? null : ref.algorithms;
     }
 
     @Override
     protected void doStop() throws ElasticsearchException {
-        final Controller c = controller;
-        controller = null;
+        for (WatcherHandle<FileWatcher> handle : watcherHandles) {
+            handle.stop();
+        }
+        watcherHandles.clear();
 
-        if (c != null) {
-          AccessController.doPrivileged(new PrivilegedAction<Object>() {
-            @Override
-            public Object run() {
-              c.close();
-              return null;
-            }
-          });
+        final ControllerRef ref;
+        synchronized (this) {
+            ref = current;
+            current = null;
+        }
+
+        // The clustering thread pool is shut down by the node.
+        clusteringExecutor = null;
+
+        if (factorizationExecutor != null) {
+            matrices = ParallelMatrices.SEQUENTIAL;
+            factorizationExecutor.shutdown();
+            factorizationExecutor = null;
+        }
+
+        if (ref != null) {
+            ref.decRef();
         }
     }
 
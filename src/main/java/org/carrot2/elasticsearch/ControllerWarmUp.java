@@ -0,0 +1,169 @@
+package org.carrot2.elasticsearch;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.carrot2.core.Controller;
+import org.carrot2.core.Document;
+import org.carrot2.core.attribute.CommonAttributesDescriptor;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.logging.ESLogger;
+
+/**
+ * Warms up a clustering {@link Controller}: runs each algorithm over a small synthetic
+ * corpus so that the JIT compiles hot paths, lexical resources are loaded and the
+ * component pool holds initialized instances before real requests arrive.
+ */
+final class ControllerWarmUp {
+    /**
+     * Number of documents in the synthetic corpus.
+     */
+    static final int DOCUMENTS = 100;
+
+    private static final String [] TOPICS = {
+        "data mining", "machine learning", "search engine", "information retrieval",
+        "text clustering", "neural networks", "database systems", "web crawler",
+        "natural language processing", "recommender systems"
+    };
+
+    private static final String [] WORDS = {
+        "algorithm", "analysis", "model", "results", "method", "large", "scale",
+        "evaluation", "framework", "approach", "performance", "documents", "query",
+        "structure", "training", "index", "ranking", "features", "efficient", "open"
+    };
+
+    private ControllerWarmUp() {}
+
+    /**
+     * @return Returns a deterministic synthetic corpus: documents about a few topics, with
+     * shared phrases and some noise words, so that algorithms find clusters.
+     */
+    static List<Document> syntheticDocuments() {
+        List<Document> documents = new ArrayList<>(DOCUMENTS);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            String topic = TOPICS[i % TOPICS.length];
+            String other = TOPICS[(i * 7 + 3) % TOPICS.length];
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < 12; j++) {
+                content.append(WORDS[(i * 31 + j * 17) % WORDS.length]).append(' ');
+                if (j % 4 == 0) {
+                    content.append(topic).append(' ');
+                }
+            }
+            content.append(other).append('.');
+            documents.add(new Document(
+                    topic + " " + WORDS[i % WORDS.length],
+                    content.toString(),
+                    null,
+                    null,
+                    Integer.toString(i)));
+        }
+        return documents;
+    }
+
+    /**
+     * Run each algorithm <code>iterations</code> times, <code>instances</code> runs at a time,
+     * each on its own thread (so that the pool creates this many instances of each algorithm).
+     * Failures are logged, they do not prevent the node from starting.
+     */
+    static void warmUp(final Controller controller,
+                       List<String> algorithms,
+                       int iterations,
+                       int instances,
+                       ThreadFactory threadFactory,
+                       final ESLogger logger) {
+        final List<Document> documents = syntheticDocuments();
+        final long tsStart = System.nanoTime();
+        for (final String algorithm : algorithms) {
+            final long tsAlgorithmStart = System.nanoTime();
+            try {
+                for (int i = 0; i < iterations; i++) {
+                    runConcurrently(instances, threadFactory, new Runnable() {
+                        @Override
+                        public void run() {
+                            process(controller, algorithm, documents);
+                        }
+                    });
+                }
+                logger.info("Warmed up algorithm {} in {} ms.", algorithm,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tsAlgorithmStart));
+            } catch (Exception e) {
+                logger.warn("Warm-up of algorithm {} failed.", e, algorithm);
+            }
+        }
+        logger.info("Clustering warm-up completed in {} ms.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tsStart));
+    }
+
+    /**
+     * Run a task on <code>threads</code> new threads at once (all threads start the task
+     * together) and wait until all complete. The first exception thrown by any run is rethrown.
+     */
+    static void runConcurrently(int threads, ThreadFactory threadFactory, final Runnable task) {
+        if (threads <= 1) {
+            task.run();
+            return;
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> started = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                Thread thread = threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            task.run();
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+                thread.start();
+                started.add(thread);
+            }
+        } finally {
+            start.countDown();
+            try {
+                for (Thread thread : started) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElasticsearchException("Interrupted while waiting for warm-up runs.", e);
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new ElasticsearchException("Warm-up run failed.", t);
+        }
+    }
+
+    private static void process(final Controller controller, final String algorithm, List<Document> documents) {
+        final Map<String, Object> attributes = new HashMap<>();
+        CommonAttributesDescriptor.attributeBuilder(attributes)
+            .documents(new ArrayList<>(documents))
+            .query("data mining");
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            @Override
+            public Object run() {
+                return controller.process(attributes, algorithm);
+            }
+        });
+    }
+}
@@ -26,6 +26,7 @@ public class DocumentGroup implements ToXContent, Streamable {
     private String[] documentReferences = EMPTY_STRING_ARRAY;
     private DocumentGroup[] subgroups = EMPTY_DOC_GROUP;
     private boolean otherTopics;
+    private String language;
 
     public DocumentGroup[] getSubgroups() {
         return subgroups;
@@ -83,6 +84,18 @@ public class DocumentGroup implements ToXContent, Streamable {
         return otherTopics;
     }
 
+    /**
+     * Sets the ISO code of the language of this group's documents (only set on top-level
+     * groups of language-partitioned clustering).
+     */
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
         id = in.readVInt();
@@ -91,6 +104,9 @@ public class DocumentGroup implements ToXContent, Streamable {
         phrases = in.readStringArray();
         otherTopics = in.readBoolean();
         documentReferences = in.readStringArray();
+        if (in.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION)) {
+            language = in.readOptionalString();
+        }
 
         int max = in.readVInt();
         subgroups = new DocumentGroup[max];
@@ -108,6 +124,9 @@ public class DocumentGroup implements ToXContent, Streamable {
         out.writeStringArray(phrases);
         out.writeBoolean(otherTopics);
         out.writeStringArray(documentReferences);
+        if (out.getVersion().onOrAfter(ClusteringPlugin.WIRE_FORMAT_VERSION)) {
+            out.writeOptionalString(language);
+        }
         
         out.writeVInt(subgroups.length);
         for (DocumentGroup group : subgroups) {
@@ -129,6 +148,10 @@ public class DocumentGroup implements ToXContent, Streamable {
             builder.field("other_topics", otherTopics);
         }
 
+        if (language != null) {
+            builder.field("language", language);
+        }
+
         if (documentReferences.length > 0) {
             builder.array("documents", documentReferences);
         }
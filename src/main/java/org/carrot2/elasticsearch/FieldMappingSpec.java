@@ -30,6 +30,11 @@ class FieldMappingSpec implements Streamable {
     public void writeTo(StreamOutput out) throws IOException {
         out.writeString(field);
         out.writeVInt(logicalField.ordinal());
+        if (source.compareTo(FieldSource.SOURCE) > 0 && out.getVersion().before(ClusteringPlugin.WIRE_FORMAT_VERSION)) {
+            throw new IllegalArgumentException("Field source " + source.getFieldSpecPrefix()
+                    + "* is not supported by nodes before version " + ClusteringPlugin.WIRE_FORMAT_VERSION
+                    + ": " + out.getVersion());
+        }
         out.writeVInt(source.ordinal());
     }
 }
\ No newline at end of file
@@ -6,7 +6,10 @@ package org.carrot2.elasticsearch;
 enum FieldSource {
     HIGHLIGHT("highlight."),
     FIELD("fields."),
-    SOURCE("_source.");
+    SOURCE("_source."),
+    TERMVECTORS("termvectors."),
+    KWIC("kwic."),
+    DOCVALUES("docvalues.");
 
     /**
      * Field specification prefix for this source.
@@ -35,6 +38,13 @@ enum FieldSource {
         return null;
     }
     
+    /**
+     * @return The field specification prefix for this source.
+     */
+    String getFieldSpecPrefix() {
+        return fieldSpecPrefix;
+    }
+
     static FieldSource [] cachedByOrdinal = values();
     static FieldSource fromOrdinal(int ordinal) {
         return cachedByOrdinal[ordinal];
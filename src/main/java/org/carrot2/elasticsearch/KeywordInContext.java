@@ -0,0 +1,157 @@
+package org.carrot2.elasticsearch;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A lightweight keyword-in-context extractor: cuts fixed-size windows of text around
+ * occurrences of query hint terms. This is a (much) cheaper alternative to highlighting
+ * when all that is needed is the text surrounding the query.
+ *
+ * <p>Matching is case-insensitive and a term matches any word it is a prefix of (a crude
+ * replacement for stemming, so that <i>mining</i> matches <i>mining</i> and <i>data</i> matches
+ * <i>databases</i>). Windows are extended to word boundaries, overlapping windows are merged.</p>
+ */
+final class KeywordInContext {
+    /**
+     * The number of characters of context on each side of a match.
+     */
+    static final int WINDOW = 50;
+
+    /**
+     * The maximum number of fragments extracted from a single value.
+     */
+    static final int MAX_FRAGMENTS = 5;
+
+    private final String [] terms;
+
+    KeywordInContext(String queryHint) {
+        Set<String> unique = new LinkedHashSet<>();
+        if (queryHint != null) {
+            for (String term : queryHint.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!term.isEmpty()) {
+                    unique.add(term);
+                }
+            }
+        }
+        this.terms = unique.toArray(new String [unique.size()]);
+    }
+
+    /**
+     * Extract fragments of a field's value (or values, if the value is a list).
+     *
+     * @return Fragments joined with a single dot or <code>null</code> if no term occurs
+     * in the value.
+     */
+    String extract(Object value) {
+        if (value == null || terms.length == 0) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        if (value instanceof List) {
+            for (Object v : (List<?>) value) {
+                if (v != null) {
+                    extract(v.toString(), sb);
+                }
+            }
+        } else {
+            extract(value.toString(), sb);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private void extract(String text, StringBuilder sb) {
+        final int length = text.length();
+        int fragments = 0;
+        int fragmentStart = -1;
+        int fragmentEnd = -1;
+
+        for (int i = 0; i < length && fragments < MAX_FRAGMENTS; i++) {
+            // Only consider word starts.
+            if (!isWordChar(text.charAt(i)) || (i > 0 && isWordChar(text.charAt(i - 1)))) {
+                continue;
+            }
+
+            final int matchEnd = matchAt(text, i);
+            if (matchEnd < 0) {
+                continue;
+            }
+
+            final int start = wordStart(text, Math.max(0, i - WINDOW));
+            final int end = wordEnd(text, Math.min(length, matchEnd + WINDOW));
+            if (fragmentStart >= 0 && start <= fragmentEnd) {
+                // Overlaps the current fragment, extend it.
+                fragmentEnd = Math.max(fragmentEnd, end);
+            } else {
+                if (fragmentStart >= 0) {
+                    append(sb, text, fragmentStart, fragmentEnd);
+                    fragments++;
+                }
+                fragmentStart = start;
+                fragmentEnd = end;
+            }
+            i = matchEnd;
+        }
+
+        if (fragmentStart >= 0 && fragments < MAX_FRAGMENTS) {
+            append(sb, text, fragmentStart, fragmentEnd);
+        }
+    }
+
+    /**
+     * @return Returns the end of the word starting at <code>offset</code> if any of the
+     * terms is a prefix of this word, <code>-1</code> otherwise.
+     */
+    private int matchAt(String text, int offset) {
+        for (String term : terms) {
+            if (text.regionMatches(true, offset, term, 0, term.length())) {
+                int end = offset + term.length();
+                while (end < text.length() && isWordChar(text.charAt(end))) {
+                    end++;
+                }
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move forward to the start of a word, unless at the start of the text.
+     */
+    private static int wordStart(String text, int offset) {
+        if (offset == 0) {
+            return 0;
+        }
+        while (offset < text.length() && isWordChar(text.charAt(offset - 1))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Move back to the end of a word, unless at the end of the text.
+     */
+    private static int wordEnd(String text, int offset) {
+        if (offset == text.length()) {
+            return offset;
+        }
+        while (offset > 0 && isWordChar(text.charAt(offset))) {
+            offset--;
+        }
+        return offset;
+    }
+
+    private static boolean isWordChar(char chr) {
+        return Character.isLetterOrDigit(chr);
+    }
+
+    private static void append(StringBuilder sb, String text, int start, int end) {
+        if (sb.length() > 0) {
+            sb.append(" . ");
+        }
+        sb.append(text, start, end);
+    }
+}
@@ -0,0 +1,79 @@
+package org.carrot2.elasticsearch;
+
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * A reusable buffer for the {@link LogicalField}s of a single document, assembled
+ * from multiple {@link FieldMappingSpec}s.
+ */
+final class LogicalDocument {
+    private final EnumMap<LogicalField, StringBuilder> fields = new EnumMap<>(LogicalField.class);
+
+    LogicalDocument() {
+        for (LogicalField lf : LogicalField.values()) {
+            fields.put(lf, new StringBuilder());
+        }
+    }
+
+    /**
+     * Clear all fields (prepare for the next document).
+     */
+    void reset() {
+        for (StringBuilder sb : fields.values()) {
+            sb.setLength(0);
+        }
+    }
+
+    /**
+     * Append content to a logical field. Multiple values of {@link LogicalField#TITLE}
+     * and {@link LogicalField#CONTENT} are concatenated, for
+     * {@link LogicalField#URL} and {@link LogicalField#LANGUAGE} the last value wins.
+     */
+    void append(LogicalField logicalField, Object appendContent) {
+        if (appendContent == null) {
+            return;
+        }
+
+        final StringBuilder target = fields.get(logicalField);
+        switch (logicalField) {
+            case URL:
+            case LANGUAGE:
+                target.setLength(0); // Clear previous (single mapping allowed).
+                break;
+            case TITLE:
+            case CONTENT:
+                break;
+            default:
+                throw org.carrot2.elasticsearch.Preconditions.unreachable();
+        }
+
+        // Separate multiple fields with a single dot (prevent accidental phrase gluing).
+        if (target.length() > 0) {
+            target.append(" . ");
+        }
+        target.append(appendContent);
+    }
+
+    String get(LogicalField logicalField) {
+        return fields.get(logicalField).toString();
+    }
+
+    boolean isEmpty(LogicalField logicalField) {
+        return fields.get(logicalField).length() == 0;
+    }
+
+    /**
+     * Join the values of a multi-valued field with a single dot.
+     */
+    static String join(List<?> list) {
+      StringBuilder sb = new StringBuilder();
+      for (Object t : list) {
+        if (sb.length() > 0) {
+          sb.append(" . ");
+        }
+        sb.append(t != null ? t.toString() : "");
+      }
+      return sb.toString();
+    }
+}
@@ -12,6 +12,7 @@ import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
  * @see ClusteringActionRequest#addFieldMapping(String, LogicalField)
  * @see ClusteringActionRequest#addHighlightedFieldMapping(String, LogicalField)
  * @see ClusteringActionRequest#addSourceFieldMapping(String, LogicalField)
+ * @see ClusteringActionRequest#addTermVectorFieldMapping(String, LogicalField)
  */
 public enum LogicalField {
     URL,
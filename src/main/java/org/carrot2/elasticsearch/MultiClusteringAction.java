@@ -0,0 +1,507 @@
+package org.carrot2.elasticsearch;
+
+import static org.carrot2.elasticsearch.LoggerUtils.*;
+import static org.elasticsearch.action.ValidateActions.*;
+import static org.elasticsearch.rest.RestRequest.Method.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.carrot2.elasticsearch.ClusteringAction.TransportClusteringAction;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.TransportMultiSearchAction;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.TransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Perform clustering of the results of multiple search requests at once. All
+ * delegate searches are executed as a single multi-search, then results are
+ * clustered concurrently.
+ */
+public class MultiClusteringAction
+    extends Action<MultiClusteringAction.MultiClusteringActionRequest,
+                   MultiClusteringAction.MultiClusteringActionResponse,
+                   MultiClusteringAction.MultiClusteringActionRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "clustering/mcluster";
+
+    /* Reusable singleton. */
+    public static final MultiClusteringAction INSTANCE = new MultiClusteringAction();
+
+    private MultiClusteringAction() {
+        super(NAME);
+    }
+
+    @Override
+    public MultiClusteringActionResponse newResponse() {
+        return new MultiClusteringActionResponse();
+    }
+
+    @Override
+    public MultiClusteringActionRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new MultiClusteringActionRequestBuilder(client);
+    }
+
+    /**
+     * An {@link ActionRequest} for {@link MultiClusteringAction}.
+     */
+    public static class MultiClusteringActionRequest extends ActionRequest<MultiClusteringActionRequest> {
+        private List<ClusteringActionRequest> requests = new ArrayList<>();
+
+        /**
+         * Add a clustering request. Responses are returned in the order of requests.
+         */
+        public MultiClusteringActionRequest add(ClusteringActionRequest request) {
+            requests.add(request);
+            return this;
+        }
+
+        public List<ClusteringActionRequest> getRequests() {
+            return Collections.unmodifiableList(requests);
+        }
+
+        /**
+         * Individual requests are validated on execution, invalid requests result in
+         * failed items of the response.
+         */
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (requests.isEmpty()) {
+                validationException = addValidationError("No clustering requests added.", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(requests.size());
+            for (ClusteringActionRequest request : requests) {
+                request.writeTo(out);
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            int count = in.readVInt();
+            while (count-- > 0) {
+                ClusteringActionRequest request = new ClusteringActionRequest();
+                request.readFrom(in);
+                requests.add(request);
+            }
+        }
+    }
+
+    /**
+     * An {@link ActionRequestBuilder} for {@link MultiClusteringAction}.
+     */
+    public static class MultiClusteringActionRequestBuilder
+        extends ActionRequestBuilder<MultiClusteringActionRequest,
+                                     MultiClusteringActionResponse,
+                                     MultiClusteringActionRequestBuilder> {
+        public MultiClusteringActionRequestBuilder(ElasticsearchClient client) {
+            super(client, MultiClusteringAction.INSTANCE, new MultiClusteringActionRequest());
+        }
+
+        public MultiClusteringActionRequestBuilder add(ClusteringActionRequest request) {
+            super.request.add(request);
+            return this;
+        }
+
+        public MultiClusteringActionRequestBuilder add(ClusteringAction.ClusteringActionRequestBuilder builder) {
+            super.request.add(builder.request());
+            return this;
+        }
+    }
+
+    /**
+     * An {@link ActionResponse} for {@link MultiClusteringAction}.
+     */
+    public static class MultiClusteringActionResponse extends ActionResponse implements ToXContent {
+        static final class Fields {
+            static final XContentBuilderString RESPONSES = new XContentBuilderString("responses");
+            static final XContentBuilderString ERROR = new XContentBuilderString("error");
+        }
+
+        /**
+         * A response to a single clustering request: either a clustering response or
+         * a failure message.
+         */
+        public static class Item {
+            private final ClusteringActionResponse response;
+            private final String failureMessage;
+
+            Item(ClusteringActionResponse response, String failureMessage) {
+                this.response = response;
+                this.failureMessage = failureMessage;
+            }
+
+            public boolean isFailure() {
+                return failureMessage != null;
+            }
+
+            public ClusteringActionResponse getResponse() {
+                return response;
+            }
+
+            public String getFailureMessage() {
+                return failureMessage;
+            }
+        }
+
+        private Item [] items;
+
+        MultiClusteringActionResponse() {
+        }
+
+        MultiClusteringActionResponse(Item [] items) {
+            this.items = items;
+        }
+
+        public Item [] getResponses() {
+            return items;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startArray(Fields.RESPONSES);
+            for (Item item : items) {
+                builder.startObject();
+                if (item.isFailure()) {
+                    builder.field(Fields.ERROR, item.getFailureMessage());
+                } else {
+                    item.getResponse().toXContent(builder, params);
+                }
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(items.length);
+            for (Item item : items) {
+                out.writeBoolean(item.isFailure());
+                if (item.isFailure()) {
+                    out.writeString(item.getFailureMessage());
+                } else {
+                    item.getResponse().writeTo(out);
+                }
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            items = new Item [in.readVInt()];
+            for (int i = 0; i < items.length; i++) {
+                if (in.readBoolean()) {
+                    items[i] = new Item(null, in.readString());
+                } else {
+                    ClusteringActionResponse response = new ClusteringActionResponse();
+                    response.readFrom(in);
+                    items[i] = new Item(response, null);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return ToString.objectToJson(this);
+        }
+    }
+
+    /**
+     * A {@link TransportAction} for {@link MultiClusteringAction}.
+     */
+    public static class TransportMultiClusteringAction
+        extends TransportAction<MultiClusteringActionRequest,
+                                MultiClusteringActionResponse> {
+        private final TransportMultiSearchAction multiSearchAction;
+        private final TransportClusteringAction clusteringAction;
+        private final ControllerSingleton controllerSingleton;
+
+        @Inject
+        public TransportMultiClusteringAction(Settings settings,
+                ThreadPool threadPool,
+                TransportService transportService,
+                TransportMultiSearchAction multiSearchAction,
+                TransportClusteringAction clusteringAction,
+                ControllerSingleton controllerSingleton,
+                ActionFilters actionFilters,
+                IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings, MultiClusteringAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
+            this.multiSearchAction = multiSearchAction;
+            this.clusteringAction = clusteringAction;
+            this.controllerSingleton = controllerSingleton;
+            transportService.registerRequestHandler(
+                    MultiClusteringAction.NAME,
+                    MultiClusteringActionRequest.class,
+                    ThreadPool.Names.SAME,
+                    new TransportHandler());
+        }
+
+        @Override
+        protected void doExecute(MultiClusteringActionRequest request,
+                                 final ActionListener<MultiClusteringActionResponse> listener) {
+            final long tsSearchStart = System.nanoTime();
+            final List<ClusteringActionRequest> requests = request.getRequests();
+            final AtomicReferenceArray<MultiClusteringActionResponse.Item> items = new AtomicReferenceArray<>(requests.size());
+            final CountDown countDown = new CountDown(requests.size());
+
+            final List<ActionListener<ClusteringActionResponse>> itemListeners = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                final int index = i;
+                itemListeners.add(new ActionListener<ClusteringActionResponse>() {
+                    @Override
+                    public void onResponse(ClusteringActionResponse response) {
+                        items.set(index, new MultiClusteringActionResponse.Item(response, null));
+                        onItemCompleted();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        items.set(index, new MultiClusteringActionResponse.Item(null, ExceptionsHelper.detailedMessage(e)));
+                        onItemCompleted();
+                    }
+
+                    private void onItemCompleted() {
+                        if (countDown.countDown()) {
+                            MultiClusteringActionResponse.Item [] responses = new MultiClusteringActionResponse.Item [items.length()];
+                            for (int i = 0; i < responses.length; i++) {
+                                responses[i] = items.get(i);
+                            }
+                            listener.onResponse(new MultiClusteringActionResponse(responses));
+                        }
+                    }
+                });
+            }
+
+            // Requests in scroll, distributed or parallel fetch mode run their own searches
+            // (parallel fetch processes shard responses as they arrive), continued requests
+            // may need to be forwarded to the node holding their state.
+            final List<Integer> searched = new ArrayList<>();
+            final MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+            for (int i = 0; i < requests.size(); i++) {
+                ClusteringActionRequest clusteringRequest = requests.get(i);
+                ActionRequestValidationException validationException = clusteringRequest.validate();
+                if (validationException != null) {
+                    itemListeners.get(i).onFailure(validationException);
+                } else if (clusteringRequest.getScrollBatchSize() > 0 ||
+                    clusteringRequest.getDistributed() ||
+                    clusteringRequest.getParallelFetch() ||
+                    clusteringRequest.getContinuationToken() != null) {
+                    clusteringAction.execute(clusteringRequest, itemListeners.get(i));
+                } else {
+                    SearchRequest searchRequest = SearchRequestRewriter.rewrite(clusteringRequest);
+                    multiSearchRequest.add(searchRequest);
+                    searched.add(i);
+                }
+            }
+
+            if (searched.isEmpty()) {
+                return;
+            }
+
+            multiSearchAction.execute(multiSearchRequest, new ActionListener<MultiSearchResponse>() {
+                @Override
+                public void onResponse(MultiSearchResponse response) {
+                    final MultiSearchResponse.Item [] searchResponses = response.getResponses();
+                    List<Runnable> tasks = new ArrayList<>(searched.size());
+                    for (int i = 0; i < searched.size(); i++) {
+                        final int index = searched.get(i);
+                        final MultiSearchResponse.Item searchResponse = searchResponses[i];
+                        tasks.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                ActionListener<ClusteringActionResponse> itemListener = itemListeners.get(index);
+                                if (searchResponse.isFailure()) {
+                                    itemListener.onFailure(searchResponse.getFailure() != null
+                                            ? searchResponse.getFailure()
+                                            : new ElasticsearchException(searchResponse.getFailureMessage()));
+                                    return;
+                                }
+
+                                try {
+                                    clusteringAction.clusterSearchResponse(
+                                            requests.get(index), searchResponse.getResponse(), tsSearchStart, itemListener);
+                                } catch (Exception e) {
+                                    itemListener.onFailure(e);
+                                }
+                            }
+                        });
+                    }
+
+                    // The calling (search) thread takes part in clustering too.
+                    ParallelTasks.invokeAll(controllerSingleton.getClusteringExecutor(), tasks);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    for (int index : searched) {
+                        itemListeners.get(index).onFailure(e);
+                    }
+                }
+            });
+        }
+
+        private final class TransportHandler extends TransportRequestHandler<MultiClusteringActionRequest> {
+            @Override
+            public void messageReceived(final MultiClusteringActionRequest request,
+                                        final TransportChannel channel) throws Exception {
+                execute(request, new ActionListener<MultiClusteringActionResponse>() {
+                    @Override
+                    public void onResponse(MultiClusteringActionResponse response) {
+                        try {
+                            channel.sendResponse(response);
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        try {
+                            channel.sendResponse(e);
+                        } catch (Exception e1) {
+                            logger.warn("Failed to send error response for action ["
+                                    + NAME + "] and request [" + request + "]", e1);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * An {@link BaseRestHandler} for {@link MultiClusteringAction}. The request body
+     * contains one clustering request (as accepted by
+     * {@link ClusteringAction.RestClusteringAction}) per line.
+     */
+    public static class RestMultiClusteringAction extends BaseRestHandler {
+        /**
+         * Action name suffix.
+         */
+        public static String NAME = "_msearch_with_clusters";
+
+        @Inject
+        public RestMultiClusteringAction(
+                Settings settings,
+                Client client,
+                RestController controller) {
+            super(settings, controller, client);
+
+            controller.registerHandler(POST, "/" + NAME,                this);
+            controller.registerHandler(POST, "/{index}/" + NAME,        this);
+            controller.registerHandler(POST, "/{index}/{type}/" + NAME, this);
+
+            controller.registerHandler(GET,  "/" + NAME,                this);
+            controller.registerHandler(GET,  "/{index}/" + NAME,        this);
+            controller.registerHandler(GET,  "/{index}/{type}/" + NAME, this);
+        }
+
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel, Client client) {
+            if (!request.hasContent()) {
+                emitErrorResponse(channel, request, logger,
+                        new IllegalArgumentException("Request body was expected."));
+                return;
+            }
+
+            final MultiClusteringActionRequest multiRequest = new MultiClusteringActionRequest();
+            try {
+                final String [] indices = Strings.splitStringByCommaToArray(request.param("index"));
+                final String [] types = Strings.splitStringByCommaToArray(request.param("type"));
+
+                final BytesReference content = request.content();
+                int from = 0;
+                while (from < content.length()) {
+                    int to = from;
+                    while (to < content.length() && content.get(to) != '\n') {
+                        to++;
+                    }
+
+                    BytesReference line = content.slice(from, to - from);
+                    if (!line.toUtf8().trim().isEmpty()) {
+                        SearchRequest searchRequest = new SearchRequest();
+                        searchRequest.indices(indices);
+                        searchRequest.types(types);
+
+                        ClusteringActionRequest clusteringRequest = new ClusteringActionRequest();
+                        clusteringRequest.setSearchRequest(searchRequest);
+                        clusteringRequest.source(line);
+                        multiRequest.add(clusteringRequest);
+                    }
+                    from = to + 1;
+                }
+            } catch (Exception e) {
+                emitErrorResponse(channel, request, logger, e);
+                return;
+            }
+
+            client.execute(MultiClusteringAction.INSTANCE, multiRequest,
+                new ActionListener<MultiClusteringActionResponse>() {
+                @Override
+                public void onResponse(MultiClusteringActionResponse response) {
+                    try {
+                        XContentBuilder builder = channel.newBuilder();
+                        builder.startObject();
+                        response.toXContent(builder, request);
+                        builder.endObject();
+                        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                    } catch (Exception e) {
+                        logger.debug("Failed to emit response.", e);
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    emitErrorResponse(channel, request, logger, e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.carrot2.clustering.kmeans.BisectingKMeansClusteringAlgorithm;
+import org.carrot2.core.Cluster;
+import org.carrot2.core.LanguageCode;
+import org.carrot2.core.attribute.Internal;
+import org.carrot2.core.attribute.Processing;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.text.analysis.ITokenizer;
+import org.carrot2.text.preprocessing.LabelFormatter;
+import org.carrot2.text.preprocessing.PreprocessingContext;
+import org.carrot2.text.vsm.ReducedVectorSpaceModelContext;
+import org.carrot2.text.vsm.VectorSpaceModelContext;
+import org.carrot2.util.attribute.Attribute;
+import org.carrot2.util.attribute.Bindable;
+import org.carrot2.util.attribute.Input;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+
+/**
+ * A multi-threaded drop-in replacement of {@link BisectingKMeansClusteringAlgorithm}
+ * (the same attributes and the same clusters). Document vectors are kept as primitive
+ * sparse vectors; centroids (per range of terms) and document-centroid similarities
+ * (per range of documents) of each bisection are computed concurrently on the node's
+ * factorization executor (see {@link ClusteringPlugin#FACTORIZATION_THREADS_PROPERTY_NAME}).
+ * Similarities are summed in the same order as Carrot2's dense matrix product, so
+ * documents are assigned to the same partitions.
+ */
+@Bindable(prefix = "ParallelBisectingKMeansClusteringAlgorithm")
+public class ParallelBisectingKMeansClusteringAlgorithm extends BisectingKMeansClusteringAlgorithm {
+    /**
+     * Words not used as features (and labels).
+     */
+    private static final int NON_FEATURE_WORD =
+            ITokenizer.TF_COMMON_WORD | ITokenizer.TF_QUERY_WORD | ITokenizer.TT_NUMERIC;
+
+    private static final Comparator<IntArrayList> BY_SIZE_DESCENDING = new Comparator<IntArrayList>() {
+        @Override
+        public int compare(IntArrayList a, IntArrayList b) {
+            return b.size() - a.size();
+        }
+    };
+
+    /**
+     * Matrix kernels running on the node's factorization executor, set by the node.
+     */
+    @Processing
+    @Input
+    @Internal
+    @Attribute(key = ParallelMatrices.ATTRIBUTE_KEY)
+    public ParallelMatrices matrices = ParallelMatrices.SEQUENTIAL;
+
+    @Override
+    protected void cluster(LanguageCode language) {
+        final PreprocessingContext context = preprocessingPipeline.preprocess(documents, null, language);
+
+        // Features are single words (stems), except common, query and numeric ones.
+        final int [] mostFrequentOriginalWordIndex = context.allStems.mostFrequentOriginalWordIndex;
+        final short [] wordsType = context.allWords.type;
+        final IntArrayList featureIndices = new IntArrayList(mostFrequentOriginalWordIndex.length);
+        for (int wordIndex : mostFrequentOriginalWordIndex) {
+            if ((wordsType[wordIndex] & NON_FEATURE_WORD) == 0) {
+                featureIndices.add(wordIndex);
+            }
+        }
+        context.allLabels.featureIndex = featureIndices.toArray();
+        context.allLabels.firstPhraseIndex = -1;
+
+        clusters = new ArrayList<>();
+        if (context.hasLabels()) {
+            final VectorSpaceModelContext vsmContext = new VectorSpaceModelContext(context);
+            final ReducedVectorSpaceModelContext reducedVsmContext = new ReducedVectorSpaceModelContext(vsmContext);
+            matrixBuilder.buildTermDocumentMatrix(vsmContext);
+            matrixBuilder.buildTermPhraseMatrix(vsmContext);
+
+            final IntIntHashMap rowToStemIndex = new IntIntHashMap();
+            for (IntIntCursor c : vsmContext.stemToRowIndex) {
+                rowToStemIndex.put(c.value, c.key);
+            }
+
+            final DoubleMatrix2D tdMatrix;
+            if (useDimensionalityReduction && clusterCount * 2 < context.documents.size()) {
+                matrixReducer.reduce(reducedVsmContext, clusterCount * 2);
+                tdMatrix = reducedVsmContext.coefficientMatrix.viewDice();
+            } else {
+                tdMatrix = vsmContext.termDocumentMatrix;
+            }
+
+            final IntArrayList columns = new IntArrayList(tdMatrix.columns());
+            for (int c = 0; c < tdMatrix.columns(); c++) {
+                columns.add(c);
+            }
+
+            // Bisect the largest partitions until there are enough of them.
+            final List<IntArrayList> rawClusters = new ArrayList<>();
+            rawClusters.addAll(split(partitionCount, tdMatrix, columns, maxIterations));
+            Collections.sort(rawClusters, BY_SIZE_DESCENDING);
+
+            int i = 0;
+            while (rawClusters.size() < clusterCount && i < rawClusters.size()) {
+                final IntArrayList cluster = rawClusters.get(i);
+                if (cluster.size() <= partitionCount * 2) {
+                    break;
+                }
+
+                final List<IntArrayList> split = split(partitionCount, tdMatrix, cluster, maxIterations);
+                if (split.size() > 1) {
+                    rawClusters.remove(i);
+                    rawClusters.addAll(split);
+                    Collections.sort(rawClusters, BY_SIZE_DESCENDING);
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+
+            for (IntArrayList rawCluster : rawClusters) {
+                if (rawCluster.size() > 1) {
+                    final Cluster cluster = new Cluster();
+                    cluster.addPhrases(labels(rawCluster, vsmContext.termDocumentMatrix, rowToStemIndex,
+                            mostFrequentOriginalWordIndex, context.allWords.image));
+                    for (int j = 0; j < rawCluster.size(); j++) {
+                        cluster.addDocuments(documents.get(rawCluster.get(j)));
+                    }
+                    clusters.add(cluster);
+                }
+            }
+        }
+
+        Collections.sort(clusters, Cluster.BY_REVERSED_SIZE_AND_LABEL_COMPARATOR);
+        Cluster.appendOtherTopics(documents, clusters);
+    }
+
+    /**
+     * @return Returns the words with the highest total weight in the cluster's documents
+     * (at least <code>labelCount</code> of them, more on ties).
+     */
+    private List<String> labels(IntArrayList documents, DoubleMatrix2D tdMatrix, IntIntHashMap rowToStemIndex,
+                                int [] mostFrequentOriginalWordIndex, char [][] wordImage) {
+        final double [] centroid = new double [tdMatrix.rows()];
+        for (int i = 0; i < documents.size(); i++) {
+            final int document = documents.get(i);
+            for (int r = 0; r < centroid.length; r++) {
+                centroid[r] += tdMatrix.getQuick(r, document);
+            }
+        }
+
+        final double [] sorted = centroid.clone();
+        Arrays.sort(sorted);
+        final double threshold = sorted[sorted.length - Math.min(labelCount, sorted.length)];
+
+        final List<String> labels = new ArrayList<>(labelCount);
+        for (int r = 0; r < centroid.length; r++) {
+            if (centroid[r] >= threshold) {
+                labels.add(LabelFormatter.format(
+                        new char [][] {wordImage[mostFrequentOriginalWordIndex[rowToStemIndex.get(r)]]},
+                        new boolean [] {false}, false));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Split the given columns (documents) of the matrix into at most
+     * <code>partitionCount</code> partitions with k-means, starting from a round-robin
+     * assignment.
+     *
+     * @return Returns non-empty partitions (column indices of the matrix).
+     */
+    private List<IntArrayList> split(int partitionCount, DoubleMatrix2D input, IntArrayList columns, int maxIterations) {
+        final SparseVectors documents = SparseVectors.columns(matrices, input, columns.toArray());
+        final SparseVectors terms = documents.transpose(input.rows());
+
+        int [] assignment = new int [columns.size()];
+        for (int i = 0; i < assignment.length; i++) {
+            assignment[i] = i % partitionCount;
+        }
+
+        final double [][] centroids = new double [partitionCount][input.rows()];
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            centroids(terms, assignment, centroids);
+            final int [] next = assign(documents, centroids, input.rows());
+            final boolean converged = Arrays.equals(assignment, next);
+            assignment = next;
+            if (converged) {
+                break;
+            }
+        }
+
+        final List<IntArrayList> partitions = new ArrayList<>();
+        for (int p = 0; p < partitionCount; p++) {
+            partitions.add(new IntArrayList());
+        }
+        for (int i = 0; i < assignment.length; i++) {
+            partitions.get(assignment[i]).add(columns.get(i));
+        }
+        for (int p = partitionCount; --p >= 0;) {
+            if (partitions.get(p).isEmpty()) {
+                partitions.remove(p);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Compute centroids (mean vectors) of partitions, concurrently for ranges of terms.
+     * Centroids of empty partitions are undefined (<code>NaN</code>).
+     */
+    private void centroids(final SparseVectors terms, final int [] assignment, final double [][] centroids) {
+        final int partitions = centroids.length;
+        final int [] sizes = new int [partitions];
+        for (int p : assignment) {
+            sizes[p]++;
+        }
+
+        final int rows = terms.size();
+        matrices.forEachChunk(rows, matrices.chunks(rows, terms.averageLength()),
+            new ParallelMatrices.Chunk() {
+                @Override
+                public void run(int chunk, int from, int to) {
+                    final double [] sums = new double [partitions];
+                    for (int t = from; t < to; t++) {
+                        Arrays.fill(sums, 0);
+                        // Documents in ascending order, the same order of additions as a dense sum.
+                        final int [] index = terms.index[t];
+                        final double [] value = terms.value[t];
+                        for (int i = 0; i < index.length; i++) {
+                            sums[assignment[index[i]]] += value[i];
+                        }
+                        for (int p = 0; p < partitions; p++) {
+                            centroids[p][t] = sums[p] / sizes[p];
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Assign documents to the most similar centroid (dot product), concurrently for
+     * ranges of documents.
+     */
+    private int [] assign(final SparseVectors documents, final double [][] centroids, final int dimensions) {
+        final int count = documents.size();
+        final int [] assignment = new int [count];
+        final boolean [] undefined = new boolean [centroids.length];
+        for (int p = 0; p < centroids.length; p++) {
+            undefined[p] = centroids[p].length > 0 && Double.isNaN(centroids[p][0]);
+        }
+
+        matrices.forEachChunk(count, matrices.chunks(count, (long) documents.averageLength() * centroids.length),
+            new ParallelMatrices.Chunk() {
+                @Override
+                public void run(int chunk, int from, int to) {
+                    for (int d = from; d < to; d++) {
+                        int best = 0;
+                        double bestSimilarity = similarity(documents, d, centroids[0], undefined[0], dimensions);
+                        for (int p = 1; p < centroids.length; p++) {
+                            final double similarity = similarity(documents, d, centroids[p], undefined[p], dimensions);
+                            if (bestSimilarity < similarity) {
+                                bestSimilarity = similarity;
+                                best = p;
+                            }
+                        }
+                        assignment[d] = best;
+                    }
+                }
+            });
+        return assignment;
+    }
+
+    /**
+     * Dot product of a sparse document vector and a dense centroid. Products are summed
+     * as in Carrot2's (unrolled) dense matrix product: the first <code>dimensions % 4</code>
+     * one by one, then in groups of four. Zero products do not change the sums, so the
+     * result is the same.
+     */
+    private static double similarity(SparseVectors documents, int d, double [] centroid,
+                                     boolean undefined, int dimensions) {
+        if (undefined) {
+            return Double.NaN;
+        }
+
+        final int [] index = documents.index[d];
+        final double [] value = documents.value[d];
+        final int head = dimensions % 4;
+
+        double sum = 0;
+        double group = 0;
+        int currentGroup = -1;
+        for (int i = 0; i < index.length; i++) {
+            final int t = index[i];
+            final double product = centroid[t] * value[i];
+            if (t < head) {
+                sum += product;
+            } else {
+                final int g = (t - head) >>> 2;
+                if (g != currentGroup) {
+                    if (currentGroup >= 0) {
+                        sum += group;
+                    }
+                    currentGroup = g;
+                    group = product;
+                } else {
+                    group += product;
+                }
+            }
+        }
+        if (currentGroup >= 0) {
+            sum += group;
+        }
+        return sum;
+    }
+
+    /**
+     * Sparse vectors: indices (ascending) and values of non-zero elements.
+     */
+    static final class SparseVectors {
+        final int [][] index;
+        final double [][] value;
+
+        private SparseVectors(int size) {
+            this.index = new int [size][];
+            this.value = new double [size][];
+        }
+
+        int size() {
+            return index.length;
+        }
+
+        long averageLength() {
+            long total = 0;
+            for (int [] i : index) {
+                total += i.length;
+            }
+            return index.length == 0 ? 0 : total / index.length;
+        }
+
+        /**
+         * @return Returns the given columns of a matrix, concurrently for ranges of columns.
+         */
+        static SparseVectors columns(ParallelMatrices matrices, final DoubleMatrix2D matrix, final int [] columns) {
+            final SparseVectors vectors = new SparseVectors(columns.length);
+            final int rows = matrix.rows();
+            matrices.forEachChunk(columns.length, matrices.chunks(columns.length, rows),
+                new ParallelMatrices.Chunk() {
+                    @Override
+                    public void run(int chunk, int from, int to) {
+                        final int [] index = new int [rows];
+                        final double [] value = new double [rows];
+                        for (int c = from; c < to; c++) {
+                            int length = 0;
+                            for (int r = 0; r < rows; r++) {
+                                final double v = matrix.getQuick(r, columns[c]);
+                                if (v != 0) {
+                                    index[length] = r;
+                                    value[length] = v;
+                                    length++;
+                                }
+                            }
+                            vectors.index[c] = Arrays.copyOf(index, length);
+                            vectors.value[c] = Arrays.copyOf(value, length);
+                        }
+                    }
+                });
+            return vectors;
+        }
+
+        /**
+         * @return Returns the transposed vectors (<code>dimensions</code> of them), with
+         * indices in ascending order.
+         */
+        SparseVectors transpose(int dimensions) {
+            final int [] lengths = new int [dimensions];
+            for (int [] i : index) {
+                for (int t : i) {
+                    lengths[t]++;
+                }
+            }
+
+            final SparseVectors transposed = new SparseVectors(dimensions);
+            for (int t = 0; t < dimensions; t++) {
+                transposed.index[t] = new int [lengths[t]];
+                transposed.value[t] = new double [lengths[t]];
+            }
+
+            Arrays.fill(lengths, 0);
+            for (int v = 0; v < index.length; v++) {
+                for (int i = 0; i < index[v].length; i++) {
+                    final int t = index[v][i];
+                    transposed.index[t][lengths[t]] = v;
+                    transposed.value[t][lengths[t]] = value[v][i];
+                    lengths[t]++;
+                }
+            }
+            return transposed;
+        }
+    }
+}
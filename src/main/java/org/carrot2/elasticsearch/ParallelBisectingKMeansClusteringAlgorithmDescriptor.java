@@ -0,0 +1,59 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.carrot2.clustering.kmeans.BisectingKMeansClusteringAlgorithmDescriptor;
+import org.carrot2.util.attribute.AttributeInfo;
+import org.carrot2.util.attribute.IBindableDescriptor;
+
+/**
+ * Metadata of {@link ParallelBisectingKMeansClusteringAlgorithm}, required to load it from
+ * a component suite (Carrot2 generates these classes for its own components at build time).
+ * All public attributes are inherited from the sequential algorithm; the
+ * {@link ParallelMatrices} attribute is internal and set by the node.
+ */
+public final class ParallelBisectingKMeansClusteringAlgorithmDescriptor implements IBindableDescriptor {
+    private static final IBindableDescriptor inherited = new BisectingKMeansClusteringAlgorithmDescriptor();
+
+    @Override
+    public String getPrefix() {
+        return "ParallelBisectingKMeansClusteringAlgorithm";
+    }
+
+    @Override
+    public String getTitle() {
+        return "Multi-threaded bisecting k-means clustering";
+    }
+
+    @Override
+    public String getLabel() {
+        return inherited.getLabel();
+    }
+
+    @Override
+    public String getDescription() {
+        return inherited.getDescription();
+    }
+
+    @Override
+    public Set<AttributeInfo> getOwnAttributes() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<AttributeInfo> getAttributes() {
+        return inherited.getAttributes();
+    }
+
+    @Override
+    public Map<String, AttributeInfo> getAttributesByKey() {
+        return inherited.getAttributesByKey();
+    }
+
+    @Override
+    public Map<String, AttributeInfo> getAttributesByFieldName() {
+        return inherited.getAttributesByFieldName();
+    }
+}
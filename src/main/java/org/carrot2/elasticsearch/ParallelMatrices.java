@@ -0,0 +1,432 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.mahout.math.matrix.impl.DenseDoubleMatrix2D;
+import org.carrot2.matrix.factorization.IMatrixFactorization;
+
+/**
+ * Dense matrix kernels (products, orthonormalization, a small symmetric eigensolver)
+ * used by the plugin's factorization components. Products split the rows of their
+ * result into chunks run concurrently on an executor (the node's factorization
+ * executor, see {@link ClusteringPlugin#FACTORIZATION_THREADS_PROPERTY_NAME});
+ * {@link #SEQUENTIAL} runs everything on the calling thread.
+ *
+ * <p>Components are created by Carrot2, not by the injector: clustering nodes pass
+ * their instance to components in the {@link #ATTRIBUTE_KEY} processing attribute.</p>
+ *
+ * <p>Matrices are arrays of rows.</p>
+ */
+final class ParallelMatrices {
+    /**
+     * Key of the (internal) processing attribute with the node's instance.
+     */
+    static final String ATTRIBUTE_KEY = "ParallelMatrices";
+
+    /**
+     * Runs all kernels on the calling thread (the default of components used
+     * outside of a clustering node).
+     */
+    static final ParallelMatrices SEQUENTIAL = new ParallelMatrices(null, 1);
+
+    /**
+     * Minimum number of multiply-adds of a single chunk, smaller products are not split.
+     */
+    private static final long MIN_CHUNK_FLOPS = 1L << 16;
+
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * Split products into at most <code>parallelism</code> chunks run on the given
+     * executor (the calling thread runs one of them).
+     */
+    ParallelMatrices(Executor executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : Math.max(1, parallelism);
+    }
+
+    /**
+     * A chunk of rows <code>[from, to)</code> of a result.
+     */
+    interface Chunk {
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * @return Returns the number of chunks to split <code>rows</code> rows into.
+     */
+    int chunks(int rows, long flopsPerRow) {
+        if (executor == null) {
+            return 1;
+        }
+        long chunks = Math.min(parallelism, (rows * Math.max(1, flopsPerRow)) / MIN_CHUNK_FLOPS);
+        return (int) Math.max(1, Math.min(chunks, rows));
+    }
+
+    /**
+     * Run the given chunks of <code>[0, rows)</code> and wait for them to complete.
+     */
+    void forEachChunk(final int rows, final int chunks, final Chunk body) {
+        if (chunks <= 1 || executor == null) {
+            body.run(0, 0, rows);
+            return;
+        }
+
+        final int chunkSize = (rows + chunks - 1) / chunks;
+        List<Runnable> tasks = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int chunk = i;
+            final int from = i * chunkSize;
+            final int to = Math.min(rows, from + chunkSize);
+            if (from >= to) {
+                break;
+            }
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    body.run(chunk, from, to);
+                }
+            });
+        }
+        ParallelTasks.invokeAll(executor, tasks);
+    }
+
+    static DoubleMatrix2D toMatrix(double [][] rows, int columns) {
+        DoubleMatrix2D matrix = new DenseDoubleMatrix2D(rows.length, columns);
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < columns; j++) {
+                matrix.setQuick(i, j, rows[i][j]);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * @return Returns <code>a &middot; b</code>.
+     */
+    double [][] multiply(final double [][] a, final double [][] b, final int p) {
+        final int n = b.length;
+        final double [][] result = new double [a.length][p];
+        forEachChunk(a.length, chunks(a.length, (long) n * p), new Chunk() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                for (int i = from; i < to; i++) {
+                    final double [] ai = a[i];
+                    final double [] ri = result[i];
+                    for (int k = 0; k < n; k++) {
+                        final double aik = ai[k];
+                        if (aik != 0) {
+                            final double [] bk = b[k];
+                            for (int j = 0; j < p; j++) {
+                                ri[j] += aik * bk[j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return Returns <code>a<sup>T</sup> &middot; b</code>, <code>a</code> has <code>n</code>
+     * columns.
+     */
+    double [][] multiplyTransposed(final double [][] a, final int n, final double [][] b, final int p) {
+        final int m = a.length;
+        final double [][] result = new double [n][p];
+        // Chunks of result rows (columns of a), so that no two chunks write the same row.
+        forEachChunk(n, chunks(n, (long) m * p), new Chunk() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                for (int k = 0; k < m; k++) {
+                    final double [] ak = a[k];
+                    final double [] bk = b[k];
+                    for (int i = from; i < to; i++) {
+                        final double aki = ak[i];
+                        if (aki != 0) {
+                            final double [] ri = result[i];
+                            for (int j = 0; j < p; j++) {
+                                ri[j] += aki * bk[j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return Returns <code>x<sup>T</sup> &middot; x</code>, <code>x</code> has <code>p</code>
+     * columns.
+     */
+    double [][] gram(final double [][] x, final int p) {
+        final int chunks = chunks(x.length, (long) p * p);
+        final double [][][] partial = new double [chunks][p][p];
+        forEachChunk(x.length, chunks, new Chunk() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                final double [][] g = partial[chunk];
+                for (int r = from; r < to; r++) {
+                    final double [] xr = x[r];
+                    for (int i = 0; i < p; i++) {
+                        final double xri = xr[i];
+                        if (xri != 0) {
+                            final double [] gi = g[i];
+                            for (int j = i; j < p; j++) {
+                                gi[j] += xri * xr[j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        final double [][] result = partial[0];
+        for (int c = 1; c < chunks; c++) {
+            for (int i = 0; i < p; i++) {
+                for (int j = i; j < p; j++) {
+                    result[i][j] += partial[c][i][j];
+                }
+            }
+        }
+        for (int i = 0; i < p; i++) {
+            for (int j = 0; j < i; j++) {
+                result[i][j] = result[j][i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orthonormalize columns of <code>x</code> in place (modified Gram-Schmidt). Columns
+     * linearly dependent on the previous ones are zeroed.
+     */
+    static void orthonormalize(double [][] x, int p) {
+        final int m = x.length;
+        for (int j = 0; j < p; j++) {
+            double before = 0;
+            for (int r = 0; r < m; r++) {
+                before += x[r][j] * x[r][j];
+            }
+
+            for (int i = 0; i < j; i++) {
+                double dot = 0;
+                for (int r = 0; r < m; r++) {
+                    dot += x[r][i] * x[r][j];
+                }
+                if (dot != 0) {
+                    for (int r = 0; r < m; r++) {
+                        x[r][j] -= dot * x[r][i];
+                    }
+                }
+            }
+
+            double norm = 0;
+            for (int r = 0; r < m; r++) {
+                norm += x[r][j] * x[r][j];
+            }
+            norm = Math.sqrt(norm);
+
+            final double scale = (norm > 1e-10 * Math.sqrt(before)) ? 1 / norm : 0;
+            for (int r = 0; r < m; r++) {
+                x[r][j] *= scale;
+            }
+        }
+    }
+
+    /**
+     * Eigendecomposition of a small symmetric matrix (cyclic Jacobi rotations).
+     *
+     * @param s The matrix, destroyed in the process.
+     * @param eigenvalues Receives eigenvalues in descending order.
+     * @return Returns eigenvectors (columns) in the order of eigenvalues.
+     */
+    static double [][] symmetricEigen(double [][] s, double [] eigenvalues) {
+        final int n = s.length;
+        double [][] w = new double [n][n];
+        for (int i = 0; i < n; i++) {
+            w[i][i] = 1;
+        }
+
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0, diag = 0;
+            for (int i = 0; i < n; i++) {
+                diag += s[i][i] * s[i][i];
+                for (int j = i + 1; j < n; j++) {
+                    off += s[i][j] * s[i][j];
+                }
+            }
+            if (off <= 1e-30 * diag || off == 0) {
+                break;
+            }
+
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    final double spq = s[p][q];
+                    if (spq == 0) {
+                        continue;
+                    }
+
+                    final double theta = (s[q][q] - s[p][p]) / (2 * spq);
+                    final double t = Math.signum(theta == 0 ? 1 : theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    final double c = 1 / Math.sqrt(t * t + 1);
+                    final double sn = t * c;
+
+                    for (int k = 0; k < n; k++) {
+                        final double skp = s[k][p], skq = s[k][q];
+                        s[k][p] = c * skp - sn * skq;
+                        s[k][q] = sn * skp + c * skq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        final double spk = s[p][k], sqk = s[q][k];
+                        s[p][k] = c * spk - sn * sqk;
+                        s[q][k] = sn * spk + c * sqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        final double wkp = w[k][p], wkq = w[k][q];
+                        w[k][p] = c * wkp - sn * wkq;
+                        w[k][q] = sn * wkp + c * wkq;
+                    }
+                }
+            }
+        }
+
+        Integer [] order = new Integer [n];
+        final double [] values = new double [n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            values[i] = s[i][i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[b], values[a]);
+            }
+        });
+
+        double [][] vectors = new double [n][n];
+        for (int j = 0; j < n; j++) {
+            eigenvalues[j] = values[order[j]];
+            for (int i = 0; i < n; i++) {
+                vectors[i][j] = w[i][order[j]];
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Top <code>k</code> singular vectors of <code>a</code> (<code>m</code> &times; <code>n</code>)
+     * by subspace (power) iteration on a random starting subspace of <code>k +
+     * oversampling</code> columns, followed by a Rayleigh-Ritz projection.
+     *
+     * @param minIterations Number of power iterations always performed.
+     * @param maxIterations Maximum number of power iterations.
+     * @param tolerance Iterations after <code>minIterations</code> stop when the relative
+     * change of the top <code>k</code> singular values is below this threshold.
+     */
+    IMatrixFactorization subspaceSvd(double [][] a, int n, int k, int oversampling,
+                                            int minIterations, int maxIterations, double tolerance, long seed) {
+        final int m = a.length;
+        k = Math.max(1, Math.min(k, Math.min(m, n)));
+        final int l = Math.min(k + Math.max(0, oversampling), Math.min(m, n));
+
+        final Random random = new Random(seed);
+        double [][] omega = new double [n][l];
+        for (double [] row : omega) {
+            for (int j = 0; j < l; j++) {
+                row[j] = random.nextGaussian();
+            }
+        }
+
+        double [][] q = multiply(a, omega, l);
+        orthonormalize(q, l);
+
+        double [] sigma2 = new double [l];
+        double [] previous = null;
+        double [][] z;
+        double [][] w;
+        for (int iteration = 0; ; iteration++) {
+            // z = a^T q; the Ritz values of a a^T on span(q) are eigenvalues of z^T z.
+            z = multiplyTransposed(a, n, q, l);
+            w = symmetricEigen(gram(z, l), sigma2);
+
+            if (iteration >= maxIterations ||
+                (iteration >= minIterations && previous != null && converged(previous, sigma2, k, tolerance))) {
+                break;
+            }
+            previous = sigma2.clone();
+
+            orthonormalize(z, l);
+            q = multiply(a, z, l);
+            orthonormalize(q, l);
+        }
+
+        // u = q w, v = z w / sigma (since a^T u = a^T q w = z w).
+        double [][] u = multiply(q, w, k);
+        double [][] v = multiply(z, w, k);
+        for (int j = 0; j < k; j++) {
+            final double s = Math.sqrt(Math.max(0, sigma2[j]));
+            final double scale = s > 0 ? 1 / s : 0;
+
+            // Fix the sign so that the largest component of each left vector is positive.
+            double max = 0;
+            for (int i = 0; i < m; i++) {
+                if (Math.abs(u[i][j]) > Math.abs(max)) {
+                    max = u[i][j];
+                }
+            }
+            final double sign = max < 0 ? -1 : 1;
+
+            for (int i = 0; i < m; i++) {
+                u[i][j] *= sign;
+            }
+            for (int i = 0; i < n; i++) {
+                v[i][j] *= sign * scale;
+            }
+        }
+
+        return new Factorization(toMatrix(u, k), toMatrix(v, k));
+    }
+
+    private static boolean converged(double [] previous, double [] current, int k, double tolerance) {
+        for (int j = 0; j < k; j++) {
+            double change = Math.abs(current[j] - previous[j]);
+            if (change > tolerance * Math.max(Math.abs(current[j]), Double.MIN_NORMAL)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A computed factorization <code>A &asymp; U V<sup>T</sup></code>.
+     */
+    static final class Factorization implements IMatrixFactorization {
+        private final DoubleMatrix2D u;
+        private final DoubleMatrix2D v;
+
+        Factorization(DoubleMatrix2D u, DoubleMatrix2D v) {
+            this.u = u;
+            this.v = v;
+        }
+
+        @Override
+        public DoubleMatrix2D getU() {
+            return u;
+        }
+
+        @Override
+        public DoubleMatrix2D getV() {
+            return v;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.carrot2.core.attribute.Internal;
+import org.carrot2.core.attribute.Processing;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.mahout.math.matrix.impl.DenseDoubleMatrix2D;
+import org.carrot2.matrix.factorization.IMatrixFactorization;
+import org.carrot2.matrix.factorization.IterationNumberGuesser;
+import org.carrot2.matrix.factorization.IterationNumberGuesser.FactorizationQuality;
+import org.carrot2.matrix.factorization.IterativeMatrixFactorizationFactory;
+import org.carrot2.matrix.factorization.NonnegativeMatrixFactorizationEDFactory;
+import org.carrot2.util.attribute.Attribute;
+import org.carrot2.util.attribute.Bindable;
+import org.carrot2.util.attribute.Input;
+
+/**
+ * A multi-threaded equivalent of {@link NonnegativeMatrixFactorizationEDFactory}
+ * (non-negative matrix factorization minimizing the Euclidean distance): the same
+ * multiplicative update rules, seeding and ordering, with matrix products split
+ * across the node's factorization executor (see
+ * {@link ClusteringPlugin#FACTORIZATION_THREADS_PROPERTY_NAME}). Unless set explicitly,
+ * the number of iterations is estimated as for Carrot2's factorization at the
+ * default (high) factorization quality, so clusters are the same.
+ *
+ * <p>Select it for Lingo with the
+ * <code>TermDocumentMatrixReducer.factorizationFactory</code> attribute.</p>
+ */
+@Bindable(prefix = "ParallelNonnegativeMatrixFactorizationFactory")
+public class ParallelNonnegativeMatrixFactorizationFactory extends IterativeMatrixFactorizationFactory {
+    /**
+     * Added to numerators and denominators of update rules (as in Carrot2).
+     */
+    private static final double EPS = 1e-9;
+
+    private boolean maxIterationsSet;
+
+    /**
+     * Matrix kernels running on the node's factorization executor, set by the node.
+     */
+    @Processing
+    @Input
+    @Internal
+    @Attribute(key = ParallelMatrices.ATTRIBUTE_KEY)
+    public ParallelMatrices matrices = ParallelMatrices.SEQUENTIAL;
+
+    @Override
+    public void setMaxIterations(int maxIterations) {
+        super.setMaxIterations(maxIterations);
+        this.maxIterationsSet = true;
+    }
+
+    @Override
+    public IMatrixFactorization factorize(DoubleMatrix2D A) {
+        final int m = A.rows();
+        final int n = A.columns();
+        final int maxIterations = iterations(A);
+
+        DoubleMatrix2D U = new DenseDoubleMatrix2D(m, k);
+        DoubleMatrix2D V = new DenseDoubleMatrix2D(n, k);
+        createSeedingStrategy().seed(A, U, V);
+
+        final double [][] a = A.toArray();
+        final double [][] u = U.toArray();
+        final double [][] v = V.toArray();
+
+        double approximationError = stopThreshold >= 0 ? approximationError(a, u, v) : 0;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            // V = V .* (A'U + eps) ./ (VU'U + eps)
+            update(v, matrices.multiplyTransposed(a, n, u, k), matrices.gram(u, k));
+
+            // U = U .* (AV + eps) ./ (UV'V + eps)
+            update(u, matrices.multiply(a, v, k), matrices.gram(v, k));
+
+            if (stopThreshold >= 0) {
+                double error = approximationError(a, u, v);
+                boolean stop = (approximationError - error) / approximationError < stopThreshold;
+                approximationError = error;
+                if (stop) {
+                    break;
+                }
+            }
+        }
+
+        if (ordered) {
+            order(u, v);
+        }
+
+        return new ParallelMatrices.Factorization(
+                ParallelMatrices.toMatrix(u, k),
+                ParallelMatrices.toMatrix(v, k));
+    }
+
+    /**
+     * @return Returns the number of iterations: set explicitly or estimated by Carrot2
+     * (Lingo only estimates iterations of its own factorizations).
+     */
+    private int iterations(DoubleMatrix2D A) {
+        if (maxIterationsSet) {
+            return maxIterations;
+        }
+
+        NonnegativeMatrixFactorizationEDFactory reference = new NonnegativeMatrixFactorizationEDFactory();
+        reference.setK(k);
+        reference.setSeedingFactory(seedingFactory);
+        if (IterationNumberGuesser.setEstimatedIterationsNumber(reference, A, FactorizationQuality.HIGH)) {
+            return reference.getMaxIterations();
+        }
+        return maxIterations;
+    }
+
+    /**
+     * <code>x = x .* (numerator + eps) ./ (x &middot; gram + eps)</code>
+     */
+    private void update(final double [][] x, final double [][] numerator, final double [][] gram) {
+        matrices.forEachChunk(x.length, matrices.chunks(x.length, (long) k * k),
+            new ParallelMatrices.Chunk() {
+                @Override
+                public void run(int chunk, int from, int to) {
+                    final double [] denominator = new double [k];
+                    for (int r = from; r < to; r++) {
+                        final double [] xr = x[r];
+                        Arrays.fill(denominator, 0);
+                        for (int i = 0; i < k; i++) {
+                            final double xri = xr[i];
+                            if (xri != 0) {
+                                final double [] gi = gram[i];
+                                for (int j = 0; j < k; j++) {
+                                    denominator[j] += xri * gi[j];
+                                }
+                            }
+                        }
+
+                        final double [] nr = numerator[r];
+                        for (int j = 0; j < k; j++) {
+                            xr[j] *= (nr[j] + EPS) / (denominator[j] + EPS);
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * @return Returns the Frobenius norm of <code>A - UV'</code>.
+     */
+    private double approximationError(final double [][] a, final double [][] u, final double [][] v) {
+        final int chunks = matrices.chunks(a.length, (long) v.length * k);
+        final double [] partial = new double [chunks];
+        matrices.forEachChunk(a.length, chunks, new ParallelMatrices.Chunk() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    final double [] ui = u[i];
+                    for (int j = 0; j < v.length; j++) {
+                        final double [] vj = v[j];
+                        double uv = 0;
+                        for (int c = 0; c < k; c++) {
+                            uv += ui[c] * vj[c];
+                        }
+                        final double d = a[i][j] - uv;
+                        sum += d * d;
+                    }
+                }
+                partial[chunk] = sum;
+            }
+        });
+
+        double sum = 0;
+        for (double s : partial) {
+            sum += s;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Order base vectors by the (descending) squared norms of the corresponding
+     * columns of V, as Carrot2's factorizations do.
+     */
+    private void order(double [][] u, double [][] v) {
+        final double [] aggregates = new double [k];
+        for (double [] vr : v) {
+            for (int j = 0; j < k; j++) {
+                aggregates[j] += vr[j] * vr[j];
+            }
+        }
+
+        final Integer [] order = new Integer [k];
+        for (int j = 0; j < k; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(aggregates[b], aggregates[a]);
+            }
+        });
+
+        for (double [][] x : new double [][][] {u, v}) {
+            for (double [] row : x) {
+                final double [] copy = row.clone();
+                for (int j = 0; j < k; j++) {
+                    row[j] = copy[order[j]];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.carrot2.elasticsearch;
+
+import org.carrot2.core.attribute.Internal;
+import org.carrot2.core.attribute.Processing;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.matrix.factorization.IMatrixFactorization;
+import org.carrot2.matrix.factorization.IterativeMatrixFactorizationFactory;
+import org.carrot2.matrix.factorization.PartialSingularValueDecompositionFactory;
+import org.carrot2.util.attribute.Attribute;
+import org.carrot2.util.attribute.Bindable;
+import org.carrot2.util.attribute.Input;
+
+/**
+ * A multi-threaded alternative to {@link PartialSingularValueDecompositionFactory}:
+ * computes only the top <code>k</code> singular vectors (the number of base vectors
+ * Lingo asks for) by subspace iteration, with matrix products split across the node's
+ * factorization executor (see {@link ClusteringPlugin#FACTORIZATION_THREADS_PROPERTY_NAME}).
+ * Iterations stop when the relative change of the top singular values drops below
+ * the stop threshold or after the maximum number of iterations.
+ *
+ * <p>Select it for Lingo with the
+ * <code>TermDocumentMatrixReducer.factorizationFactory</code> attribute.</p>
+ */
+@Bindable(prefix = "ParallelPartialSingularValueDecompositionFactory")
+public class ParallelPartialSingularValueDecompositionFactory extends IterativeMatrixFactorizationFactory {
+    /**
+     * Number of extra columns of the iterated subspace (speeds up convergence of
+     * the last requested singular vectors).
+     */
+    private static final int OVERSAMPLING = 10;
+
+    private static final int DEFAULT_SVD_MAX_ITERATIONS = 100;
+    private static final double DEFAULT_SVD_STOP_THRESHOLD = 1e-6;
+
+    /**
+     * Matrix kernels running on the node's factorization executor, set by the node.
+     */
+    @Processing
+    @Input
+    @Internal
+    @Attribute(key = ParallelMatrices.ATTRIBUTE_KEY)
+    public ParallelMatrices matrices = ParallelMatrices.SEQUENTIAL;
+
+    public ParallelPartialSingularValueDecompositionFactory() {
+        this.maxIterations = DEFAULT_SVD_MAX_ITERATIONS;
+        this.stopThreshold = DEFAULT_SVD_STOP_THRESHOLD;
+    }
+
+    @Override
+    public IMatrixFactorization factorize(DoubleMatrix2D A) {
+        return matrices.subspaceSvd(A.toArray(), A.columns(), k, OVERSAMPLING,
+                0, maxIterations, Math.max(0, stopThreshold), 0);
+    }
+}
@@ -0,0 +1,73 @@
+package org.carrot2.elasticsearch;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Runs a batch of tasks concurrently on an executor, with the calling thread
+ * participating in the execution.
+ */
+final class ParallelTasks {
+    private ParallelTasks() {}
+
+    /**
+     * Run all tasks and wait until they complete. The calling thread picks up tasks
+     * too, so all tasks complete even if the executor is saturated, rejects tasks or
+     * the caller is one of the executor's threads (no deadlock is possible). A
+     * <code>null</code> executor runs all tasks on the calling thread. The first
+     * exception thrown by any task is rethrown after all tasks complete.
+     */
+    static void invokeAll(Executor executor, final List<? extends Runnable> tasks) {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < tasks.size()) {
+                    try {
+                        tasks.get(index).run();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        // The caller is one of the workers.
+        for (int i = 1; executor != null && i < tasks.size(); i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        // Only tasks already started by other workers may remain.
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("Interrupted while waiting for tasks.", e);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new ElasticsearchException("Task failed.", t);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package org.carrot2.elasticsearch;
+
+import static org.carrot2.elasticsearch.LoggerUtils.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Return statistics of clustering pools (see {@link ClusteringPool}) of all (or selected) nodes.
+ */
+public class PoolStatsAction
+    extends Action<PoolStatsAction.PoolStatsActionRequest,
+                   PoolStatsAction.PoolStatsActionResponse,
+                   PoolStatsAction.PoolStatsActionRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "clustering/pools/stats";
+
+    /* Reusable singleton. */
+    public static final PoolStatsAction INSTANCE = new PoolStatsAction();
+
+    private PoolStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public PoolStatsActionResponse newResponse() {
+        return new PoolStatsActionResponse();
+    }
+
+    @Override
+    public PoolStatsActionRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new PoolStatsActionRequestBuilder(client);
+    }
+
+    /**
+     * A request for {@link PoolStatsAction} (node identifiers, all nodes by default).
+     */
+    public static class PoolStatsActionRequest extends BaseNodesRequest<PoolStatsActionRequest> {
+        public PoolStatsActionRequest() {
+        }
+
+        public PoolStatsActionRequest(String... nodesIds) {
+            super(nodesIds);
+        }
+    }
+
+    /**
+     * A request builder for {@link PoolStatsAction}.
+     */
+    public static class PoolStatsActionRequestBuilder
+        extends NodesOperationRequestBuilder<PoolStatsActionRequest,
+                                             PoolStatsActionResponse,
+                                             PoolStatsActionRequestBuilder> {
+        public PoolStatsActionRequestBuilder(ElasticsearchClient client) {
+            super(client, PoolStatsAction.INSTANCE, new PoolStatsActionRequest());
+        }
+    }
+
+    /**
+     * A per-node request of {@link PoolStatsAction}.
+     */
+    public static class PoolStatsActionNodeRequest extends BaseNodeRequest {
+        public PoolStatsActionNodeRequest() {
+        }
+
+        PoolStatsActionNodeRequest(String nodeId, PoolStatsActionRequest request) {
+            super(request, nodeId);
+        }
+    }
+
+    /**
+     * A per-node response of {@link PoolStatsAction}: statistics of each pool.
+     */
+    public static class PoolStatsActionNodeResponse extends BaseNodeResponse {
+        private Map<String, ClusteringPool.Stats> pools;
+
+        public PoolStatsActionNodeResponse() {
+        }
+
+        PoolStatsActionNodeResponse(DiscoveryNode node, Map<String, ClusteringPool.Stats> pools) {
+            super(node);
+            this.pools = pools;
+        }
+
+        /**
+         * @return Returns identifiers of clustering pools of the node.
+         */
+        public Set<String> getPools() {
+            return pools.keySet();
+        }
+
+        /**
+         * @return Returns the number of completed clustering requests of a pool
+         * or <code>-1</code> if there is no such pool.
+         */
+        public long getCompleted(String pool) {
+            ClusteringPool.Stats stats = pools.get(pool);
+            return stats == null ? -1 : stats.completed;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(pools.size());
+            for (Map.Entry<String, ClusteringPool.Stats> e : pools.entrySet()) {
+                out.writeString(e.getKey());
+                e.getValue().writeTo(out);
+            }
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            int count = in.readVInt();
+            pools = new LinkedHashMap<>();
+            while (count-- > 0) {
+                String name = in.readString();
+                ClusteringPool.Stats stats = new ClusteringPool.Stats();
+                stats.readFrom(in);
+                pools.put(name, stats);
+            }
+        }
+    }
+
+    /**
+     * A response of {@link PoolStatsAction}: per-node results and failures.
+     */
+    public static class PoolStatsActionResponse
+        extends BaseNodesResponse<PoolStatsActionNodeResponse> implements ToXContent {
+        static final class Fields {
+            static final XContentBuilderString NODES = new XContentBuilderString("nodes");
+            static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+            static final XContentBuilderString NODE = new XContentBuilderString("node");
+            static final XContentBuilderString REASON = new XContentBuilderString("reason");
+            static final XContentBuilderString POOLS = new XContentBuilderString("pools");
+        }
+
+        private String [] failedNodes;
+        private String [] failureReasons;
+
+        PoolStatsActionResponse() {
+        }
+
+        PoolStatsActionResponse(ClusterName clusterName, PoolStatsActionNodeResponse [] nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes);
+            failedNodes = new String [failures.size()];
+            failureReasons = new String [failures.size()];
+            for (int i = 0; i < failures.size(); i++) {
+                failedNodes[i] = failures.get(i).nodeId();
+                failureReasons[i] = ExceptionsHelper.detailedMessage(failures.get(i));
+            }
+        }
+
+        /**
+         * @return Returns identifiers of nodes which failed to respond.
+         */
+        public String [] getFailedNodes() {
+            return failedNodes;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject(Fields.NODES);
+            for (PoolStatsActionNodeResponse node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                builder.startObject(Fields.POOLS);
+                for (Map.Entry<String, ClusteringPool.Stats> e : node.pools.entrySet()) {
+                    builder.startObject(e.getKey());
+                    e.getValue().toXContent(builder, params);
+                    builder.endObject();
+                }
+                builder.endObject();
+                builder.endObject();
+            }
+            builder.endObject();
+
+            builder.startArray(Fields.FAILURES);
+            for (int i = 0; i < failedNodes.length; i++) {
+                builder.startObject();
+                builder.field(Fields.NODE, failedNodes[i]);
+                builder.field(Fields.REASON, failureReasons[i]);
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(nodes.length);
+            for (PoolStatsActionNodeResponse node : nodes) {
+                node.writeTo(out);
+            }
+            out.writeStringArray(failedNodes);
+            out.writeStringArray(failureReasons);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            nodes = new PoolStatsActionNodeResponse [in.readVInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new PoolStatsActionNodeResponse();
+                nodes[i].readFrom(in);
+            }
+            failedNodes = in.readStringArray();
+            failureReasons = in.readStringArray();
+        }
+    }
+
+    /**
+     * A {@link TransportNodesAction} for {@link PoolStatsAction}.
+     */
+    public static class TransportPoolStatsAction
+        extends TransportNodesAction<PoolStatsActionRequest,
+                                     PoolStatsActionResponse,
+                                     PoolStatsActionNodeRequest,
+                                     PoolStatsActionNodeResponse> {
+        private final ControllerSingleton controllerSingleton;
+
+        @Inject
+        public TransportPoolStatsAction(Settings settings,
+                ClusterName clusterName,
+                ThreadPool threadPool,
+                ClusterService clusterService,
+                TransportService transportService,
+                ControllerSingleton controllerSingleton,
+                ActionFilters actionFilters,
+                IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings, PoolStatsAction.NAME, clusterName, threadPool, clusterService, transportService,
+                  actionFilters, indexNameExpressionResolver, PoolStatsActionRequest.class, PoolStatsActionNodeRequest.class,
+                  ThreadPool.Names.MANAGEMENT);
+            this.controllerSingleton = controllerSingleton;
+        }
+
+        @Override
+        protected PoolStatsActionResponse newResponse(PoolStatsActionRequest request, AtomicReferenceArray responses) {
+            final List<PoolStatsActionNodeResponse> nodes = new ArrayList<>();
+            final List<FailedNodeException> failures = new ArrayList<>();
+            for (int i = 0; i < responses.length(); i++) {
+                Object response = responses.get(i);
+                if (response instanceof PoolStatsActionNodeResponse) {
+                    nodes.add((PoolStatsActionNodeResponse) response);
+                } else if (response instanceof FailedNodeException) {
+                    failures.add((FailedNodeException) response);
+                }
+            }
+            return new PoolStatsActionResponse(clusterName,
+                    nodes.toArray(new PoolStatsActionNodeResponse [nodes.size()]), failures);
+        }
+
+        @Override
+        protected PoolStatsActionNodeRequest newNodeRequest(String nodeId, PoolStatsActionRequest request) {
+            return new PoolStatsActionNodeRequest(nodeId, request);
+        }
+
+        @Override
+        protected PoolStatsActionNodeResponse newNodeResponse() {
+            return new PoolStatsActionNodeResponse();
+        }
+
+        @Override
+        protected PoolStatsActionNodeResponse nodeOperation(PoolStatsActionNodeRequest request) {
+            Map<String, ClusteringPool.Stats> stats = new LinkedHashMap<>();
+            for (ClusteringPool pool : controllerSingleton.getPools().values()) {
+                stats.put(pool.getName(), pool.stats());
+            }
+            return new PoolStatsActionNodeResponse(clusterService.localNode(), stats);
+        }
+
+        @Override
+        protected boolean accumulateExceptions() {
+            return true;
+        }
+    }
+
+    /**
+     * {@link BaseRestHandler} for serving {@link PoolStatsAction}.
+     */
+    public static class RestPoolStatsAction extends BaseRestHandler {
+        /* Action name suffix. */
+        public static String NAME = "_algorithms/_pools";
+
+        @Inject
+        public RestPoolStatsAction(
+                Settings settings,
+                Client client,
+                RestController controller) {
+            super(settings, controller, client);
+
+            controller.registerHandler(Method.GET, "/" + NAME, this);
+            controller.registerHandler(Method.GET, "/" + NAME + "/{nodeId}", this);
+        }
+
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel, Client client) {
+            PoolStatsActionRequest actionRequest = new PoolStatsActionRequest(
+                    Strings.splitStringByCommaToArray(request.param("nodeId")));
+            client.execute(INSTANCE, actionRequest, new ActionListener<PoolStatsActionResponse>() {
+                @Override
+                public void onResponse(PoolStatsActionResponse response) {
+                    try {
+                        XContentBuilder builder = channel.newBuilder();
+                        builder.startObject();
+                        response.toXContent(builder, request);
+                        builder.endObject();
+                        channel.sendResponse(
+                                new BytesRestResponse(
+                                        RestStatus.OK,
+                                        builder));
+                    } catch (Exception e) {
+                        logger.debug("Failed to emit response.", e);
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    emitErrorResponse(channel, request, logger, e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.carrot2.elasticsearch;
+
+import org.carrot2.core.attribute.Init;
+import org.carrot2.core.attribute.Internal;
+import org.carrot2.core.attribute.Processing;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.matrix.factorization.IMatrixFactorization;
+import org.carrot2.matrix.factorization.IterativeMatrixFactorizationFactory;
+import org.carrot2.util.attribute.Attribute;
+import org.carrot2.util.attribute.Bindable;
+import org.carrot2.util.attribute.Input;
+import org.carrot2.util.attribute.constraint.IntRange;
+
+/**
+ * Randomized (sketch-based) approximation of the top <code>k</code> singular vectors:
+ * the matrix is multiplied by a random Gaussian matrix of <code>k + oversampling</code>
+ * columns, the resulting subspace is refined by a fixed number of power iterations and
+ * singular vectors are computed in that subspace. Much faster than an exact SVD on large
+ * inputs, at the price of slightly different base vectors (and clusters). Matrix products
+ * are split across the node's factorization executor (see
+ * {@link ClusteringPlugin#FACTORIZATION_THREADS_PROPERTY_NAME}).
+ *
+ * <p>Select it for Lingo with the
+ * <code>TermDocumentMatrixReducer.factorizationFactory</code> attribute; the
+ * {@link #OVERSAMPLING} and {@link #POWER_ITERATIONS} attributes tune the approximation.</p>
+ */
+@Bindable(prefix = "RandomizedSingularValueDecompositionFactory")
+public class RandomizedSingularValueDecompositionFactory extends IterativeMatrixFactorizationFactory {
+    public static final String OVERSAMPLING = "RandomizedSingularValueDecompositionFactory.oversampling";
+    public static final String POWER_ITERATIONS = "RandomizedSingularValueDecompositionFactory.powerIterations";
+
+    /**
+     * Number of random vectors sampled in addition to the number of requested singular
+     * vectors. More improves the accuracy of the last singular vectors.
+     */
+    @Init
+    @Processing
+    @Input
+    @Attribute(key = OVERSAMPLING)
+    @IntRange(min = 0)
+    public int oversampling = 10;
+
+    /**
+     * Number of power iterations refining the sampled subspace. More improves the
+     * accuracy when singular values decay slowly (as in term-document matrices), each
+     * costs two matrix products.
+     */
+    @Init
+    @Processing
+    @Input
+    @Attribute(key = POWER_ITERATIONS)
+    @IntRange(min = 0)
+    public int powerIterations = 2;
+
+    /**
+     * Seed of the random sample (fixed, so that results are repeatable).
+     */
+    private static final long SEED = 0x5eed;
+
+    /**
+     * Matrix kernels running on the node's factorization executor, set by the node.
+     */
+    @Processing
+    @Input
+    @Internal
+    @Attribute(key = ParallelMatrices.ATTRIBUTE_KEY)
+    public ParallelMatrices matrices = ParallelMatrices.SEQUENTIAL;
+
+    @Override
+    public IMatrixFactorization factorize(DoubleMatrix2D A) {
+        return matrices.subspaceSvd(A.toArray(), A.columns(), k, oversampling,
+                powerIterations, powerIterations, 0, SEED);
+    }
+}
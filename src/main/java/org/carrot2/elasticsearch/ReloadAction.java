@@ -0,0 +1,332 @@
+package org.carrot2.elasticsearch;
+
+import static org.carrot2.elasticsearch.LoggerUtils.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Reload the clustering controller (algorithm suite, attributes and lexical resources)
+ * on all (or selected) nodes, see {@link ControllerSingleton#reload()}.
+ */
+public class ReloadAction
+    extends Action<ReloadAction.ReloadActionRequest,
+                   ReloadAction.ReloadActionResponse,
+                   ReloadAction.ReloadActionRequestBuilder> {
+    /* Action name. */
+    public static final String NAME = "clustering/reload";
+
+    /* Reusable singleton. */
+    public static final ReloadAction INSTANCE = new ReloadAction();
+
+    private ReloadAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ReloadActionResponse newResponse() {
+        return new ReloadActionResponse();
+    }
+
+    @Override
+    public ReloadActionRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ReloadActionRequestBuilder(client);
+    }
+
+    /**
+     * A request for {@link ReloadAction} (node identifiers to reload, all nodes by default).
+     */
+    public static class ReloadActionRequest extends BaseNodesRequest<ReloadActionRequest> {
+        public ReloadActionRequest() {
+        }
+
+        public ReloadActionRequest(String... nodesIds) {
+            super(nodesIds);
+        }
+    }
+
+    /**
+     * A request builder for {@link ReloadAction}.
+     */
+    public static class ReloadActionRequestBuilder
+        extends NodesOperationRequestBuilder<ReloadActionRequest,
+                                             ReloadActionResponse,
+                                             ReloadActionRequestBuilder> {
+        public ReloadActionRequestBuilder(ElasticsearchClient client) {
+            super(client, ReloadAction.INSTANCE, new ReloadActionRequest());
+        }
+    }
+
+    /**
+     * A per-node request of {@link ReloadAction}.
+     */
+    public static class ReloadActionNodeRequest extends BaseNodeRequest {
+        public ReloadActionNodeRequest() {
+        }
+
+        ReloadActionNodeRequest(String nodeId, ReloadActionRequest request) {
+            super(request, nodeId);
+        }
+    }
+
+    /**
+     * A per-node response of {@link ReloadAction}: algorithms available after the reload.
+     */
+    public static class ReloadActionNodeResponse extends BaseNodeResponse {
+        private String [] algorithms;
+
+        public ReloadActionNodeResponse() {
+        }
+
+        ReloadActionNodeResponse(DiscoveryNode node, List<String> algorithms) {
+            super(node);
+            this.algorithms = algorithms.toArray(new String [algorithms.size()]);
+        }
+
+        public String [] getAlgorithms() {
+            return algorithms;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringArray(algorithms);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            algorithms = in.readStringArray();
+        }
+    }
+
+    /**
+     * A response of {@link ReloadAction}: per-node results and failures.
+     */
+    public static class ReloadActionResponse
+        extends BaseNodesResponse<ReloadActionNodeResponse> implements ToXContent {
+        static final class Fields {
+            static final XContentBuilderString NODES = new XContentBuilderString("nodes");
+            static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+            static final XContentBuilderString NODE = new XContentBuilderString("node");
+            static final XContentBuilderString REASON = new XContentBuilderString("reason");
+            static final XContentBuilderString ALGORITHMS = new XContentBuilderString("algorithms");
+        }
+
+        private String [] failedNodes;
+        private String [] failureReasons;
+
+        ReloadActionResponse() {
+        }
+
+        ReloadActionResponse(ClusterName clusterName, ReloadActionNodeResponse [] nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes);
+            failedNodes = new String [failures.size()];
+            failureReasons = new String [failures.size()];
+            for (int i = 0; i < failures.size(); i++) {
+                failedNodes[i] = failures.get(i).nodeId();
+                failureReasons[i] = ExceptionsHelper.detailedMessage(failures.get(i));
+            }
+        }
+
+        /**
+         * @return Returns identifiers of nodes which failed to reload (and kept their
+         * previous controller).
+         */
+        public String [] getFailedNodes() {
+            return failedNodes;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject(Fields.NODES);
+            for (ReloadActionNodeResponse node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                builder.array(Fields.ALGORITHMS, node.getAlgorithms());
+                builder.endObject();
+            }
+            builder.endObject();
+
+            builder.startArray(Fields.FAILURES);
+            for (int i = 0; i < failedNodes.length; i++) {
+                builder.startObject();
+                builder.field(Fields.NODE, failedNodes[i]);
+                builder.field(Fields.REASON, failureReasons[i]);
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(nodes.length);
+            for (ReloadActionNodeResponse node : nodes) {
+                node.writeTo(out);
+            }
+            out.writeStringArray(failedNodes);
+            out.writeStringArray(failureReasons);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            nodes = new ReloadActionNodeResponse [in.readVInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new ReloadActionNodeResponse();
+                nodes[i].readFrom(in);
+            }
+            failedNodes = in.readStringArray();
+            failureReasons = in.readStringArray();
+        }
+    }
+
+    /**
+     * A {@link TransportNodesAction} for {@link ReloadAction}. Reloads run on the
+     * generic thread pool.
+     */
+    public static class TransportReloadAction
+        extends TransportNodesAction<ReloadActionRequest,
+                                     ReloadActionResponse,
+                                     ReloadActionNodeRequest,
+                                     ReloadActionNodeResponse> {
+        private final ControllerSingleton controllerSingleton;
+
+        @Inject
+        public TransportReloadAction(Settings settings,
+                ClusterName clusterName,
+                ThreadPool threadPool,
+                ClusterService clusterService,
+                TransportService transportService,
+                ControllerSingleton controllerSingleton,
+                ActionFilters actionFilters,
+                IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings, ReloadAction.NAME, clusterName, threadPool, clusterService, transportService,
+                  actionFilters, indexNameExpressionResolver, ReloadActionRequest.class, ReloadActionNodeRequest.class,
+                  ThreadPool.Names.GENERIC);
+            this.controllerSingleton = controllerSingleton;
+        }
+
+        @Override
+        protected ReloadActionResponse newResponse(ReloadActionRequest request, AtomicReferenceArray responses) {
+            final List<ReloadActionNodeResponse> nodes = new ArrayList<>();
+            final List<FailedNodeException> failures = new ArrayList<>();
+            for (int i = 0; i < responses.length(); i++) {
+                Object response = responses.get(i);
+                if (response instanceof ReloadActionNodeResponse) {
+                    nodes.add((ReloadActionNodeResponse) response);
+                } else if (response instanceof FailedNodeException) {
+                    failures.add((FailedNodeException) response);
+                }
+            }
+            return new ReloadActionResponse(clusterName,
+                    nodes.toArray(new ReloadActionNodeResponse [nodes.size()]), failures);
+        }
+
+        @Override
+        protected ReloadActionNodeRequest newNodeRequest(String nodeId, ReloadActionRequest request) {
+            return new ReloadActionNodeRequest(nodeId, request);
+        }
+
+        @Override
+        protected ReloadActionNodeResponse newNodeResponse() {
+            return new ReloadActionNodeResponse();
+        }
+
+        @Override
+        protected ReloadActionNodeResponse nodeOperation(ReloadActionNodeRequest request) {
+            return new ReloadActionNodeResponse(clusterService.localNode(), controllerSingleton.reload());
+        }
+
+        @Override
+        protected boolean accumulateExceptions() {
+            return true;
+        }
+    }
+
+    /**
+     * {@link BaseRestHandler} for serving {@link ReloadAction}.
+     */
+    public static class RestReloadAction extends BaseRestHandler {
+        /* Action name suffix. */
+        public static String NAME = "_algorithms/_reload";
+
+        @Inject
+        public RestReloadAction(
+                Settings settings,
+                Client client,
+                RestController controller) {
+            super(settings, controller, client);
+
+            controller.registerHandler(Method.POST, "/" + NAME, this);
+            controller.registerHandler(Method.POST, "/" + NAME + "/{nodeId}", this);
+        }
+
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel, Client client) {
+            ReloadActionRequest actionRequest = new ReloadActionRequest(
+                    Strings.splitStringByCommaToArray(request.param("nodeId")));
+            client.execute(INSTANCE, actionRequest, new ActionListener<ReloadActionResponse>() {
+                @Override
+                public void onResponse(ReloadActionResponse response) {
+                    try {
+                        XContentBuilder builder = channel.newBuilder();
+                        builder.startObject();
+                        response.toXContent(builder, request);
+                        builder.endObject();
+                        channel.sendResponse(
+                                new BytesRestResponse(
+                                        RestStatus.OK,
+                                        builder));
+                    } catch (Exception e) {
+                        logger.debug("Failed to emit response.", e);
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    emitErrorResponse(channel, request, logger, e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
+
+/**
+ * Strategies for choosing a sample of search hits to be clustered.
+ *
+ * @see ClusteringActionRequest#setSample(int, SampleStrategy)
+ */
+public enum SampleStrategy {
+    /**
+     * The top-ranking hits.
+     */
+    TOP {
+        @Override
+        int [] select(float [] scores, int sampleSize, Random random) {
+            int [] selected = new int [sampleSize];
+            for (int i = 0; i < sampleSize; i++) {
+                selected[i] = i;
+            }
+            return selected;
+        }
+    },
+
+    /**
+     * Hits are split into equal-width score bands; each band contributes to the
+     * sample proportionally to the number of hits in it. Hits within a band are
+     * chosen at random.
+     */
+    STRATIFIED {
+        @Override
+        int [] select(float [] scores, int sampleSize, Random random) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (float score : scores) {
+                if (!Float.isNaN(score)) {
+                    min = Math.min(min, score);
+                    max = Math.max(max, score);
+                }
+            }
+
+            // No scores (sorted by field?) or all scores equal: a single band.
+            final int bands = (max > min) ? SCORE_BANDS : 1;
+            final float width = (max - min) / bands;
+
+            int [] bandOf = new int [scores.length];
+            int [] bandSize = new int [bands];
+            for (int i = 0; i < scores.length; i++) {
+                int band = 0;
+                if (bands > 1 && !Float.isNaN(scores[i])) {
+                    band = Math.min(bands - 1, (int) ((max - scores[i]) / width));
+                }
+                bandOf[i] = band;
+                bandSize[band]++;
+            }
+
+            // Allocate sample slots proportionally (largest remainder method).
+            int [] quota = new int [bands];
+            double [] remainder = new double [bands];
+            int allocated = 0;
+            for (int b = 0; b < bands; b++) {
+                double exact = (double) bandSize[b] * sampleSize / scores.length;
+                quota[b] = (int) exact;
+                remainder[b] = exact - quota[b];
+                allocated += quota[b];
+            }
+            while (allocated < sampleSize) {
+                int best = -1;
+                for (int b = 0; b < bands; b++) {
+                    if (quota[b] < bandSize[b] && (best < 0 || remainder[b] > remainder[best])) {
+                        best = b;
+                    }
+                }
+                quota[best]++;
+                remainder[best] = -1;
+                allocated++;
+            }
+
+            // Random selection within each band (selection sampling, preserves rank order).
+            int [] seen = new int [bands];
+            int [] taken = new int [bands];
+            int [] selected = new int [sampleSize];
+            int count = 0;
+            for (int i = 0; i < scores.length; i++) {
+                int b = bandOf[i];
+                int needed = quota[b] - taken[b];
+                int left = bandSize[b] - seen[b];
+                if (needed > 0 && random.nextInt(left) < needed) {
+                    selected[count++] = i;
+                    taken[b]++;
+                }
+                seen[b]++;
+            }
+            return selected;
+        }
+    },
+
+    /**
+     * A uniform random sample of all hits (reservoir sampling).
+     */
+    RESERVOIR {
+        @Override
+        int [] select(float [] scores, int sampleSize, Random random) {
+            int [] selected = new int [sampleSize];
+            for (int i = 0; i < scores.length; i++) {
+                if (i < sampleSize) {
+                    selected[i] = i;
+                } else {
+                    int j = random.nextInt(i + 1);
+                    if (j < sampleSize) {
+                        selected[j] = i;
+                    }
+                }
+            }
+            Arrays.sort(selected);
+            return selected;
+        }
+    };
+
+    /**
+     * The number of score bands for {@link #STRATIFIED}.
+     */
+    static final int SCORE_BANDS = 10;
+
+    /**
+     * A fixed seed so that identical requests result in identical samples (and clusters).
+     */
+    static final long SEED = 0xc2c2c2c2L;
+
+    /**
+     * Choose a sample of hits.
+     *
+     * @param scores Scores of all hits, in rank order.
+     * @param sampleSize The number of hits to choose, smaller than the number of scores.
+     * @return Indices of selected hits, in rank order.
+     */
+    abstract int [] select(float [] scores, int sampleSize, Random random);
+
+    /**
+     * Choose a sample of hits of at most <code>sampleSize</code> elements.
+     *
+     * @return Indices of selected hits, in rank order.
+     */
+    int [] sample(float [] scores, int sampleSize) {
+        if (sampleSize >= scores.length) {
+            return TOP.select(scores, scores.length, null);
+        }
+        return select(scores, sampleSize, new Random(SEED));
+    }
+
+    final static SampleStrategy [] cachedByOrdinal = values();
+    static SampleStrategy fromOrdinal(int ordinal) {
+        return cachedByOrdinal[ordinal];
+    }
+
+    static final HashMap<String,SampleStrategy> aliases;
+    static {
+        aliases = new HashMap<>();
+        for (SampleStrategy v : SampleStrategy.values()) {
+            aliases.put(v.name(), v);
+            aliases.put(v.name().toLowerCase(Locale.ROOT), v);
+        }
+    }
+
+    /**
+     * Same as {@link SampleStrategy#valueOf(String)} but does not throw
+     * an exception on invalid values (returns null).
+     */
+    static SampleStrategy valueOfCaseInsensitive(String enumValue) {
+        return aliases.get(enumValue);
+    }
+}
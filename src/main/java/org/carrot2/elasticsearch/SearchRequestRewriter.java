@@ -0,0 +1,346 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Rewrites the delegate {@link SearchRequest} of a {@link ClusteringActionRequest}
+ * so that it fetches what the field mapping needs. All modifications are made to
+ * the extra source of a copy of the original request (the extra source takes
+ * precedence over the request's source).
+ */
+final class SearchRequestRewriter {
+    static final String SOURCE = "_source";
+    static final String FIELDS = "fields";
+    static final String HIGHLIGHT = "highlight";
+    static final String HIGHLIGHT_FIELDS = "fields";
+    static final String FIELDDATA_FIELDS = "fielddata_fields";
+    static final String SIZE = "size";
+    static final String FROM = "from";
+    static final String QUERY = "query";
+    static final String SORT = "sort";
+    static final int DEFAULT_SIZE = 10;
+
+    /**
+     * Keep-alive of the search context between scroll batches.
+     */
+    static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private SearchRequestRewriter() {}
+
+    /**
+     * @return Returns <code>true</code> if the delegate search request should be
+     * restricted to what the field mapping needs.
+     */
+    static boolean minimizeFetch(ClusteringActionRequest request) {
+        return request.getMaxHits() == 0 || request.getRewriteSearchRequest();
+    }
+
+    /**
+     * @return Returns the search request to execute for the clustering request (the
+     * original search request if no rewriting is needed).
+     */
+    static SearchRequest rewrite(ClusteringActionRequest request) {
+        final boolean minimizeFetch = minimizeFetch(request);
+        final boolean shardSideExtraction = request.extractOnShards();
+        final Set<String> docValueFields = docValueFields(request);
+        final boolean scroll = request.getScrollBatchSize() > 0;
+
+        final SearchRequest original = request.getSearchRequest();
+        if (!minimizeFetch && !shardSideExtraction && docValueFields.isEmpty() && !scroll) {
+            return original;
+        }
+
+        final Map<String, Object> source = asMap(original.source());
+        final Map<String, Object> extraSource = asMap(original.extraSource());
+
+        if (minimizeFetch) {
+            restrictFetch(request, source, extraSource);
+        }
+
+        // Fields fetched only for the shard-side extraction, not returned with hits.
+        final Set<String> stripFields = new LinkedHashSet<>();
+        final Set<String> stripHighlights = new LinkedHashSet<>();
+        if (shardSideExtraction && minimizeFetch) {
+            for (FieldMappingSpec spec : request.getFieldMapping()) {
+                if (spec.source == FieldSource.FIELD || spec.source == FieldSource.DOCVALUES) {
+                    stripFields.add(spec.field);
+                } else if (spec.source == FieldSource.HIGHLIGHT) {
+                    stripHighlights.add(spec.field);
+                }
+            }
+        }
+
+        if (!docValueFields.isEmpty()) {
+            // Doc values are requested regardless of the rewrite, they're not fetched otherwise.
+            Object existing = extraSource.containsKey(FIELDDATA_FIELDS)
+                    ? extraSource.get(FIELDDATA_FIELDS)
+                    : source.get(FIELDDATA_FIELDS);
+            Set<String> fielddataFields = new LinkedHashSet<>();
+            if (existing instanceof List) {
+                for (Object field : (List<?>) existing) {
+                    fielddataFields.add(field.toString());
+                }
+            } else if (existing != null) {
+                fielddataFields.add(existing.toString());
+            }
+            if (shardSideExtraction) {
+                for (String field : docValueFields) {
+                    if (!fielddataFields.contains(field)) {
+                        stripFields.add(field);
+                    }
+                }
+            }
+            fielddataFields.addAll(docValueFields);
+            extraSource.put(FIELDDATA_FIELDS, new ArrayList<>(fielddataFields));
+        }
+
+        if (shardSideExtraction) {
+            extraSource.put(ClusteringFetchSubPhase.NAME,
+                    ClusteringFetchSubPhase.extensionSource(request.getFieldMapping(), request.getQueryHint(),
+                            stripFields, stripHighlights));
+        }
+
+        if (scroll) {
+            extraSource.put(SIZE, request.getScrollBatchSize());
+        }
+
+        SearchRequest searchRequest = new SearchRequest(original, original);
+        searchRequest.extraSource(extraSource);
+        if (scroll) {
+            searchRequest.scroll(SCROLL_KEEP_ALIVE);
+        }
+        return searchRequest;
+    }
+
+    /**
+     * @return Returns a copy of the search request restricted to the given shard numbers
+     * of one index, preferring shard copies on the given node. Alias filters (if the index
+     * was searched through filtering aliases) are combined with the query.
+     */
+    static SearchRequest forShards(SearchRequest original, String index, Collection<Integer> shards, String nodeId,
+                                   List<Map<String, Object>> aliasFilters) {
+        StringBuilder preference = new StringBuilder("_shards:");
+        String separator = "";
+        for (Integer shard : shards) {
+            preference.append(separator).append(shard);
+            separator = ",";
+        }
+        preference.append(";_prefer_node:").append(nodeId);
+
+        SearchRequest searchRequest = new SearchRequest(original, original);
+        searchRequest.indices(index);
+        searchRequest.preference(preference.toString());
+
+        if (!aliasFilters.isEmpty()) {
+            final Map<String, Object> extraSource = asMap(original.extraSource());
+            Object query = extraSource.containsKey(QUERY) ? extraSource.get(QUERY) : asMap(original.source()).get(QUERY);
+            if (query == null) {
+                query = Collections.singletonMap("match_all", Collections.emptyMap());
+            }
+
+            final Object filter;
+            if (aliasFilters.size() == 1) {
+                filter = aliasFilters.get(0);
+            } else {
+                filter = Collections.singletonMap("bool", Collections.singletonMap("should", aliasFilters));
+            }
+
+            final Map<String, Object> bool = new LinkedHashMap<>();
+            bool.put("must", query);
+            bool.put("filter", filter);
+            extraSource.put(QUERY, Collections.singletonMap("bool", bool));
+            searchRequest.extraSource(extraSource);
+        }
+        return searchRequest;
+    }
+
+    /**
+     * @return Returns a copy of the search request fetching at most <code>size</code> hits.
+     */
+    static SearchRequest limitSize(SearchRequest original, int size) {
+        final Map<String, Object> extraSource = asMap(original.extraSource());
+        extraSource.put(SIZE, Math.min(size, requestedSize(original)));
+
+        SearchRequest searchRequest = new SearchRequest(original, original);
+        searchRequest.extraSource(extraSource);
+        return searchRequest;
+    }
+
+    /**
+     * @return Returns a copy of the search request fetching the first <code>size</code> hits
+     * (<code>from</code> reset to zero).
+     */
+    static SearchRequest topHits(SearchRequest original, int size) {
+        final Map<String, Object> extraSource = asMap(original.extraSource());
+        extraSource.put(FROM, 0);
+        extraSource.put(SIZE, size);
+
+        SearchRequest searchRequest = new SearchRequest(original, original);
+        searchRequest.extraSource(extraSource);
+        return searchRequest;
+    }
+
+    /**
+     * @return Returns the <code>from</code> offset of a search request.
+     */
+    static int requestedFrom(SearchRequest request) {
+        return requestedInt(request, FROM, 0);
+    }
+
+    /**
+     * @return Returns the <code>size</code> of a search request.
+     */
+    static int requestedSize(SearchRequest request) {
+        return requestedInt(request, SIZE, DEFAULT_SIZE);
+    }
+
+    /**
+     * @return Returns <code>true</code> if a search request sorts hits (other than by score).
+     */
+    static boolean isSorted(SearchRequest request) {
+        return asMap(request.extraSource()).get(SORT) != null ||
+               asMap(request.source()).get(SORT) != null;
+    }
+
+    private static int requestedInt(SearchRequest request, String key, int defaultValue) {
+        final Map<String, Object> extraSource = asMap(request.extraSource());
+        Object requested = extraSource.containsKey(key) ? extraSource.get(key) : asMap(request.source()).get(key);
+        return requested == null ? defaultValue : Integer.parseInt(requested.toString());
+    }
+
+    /**
+     * Restrict source filtering, fields and highlighting to the mapped fields.
+     */
+    private static void restrictFetch(ClusteringActionRequest request,
+                                      Map<String, Object> source,
+                                      Map<String, Object> extraSource) {
+        final boolean shardSideExtraction = request.extractOnShards();
+
+        Set<String> sourcePaths = new LinkedHashSet<>();
+        Set<String> fields = new LinkedHashSet<>();
+        Set<String> highlightFields = new LinkedHashSet<>();
+        for (FieldMappingSpec spec : request.getFieldMapping()) {
+            switch (spec.source) {
+                case SOURCE:
+                case KWIC:
+                    sourcePaths.add(spec.field);
+                    break;
+                case FIELD:
+                    fields.add(spec.field);
+                    break;
+                case HIGHLIGHT:
+                    highlightFields.add(spec.field);
+                    break;
+                case TERMVECTORS:
+                case DOCVALUES:
+                    break;
+                default:
+                    throw org.carrot2.elasticsearch.Preconditions.unreachable();
+            }
+        }
+
+        // With shard-side extraction the source is read on the shard, never transferred.
+        if (shardSideExtraction || sourcePaths.isEmpty()) {
+            extraSource.put(SOURCE, false);
+        } else {
+            extraSource.put(SOURCE, new ArrayList<>(sourcePaths));
+        }
+
+        extraSource.put(FIELDS, new ArrayList<>(fields));
+
+        Map<String, Object> highlight = effectiveHighlight(source, extraSource);
+        if (highlightFields.isEmpty()) {
+            extraSource.remove(HIGHLIGHT);
+            if (highlight != null) {
+                // Highlighting defined in the request's source must be overridden explicitly.
+                Map<String, Object> empty = new LinkedHashMap<>();
+                empty.put(HIGHLIGHT_FIELDS, Collections.emptyMap());
+                extraSource.put(HIGHLIGHT, empty);
+            }
+        } else {
+            if (highlight == null) {
+                // No highlighter configuration: plain fragments, no markup.
+                highlight = new LinkedHashMap<>();
+                highlight.put("pre_tags", Collections.singletonList(""));
+                highlight.put("post_tags", Collections.singletonList(""));
+            }
+
+            Map<String, Object> existing = highlightFields(highlight.get(HIGHLIGHT_FIELDS));
+            Map<String, Object> restricted = new LinkedHashMap<>();
+            for (String field : highlightFields) {
+                restricted.put(field, existing.containsKey(field) ? existing.get(field) : new LinkedHashMap<>());
+            }
+            highlight.put(HIGHLIGHT_FIELDS, restricted);
+            extraSource.put(HIGHLIGHT, highlight);
+        }
+    }
+
+    /**
+     * @return Returns the fields of all {@link FieldSource#DOCVALUES} mappings.
+     */
+    private static Set<String> docValueFields(ClusteringActionRequest request) {
+        Set<String> fields = new LinkedHashSet<>();
+        for (FieldMappingSpec spec : request.getFieldMapping()) {
+            if (spec.source == FieldSource.DOCVALUES) {
+                fields.add(spec.field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return Returns a modifiable copy of the highlighter configuration which takes
+     * effect for the request (extra source overrides source) or <code>null</code>.
+     */
+    private static Map<String, Object> effectiveHighlight(Map<String, Object> source,
+                                                          Map<String, Object> extraSource) {
+        Object highlight = extraSource.containsKey(HIGHLIGHT) ? extraSource.get(HIGHLIGHT) : source.get(HIGHLIGHT);
+        if (highlight instanceof Map) {
+            return asMap(highlight);
+        }
+        return null;
+    }
+
+    /**
+     * @return Returns per-field highlighter options, given either as an object or as an
+     * array of single-field objects (the form which preserves the order of fields).
+     */
+    private static Map<String, Object> highlightFields(Object fields) {
+        if (fields instanceof List) {
+            Map<String, Object> merged = new LinkedHashMap<>();
+            for (Object field : (List<?>) fields) {
+                merged.putAll(asMap(field));
+            }
+            return merged;
+        }
+        return asMap(fields);
+    }
+
+    private static Map<String, Object> asMap(BytesReference bytes) {
+        if (bytes == null || bytes.length() == 0) {
+            return new LinkedHashMap<>();
+        }
+        return new LinkedHashMap<>(XContentHelper.convertToMap(bytes, true).v2());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        if (value instanceof Map) {
+            return new LinkedHashMap<>((Map<String, Object>) value);
+        }
+        return new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,85 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * Rebuilds the analyzed token stream of a field from its term vector (terms with
+ * positions). The result is a whitespace-separated sequence of terms, in position
+ * order, which Carrot2's tokenizer splits trivially.
+ */
+final class TermVectorText {
+    /**
+     * Position gaps larger than this are considered boundaries between separate
+     * values of a multi-valued field (see <code>position_increment_gap</code>).
+     * Such boundaries are separated with a single dot to prevent phrase gluing.
+     */
+    static final int VALUE_BOUNDARY_GAP = 10;
+
+    private TermVectorText() {}
+
+    /**
+     * @return Terms of the given term vector joined in position order or
+     * <code>null</code> if the term vector has no positions.
+     */
+    static String rebuild(Terms terms) throws IOException {
+        if (terms == null || !terms.hasPositions()) {
+            return null;
+        }
+
+        int count = 0;
+        int [] positions = new int [16];
+        String [] tokens = new String [16];
+
+        final TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            final String token = term.utf8ToString();
+            postings = termsEnum.postings(postings, PostingsEnum.POSITIONS);
+            if (postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                continue;
+            }
+            for (int freq = postings.freq(); freq > 0; freq--) {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                    tokens = Arrays.copyOf(tokens, count * 2);
+                }
+                positions[count] = postings.nextPosition();
+                tokens[count] = token;
+                count++;
+            }
+        }
+
+        final int [] p = positions;
+        final String [] t = tokens;
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return Integer.compare(p[i], p[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int tmpPos = p[i]; p[i] = p[j]; p[j] = tmpPos;
+                String tmpTok = t[i]; t[i] = t[j]; t[j] = tmpTok;
+            }
+        }.sort(0, count);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(p[i] - p[i - 1] > VALUE_BOUNDARY_GAP ? " . " : " ");
+            }
+            sb.append(t[i]);
+        }
+        return sb.toString();
+    }
+}
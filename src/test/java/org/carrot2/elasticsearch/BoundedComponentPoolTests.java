@@ -0,0 +1,158 @@
+package org.carrot2.elasticsearch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.util.pool.IActivationListener;
+import org.carrot2.util.pool.IDisposalListener;
+import org.carrot2.util.pool.IInstantiationListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Bounds, eviction and failures of {@link BoundedComponentPool}.
+ */
+public class BoundedComponentPoolTests extends RandomizedTest {
+    public static class Component {
+    }
+
+    private final AtomicInteger instantiated = new AtomicInteger();
+    private final AtomicInteger disposed = new AtomicInteger();
+
+    private BoundedComponentPool<Object, String> pool(final BoundedComponentPool.Limits limits,
+                                                      IActivationListener<Object, String> activationListener) {
+        BoundedComponentPool<Object, String> pool = new BoundedComponentPool<>(
+                new BoundedComponentPool.LimitsProvider<String>() {
+                    @Override
+                    public BoundedComponentPool.Limits limits(String parameter) {
+                        return limits;
+                    }
+                });
+        pool.init(new IInstantiationListener<Object, String>() {
+            @Override
+            public void objectInstantiated(Object object, String parameter) {
+                instantiated.incrementAndGet();
+            }
+        }, activationListener, null, new IDisposalListener<Object, String>() {
+            @Override
+            public void dispose(Object object, String parameter) {
+                disposed.incrementAndGet();
+            }
+        });
+        return pool;
+    }
+
+    @Test
+    public void testBorrowWaitsAtMax() throws Exception {
+        final BoundedComponentPool<Object, String> pool = pool(new BoundedComponentPool.Limits(0, 1, -1, -1), null);
+        final Component first = pool.borrowObject(Component.class, "c");
+
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        final AtomicReference<Object> second = new AtomicReference<>();
+        Thread borrower = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    second.set(pool.borrowObject(Component.class, "c"));
+                    borrowed.countDown();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        borrower.start();
+
+        Assertions.assertThat(borrowed.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        pool.returnObject(first, "c");
+        Assertions.assertThat(borrowed.await(10, TimeUnit.SECONDS)).isTrue();
+        borrower.join();
+
+        Assertions.assertThat(second.get()).isSameAs(first);
+        Assertions.assertThat(instantiated.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testBorrowRejectedAfterWaitTimeout() throws Exception {
+        BoundedComponentPool<Object, String> pool = pool(new BoundedComponentPool.Limits(0, 1, -1, 100), null);
+        pool.borrowObject(Component.class, "c");
+
+        try {
+            pool.borrowObject(Component.class, "c");
+            throw Preconditions.unreachable();
+        } catch (EsRejectedExecutionException e) {
+            Assertions.assertThat(e.getMessage()).contains("component [c]");
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        BoundedComponentPool<Object, String> pool = pool(new BoundedComponentPool.Limits(0, 3, 0, -1), null);
+        Component a = pool.borrowObject(Component.class, "c");
+        Component b = pool.borrowObject(Component.class, "c");
+        pool.returnObject(a, "c");
+
+        // Borrowed instances are never evicted.
+        Assertions.assertThat(pool.evictIdle()).isEqualTo(1);
+        pool.returnObject(b, "c");
+        Assertions.assertThat(pool.evictIdle()).isEqualTo(1);
+        Assertions.assertThat(disposed.get()).isEqualTo(2);
+
+        pool.borrowObject(Component.class, "c");
+        Assertions.assertThat(instantiated.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testMinimumCreatedAndRetained() throws Exception {
+        final int min = randomIntBetween(1, 3);
+        BoundedComponentPool<Object, String> pool = pool(new BoundedComponentPool.Limits(min, min + 2, 0, -1), null);
+
+        Assertions.assertThat(pool.ensureMinimum(Component.class, "c")).isEqualTo(min);
+        Assertions.assertThat(pool.ensureMinimum(Component.class, "c")).isEqualTo(0);
+        Assertions.assertThat(instantiated.get()).isEqualTo(min);
+        Assertions.assertThat(pool.evictIdle()).isEqualTo(0);
+
+        Object [] borrowed = new Object [min + 2];
+        for (int i = 0; i < borrowed.length; i++) {
+            borrowed[i] = pool.borrowObject(Component.class, "c");
+        }
+        for (Object instance : borrowed) {
+            pool.returnObject(instance, "c");
+        }
+        Assertions.assertThat(instantiated.get()).isEqualTo(min + 2);
+
+        Assertions.assertThat(pool.evictIdle()).isEqualTo(2);
+        Assertions.assertThat(pool.evictIdle()).isEqualTo(0);
+        Assertions.assertThat(disposed.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testActivationFailureReleasesInstance() throws Exception {
+        final AtomicInteger activations = new AtomicInteger();
+        BoundedComponentPool<Object, String> pool = pool(new BoundedComponentPool.Limits(0, 1, -1, 100),
+                new IActivationListener<Object, String>() {
+                    @Override
+                    public void activate(Object object, String parameter) {
+                        if (activations.incrementAndGet() == 1) {
+                            throw new IllegalStateException("activation failed");
+                        }
+                    }
+                });
+
+        try {
+            pool.borrowObject(Component.class, "c");
+            throw Preconditions.unreachable();
+        } catch (IllegalStateException e) {
+            Assertions.assertThat(e).hasMessage("activation failed");
+        }
+        Assertions.assertThat(disposed.get()).isEqualTo(1);
+
+        // Would time out if the failed instance still held the only slot.
+        Assertions.assertThat(pool.borrowObject(Component.class, "c")).isNotNull();
+        Assertions.assertThat(instantiated.get()).isEqualTo(2);
+    }
+}
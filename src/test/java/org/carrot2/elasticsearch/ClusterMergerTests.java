@@ -0,0 +1,161 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Arrays;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Merging and limiting of partial {@link DocumentGroup} trees by {@link ClusterMerger}.
+ */
+public class ClusterMergerTests extends RandomizedTest {
+    private static DocumentGroup group(String label, String... documents) {
+        DocumentGroup group = new DocumentGroup();
+        group.setLabel(label);
+        group.setPhrases(new String [] {label});
+        group.setDocumentReferences(documents);
+        return group;
+    }
+
+    private static DocumentGroup otherTopics(String... documents) {
+        DocumentGroup group = group("Other Topics", documents);
+        group.setOtherTopics(true);
+        return group;
+    }
+
+    private static DocumentGroup [] groups(DocumentGroup... groups) {
+        return groups;
+    }
+
+    @Test
+    public void testSimilarLabelsMerged() {
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.asList(
+                groups(group("Data Mining Software", "a1", "a2", "a3"), group("Clustering", "a4", "a5")),
+                groups(group("data-mining software tools", "b1", "b2"), group("Search Engines", "b3"))));
+
+        Assertions.assertThat(merged).hasSize(3);
+        Assertions.assertThat(merged[0].getLabel()).isEqualTo("Data Mining Software");
+        Assertions.assertThat(merged[0].getDocumentReferences()).containsExactly("a1", "a2", "a3", "b1", "b2");
+        Assertions.assertThat(merged[0].getPhrases())
+            .containsExactly("Data Mining Software", "data-mining software tools");
+        Assertions.assertThat(merged[1].getLabel()).isEqualTo("Clustering");
+        Assertions.assertThat(merged[2].getLabel()).isEqualTo("Search Engines");
+
+        for (int i = 0; i < merged.length; i++) {
+            Assertions.assertThat(merged[i].getId()).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void testCommonPhraseMerged() {
+        DocumentGroup first = group("Knowledge Discovery", "a1", "a2");
+        first.setPhrases(new String [] {"Knowledge Discovery", "Data Mining"});
+        DocumentGroup second = group("Mining, data", "b1");
+        second.setPhrases(new String [] {"data mining"});
+
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.asList(groups(first), groups(second)));
+        Assertions.assertThat(merged).hasSize(1);
+        Assertions.assertThat(merged[0].getLabel()).isEqualTo("Knowledge Discovery");
+        Assertions.assertThat(merged[0].getDocumentReferences()).containsExactly("a1", "a2", "b1");
+    }
+
+    @Test
+    public void testOverlappingDocumentsNotMerged() {
+        // Overlapping groups of one partial result (as Lingo creates) are kept apart.
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.asList(
+                groups(group("Java Programming", "a1", "a2", "a3", "a4"), group("Coffee", "a2", "a3", "a4")),
+                groups(group("Tea", "b1", "b2"))));
+
+        Assertions.assertThat(merged).hasSize(3);
+        Assertions.assertThat(merged[1].getLabel()).isEqualTo("Coffee");
+        Assertions.assertThat(merged[1].getDocumentReferences()).containsExactly("a2", "a3", "a4");
+    }
+
+    @Test
+    public void testLanguagesNotMerged() {
+        DocumentGroup english = group("Data Mining", "a1");
+        english.setLanguage("en");
+        DocumentGroup german = group("Data Mining", "b1");
+        german.setLanguage("de");
+
+        Assertions.assertThat(ClusterMerger.merge(Arrays.asList(groups(english), groups(german)))).hasSize(2);
+    }
+
+    @Test
+    public void testOtherTopicsCombinedLast() {
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.asList(
+                groups(otherTopics("a1", "a2", "a3", "a4"), group("Clustering", "a5", "a6")),
+                groups(group("Search", "b1"), otherTopics("b2"))));
+
+        Assertions.assertThat(merged).hasSize(3);
+        Assertions.assertThat(merged[2].isOtherTopics()).isTrue();
+        Assertions.assertThat(merged[2].getDocumentReferences()).containsExactly("a1", "a2", "a3", "a4", "b2");
+    }
+
+    @Test
+    public void testSubgroupsMerged() {
+        DocumentGroup first = group("Databases", "a1");
+        first.setSubgroups(groups(group("SQL", "a2"), group("Indexes", "a3")));
+        DocumentGroup second = group("Databases", "b1");
+        second.setSubgroups(groups(group("sql", "b2")));
+
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.asList(groups(first), groups(second)));
+        Assertions.assertThat(merged).hasSize(1);
+
+        DocumentGroup [] subgroups = merged[0].getSubgroups();
+        Assertions.assertThat(subgroups).hasSize(2);
+        Assertions.assertThat(subgroups[0].getDocumentReferences()).containsExactly("a2", "b2");
+        Assertions.assertThat(subgroups[1].getDocumentReferences()).containsExactly("a3");
+
+        // Depth-first identifiers.
+        Assertions.assertThat(merged[0].getId()).isEqualTo(0);
+        Assertions.assertThat(subgroups[0].getId()).isEqualTo(1);
+        Assertions.assertThat(subgroups[1].getId()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLimitMovesDocumentsToOtherTopics() {
+        DocumentGroup dropped = group("Tea", "d1", "d2");
+        dropped.setSubgroups(groups(group("Green Tea", "d3")));
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.<DocumentGroup[]> asList(groups(
+                group("Java", "k1", "k2", "k3", "k4"),
+                group("Coffee", "k3", "k4", "k5"),
+                dropped,
+                group("Cocoa", "k1"),
+                otherTopics("o1"))));
+
+        DocumentGroup [] limited = ClusterMerger.limit(merged, 2);
+        Assertions.assertThat(limited).hasSize(3);
+        Assertions.assertThat(limited[0].getLabel()).isEqualTo("Java");
+        Assertions.assertThat(limited[1].getLabel()).isEqualTo("Coffee");
+
+        // Documents of kept groups are not moved.
+        Assertions.assertThat(limited[2].isOtherTopics()).isTrue();
+        Assertions.assertThat(limited[2].getDocumentReferences()).containsExactly("o1", "d1", "d2", "d3");
+        for (int i = 0; i < limited.length; i++) {
+            Assertions.assertThat(limited[i].getId()).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void testLimitCreatesOtherTopics() {
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.<DocumentGroup[]> asList(groups(
+                group("Java", "k1", "k2"), group("Coffee", "k3"))));
+
+        DocumentGroup [] limited = ClusterMerger.limit(merged, 1);
+        Assertions.assertThat(limited).hasSize(2);
+        Assertions.assertThat(limited[1].isOtherTopics()).isTrue();
+        Assertions.assertThat(limited[1].getLabel()).isEqualTo("Other Topics");
+        Assertions.assertThat(limited[1].getDocumentReferences()).containsExactly("k3");
+    }
+
+    @Test
+    public void testLimitKeepsAllGroups() {
+        DocumentGroup [] merged = ClusterMerger.merge(Arrays.<DocumentGroup[]> asList(groups(
+                group("Java", "k1", "k2"), group("Coffee", "k3"), otherTopics("o1"))));
+
+        Assertions.assertThat(ClusterMerger.limit(merged, randomIntBetween(2, 10))).isSameAs(merged);
+    }
+}
@@ -1,9 +1,17 @@
 package org.carrot2.elasticsearch;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,19 +19,39 @@ import org.assertj.core.api.Assertions;
 import org.carrot2.clustering.lingo.LingoClusteringAlgorithmDescriptor;
 import org.carrot2.clustering.stc.STCClusteringAlgorithmDescriptor;
 import org.carrot2.core.LanguageCode;
+import org.carrot2.elasticsearch.Carrot2Aggregation.Carrot2AggregationBuilder;
+import org.carrot2.elasticsearch.Carrot2Aggregation.InternalCarrot2;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
 import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequestBuilder;
 import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
 import org.carrot2.elasticsearch.ListAlgorithmsAction.ListAlgorithmsActionResponse;
+import org.carrot2.elasticsearch.MultiClusteringAction.MultiClusteringActionRequestBuilder;
+import org.carrot2.elasticsearch.MultiClusteringAction.MultiClusteringActionResponse;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionNodeResponse;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionRequestBuilder;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionResponse;
+import org.carrot2.elasticsearch.ReloadAction.ReloadActionNodeResponse;
+import org.carrot2.elasticsearch.ReloadAction.ReloadActionRequestBuilder;
+import org.carrot2.elasticsearch.ReloadAction.ReloadActionResponse;
 import org.carrot2.text.clustering.MultilingualClusteringDescriptor;
 import org.carrot2.text.clustering.MultilingualClustering.LanguageAggregationStrategy;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.sort.SortOrder;
 import org.json.JSONObject;
 import org.junit.Test;
 import org.carrot2.elasticsearch.ListAlgorithmsAction.ListAlgorithmsActionRequestBuilder;
@@ -32,6 +60,27 @@ import org.carrot2.elasticsearch.ListAlgorithmsAction.ListAlgorithmsActionReques
  * API tests for {@link ClusteringAction}.
  */
 public class ClusteringActionIT extends SampleIndexTestCase {
+    /**
+     * An algorithm added to the suite by {@link #testReload()}.
+     */
+    private static final String RELOADED_ALGORITHM =
+            "<component-suite>\n" +
+            "  <algorithms>\n" +
+            "    <algorithm component-class=\"org.carrot2.clustering.stc.STCClusteringAlgorithm\" id=\"reloaded\"\n" +
+            "               attribute-sets-resource=\"stc-attributes.xml\">\n" +
+            "      <label>Reloaded</label>\n" +
+            "    </algorithm>\n" +
+            "  </algorithms>\n" +
+            "</component-suite>\n";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put(ClusteringPlugin.POOLS_PROPERTY_NAME + ".isolated.max_concurrent", 1)
+                .build();
+    }
+
     @Test
     public void testComplexQuery() throws IOException {
         ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
@@ -54,6 +103,686 @@ public class ClusteringActionIT extends SampleIndexTestCase {
         checkJsonSerialization(result);
     }
 
+    @Test
+    public void testTermVectorFields() throws IOException {
+        // Content is analyzed with a reversing analyzer and term vectors are stored, so
+        // words of labels can only come from the analyzed (reversed) tokens.
+        final String index = "termvectors";
+        client.admin().indices().prepareCreate(index)
+            .setSettings(XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("analysis")
+                        .startObject("analyzer")
+                            .startObject("reversed")
+                                .field("tokenizer", "standard")
+                                .field("filter", new String [] {"lowercase", "reverse"})
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject().string())
+            .addMapping("test", XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("test")
+                        .startObject("properties")
+                            .startObject("content")
+                                .field("type", "string")
+                                .field("analyzer", "reversed")
+                                .field("term_vector", "with_positions_offsets")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject())
+            .get();
+
+        Set<String> words = new HashSet<>();
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (String[] data : SampleDocumentData.SAMPLE_DATA) {
+            bulk.add(client.prepareIndex(index, "test")
+                .setSource(XContentFactory.jsonBuilder()
+                    .startObject()
+                        .field("content", data[2])
+                    .endObject()));
+            Collections.addAll(words, data[2].toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"));
+        }
+        bulk.setRefresh(true).get();
+        ensureGreen(index);
+
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("")
+            .addTermVectorFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(index)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.matchAllQuery()))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        int reversed = 0;
+        for (DocumentGroup group : result.getDocumentGroups()) {
+            if (group.isOtherTopics()) {
+                continue;
+            }
+            for (String word : group.getLabel().toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                String original = new StringBuilder(word).reverse().toString();
+                if (!words.contains(word) && words.contains(original)) {
+                    reversed++;
+                }
+            }
+        }
+        Assertions.assertThat(reversed)
+            .describedAs("Words of labels reversed by the analyzer")
+            .isGreaterThan(0);
+    }
+
+    @Test
+    public void testKwicFields() throws IOException {
+        for (boolean shardSideExtraction : new boolean [] {false, true}) {
+            ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setShardSideExtraction(shardSideExtraction)
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .addKwicFieldMapping("content", LogicalField.CONTENT)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setSize(100)
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+
+            checkValid(result);
+            checkJsonSerialization(result);
+        }
+
+        // The assembled content is cut around query terms.
+        Map<String, Object> extension = ClusteringFetchSubPhase.extensionSource(
+                Collections.singletonList(new FieldMappingSpec("content", LogicalField.CONTENT, FieldSource.KWIC)),
+                "data mining", Collections.<String> emptyList(), Collections.<String> emptyList());
+        SearchResponse response = client.prepareSearch()
+                .setIndices(INDEX_NAME)
+                .setTypes("test")
+                .setSize(100)
+                .setQuery(QueryBuilders.termQuery("content", "data"))
+                .setExtraSource(Collections.<String, Object> singletonMap(ClusteringFetchSubPhase.NAME, extension))
+                .get();
+
+        int contentLength = 0;
+        int assembledLength = 0;
+        Assertions.assertThat(response.getHits().hits()).isNotEmpty();
+        for (SearchHit hit : response.getHits()) {
+            String assembled = hit.field(ClusteringFetchSubPhase.hitFieldName(LogicalField.CONTENT)).getValue();
+            Assertions.assertThat(assembled.toLowerCase(Locale.ROOT)).contains("data");
+            assembledLength += assembled.length();
+            contentLength += ((String) hit.getSource().get("content")).length();
+        }
+        Assertions.assertThat(assembledLength).isLessThan(contentLength);
+    }
+
+    @Test
+    public void testDocValuesFields() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .addDocValuesFieldMapping("lang", LogicalField.LANGUAGE)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        for (SearchHit hit : result.getSearchResponse().getHits()) {
+            Assertions.assertThat(hit.getFields()).containsKey("lang");
+        }
+    }
+
+    @Test
+    public void testShardSideExtraction() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setShardSideExtraction(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data"))
+                    .setFetchSource(false))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        for (SearchHit hit : result.getSearchResponse().getHits()) {
+            for (String fieldName : hit.getFields().keySet()) {
+                Assertions.assertThat(fieldName)
+                    .doesNotStartWith(ClusteringFetchSubPhase.HIT_FIELD_PREFIX);
+            }
+        }
+    }
+
+    @Test
+    public void testShardSideExtractionStripsFields() throws IOException {
+        // Shard-side extraction is the default; fields fetched only for clustering
+        // are not returned with hits.
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setRewriteSearchRequest(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .addDocValuesFieldMapping("lang", LogicalField.LANGUAGE)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Assertions.assertThat(result.getSearchResponse().getHits().hits()).isNotEmpty();
+        for (SearchHit hit : result.getSearchResponse().getHits()) {
+            Assertions.assertThat(hit.getSource()).isNull();
+            Assertions.assertThat(hit.getFields()).doesNotContainKey("lang");
+            for (String fieldName : hit.getFields().keySet()) {
+                Assertions.assertThat(fieldName)
+                    .doesNotStartWith(ClusteringFetchSubPhase.HIT_FIELD_PREFIX);
+            }
+        }
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        for (SampleStrategy strategy : SampleStrategy.values()) {
+            ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setSample(20, strategy)
+                .addFieldMapping("title", LogicalField.TITLE)
+                .addFieldMapping("content", LogicalField.CONTENT)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setSize(100)
+                        .setQuery(QueryBuilders.termQuery("_all", "data"))
+                        .addFields("title", "content"))
+                .execute().actionGet();
+
+            checkValid(result);
+            checkJsonSerialization(result);
+
+            Assertions.assertThat(result.getSearchResponse().getHits().hits().length)
+                .isGreaterThan(20);
+            Assertions.assertThat(result.getInfo())
+                .containsEntry(ClusteringActionResponse.Fields.Info.SAMPLE_SIZE, "20");
+
+            Set<String> clustered = new HashSet<>();
+            ArrayDeque<DocumentGroup> queue = new ArrayDeque<>(Arrays.asList(result.getDocumentGroups()));
+            while (!queue.isEmpty()) {
+                DocumentGroup group = queue.pop();
+                clustered.addAll(Arrays.asList(group.getDocumentReferences()));
+                queue.addAll(Arrays.asList(group.getSubgroups()));
+            }
+            Assertions.assertThat(clustered.size()).isLessThanOrEqualTo(20);
+        }
+    }
+
+    @Test
+    public void testNegativeSampleSize() throws IOException {
+        try {
+            new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setSample(-1, SampleStrategy.TOP)
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+            throw Preconditions.unreachable();
+        } catch (ActionRequestValidationException e) {
+            Assertions.assertThat(e)
+                .hasMessageContaining("Sample size must not be negative.");
+        }
+    }
+
+    @Test
+    public void testRewriteSearchRequest() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setRewriteSearchRequest(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addHighlightedFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        for (SearchHit hit : result.getSearchResponse().getHits()) {
+            Assertions.assertThat(hit.getSource().keySet()).containsOnly("title");
+            Assertions.assertThat(hit.getHighlightFields().keySet()).containsOnly("content");
+        }
+    }
+
+    @Test
+    public void testScroll() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setScroll(10, 25, ClusteringActionRequest.DEFAULT_SCROLL_MAX_CHARS)
+            .setMaxHits(10) // Clusters reference documents from all batches.
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Assertions.assertThat(result.getSearchResponse().getHits().hits().length)
+            .isLessThanOrEqualTo(10);
+        Assertions.assertThat(Integer.parseInt(result.getInfo().get(ClusteringActionResponse.Fields.Info.SCROLL_BATCHES)))
+            .isGreaterThan(1);
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.SCROLL_DOCUMENTS, "25")
+            .containsEntry(ClusteringActionResponse.Fields.Info.SCROLL_TRUNCATED, "true");
+    }
+
+    @Test
+    public void testScrollCharacterLimit() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setScroll(10, 1000, 5000)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+
+        // No batches are processed once the character limit is reached.
+        int documents = Integer.parseInt(result.getInfo().get(ClusteringActionResponse.Fields.Info.SCROLL_DOCUMENTS));
+        Assertions.assertThat(documents).isLessThan(1000);
+        Assertions.assertThat(Integer.parseInt(result.getInfo().get(ClusteringActionResponse.Fields.Info.SCROLL_BATCHES)))
+            .isEqualTo(documents / 10 + 1);
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.SCROLL_TRUNCATED, "true");
+    }
+
+    @Test
+    public void testDistributed() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setDistributed(true)
+            .setMaxHits(100) // Clusters may reference hits of other nodes.
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Assertions.assertThat(Integer.parseInt(result.getInfo().get(ClusteringActionResponse.Fields.Info.DISTRIBUTED_NODES)))
+            .isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    public void testDistributedMultipleIndices() throws IOException {
+        // Shard numbers overlap between indices, all shards of both must be clustered.
+        final String index = "distributed";
+        client.admin().indices().prepareCreate(index)
+            .setSettings(Settings.builder()
+                .put("index.number_of_shards", 3)
+                .put("index.number_of_replicas", 0))
+            .get();
+
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (String[] data : SampleDocumentData.SAMPLE_DATA) {
+            bulk.add(client.prepareIndex(index, "test")
+                .setSource(XContentFactory.jsonBuilder()
+                    .startObject()
+                        .field("title", data[1])
+                        .field("content", data[2])
+                    .endObject()));
+        }
+        bulk.setRefresh(true).get();
+        ensureGreen(index);
+
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setDistributed(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME, index)
+                    .setTypes("test")
+                    .setSize(1000)
+                    .setQuery(QueryBuilders.matchAllQuery()))
+            .execute().actionGet();
+
+        checkValid(result);
+
+        SearchResponse plain = client.prepareSearch()
+            .setIndices(INDEX_NAME, index)
+            .setTypes("test")
+            .setSize(0)
+            .setQuery(QueryBuilders.matchAllQuery())
+            .get();
+
+        Set<String> clustered = new HashSet<>();
+        ArrayDeque<DocumentGroup> queue = new ArrayDeque<>(Arrays.asList(result.getDocumentGroups()));
+        while (!queue.isEmpty()) {
+            DocumentGroup group = queue.pop();
+            clustered.addAll(Arrays.asList(group.getDocumentReferences()));
+            queue.addAll(Arrays.asList(group.getSubgroups()));
+        }
+        Assertions.assertThat((long) clustered.size())
+            .isEqualTo(plain.getHits().getTotalHits());
+
+        // Without max hits, the node handling the request fetches no hits.
+        Assertions.assertThat(result.getSearchResponse().getHits().hits()).isEmpty();
+        Assertions.assertThat(result.getSearchResponse().getHits().getTotalHits())
+            .isEqualTo(plain.getHits().getTotalHits());
+    }
+
+    @Test
+    public void testParallelFetch() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setParallelFetch(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        SearchResponse plain = client.prepareSearch()
+            .setIndices(INDEX_NAME)
+            .setTypes("test")
+            .setSize(100)
+            .setQuery(QueryBuilders.termQuery("_all", "data"))
+            .execute().actionGet();
+        Assertions.assertThat(result.getSearchResponse().getHits().hits().length)
+            .isEqualTo(plain.getHits().hits().length);
+        Assertions.assertThat(result.getSearchResponse().getHits().getTotalHits())
+            .isEqualTo(plain.getHits().getTotalHits());
+        Assertions.assertThat(Integer.parseInt(result.getInfo().get(ClusteringActionResponse.Fields.Info.PARALLEL_FETCH_SHARDS)))
+            .isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    public void testParallelFetchShardFailure() throws IOException {
+        // Queries on a numeric title fail on this index's shard only.
+        final String index = "parallel_failing";
+        client.admin().indices().prepareCreate(index)
+            .setSettings(Settings.builder()
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0))
+            .addMapping("test", "title", "type=long")
+            .get();
+        ensureGreen(index);
+
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setParallelFetch(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME, index)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.matchQuery("title", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        ShardSearchFailure[] shardFailures = result.getSearchResponse().getShardFailures();
+        Assertions.assertThat(shardFailures).isNotEmpty();
+        for (ShardSearchFailure failure : shardFailures) {
+            Assertions.assertThat(failure.index()).isEqualTo(index);
+        }
+        Assertions.assertThat(result.getSearchResponse().getSuccessfulShards())
+            .isLessThan(result.getSearchResponse().getTotalShards());
+
+        // Hits are merged by score, sorted requests are rejected.
+        try {
+            new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setParallelFetch(true)
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .addSort("url", SortOrder.ASC)
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+            throw Preconditions.unreachable();
+        } catch (ActionRequestValidationException e) {
+            Assertions.assertThat(e)
+                .hasMessageContaining("sort is not supported");
+        }
+    }
+
+    @Test
+    public void testMultiClustering() throws IOException {
+        ClusteringActionRequestBuilder valid = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")));
+
+        ClusteringActionRequestBuilder invalid = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setAlgorithm("_nonexistent_")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")));
+
+        // Validation fails for this request only, not for the whole batch.
+        ClusteringActionRequestBuilder unmapped = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")));
+
+        MultiClusteringActionResponse result = new MultiClusteringActionRequestBuilder(client)
+            .add(valid)
+            .add(invalid)
+            .add(unmapped)
+            .execute().actionGet();
+
+        Assertions.assertThat(result.getResponses()).hasSize(3);
+        Assertions.assertThat(result.getResponses()[0].isFailure()).isFalse();
+        checkValid(result.getResponses()[0].getResponse());
+        Assertions.assertThat(result.getResponses()[1].isFailure()).isTrue();
+        Assertions.assertThat(result.getResponses()[1].getFailureMessage()).contains("_nonexistent_");
+        Assertions.assertThat(result.getResponses()[2].isFailure()).isTrue();
+        Assertions.assertThat(result.getResponses()[2].getFailureMessage())
+            .contains("At least one field should be mapped");
+    }
+
+    @Test
+    public void testContinuation() throws IOException {
+        ClusteringActionResponse first = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setContinuation(true)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(50)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(first);
+        String token = first.getInfo().get(ClusteringActionResponse.Fields.Info.CONTINUATION_TOKEN);
+        Assertions.assertThat(token).isNotEmpty();
+        int firstDocuments = Integer.parseInt(first.getInfo().get(ClusteringActionResponse.Fields.Info.CONTINUATION_DOCUMENTS));
+
+        ClusteringActionResponse second = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setContinuationToken(token)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setFrom(50)
+                    .setSize(50)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkJsonSerialization(second);
+        Assertions.assertThat(second.getInfo().get(ClusteringActionResponse.Fields.Info.CONTINUATION_TOKEN))
+            .isEqualTo(token);
+        Assertions.assertThat(Integer.parseInt(second.getInfo().get(ClusteringActionResponse.Fields.Info.CONTINUATION_DOCUMENTS)))
+            .isEqualTo(firstDocuments + Integer.parseInt(second.getInfo().get(ClusteringActionResponse.Fields.Info.CONTINUATION_NEW_DOCUMENTS)));
+
+        try {
+            new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setContinuationToken(token + "_nonexistent_")
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+            throw Preconditions.unreachable();
+        } catch (ElasticsearchException e) {
+            Assertions.assertThat(e)
+                .hasMessageContaining("Unknown or expired continuation token");
+        }
+    }
+
+    @Test
+    public void testAggregation() throws IOException {
+        SearchResponse response = client.prepareSearch()
+            .setIndices(INDEX_NAME)
+            .setTypes("test")
+            .setSize(0)
+            .setQuery(QueryBuilders.termQuery("_all", "data"))
+            .addAggregation(new Carrot2AggregationBuilder("topics")
+                .setQueryHint("data mining")
+                .setSize(50)
+                .addFieldMappingSpec("_source.title", LogicalField.TITLE)
+                .addFieldMappingSpec("kwic.content", LogicalField.CONTENT))
+            .execute().actionGet();
+
+        InternalCarrot2 topics = response.getAggregations().get("topics");
+        Assertions.assertThat(topics.getDocumentGroups()).isNotEmpty();
+        Assertions.assertThat(topics.getInfo().get(ClusteringActionResponse.Fields.Info.DOCUMENTS))
+            .isEqualTo("50");
+
+        try {
+            client.prepareSearch()
+                .setIndices(INDEX_NAME)
+                .setTypes("test")
+                .setSize(0)
+                .addAggregation(new Carrot2AggregationBuilder("topics")
+                    .addFieldMappingSpec("highlight.content", LogicalField.CONTENT))
+                .execute().actionGet();
+            throw Preconditions.unreachable();
+        } catch (SearchPhaseExecutionException e) {
+            ShardSearchFailure[] shardFailures = e.shardFailures();
+            Assertions.assertThat(shardFailures).isNotEmpty();
+            Assertions.assertThat(shardFailures[0].reason())
+                .contains("Field source not supported");
+        }
+    }
+
+    @Test
+    public void testAggregationInBuckets() throws IOException {
+        final int size = 20;
+        SearchResponse response = client.prepareSearch()
+            .setIndices(INDEX_NAME)
+            .setTypes("test")
+            .setSize(0)
+            .setQuery(QueryBuilders.termQuery("_all", "data"))
+            .addAggregation(AggregationBuilders.terms("languages")
+                .field("rndlang")
+                .subAggregation(new Carrot2AggregationBuilder("topics")
+                    .setQueryHint("data mining")
+                    .setSize(size)
+                    .addFieldMappingSpec("_source.title", LogicalField.TITLE)
+                    .addFieldMappingSpec("_source.content", LogicalField.CONTENT)))
+            .execute().actionGet();
+
+        Terms languages = response.getAggregations().get("languages");
+        Assertions.assertThat(languages.getBuckets()).isNotEmpty();
+        for (Terms.Bucket bucket : languages.getBuckets()) {
+            InternalCarrot2 topics = bucket.getAggregations().get("topics");
+            Assertions.assertThat(topics.getInfo().get(ClusteringActionResponse.Fields.Info.DOCUMENTS))
+                .describedAs("Documents of bucket " + bucket.getKeyAsString())
+                .isEqualTo(Long.toString(Math.min(size, bucket.getDocCount())));
+
+            // Documents are referenced by index, type and id.
+            for (DocumentGroup group : topics.getDocumentGroups()) {
+                for (String reference : group.getDocumentReferences()) {
+                    Assertions.assertThat(reference).startsWith(INDEX_NAME + "/test/");
+                }
+            }
+        }
+    }
+
     @Test
     public void testAttributes() throws IOException {
         Map<String,Object> attrs = new HashMap<>();
@@ -81,6 +810,65 @@ public class ClusteringActionIT extends SampleIndexTestCase {
             .hasSize(5 + /* other topics */ 1);
     }
     
+    @Test
+    public void testParallelFactorization() throws IOException {
+        Map<String,Object> attrs = new HashMap<>();
+        attrs.put("TermDocumentMatrixReducer.factorizationFactory",
+                ParallelNonnegativeMatrixFactorizationFactory.class.getName());
+
+        List<String> labels = new ArrayList<>();
+        for (Map<String,Object> attributes : Arrays.asList(Collections.<String,Object> emptyMap(), attrs)) {
+            ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .addFieldMapping("title", LogicalField.TITLE)
+                .addFieldMapping("content", LogicalField.CONTENT)
+                .addAttributes(attributes)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setSize(100)
+                        .setQuery(QueryBuilders.termQuery("_all", "data"))
+                        .addFields("title", "content"))
+                .execute().actionGet();
+
+            checkValid(result);
+            StringBuilder sb = new StringBuilder();
+            for (DocumentGroup group : result.getDocumentGroups()) {
+                sb.append(group.getLabel()).append('|');
+            }
+            labels.add(sb.toString());
+        }
+
+        // The same factorization as the default one, computed on multiple threads.
+        Assertions.assertThat(labels.get(1)).isEqualTo(labels.get(0));
+    }
+
+    @Test
+    public void testRandomizedFactorization() throws IOException {
+        Map<String,Object> attrs = new HashMap<>();
+        attrs.put("TermDocumentMatrixReducer.factorizationFactory",
+                RandomizedSingularValueDecompositionFactory.class.getName());
+        attrs.put(RandomizedSingularValueDecompositionFactory.POWER_ITERATIONS, 1);
+
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .addFieldMapping("title", LogicalField.TITLE)
+            .addFieldMapping("content", LogicalField.CONTENT)
+            .addAttributes(attrs)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data"))
+                    .addFields("title", "content"))
+            .execute().actionGet();
+
+        checkValid(result);
+        Assertions.assertThat(result.getDocumentGroups()).isNotEmpty();
+    }
+
     @Test
     public void testLanguageField() throws IOException {
         Map<String,Object> attrs = new HashMap<>();
@@ -127,6 +915,84 @@ public class ClusteringActionIT extends SampleIndexTestCase {
             .isLessThan(LanguageCode.values().length / 2);
     }
     
+    @Test
+    public void testParallelLanguages() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setParallelLanguages(true)
+            .addFieldMapping("title", LogicalField.TITLE)
+            .addFieldMapping("content", LogicalField.CONTENT)
+            .addFieldMapping("rndlang", LogicalField.LANGUAGE)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data"))
+                    .addFields("title", "content", "rndlang"))
+            .get();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Set<String> languages = new HashSet<>();
+        for (DocumentGroup group : result.getDocumentGroups()) {
+            Assertions.assertThat(group.getLanguage()).isNotNull();
+            languages.add(group.getLanguage());
+        }
+        Assertions.assertThat(languages.size()).isGreaterThan(1);
+    }
+
+    @Test
+    public void testPartitions() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setPartitions(2)
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(200)
+                    .setQuery(QueryBuilders.matchAllQuery()))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.PARTITIONS, "2");
+    }
+
+    @Test
+    public void testMultipleAlgorithms() throws IOException {
+        ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .setAlgorithms("lingo", "stc")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .execute().actionGet();
+
+        checkValid(result);
+        checkJsonSerialization(result);
+
+        Assertions.assertThat(result.getDocumentGroupsByAlgorithm().keySet())
+            .containsExactly("lingo", "stc");
+        Assertions.assertThat(result.getDocumentGroupsByAlgorithm().get("lingo"))
+            .hasSize(result.getDocumentGroups().length);
+        Assertions.assertThat(result.getDocumentGroupsByAlgorithm().get("stc"))
+            .isNotEmpty();
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.ALGORITHMS, "lingo,stc");
+    }
+
     @Test
     public void testListAlgorithms() throws IOException {
         ListAlgorithmsActionResponse response = 
@@ -138,6 +1004,144 @@ public class ClusteringActionIT extends SampleIndexTestCase {
             .contains("stc", "lingo", "kmeans");
     }
 
+    @Test
+    public void testReload() throws IOException {
+        // Add an algorithm to the suite of every node.
+        final Map<Path, byte[]> originalSuites = new HashMap<>();
+        for (Environment environment : internalCluster().getInstances(Environment.class)) {
+            Path algorithms = environment.configFile().resolve(ClusteringPlugin.PLUGIN_NAME).resolve("algorithms");
+            Path suite = algorithms.resolve("suite.xml");
+            byte[] original = Files.readAllBytes(suite);
+            originalSuites.put(suite, original);
+
+            Files.write(algorithms.resolve("reloaded.xml"), RELOADED_ALGORITHM.getBytes(StandardCharsets.UTF_8));
+            Files.write(suite, new String(original, StandardCharsets.UTF_8)
+                    .replace("</component-suite>", "  <include suite=\"reloaded.xml\" />\n</component-suite>")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        try {
+            ReloadActionResponse response = new ReloadActionRequestBuilder(client).get();
+
+            Assertions.assertThat(response.getFailedNodes()).isEmpty();
+            Assertions.assertThat(response.getNodes()).isNotEmpty();
+            for (ReloadActionNodeResponse node : response.getNodes()) {
+                Assertions.assertThat(node.getAlgorithms()).contains("stc", "lingo", "kmeans", "reloaded");
+            }
+
+            // Clustering works with the reloaded controller and the new algorithm.
+            ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .setAlgorithm("reloaded")
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .addSourceFieldMapping("content", LogicalField.CONTENT)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setSize(100)
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+            checkValid(result);
+            Assertions.assertThat(result.getInfo().get(ClusteringActionResponse.Fields.Info.ALGORITHM))
+                .isEqualTo("reloaded");
+        } finally {
+            for (Map.Entry<Path, byte[]> e : originalSuites.entrySet()) {
+                Files.write(e.getKey(), e.getValue());
+                Files.deleteIfExists(e.getKey().resolveSibling("reloaded.xml"));
+            }
+        }
+
+        ReloadActionResponse response = new ReloadActionRequestBuilder(client).get();
+        for (ReloadActionNodeResponse node : response.getNodes()) {
+            Assertions.assertThat(node.getAlgorithms()).doesNotContain("reloaded");
+        }
+    }
+
+    @Test
+    public void testClusteringPool() throws IOException {
+        ClusteringActionRequest request = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(100)
+                    .setQuery(QueryBuilders.termQuery("_all", "data")))
+            .request();
+        request.putHeader(ClusteringPool.HEADER, "isolated");
+
+        ClusteringActionResponse result = client.execute(ClusteringAction.INSTANCE, request).actionGet();
+        checkValid(result);
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.POOL, "isolated");
+
+        long completed = 0;
+        PoolStatsActionResponse stats = new PoolStatsActionRequestBuilder(client).get();
+        Assertions.assertThat(stats.getFailedNodes()).isEmpty();
+        for (PoolStatsActionNodeResponse node : stats.getNodes()) {
+            Assertions.assertThat(node.getPools()).contains(ClusteringPool.DEFAULT, "isolated");
+            completed += node.getCompleted("isolated");
+        }
+        Assertions.assertThat(completed).isGreaterThanOrEqualTo(1);
+
+        // A request takes a single permit of the pool, however many clustering runs it needs.
+        ClusteringActionRequest multiple = new ClusteringActionRequestBuilder(client)
+            .setQueryHint("data mining")
+            .addSourceFieldMapping("title", LogicalField.TITLE)
+            .addSourceFieldMapping("content", LogicalField.CONTENT)
+            .setAlgorithms("lingo", "stc")
+            .setPartitions(2)
+            .setSearchRequest(
+              client.prepareSearch()
+                    .setIndices(INDEX_NAME)
+                    .setTypes("test")
+                    .setSize(200)
+                    .setQuery(QueryBuilders.matchAllQuery()))
+            .request();
+        multiple.putHeader(ClusteringPool.HEADER, "isolated");
+        result = client.execute(ClusteringAction.INSTANCE, multiple).actionGet();
+        checkValid(result);
+        Assertions.assertThat(result.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.PARTITIONS, "2");
+
+        // Aggregations select the pool the same way.
+        SearchResponse response = client.prepareSearch()
+            .setIndices(INDEX_NAME)
+            .setTypes("test")
+            .setSize(0)
+            .setQuery(QueryBuilders.termQuery("_all", "data"))
+            .addAggregation(new Carrot2AggregationBuilder("topics")
+                .setQueryHint("data mining")
+                .addFieldMappingSpec("_source.title", LogicalField.TITLE))
+            .putHeader(ClusteringPool.HEADER, "isolated")
+            .execute().actionGet();
+        InternalCarrot2 topics = response.getAggregations().get("topics");
+        Assertions.assertThat(topics.getInfo())
+            .containsEntry(ClusteringActionResponse.Fields.Info.POOL, "isolated");
+
+        // Unknown pools are rejected.
+        request.putHeader(ClusteringPool.HEADER, "_nonexistent_");
+        try {
+            client.execute(ClusteringAction.INSTANCE, request).actionGet();
+            throw Preconditions.unreachable();
+        } catch (IllegalArgumentException e) {
+            Assertions.assertThat(e.getMessage())
+                .contains("No such clustering pool");
+        }
+
+        // Searches without carrot2 aggregations ignore the header.
+        response = client.prepareSearch()
+            .setIndices(INDEX_NAME)
+            .setTypes("test")
+            .setQuery(QueryBuilders.termQuery("_all", "data"))
+            .putHeader(ClusteringPool.HEADER, "_nonexistent_")
+            .execute().actionGet();
+        Assertions.assertThat(response.getHits().getTotalHits()).isGreaterThan(0);
+    }
+
     @Test
     public void testNonexistentFields() throws IOException {
         ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
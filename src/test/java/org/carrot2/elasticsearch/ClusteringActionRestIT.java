@@ -7,14 +7,19 @@ import java.util.Set;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.assertj.core.api.Assertions;
 import org.carrot2.core.LanguageCode;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
 import org.carrot2.elasticsearch.ClusteringAction.RestClusteringAction;
+import org.carrot2.elasticsearch.ClusteringViewAction.RestClusteringViewAction;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.junit.Test;
 
@@ -39,6 +44,11 @@ public class ClusteringActionRestIT extends SampleIndexTestCase {
         post("post_with_highlighted_fields.json");
     }
 
+    @Test
+    public void testPostWithHighlightedFieldsArray() throws Exception {
+        post("post_with_highlighted_fields_array.json");
+    }
+
     @Test
     public void testPostWithFields() throws Exception {
         post("post_with_fields.json");
@@ -96,6 +106,25 @@ public class ClusteringActionRestIT extends SampleIndexTestCase {
         }
     }
     
+    @Test
+    public void testGetPartitions() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpGet get = new HttpGet(restBaseUrl + "/" + RestClusteringAction.NAME
+                    + "?pretty=true"
+                    + "&q=*:*"
+                    + "&size=200"
+                    + "&query_hint=data+mining"
+                    + "&field_mapping_title=_source.title"
+                    + "&field_mapping_content=_source.content"
+                    + "&partitions=2");
+            HttpResponse response = httpClient.execute(get);
+
+            Map<?,?> map = checkHttpResponseContainsClusters(response);
+            Map<?,?> info = (Map<?,?>) map.get("info");
+            Assertions.assertThat(info.get(ClusteringActionResponse.Fields.Info.PARTITIONS)).isEqualTo("2");
+        }
+    }
+
     @Test
     public void testRestApiPathParams() throws Exception {
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
@@ -183,6 +212,32 @@ public class ClusteringActionRestIT extends SampleIndexTestCase {
         }
     }    
 
+    @Test
+    public void testSampleWithoutSize() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpPost post = new HttpPost(restBaseUrl + "/" + RestClusteringAction.NAME + "?pretty=true");
+            post.setEntity(new ByteArrayEntity(resourceAs("post_sample_without_size.json", type)));
+            HttpResponse response = httpClient.execute(post);
+            expectErrorResponseWithMessage(
+                    response,
+                    HttpStatus.SC_BAD_REQUEST,
+                    "Sample size is required.");
+        }
+    }
+
+    @Test
+    public void testScrollWithoutBatchSize() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            HttpPost post = new HttpPost(restBaseUrl + "/" + RestClusteringAction.NAME + "?pretty=true");
+            post.setEntity(new ByteArrayEntity(resourceAs("post_scroll_without_batch_size.json", type)));
+            HttpResponse response = httpClient.execute(post);
+            expectErrorResponseWithMessage(
+                    response,
+                    HttpStatus.SC_BAD_REQUEST,
+                    "Scroll batch size is required.");
+        }
+    }
+
     @Test
     public void testInvalidSearchQuery() throws Exception {
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
@@ -196,6 +251,55 @@ public class ClusteringActionRestIT extends SampleIndexTestCase {
         }
     }    
 
+    @Test
+    public void testClusteringView() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            String viewUrl = restBaseUrl + "/" + RestClusteringViewAction.NAME + "/homepage";
+
+            HttpPut put = new HttpPut(viewUrl);
+            put.setEntity(new ByteArrayEntity(resourceAs("put_view.json", type)));
+            HttpResponse response = httpClient.execute(put);
+            EntityUtils.consume(response.getEntity());
+            Assertions.assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_CREATED);
+
+            for (int i = 0; i < 2; i++) {
+                response = httpClient.execute(new HttpGet(viewUrl + "?pretty=true"));
+                Map<?,?> map = checkHttpResponseContainsClusters(response);
+
+                List<?> clusterList = (List<?>) map.get("clusters");
+                Assertions.assertThat(clusterList)
+                    .isNotNull()
+                    .isNotEmpty();
+            }
+
+            // A changed definition is served right away, not after refresh_interval.
+            put = new HttpPut(viewUrl);
+            put.setEntity(new ByteArrayEntity(resourceAs("put_view_changed.json", type)));
+            response = httpClient.execute(put);
+            EntityUtils.consume(response.getEntity());
+            Assertions.assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_OK);
+
+            response = httpClient.execute(new HttpGet(viewUrl + "?pretty=true"));
+            Map<?,?> info = (Map<?,?>) checkHttpResponseContainsClusters(response).get("info");
+            Assertions.assertThat(info.get(ClusteringActionResponse.Fields.Info.ALGORITHM))
+                .isEqualTo("kmeans");
+
+            response = httpClient.execute(new HttpDelete(viewUrl));
+            EntityUtils.consume(response.getEntity());
+            Assertions.assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_OK);
+
+            // A deleted view is no longer served.
+            response = httpClient.execute(new HttpGet(viewUrl));
+            expectErrorResponseWithMessage(
+                    response,
+                    HttpStatus.SC_INTERNAL_SERVER_ERROR,
+                    "No such clustering view");
+        }
+    }
+
     @Test
     public void testPropagatingAlgorithmException() throws Exception {
         try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
@@ -0,0 +1,137 @@
+package org.carrot2.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequest;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Serialization of {@link ClusteringActionRequest}, {@link ClusteringActionResponse} and
+ * {@link DocumentGroup} for nodes of the current and earlier versions.
+ */
+public class ClusteringActionTests extends RandomizedTest {
+    private static final Version EARLIER = Version.V_2_4_0;
+
+    private static <T extends Streamable> T copy(T streamable, T copy, Version version) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.setVersion(version);
+        streamable.writeTo(out);
+
+        StreamInput in = out.bytes().streamInput();
+        in.setVersion(version);
+        copy.readFrom(in);
+        return copy;
+    }
+
+    private static ClusteringActionRequest request() {
+        return new ClusteringActionRequest()
+                .setSearchRequest(new SearchRequest("index"))
+                .setQueryHint("data mining")
+                .setAlgorithm("lingo")
+                .addFieldMapping("title", LogicalField.TITLE)
+                .setShardSideExtraction(false)
+                .setPartitions(4);
+    }
+
+    private static DocumentGroup group() {
+        DocumentGroup group = new DocumentGroup();
+        group.setLabel("Data Mining");
+        group.setPhrases(new String [] {"Data Mining"});
+        group.setDocumentReferences(new String [] {"1", "2"});
+        group.setLanguage("en");
+        return group;
+    }
+
+    @Test
+    public void testRequestOptions() throws IOException {
+        ClusteringActionRequest copy = copy(request().setAlgorithms(Arrays.asList("lingo", "stc")),
+                new ClusteringActionRequest(), Version.CURRENT);
+        Assertions.assertThat(copy.getAlgorithms()).containsExactly("lingo", "stc");
+        Assertions.assertThat(copy.getShardSideExtraction()).isFalse();
+        Assertions.assertThat(copy.getPartitions()).isEqualTo(4);
+    }
+
+    @Test
+    public void testRequestToEarlierVersion() throws IOException {
+        ClusteringActionRequest copy = copy(request(), new ClusteringActionRequest(), EARLIER);
+        Assertions.assertThat(copy.getQueryHint()).isEqualTo("data mining");
+        Assertions.assertThat(copy.getAlgorithms()).containsExactly("lingo");
+
+        // Options added in this version are defaults on earlier nodes.
+        Assertions.assertThat(copy.getShardSideExtraction()).isTrue();
+        Assertions.assertThat(copy.getPartitions()).isEqualTo(0);
+
+        Assertions.assertThat(copy(request().setAlgorithm(null), new ClusteringActionRequest(), EARLIER)
+                .getAlgorithms()).isEmpty();
+
+        try {
+            copy(request().setAlgorithms(Arrays.asList("lingo", "stc")), new ClusteringActionRequest(), EARLIER);
+            throw Preconditions.unreachable();
+        } catch (IllegalArgumentException e) {
+            Assertions.assertThat(e.getMessage()).contains("Multiple algorithms");
+        }
+
+        try {
+            copy(request().addTermVectorFieldMapping("content", LogicalField.CONTENT), new ClusteringActionRequest(), EARLIER);
+            throw Preconditions.unreachable();
+        } catch (IllegalArgumentException e) {
+            Assertions.assertThat(e.getMessage()).contains("termvectors.");
+        }
+    }
+
+    @Test
+    public void testScrollOptions() {
+        ClusteringActionRequest request = new ClusteringActionRequest();
+        request.setScroll("100", null, " 2000 ");
+        Assertions.assertThat(request.getScrollBatchSize()).isEqualTo(100);
+        Assertions.assertThat(request.getScrollMaxDocuments()).isEqualTo(ClusteringActionRequest.DEFAULT_SCROLL_MAX_DOCUMENTS);
+        Assertions.assertThat(request.getScrollMaxChars()).isEqualTo(2000);
+
+        for (String [] options : new String [][] {{null, null, null}, {"", "10", null}, {"ten", null, null}, {"10", "1e3", null}}) {
+            try {
+                request.setScroll(options[0], options[1], options[2]);
+                throw Preconditions.unreachable();
+            } catch (ElasticsearchParseException e) {
+                Assertions.assertThat(e.getMessage()).startsWith("Scroll ");
+            }
+        }
+    }
+
+    @Test
+    public void testResponse() throws IOException {
+        Map<String, DocumentGroup[]> groupsByAlgorithm = new LinkedHashMap<>();
+        groupsByAlgorithm.put("lingo", new DocumentGroup [] {group()});
+        groupsByAlgorithm.put("stc", new DocumentGroup [0]);
+        ClusteringActionResponse response = new ClusteringActionResponse(
+                new SearchResponse(InternalSearchResponse.empty(), null, 1, 1, 0, ShardSearchFailure.EMPTY_ARRAY),
+                new DocumentGroup [] {group()}, groupsByAlgorithm, Collections.singletonMap("algorithm", "lingo"));
+
+        ClusteringActionResponse copy = copy(response, new ClusteringActionResponse(), Version.CURRENT);
+        Assertions.assertThat(copy.getDocumentGroupsByAlgorithm().keySet()).containsExactly("lingo", "stc");
+        Assertions.assertThat(copy.getDocumentGroups()[0].getLanguage()).isEqualTo("en");
+        Assertions.assertThat(copy.getInfo()).containsEntry("algorithm", "lingo");
+
+        copy = copy(response, new ClusteringActionResponse(), EARLIER);
+        Assertions.assertThat(copy.getDocumentGroupsByAlgorithm()).isEmpty();
+        Assertions.assertThat(copy.getDocumentGroups()[0].getLabel()).isEqualTo("Data Mining");
+        Assertions.assertThat(copy.getDocumentGroups()[0].getLanguage()).isNull();
+        Assertions.assertThat(copy.getInfo()).containsEntry("algorithm", "lingo");
+    }
+}
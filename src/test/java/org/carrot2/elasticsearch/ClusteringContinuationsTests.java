@@ -0,0 +1,104 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.core.Document;
+import org.carrot2.core.LanguageCode;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Limits and serialization of {@link ClusteringContinuations}.
+ */
+public class ClusteringContinuationsTests extends RandomizedTest {
+    private static ClusteringContinuations continuations(int maxTotalDocuments, int maxDocuments) {
+        return new ClusteringContinuations(Settings.builder()
+                .put(ClusteringPlugin.CONTINUATION_MAX_TOTAL_DOCUMENTS_PROPERTY_NAME, maxTotalDocuments)
+                .put(ClusteringPlugin.CONTINUATION_MAX_DOCUMENTS_PROPERTY_NAME, maxDocuments)
+                .build(), null);
+    }
+
+    private static List<Document> documents(int from, int to) {
+        List<Document> documents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            documents.add(new Document("title " + i, "content " + i, null, LanguageCode.ENGLISH, Integer.toString(i)));
+        }
+        return documents;
+    }
+
+    @Test
+    public void testAccumulateCapsDocuments() {
+        ClusteringContinuations continuations = continuations(1000, 15);
+
+        List<Document> first = continuations.accumulate(null, documents(0, 20));
+        Assertions.assertThat(first).hasSize(15);
+
+        continuations.put("a", documents(0, 10), new DocumentGroup[0]);
+        List<Document> all = continuations.accumulate(continuations.get("a"), documents(5, 30));
+        Assertions.assertThat(all).hasSize(15);
+        for (int i = 0; i < all.size(); i++) {
+            Assertions.assertThat(all.get(i).getStringId()).isEqualTo(Integer.toString(i));
+        }
+    }
+
+    @Test
+    public void testStatesBoundedByDocuments() {
+        ClusteringContinuations continuations = continuations(400, 100);
+
+        final int states = 20;
+        for (int i = 0; i < states; i++) {
+            continuations.put("s" + i, documents(0, 30), new DocumentGroup[0]);
+        }
+
+        int retained = 0;
+        for (int i = 0; i < states; i++) {
+            if (continuations.get("s" + i) != null) {
+                retained++;
+            }
+        }
+        Assertions.assertThat(retained).isGreaterThan(0).isLessThan(states);
+        Assertions.assertThat(continuations.get("s" + (states - 1))).isNotNull();
+    }
+
+    @Test
+    public void testRequestsSerializedPerToken() {
+        ClusteringContinuations continuations = continuations(1000, 100);
+        final List<String> events = new ArrayList<>();
+
+        continuations.acquire("a", new Runnable() {
+            @Override
+            public void run() {
+                events.add("a1");
+            }
+        });
+        continuations.acquire("a", new Runnable() {
+            @Override
+            public void run() {
+                events.add("a2");
+            }
+        });
+        continuations.acquire("b", new Runnable() {
+            @Override
+            public void run() {
+                events.add("b1");
+            }
+        });
+        Assertions.assertThat(events).containsExactly("a1", "b1");
+
+        continuations.release("a");
+        Assertions.assertThat(events).containsExactly("a1", "b1", "a2");
+
+        continuations.release("a");
+        continuations.acquire("a", new Runnable() {
+            @Override
+            public void run() {
+                events.add("a3");
+            }
+        });
+        Assertions.assertThat(events).containsExactly("a1", "b1", "a2", "a3");
+    }
+}
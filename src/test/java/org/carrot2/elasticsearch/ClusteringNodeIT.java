@@ -0,0 +1,71 @@
+package org.carrot2.elasticsearch;
+
+import static org.elasticsearch.test.ESIntegTestCase.Scope.TEST;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionRequestBuilder;
+import org.carrot2.elasticsearch.ClusteringAction.ClusteringActionResponse;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionNodeResponse;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionRequestBuilder;
+import org.carrot2.elasticsearch.PoolStatsAction.PoolStatsActionResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.test.ESIntegTestCase.ClusterScope;
+import org.junit.Test;
+
+/**
+ * Clustering on a dedicated node (see {@link ClusteringPlugin#NODE_ATTRIBUTE_PROPERTY_NAME}).
+ */
+@ClusterScope(scope = TEST)
+public class ClusteringNodeIT extends SampleIndexTestCase {
+    private static final String NODE_ATTRIBUTE = "carrot2";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put(ClusteringPlugin.NODE_ATTRIBUTE_PROPERTY_NAME, NODE_ATTRIBUTE)
+                .build();
+    }
+
+    @Test
+    public void testClusteringOnDedicatedNode() throws Exception {
+        final String clusteringNode = internalCluster().startNode(Settings.builder()
+                .put("node.data", false)
+                .put("node.master", false)
+                .put("node." + NODE_ATTRIBUTE, true)
+                .build());
+
+        final int requests = 3;
+        for (int i = 0; i < requests; i++) {
+            ClusteringActionResponse result = new ClusteringActionRequestBuilder(client)
+                .setQueryHint("data mining")
+                .addSourceFieldMapping("title", LogicalField.TITLE)
+                .addSourceFieldMapping("content", LogicalField.CONTENT)
+                .setSearchRequest(
+                  client.prepareSearch()
+                        .setIndices(INDEX_NAME)
+                        .setTypes("test")
+                        .setSize(100)
+                        .setQuery(QueryBuilders.termQuery("_all", "data")))
+                .execute().actionGet();
+
+            checkValid(result);
+        }
+
+        // Only the clustering node has a controller, so all requests were clustered there
+        // and each took a permit of the pool (and counted) on that node.
+        PoolStatsActionResponse stats = new PoolStatsActionRequestBuilder(client).get();
+        Assertions.assertThat(stats.getFailedNodes()).isEmpty();
+        Assertions.assertThat(stats.getNodes()).hasSize(cluster().size());
+        long completed = -1;
+        for (PoolStatsActionNodeResponse node : stats.getNodes()) {
+            if (clusteringNode.equals(node.getNode().getName())) {
+                completed = node.getCompleted(ClusteringPool.DEFAULT);
+            }
+        }
+        Assertions.assertThat(completed)
+            .describedAs("Requests clustered on the clustering node: " + clusteringNode)
+            .isEqualTo(requests);
+    }
+}
@@ -0,0 +1,154 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.core.Controller;
+import org.carrot2.core.ControllerFactory;
+import org.carrot2.core.IClusteringAlgorithm;
+import org.carrot2.core.ProcessingComponentBase;
+import org.carrot2.core.ProcessingComponentConfiguration;
+import org.carrot2.core.ProcessingException;
+import org.carrot2.util.attribute.Bindable;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Concurrency of {@link ControllerWarmUp} and selection of warmed up algorithms.
+ */
+public class ControllerWarmUpTests extends RandomizedTest {
+    /**
+     * Counts created instances; each run takes a while so that concurrent runs overlap.
+     */
+    @Bindable
+    public static class CountingAlgorithm extends ProcessingComponentBase implements IClusteringAlgorithm {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        public CountingAlgorithm() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public void process() throws ProcessingException {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new ProcessingException(e);
+            }
+        }
+    }
+
+    /**
+     * A separately counted algorithm, never warmed up.
+     */
+    @Bindable
+    public static class OtherCountingAlgorithm extends ProcessingComponentBase implements IClusteringAlgorithm {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        public OtherCountingAlgorithm() {
+            instances.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testRunsConcurrently() throws Exception {
+        final int threads = randomIntBetween(2, 5);
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final AtomicInteger runs = new AtomicInteger();
+
+        // Each run waits for all others: fails unless all runs are in progress at once.
+        ControllerWarmUp.runConcurrently(threads, EsExecutors.daemonThreadFactory("test"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                runs.incrementAndGet();
+            }
+        });
+
+        Assertions.assertThat(runs.get()).isEqualTo(threads);
+    }
+
+    @Test
+    public void testRunFailureRethrown() {
+        try {
+            ControllerWarmUp.runConcurrently(3, EsExecutors.daemonThreadFactory("test"), new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("failed run");
+                }
+            });
+            throw Preconditions.unreachable();
+        } catch (IllegalStateException e) {
+            Assertions.assertThat(e).hasMessage("failed run");
+        }
+    }
+
+    @Test
+    public void testWarmUpCreatesInstances() {
+        final int instances = randomIntBetween(2, 4);
+        CountingAlgorithm.instances.set(0);
+
+        Controller controller = ControllerFactory.createPooling();
+        try {
+            controller.init(new HashMap<String, Object>(),
+                    new ProcessingComponentConfiguration(CountingAlgorithm.class, "counting"));
+            ControllerWarmUp.warmUp(controller, Arrays.asList("counting"), 2, instances,
+                    EsExecutors.daemonThreadFactory("test"), Loggers.getLogger(ControllerWarmUpTests.class));
+        } finally {
+            controller.close();
+        }
+
+        Assertions.assertThat(CountingAlgorithm.instances.get()).isEqualTo(instances);
+    }
+
+    @Test
+    public void testWarmUpAlgorithms() {
+        final List<String> available = Arrays.asList("lingo", "stc", "kmeans");
+
+        Assertions.assertThat(ControllerSingleton.warmUpAlgorithms(Settings.EMPTY, available,
+                Loggers.getLogger(ControllerWarmUpTests.class)))
+            .containsExactly("lingo", "stc", "kmeans");
+
+        Assertions.assertThat(ControllerSingleton.warmUpAlgorithms(Settings.builder()
+                .putArray(ClusteringPlugin.WARMUP_ALGORITHMS_PROPERTY_NAME, "kmeans", "unknown", "lingo")
+                .build(), available, Loggers.getLogger(ControllerWarmUpTests.class)))
+            .containsExactly("kmeans", "lingo");
+    }
+
+    @Test
+    public void testAlgorithmsNotWarmedUpInitializedOnFirstUse() {
+        CountingAlgorithm.instances.set(0);
+        OtherCountingAlgorithm.instances.set(0);
+
+        Controller controller = ControllerFactory.createPooling();
+        try {
+            controller.init(new HashMap<String, Object>(),
+                    new ProcessingComponentConfiguration(CountingAlgorithm.class, "counting"),
+                    new ProcessingComponentConfiguration(OtherCountingAlgorithm.class, "other"));
+            ControllerWarmUp.warmUp(controller, Arrays.asList("counting"), 1, 1,
+                    EsExecutors.daemonThreadFactory("test"), Loggers.getLogger(ControllerWarmUpTests.class));
+
+            Assertions.assertThat(CountingAlgorithm.instances.get()).isEqualTo(1);
+            Assertions.assertThat(OtherCountingAlgorithm.instances.get()).isEqualTo(0);
+
+            ControllerWarmUp.warmUp(controller, Arrays.asList("other"), 1, 1,
+                    EsExecutors.daemonThreadFactory("test"), Loggers.getLogger(ControllerWarmUpTests.class));
+            Assertions.assertThat(OtherCountingAlgorithm.instances.get()).isEqualTo(1);
+        } finally {
+            controller.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.carrot2.clustering.lingo.LingoClusteringAlgorithm;
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Controller;
+import org.carrot2.core.ControllerFactory;
+import org.carrot2.core.Document;
+import org.carrot2.core.ProcessingResult;
+import org.carrot2.matrix.factorization.PartialSingularValueDecompositionFactory;
+
+/**
+ * Compares latency and clusters of Lingo with the exact (Carrot2) partial SVD and the
+ * {@link RandomizedSingularValueDecompositionFactory} on {@link SampleDocumentData}
+ * scaled up to several thousand documents (each copy of a document drops a random
+ * subset of its words). Run from the IDE, arguments: <code>[copies] [threads]</code>.
+ *
+ * <p>Cluster overlap is the average (weighted by cluster size) of the best Jaccard
+ * coefficient of each exact cluster's documents and documents of any cluster of the
+ * compared run.</p>
+ */
+public class FactorizationBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        final int copies = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads - 1));
+        ParallelMatrices matrices = new ParallelMatrices(executor, threads);
+        try {
+            List<Document> documents = documents(copies);
+            System.out.println(String.format(Locale.ROOT, "%d documents, %d threads.", documents.size(), threads));
+
+            Controller controller = ControllerFactory.createPooling();
+            controller.init(new HashMap<String, Object>());
+
+            List<Cluster> exact = run(controller, matrices, documents, "exact SVD",
+                    PartialSingularValueDecompositionFactory.class, null);
+            for (int powerIterations : new int [] {0, 1, 2, 4}) {
+                List<Cluster> randomized = run(controller, matrices, documents, "randomized SVD, q=" + powerIterations,
+                        RandomizedSingularValueDecompositionFactory.class, powerIterations);
+                System.out.println(String.format(Locale.ROOT, "  cluster overlap with exact: %.3f, common labels: %.3f",
+                        overlap(exact, randomized), commonLabels(exact, randomized)));
+            }
+            controller.dispose();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static List<Cluster> run(Controller controller, ParallelMatrices matrices, List<Document> documents, String name,
+                                     Class<?> factory, Integer powerIterations) {
+        List<Cluster> clusters = null;
+        long [] times = new long [ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<String, Object> attributes = new HashMap<>();
+            attributes.put("documents", documents);
+            attributes.put("query", "data mining");
+            // The default limit (37500 elements) leaves only a few terms for thousands of documents.
+            attributes.put("TermDocumentMatrixBuilder.maximumMatrixSize", documents.size() * 1000);
+            attributes.put("TermDocumentMatrixReducer.factorizationFactory", factory);
+            attributes.put(ParallelMatrices.ATTRIBUTE_KEY, matrices);
+            if (powerIterations != null) {
+                attributes.put(RandomizedSingularValueDecompositionFactory.POWER_ITERATIONS, powerIterations);
+            }
+
+            long start = System.nanoTime();
+            ProcessingResult result = controller.process(attributes, LingoClusteringAlgorithm.class);
+            times[round] = (System.nanoTime() - start) / 1000000;
+            clusters = result.getClusters();
+        }
+
+        Arrays.sort(times);
+        System.out.println(String.format(Locale.ROOT, "%-25s median: %6d ms, clusters: %d",
+                name, times[ROUNDS / 2], clusters.size()));
+        return clusters;
+    }
+
+    static List<Document> documents(int copies) {
+        Random random = new Random(42);
+        List<Document> documents = new ArrayList<>();
+        for (int copy = 0; copy < copies; copy++) {
+            for (String [] data : SampleDocumentData.SAMPLE_DATA) {
+                String title = copy == 0 ? data[1] : dropWords(data[1], random);
+                String snippet = copy == 0 ? data[2] : dropWords(data[2], random);
+                documents.add(new Document(title, snippet, data[0] + "#" + copy));
+            }
+        }
+        return documents;
+    }
+
+    private static String dropWords(String text, Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : text.split("\\s+")) {
+            if (random.nextDouble() >= 0.3) {
+                sb.append(word).append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    static double overlap(List<Cluster> reference, List<Cluster> compared) {
+        double sum = 0;
+        int total = 0;
+        for (Cluster r : reference) {
+            if (r.isOtherTopics()) {
+                continue;
+            }
+            Set<Document> a = new HashSet<>(r.getAllDocuments());
+            double best = 0;
+            for (Cluster c : compared) {
+                if (c.isOtherTopics()) {
+                    continue;
+                }
+                Set<Document> b = new HashSet<>(c.getAllDocuments());
+                Set<Document> intersection = new HashSet<>(a);
+                intersection.retainAll(b);
+                best = Math.max(best, intersection.size() / (double) (a.size() + b.size() - intersection.size()));
+            }
+            sum += best * a.size();
+            total += a.size();
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    static double commonLabels(List<Cluster> reference, List<Cluster> compared) {
+        Set<String> a = new HashSet<>();
+        for (Cluster c : reference) {
+            a.add(c.getLabel());
+        }
+        Set<String> b = new HashSet<>();
+        for (Cluster c : compared) {
+            b.add(c.getLabel());
+        }
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        a.retainAll(b);
+        return union.isEmpty() ? 1 : a.size() / (double) union.size();
+    }
+}
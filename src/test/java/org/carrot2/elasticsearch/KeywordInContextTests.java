@@ -0,0 +1,125 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Fragments extracted by {@link KeywordInContext}.
+ */
+public class KeywordInContextTests extends RandomizedTest {
+    /**
+     * Space-separated filler words, at least <code>length</code> characters.
+     */
+    private static String filler(int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append("lorem");
+        }
+        return sb.toString();
+    }
+
+    private static List<String> fragments(String extracted) {
+        return Arrays.asList(extracted.split(" \\. "));
+    }
+
+    @Test
+    public void testWindowAroundMatch() {
+        final String text = filler(200) + " mining " + filler(200);
+        final String extracted = new KeywordInContext("mining").extract(text);
+
+        Assertions.assertThat(fragments(extracted)).hasSize(1);
+        Assertions.assertThat(extracted).contains("mining");
+        Assertions.assertThat(extracted.length())
+            .isGreaterThan(KeywordInContext.WINDOW)
+            .isLessThanOrEqualTo(2 * KeywordInContext.WINDOW + "mining".length());
+
+        // Windows end at word boundaries.
+        Assertions.assertThat(extracted).startsWith("lorem").endsWith("lorem");
+        Assertions.assertThat(text).contains(extracted);
+    }
+
+    @Test
+    public void testWholeShortText() {
+        Assertions.assertThat(new KeywordInContext("mining").extract("Text mining tools"))
+            .isEqualTo("Text mining tools");
+    }
+
+    @Test
+    public void testOverlappingWindowsMerged() {
+        final String text = filler(200) + " data " + filler(30) + " mining " + filler(200);
+        final String extracted = new KeywordInContext("data mining").extract(text);
+
+        Assertions.assertThat(fragments(extracted)).hasSize(1);
+        Assertions.assertThat(extracted).contains("data").contains("mining");
+        Assertions.assertThat(text).contains(extracted);
+    }
+
+    @Test
+    public void testDistantMatchesSeparateFragments() {
+        final String text = "data " + filler(300) + " mining";
+        final List<String> fragments = fragments(new KeywordInContext("data mining").extract(text));
+
+        Assertions.assertThat(fragments).hasSize(2);
+        Assertions.assertThat(fragments.get(0)).startsWith("data");
+        Assertions.assertThat(fragments.get(1)).endsWith("mining");
+    }
+
+    @Test
+    public void testMaxFragments() {
+        final int matches = KeywordInContext.MAX_FRAGMENTS + randomIntBetween(1, 5);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < matches; i++) {
+            sb.append(filler(3 * KeywordInContext.WINDOW)).append(" mining").append(i).append(' ');
+        }
+
+        final List<String> fragments = fragments(new KeywordInContext("mining").extract(sb.toString()));
+        Assertions.assertThat(fragments).hasSize(KeywordInContext.MAX_FRAGMENTS);
+        for (int i = 0; i < fragments.size(); i++) {
+            Assertions.assertThat(fragments.get(i)).contains("mining" + i);
+        }
+    }
+
+    @Test
+    public void testPrefixAndCaseInsensitiveMatch() {
+        final KeywordInContext kwic = new KeywordInContext("DATA Mining");
+
+        Assertions.assertThat(kwic.extract("Relational Databases")).isEqualTo("Relational Databases");
+        Assertions.assertThat(kwic.extract("text MINING")).isEqualTo("text MINING");
+
+        // Terms only match at word starts.
+        Assertions.assertThat(kwic.extract("metadata and datamining")).isEqualTo("metadata and datamining");
+        Assertions.assertThat(kwic.extract("metadata only")).isNull();
+        Assertions.assertThat(kwic.extract("dat")).isNull();
+    }
+
+    @Test
+    public void testNoQueryHint() {
+        for (String queryHint : new String [] {null, "", " ,. "}) {
+            Assertions.assertThat(new KeywordInContext(queryHint).extract("data mining")).isNull();
+        }
+        Assertions.assertThat(new KeywordInContext("data").extract(null)).isNull();
+        Assertions.assertThat(new KeywordInContext("data").extract("text mining")).isNull();
+    }
+
+    @Test
+    public void testListValues() {
+        List<Object> values = new ArrayList<>();
+        values.add("data warehouses");
+        values.add(null);
+        values.add("no match here");
+        values.add("text mining");
+
+        Assertions.assertThat(new KeywordInContext("data mining").extract(values))
+            .isEqualTo("data warehouses . text mining");
+        Assertions.assertThat(new KeywordInContext("clustering").extract(values)).isNull();
+    }
+}
@@ -0,0 +1,116 @@
+package org.carrot2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.clustering.kmeans.BisectingKMeansClusteringAlgorithm;
+import org.carrot2.core.Cluster;
+import org.carrot2.core.Controller;
+import org.carrot2.core.ControllerFactory;
+import org.carrot2.core.Document;
+import org.carrot2.core.ProcessingComponentSuite;
+import org.carrot2.util.resource.ClassResource;
+import org.carrot2.util.resource.ResourceLookup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * Clusters of {@link ParallelBisectingKMeansClusteringAlgorithm} compared with
+ * Carrot2's {@link BisectingKMeansClusteringAlgorithm}.
+ */
+public class ParallelBisectingKMeansClusteringAlgorithmTests extends RandomizedTest {
+    private ExecutorService executor;
+    private Controller controller;
+
+    @Before
+    public void createController() {
+        final int threads = randomIntBetween(2, 4);
+        executor = Executors.newFixedThreadPool(threads - 1);
+        controller = ControllerFactory.createPooling();
+        controller.init(new HashMap<String, Object>());
+    }
+
+    @After
+    public void disposeController() {
+        controller.dispose();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSameClusters() {
+        final List<Document> documents = FactorizationBenchmark.documents(randomIntBetween(1, 3));
+        final int clusterCount = randomIntBetween(2, 30);
+
+        for (boolean useDimensionalityReduction : new boolean [] {false, true}) {
+            final Map<String, Object> attributes = new HashMap<>();
+            attributes.put("documents", documents);
+            attributes.put("query", "data mining");
+            attributes.put("BisectingKMeansClusteringAlgorithm.clusterCount", clusterCount);
+            attributes.put("BisectingKMeansClusteringAlgorithm.useDimensionalityReduction", useDimensionalityReduction);
+
+            final List<String> expected = describe(controller.process(
+                    new HashMap<>(attributes), BisectingKMeansClusteringAlgorithm.class).getClusters());
+            Assertions.assertThat(expected.size()).isGreaterThan(1);
+
+            Assertions.assertThat(describe(controller.process(
+                    new HashMap<>(attributes), ParallelBisectingKMeansClusteringAlgorithm.class).getClusters()))
+                .describedAs("sequential, reduction: " + useDimensionalityReduction)
+                .containsExactlyElementsOf(expected);
+
+            attributes.put(ParallelMatrices.ATTRIBUTE_KEY, new ParallelMatrices(executor, randomIntBetween(2, 4)));
+            Assertions.assertThat(describe(controller.process(
+                    attributes, ParallelBisectingKMeansClusteringAlgorithm.class).getClusters()))
+                .describedAs("parallel, reduction: " + useDimensionalityReduction)
+                .containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    public void testSuiteComponent() throws Exception {
+        final ProcessingComponentSuite suite = ProcessingComponentSuite.deserialize(
+                new ClassResource(getClass(), "_" + getClass().getSimpleName() + "/suite.xml"),
+                new ResourceLookup(ResourceLookup.Location.CONTEXT_CLASS_LOADER));
+        Assertions.assertThat(suite.removeUnavailableComponents()).isEmpty();
+
+        final Controller suiteController = ControllerFactory.createPooling();
+        try {
+            suiteController.init(new HashMap<String, Object>(), suite.getComponentConfigurations());
+
+            final Map<String, Object> attributes = new HashMap<>();
+            attributes.put("documents", FactorizationBenchmark.documents(1));
+            attributes.put("query", "data mining");
+            final List<String> expected = describe(controller.process(
+                    new HashMap<>(attributes), BisectingKMeansClusteringAlgorithm.class).getClusters());
+
+            attributes.put(ParallelMatrices.ATTRIBUTE_KEY, new ParallelMatrices(executor, 2));
+            Assertions.assertThat(describe(suiteController.process(attributes, "kmeans").getClusters()))
+                .containsExactlyElementsOf(expected);
+        } finally {
+            suiteController.dispose();
+        }
+    }
+
+    /**
+     * Labels and document identifiers of each cluster, in order.
+     */
+    private static List<String> describe(List<Cluster> clusters) {
+        final List<String> descriptions = new ArrayList<>();
+        for (Cluster cluster : clusters) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(cluster.getPhrases()).append(':');
+            for (Document document : cluster.getAllDocuments()) {
+                sb.append(' ').append(document.getStringId());
+            }
+            descriptions.add(sb.toString());
+        }
+        return descriptions;
+    }
+}
@@ -0,0 +1,232 @@
+package org.carrot2.elasticsearch;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.assertj.core.api.Assertions;
+import org.assertj.core.data.Offset;
+import org.carrot2.mahout.math.matrix.DoubleMatrix2D;
+import org.carrot2.mahout.math.matrix.impl.DenseDoubleMatrix2D;
+import org.carrot2.mahout.math.matrix.linalg.EigenvalueDecomposition;
+import org.carrot2.matrix.factorization.IMatrixFactorization;
+import org.carrot2.matrix.factorization.PartialSingularValueDecompositionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * {@link ParallelMatrices} kernels (split across an executor) compared with sequential
+ * Colt and Carrot2 computations.
+ */
+public class ParallelMatricesTests extends RandomizedTest {
+    private static final double EPSILON = 1e-9;
+
+    private ExecutorService executor;
+    private ParallelMatrices matrices;
+
+    @Before
+    public void createExecutor() {
+        final int threads = randomIntBetween(2, 4);
+        executor = Executors.newFixedThreadPool(threads - 1);
+        matrices = new ParallelMatrices(executor, threads);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testProducts() {
+        final double [][] a = gaussian(400, 60);
+        final double [][] b = gaussian(60, 50);
+        final double [][] c = gaussian(400, 50);
+        final DoubleMatrix2D A = ParallelMatrices.toMatrix(a, 60);
+
+        assertEquals(A.zMult(ParallelMatrices.toMatrix(b, 50), null, 1, 0, false, false),
+                matrices.multiply(a, b, 50), EPSILON);
+        assertEquals(A.zMult(ParallelMatrices.toMatrix(c, 50), null, 1, 0, true, false),
+                matrices.multiplyTransposed(a, 60, c, 50), EPSILON);
+        assertEquals(A.zMult(A, null, 1, 0, true, false),
+                matrices.gram(a, 60), EPSILON);
+    }
+
+    @Test
+    public void testOrthonormalize() {
+        final int p = 20;
+        final double [][] x = gaussian(300, p);
+        final double [][] q = copy(x);
+        ParallelMatrices.orthonormalize(q, p);
+
+        final DoubleMatrix2D X = ParallelMatrices.toMatrix(x, p);
+        final DoubleMatrix2D Q = ParallelMatrices.toMatrix(q, p);
+
+        // Orthonormal columns, spanning the same subspaces as leading columns of x (x = q r).
+        final DoubleMatrix2D identity = new DenseDoubleMatrix2D(p, p);
+        for (int i = 0; i < p; i++) {
+            identity.setQuick(i, i, 1);
+        }
+        assertEquals(Q.zMult(Q, null, 1, 0, true, false), identity.toArray(), EPSILON);
+
+        final DoubleMatrix2D R = Q.zMult(X, null, 1, 0, true, false);
+        for (int i = 0; i < p; i++) {
+            Assertions.assertThat(R.getQuick(i, i)).isGreaterThan(0);
+            for (int j = 0; j < i; j++) {
+                Assertions.assertThat(R.getQuick(i, j)).isCloseTo(0, Offset.offset(EPSILON));
+            }
+        }
+        assertEquals(X, Q.zMult(R, null, 1, 0, false, false).toArray(), EPSILON);
+    }
+
+    @Test
+    public void testSymmetricEigen() {
+        final int n = 12;
+        final double [][] s = matrices.gram(gaussian(50, n), n);
+        final EigenvalueDecomposition reference = new EigenvalueDecomposition(ParallelMatrices.toMatrix(s, n));
+
+        final double [] eigenvalues = new double [n];
+        final double [][] vectors = ParallelMatrices.symmetricEigen(copy(s), eigenvalues);
+
+        // The reference has eigenvalues in ascending order.
+        final DoubleMatrix2D V = reference.getV();
+        for (int j = 0; j < n; j++) {
+            final int r = n - 1 - j;
+            Assertions.assertThat(eigenvalues[j]).isCloseTo(reference.getRealEigenvalues().getQuick(r),
+                    Offset.offset(1e-9 * eigenvalues[0]));
+            assertSameDirection(column(vectors, j), V.viewColumn(r).toArray(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testSubspaceSvd() {
+        final int m = 200, n = 80, k = 5;
+        final double [][] a = lowRankWithNoise(m, n, 10);
+
+        final IMatrixFactorization svd = matrices.subspaceSvd(a, n, k, 10, 0, 500, 1e-14, randomLong());
+
+        // Left singular vectors are eigenvectors of a a^T (eigenvalues in ascending order).
+        final DoubleMatrix2D A = ParallelMatrices.toMatrix(a, n);
+        final EigenvalueDecomposition reference = new EigenvalueDecomposition(A.zMult(A, null, 1, 0, false, true));
+        for (int j = 0; j < k; j++) {
+            final double [] u = svd.getU().viewColumn(j).toArray();
+            assertSameDirection(u, reference.getV().viewColumn(m - 1 - j).toArray(), 1e-8);
+
+            // v = a^T u / sigma
+            final double [] v = svd.getV().viewColumn(j).toArray();
+            final double sigma = Math.sqrt(reference.getRealEigenvalues().getQuick(m - 1 - j));
+            final double [] expected = A.zMult(svd.getU().viewColumn(j), null, 1, 0, true).toArray();
+            for (int i = 0; i < n; i++) {
+                Assertions.assertThat(v[i]).isCloseTo(expected[i] / sigma, Offset.offset(1e-8));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelPartialSvdFactory() {
+        final int m = 150, n = 100, k = randomIntBetween(2, 6);
+        final DoubleMatrix2D A = ParallelMatrices.toMatrix(lowRankWithNoise(m, n, 8), n);
+
+        final PartialSingularValueDecompositionFactory sequential = new PartialSingularValueDecompositionFactory();
+        sequential.setK(k);
+        final ParallelPartialSingularValueDecompositionFactory parallel = new ParallelPartialSingularValueDecompositionFactory();
+        parallel.matrices = matrices;
+        parallel.setK(k);
+
+        final IMatrixFactorization expected = sequential.factorize(A.copy());
+        final IMatrixFactorization actual = parallel.factorize(A.copy());
+
+        Assertions.assertThat(actual.getU().columns()).isEqualTo(k);
+        for (int j = 0; j < k; j++) {
+            assertSameDirection(actual.getU().viewColumn(j).toArray(), expected.getU().viewColumn(j).toArray(), 1e-4);
+        }
+    }
+
+    /**
+     * A matrix with a few dominant, well separated singular values and Gaussian noise.
+     */
+    private double [][] lowRankWithNoise(int m, int n, int rank) {
+        final Random random = getRandom();
+        final double [][] a = new double [m][n];
+        for (int r = 0; r < rank; r++) {
+            final double scale = 100.0 / (r + 1);
+            final double [] u = new double [m];
+            final double [] v = new double [n];
+            for (int i = 0; i < m; i++) {
+                u[i] = random.nextGaussian() / Math.sqrt(m);
+            }
+            for (int j = 0; j < n; j++) {
+                v[j] = random.nextGaussian() / Math.sqrt(n);
+            }
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < n; j++) {
+                    a[i][j] += scale * u[i] * v[j];
+                }
+            }
+        }
+        for (double [] row : a) {
+            for (int j = 0; j < n; j++) {
+                row[j] += 0.01 * random.nextGaussian();
+            }
+        }
+        return a;
+    }
+
+    private double [][] gaussian(int rows, int columns) {
+        final Random random = getRandom();
+        final double [][] x = new double [rows][columns];
+        for (double [] row : x) {
+            for (int j = 0; j < columns; j++) {
+                row[j] = random.nextGaussian();
+            }
+        }
+        return x;
+    }
+
+    private static double [][] copy(double [][] x) {
+        final double [][] copy = new double [x.length][];
+        for (int i = 0; i < x.length; i++) {
+            copy[i] = x[i].clone();
+        }
+        return copy;
+    }
+
+    private static double [] column(double [][] x, int j) {
+        final double [] column = new double [x.length];
+        for (int i = 0; i < x.length; i++) {
+            column[i] = x[i][j];
+        }
+        return column;
+    }
+
+    private static void assertEquals(DoubleMatrix2D expected, double [][] actual, double epsilon) {
+        assertEquals(expected.toArray(), actual, epsilon);
+    }
+
+    private static void assertEquals(double [][] expected, double [][] actual, double epsilon) {
+        Assertions.assertThat(actual.length).isEqualTo(expected.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                Assertions.assertThat(actual[i][j])
+                    .describedAs("[" + i + ", " + j + "]")
+                    .isCloseTo(expected[i][j], Offset.offset(epsilon * Math.max(1, Math.abs(expected[i][j]))));
+            }
+        }
+    }
+
+    /**
+     * Unit vectors equal up to their sign.
+     */
+    private static void assertSameDirection(double [] actual, double [] expected, double epsilon) {
+        double dot = 0, normActual = 0, normExpected = 0;
+        for (int i = 0; i < expected.length; i++) {
+            dot += actual[i] * expected[i];
+            normActual += actual[i] * actual[i];
+            normExpected += expected[i] * expected[i];
+        }
+        Assertions.assertThat(Math.abs(dot) / Math.sqrt(normActual * normExpected))
+            .isCloseTo(1, Offset.offset(epsilon));
+    }
+}
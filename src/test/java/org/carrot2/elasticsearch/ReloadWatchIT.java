@@ -0,0 +1,86 @@
+package org.carrot2.elasticsearch;
+
+import static org.elasticsearch.test.ESIntegTestCase.Scope.TEST;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.carrot2.elasticsearch.ListAlgorithmsAction.ListAlgorithmsActionRequestBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESIntegTestCase.ClusterScope;
+import org.junit.Test;
+
+/**
+ * Reloading the clustering controller on configuration changes (see
+ * {@link ClusteringPlugin#RELOAD_WATCH_PROPERTY_NAME}).
+ */
+@ClusterScope(scope = TEST)
+public class ReloadWatchIT extends SampleIndexTestCase {
+    private static final String WATCHED_ALGORITHM =
+            "<component-suite>\n" +
+            "  <algorithms>\n" +
+            "    <algorithm component-class=\"org.carrot2.clustering.lingo.LingoClusteringAlgorithm\" id=\"watched\"\n" +
+            "               attribute-sets-resource=\"lingo-attributes.xml\">\n" +
+            "      <label>Watched</label>\n" +
+            "    </algorithm>\n" +
+            "  </algorithms>\n" +
+            "</component-suite>\n";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put(ClusteringPlugin.RELOAD_WATCH_PROPERTY_NAME, true)
+                .put("resource.reload.interval.high", "500ms")
+                .build();
+    }
+
+    @Test
+    public void testReloadOnConfigurationChange() throws Exception {
+        Assertions.assertThat(new ListAlgorithmsActionRequestBuilder(client).get().getAlgorithms())
+            .doesNotContain("watched");
+
+        final Map<Path, byte[]> originalSuites = new HashMap<>();
+        try {
+            for (Environment environment : internalCluster().getInstances(Environment.class)) {
+                Path algorithms = environment.configFile().resolve(ClusteringPlugin.PLUGIN_NAME).resolve("algorithms");
+                Path suite = algorithms.resolve("suite.xml");
+                byte[] original = Files.readAllBytes(suite);
+                originalSuites.put(suite, original);
+
+                Files.write(algorithms.resolve("watched.xml"), WATCHED_ALGORITHM.getBytes(StandardCharsets.UTF_8));
+                Files.write(suite, new String(original, StandardCharsets.UTF_8)
+                        .replace("</component-suite>", "  <include suite=\"watched.xml\" />\n</component-suite>")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+
+            // No explicit reload: the change is picked up by the file watcher.
+            assertBusy(new Runnable() {
+                @Override
+                public void run() {
+                    Assertions.assertThat(new ListAlgorithmsActionRequestBuilder(client).get().getAlgorithms())
+                        .contains("watched");
+                }
+            }, 30, TimeUnit.SECONDS);
+        } finally {
+            for (Map.Entry<Path, byte[]> e : originalSuites.entrySet()) {
+                Files.write(e.getKey(), e.getValue());
+                Files.deleteIfExists(e.getKey().resolveSibling("watched.xml"));
+            }
+        }
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                Assertions.assertThat(new ListAlgorithmsActionRequestBuilder(client).get().getAlgorithms())
+                    .doesNotContain("watched");
+            }
+        }, 30, TimeUnit.SECONDS);
+    }
+}